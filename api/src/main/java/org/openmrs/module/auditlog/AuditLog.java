@@ -1,17 +1,24 @@
 package org.openmrs.module.auditlog;
 
-import org.apache.commons.lang.StringUtils;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.Immutable;
+import org.hibernate.annotations.Type;
 import org.openmrs.User;
+import org.openmrs.module.auditlog.util.AuditLogUtil;
 
 import javax.persistence.*;
 import java.io.Serializable;
 import java.sql.Blob;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.Set;
-import java.util.UUID;
 
+//Rows are never updated after they are inserted
 @Entity
+@Immutable
+@Cache(usage = CacheConcurrencyStrategy.READ_ONLY)
 @Table(name = "auditlog_audit_log")
 public class AuditLog implements Serializable {
 
@@ -23,20 +30,28 @@ public class AuditLog implements Serializable {
 	private Integer auditLogId;
 
 	@Column(name = "uuid", length = 38, nullable = false, unique = true)
-	private String uuid = UUID.randomUUID().toString();
+	private String uuid;
 
-	@Column(name = "type", length = 512, nullable = false)
+	//Stored as the key of the class name in the auditlog_type dictionary
+	@Type(type = "org.openmrs.module.auditlog.api.db.hibernate.AuditLogTypeUserType")
+	@Column(name = "type_id", nullable = false)
 	private String type;
 
 	@Column(name = "identifier", length = 255, nullable = false)
 	private String identifier;
 
+	//The uuid of the audited object if it is an OpenmrsObject
+	@Column(name = "object_uuid", length = 38)
+	private String objectUuid;
+
 	@Enumerated(EnumType.STRING)
 	@Column(name = "action", length = 50, nullable = false)
 	private Action action;
 
+	//No foreign key, logs written in a separate transaction would wait on the locks the audited
+	//transaction holds on the user's row which in turn waits for the logs to be written
 	@ManyToOne
-	@JoinColumn(name = "user_id")
+	@JoinColumn(name = "user_id", foreignKey = @ForeignKey(ConstraintMode.NO_CONSTRAINT))
 	private User user;
 
 	@Column(name = "date_created", nullable = false)
@@ -56,9 +71,10 @@ public class AuditLog implements Serializable {
 	@OneToMany(mappedBy = "parentAuditLog", cascade = CascadeType.ALL, orphanRemoval = true)
 	private Set<AuditLog> childAuditLogs = new LinkedHashSet<>();
 
-	@Lob
-	@Column(name = "serialized_data")
-	private Blob serializedData;
+	//The serialized data is stored in a separate table and only loaded on demand, a set is used
+	//since an inverse one-to-one association can't be lazily loaded
+	@OneToMany(mappedBy = "auditLog", cascade = CascadeType.ALL, orphanRemoval = true, fetch = FetchType.LAZY)
+	private Set<AuditLogData> data = new HashSet<>(1);
 
 	public enum Action {
 		CREATED, UPDATED, DELETED
@@ -70,7 +86,7 @@ public class AuditLog implements Serializable {
 	}
 
 	public AuditLog(String type, Serializable identifier, Action action, User user, Date dateCreated) {
-		this();
+		this.uuid = AuditLogUtil.generateUuid();
 		this.type = type;
 		this.identifier = String.valueOf(identifier);
 		this.action = action;
@@ -110,6 +126,14 @@ public class AuditLog implements Serializable {
 		this.identifier = identifier;
 	}
 
+	public String getObjectUuid() {
+		return objectUuid;
+	}
+
+	public void setObjectUuid(String objectUuid) {
+		this.objectUuid = objectUuid;
+	}
+
 	public Action getAction() {
 		return action;
 	}
@@ -167,11 +191,17 @@ public class AuditLog implements Serializable {
 	}
 
 	public Blob getSerializedData() {
-		return serializedData;
+		return data.isEmpty() ? null : data.iterator().next().getSerializedData();
 	}
 
 	public void setSerializedData(Blob serializedData) {
-		this.serializedData = serializedData;
+		if (serializedData == null) {
+			data.clear();
+		} else if (data.isEmpty()) {
+			data.add(new AuditLogData(this, serializedData));
+		} else {
+			data.iterator().next().setSerializedData(serializedData);
+		}
 	}
 
 	@Override
@@ -201,12 +231,6 @@ public class AuditLog implements Serializable {
 	 * @return the classname
 	 */
 	public String getSimpleTypeName() {
-		String[] sections = new String[0];
-		try {
-			sections = StringUtils.splitByCharacterTypeCamelCase(Class.forName(getType()).getSimpleName());
-		} catch (ClassNotFoundException e) {
-			throw new RuntimeException(e);
-		}
-		return StringUtils.join(sections, " ");
+		return AuditLogUtil.getSimpleTypeName(getType());
 	}
 }
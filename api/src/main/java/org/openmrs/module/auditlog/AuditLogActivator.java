@@ -16,6 +16,11 @@ package org.openmrs.module.auditlog;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.module.BaseModuleActivator;
+import org.openmrs.module.auditlog.api.db.hibernate.AuditLogDataSources;
+import org.openmrs.module.auditlog.api.db.hibernate.interceptor.AuditLogJournal;
+import org.openmrs.module.auditlog.api.db.hibernate.interceptor.AuditPlan;
+import org.openmrs.module.auditlog.sink.AuditSinks;
+import org.openmrs.module.auditlog.task.IngestAuditLogJournalTask;
 
 /**
  * This class contains the logic that is run every time this module is either started or shutdown
@@ -39,6 +44,10 @@ public class AuditLogActivator extends BaseModuleActivator {
 	 */
 	@Override
 	public void started() {
+		//Also schedules the ingest task for the records an earlier run left in the journal
+		IngestAuditLogJournalTask.scheduleIfNecessary();
+		//The interceptor would otherwise load the property rules during the first flush
+		AuditPlan.preload();
 		if (log.isInfoEnabled()) {
 			log.info("Started Audit Log Module...");
 		}
@@ -59,6 +68,9 @@ public class AuditLogActivator extends BaseModuleActivator {
 	 */
 	@Override
 	public void stopped() {
+		AuditSinks.shutdown();
+		AuditLogJournal.shutdown();
+		AuditLogDataSources.close();
 		if (log.isInfoEnabled()) {
 			log.info("Stopped Audit Log Module...");
 		}
@@ -0,0 +1,156 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog;
+
+import org.hibernate.annotations.Type;
+import org.openmrs.User;
+import org.openmrs.module.auditlog.AuditLog.Action;
+import org.openmrs.module.auditlog.util.AuditLogUtil;
+
+import javax.persistence.*;
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * The number of audit logs created on a given day for a given type, action and user, the counts are
+ * rolled up incrementally from the audit log table so that statistics can be reported without
+ * scanning the audit log table.
+ */
+@Entity
+@Table(name = "auditlog_daily_count", uniqueConstraints = @UniqueConstraint(columnNames = { "day", "type_id", "action",
+        "user_key" }))
+public class AuditLogDailyCount implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	@Id
+	@GeneratedValue
+	@Column(name = "daily_count_id")
+	private Integer dailyCountId;
+
+	@Column(name = "day", nullable = false)
+	@Temporal(TemporalType.DATE)
+	private Date day;
+
+	//Stored as the key of the class name in the auditlog_type dictionary
+	@Type(type = "org.openmrs.module.auditlog.api.db.hibernate.AuditLogTypeUserType")
+	@Column(name = "type_id", nullable = false)
+	private String type;
+
+	@Enumerated(EnumType.STRING)
+	@Column(name = "action", length = 50, nullable = false)
+	private Action action;
+
+	@ManyToOne(fetch = FetchType.LAZY)
+	@JoinColumn(name = "user_id")
+	private User user;
+
+	//The user id or 0 if there is no user, unlike the nullable user_id it can be part of the unique key
+	@Column(name = "user_key", nullable = false)
+	private int userKey;
+
+	@Column(name = "log_count", nullable = false)
+	private long count;
+
+	//The id of the latest audit log included in the count, the max value is the high water mark
+	@Column(name = "last_audit_log_id", nullable = false)
+	private Integer lastAuditLogId;
+
+	public AuditLogDailyCount() {
+	}
+
+	public AuditLogDailyCount(Date day, String type, Action action, User user) {
+		this.day = day;
+		this.type = type;
+		this.action = action;
+		setUser(user);
+	}
+
+	public Integer getDailyCountId() {
+		return dailyCountId;
+	}
+
+	public void setDailyCountId(Integer dailyCountId) {
+		this.dailyCountId = dailyCountId;
+	}
+
+	public Date getDay() {
+		return day;
+	}
+
+	public void setDay(Date day) {
+		this.day = day;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public void setType(String type) {
+		this.type = type;
+	}
+
+	public Action getAction() {
+		return action;
+	}
+
+	public void setAction(Action action) {
+		this.action = action;
+	}
+
+	public User getUser() {
+		return user;
+	}
+
+	public void setUser(User user) {
+		this.user = user;
+		this.userKey = (user != null && user.getUserId() != null) ? user.getUserId() : 0;
+	}
+
+	public int getUserKey() {
+		return userKey;
+	}
+
+	public void setUserKey(int userKey) {
+		this.userKey = userKey;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public void setCount(long count) {
+		this.count = count;
+	}
+
+	public Integer getLastAuditLogId() {
+		return lastAuditLogId;
+	}
+
+	public void setLastAuditLogId(Integer lastAuditLogId) {
+		this.lastAuditLogId = lastAuditLogId;
+	}
+
+	/**
+	 * @see AuditLog#getSimpleTypeName()
+	 */
+	public String getSimpleTypeName() {
+		return AuditLogUtil.getSimpleTypeName(type);
+	}
+
+	@Override
+	public String toString() {
+		return day + " " + action + " " + type + " " + count;
+	}
+}
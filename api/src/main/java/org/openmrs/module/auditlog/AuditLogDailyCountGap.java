@@ -0,0 +1,62 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog;
+
+import javax.persistence.*;
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * The id of an audit log that was missing when its range was rolled up into the daily counts
+ * because the transaction that created it had not committed yet, the log is counted by a later
+ * roll up once it exists. Gaps that are never filled e.g. because of a rollback expire after a
+ * day.
+ */
+@Entity
+@Table(name = "auditlog_daily_count_gap")
+public class AuditLogDailyCountGap implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	@Id
+	@Column(name = "audit_log_id")
+	private Integer auditLogId;
+
+	@Column(name = "date_created", nullable = false)
+	private Date dateCreated;
+
+	public AuditLogDailyCountGap() {
+	}
+
+	public Integer getAuditLogId() {
+		return auditLogId;
+	}
+
+	public void setAuditLogId(Integer auditLogId) {
+		this.auditLogId = auditLogId;
+	}
+
+	public Date getDateCreated() {
+		return dateCreated;
+	}
+
+	public void setDateCreated(Date dateCreated) {
+		this.dateCreated = dateCreated;
+	}
+
+	@Override
+	public String toString() {
+		return "Gap " + auditLogId;
+	}
+}
@@ -0,0 +1,91 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog;
+
+import org.hibernate.annotations.Immutable;
+
+import javax.persistence.*;
+import java.io.Serializable;
+import java.sql.Blob;
+
+/**
+ * Holds the serialized data of an {@link AuditLog}, it is stored in a separate table keyed by the
+ * audit log id so that the main audit log rows stay small and the payload is only read when it is
+ * actually needed.
+ */
+//Not cached since lobs can't be stored in the second level cache
+@Entity
+@Immutable
+@Table(name = "auditlog_audit_log_data")
+public class AuditLogData implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	@Id
+	@Column(name = "audit_log_id")
+	private Integer auditLogId;
+
+	@MapsId
+	@ManyToOne(fetch = FetchType.LAZY)
+	@JoinColumn(name = "audit_log_id")
+	private AuditLog auditLog;
+
+	@Lob
+	@Column(name = "serialized_data", nullable = false)
+	private Blob serializedData;
+
+	public AuditLogData() {
+	}
+
+	public AuditLogData(AuditLog auditLog, Blob serializedData) {
+		this.auditLog = auditLog;
+		this.serializedData = serializedData;
+	}
+
+	public Integer getAuditLogId() {
+		return auditLogId;
+	}
+
+	public void setAuditLogId(Integer auditLogId) {
+		this.auditLogId = auditLogId;
+	}
+
+	public AuditLog getAuditLog() {
+		return auditLog;
+	}
+
+	public void setAuditLog(AuditLog auditLog) {
+		this.auditLog = auditLog;
+	}
+
+	public Blob getSerializedData() {
+		return serializedData;
+	}
+
+	public void setSerializedData(Blob serializedData) {
+		this.serializedData = serializedData;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return this == obj
+		        || (obj instanceof AuditLogData && getAuditLog() != null && getAuditLog().equals(
+		            ((AuditLogData) obj).getAuditLog()));
+	}
+
+	@Override
+	public int hashCode() {
+		return (getAuditLog() != null) ? getAuditLog().hashCode() : super.hashCode();
+	}
+}
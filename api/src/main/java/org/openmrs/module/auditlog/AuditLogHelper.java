@@ -55,6 +55,12 @@ public class AuditLogHelper implements GlobalPropertyListener {
 	static {
 		CORE_EXCEPTIONS = new ArrayList<Class<?>>();
 		CORE_EXCEPTIONS.add(AuditLog.class);
+		CORE_EXCEPTIONS.add(AuditLogData.class);
+		CORE_EXCEPTIONS.add(AuditLogSnapshot.class);
+		CORE_EXCEPTIONS.add(AuditLogType.class);
+		CORE_EXCEPTIONS.add(AuditLogDailyCount.class);
+		CORE_EXCEPTIONS.add(AuditLogLatest.class);
+		CORE_EXCEPTIONS.add(AuditLogPropertyChange.class);
 	}
 	
 	private static Set<Class<?>> exceptionsTypeCache;
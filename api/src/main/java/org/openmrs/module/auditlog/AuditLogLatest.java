@@ -0,0 +1,145 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog;
+
+import org.hibernate.annotations.Type;
+import org.openmrs.User;
+import org.openmrs.module.auditlog.AuditLog.Action;
+
+import javax.persistence.*;
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * Holds the latest {@link AuditLog} of an audited object, there is a single row per type and
+ * identifier that is updated every time a log is written for the object so that looking up who
+ * last changed an object and when is a single index hit instead of a sort over its whole history.
+ * The log with the greatest id is the latest.
+ */
+@Entity
+@Table(name = "auditlog_latest", uniqueConstraints = @UniqueConstraint(columnNames = { "type_id", "identifier" }))
+public class AuditLogLatest implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	@Id
+	@GeneratedValue
+	@Column(name = "latest_id")
+	private Integer latestId;
+
+	//Stored as the key of the class name in the auditlog_type dictionary
+	@Type(type = "org.openmrs.module.auditlog.api.db.hibernate.AuditLogTypeUserType")
+	@Column(name = "type_id", nullable = false)
+	private String type;
+
+	@Column(name = "identifier", length = 255, nullable = false)
+	private String identifier;
+
+	//No foreign key, the entry is upserted before the log is flushed
+	@ManyToOne(fetch = FetchType.LAZY)
+	@JoinColumn(name = "audit_log_id", nullable = false, foreignKey = @ForeignKey(ConstraintMode.NO_CONSTRAINT))
+	private AuditLog auditLog;
+
+	@Enumerated(EnumType.STRING)
+	@Column(name = "action", length = 50, nullable = false)
+	private Action action;
+
+	@ManyToOne(fetch = FetchType.LAZY)
+	@JoinColumn(name = "user_id", foreignKey = @ForeignKey(ConstraintMode.NO_CONSTRAINT))
+	private User user;
+
+	@Column(name = "date_created", nullable = false)
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date dateCreated;
+
+	public AuditLogLatest() {
+	}
+
+	public AuditLogLatest(AuditLog auditLog) {
+		this.type = auditLog.getType();
+		this.identifier = auditLog.getIdentifier();
+		setAuditLog(auditLog);
+	}
+
+	public Integer getLatestId() {
+		return latestId;
+	}
+
+	public void setLatestId(Integer latestId) {
+		this.latestId = latestId;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public void setType(String type) {
+		this.type = type;
+	}
+
+	public String getIdentifier() {
+		return identifier;
+	}
+
+	public void setIdentifier(String identifier) {
+		this.identifier = identifier;
+	}
+
+	public AuditLog getAuditLog() {
+		return auditLog;
+	}
+
+	/**
+	 * Sets the latest log and copies its action, user and creation date
+	 *
+	 * @param auditLog the latest log
+	 */
+	public void setAuditLog(AuditLog auditLog) {
+		this.auditLog = auditLog;
+		if (auditLog != null) {
+			this.action = auditLog.getAction();
+			this.user = auditLog.getUser();
+			this.dateCreated = auditLog.getDateCreated();
+		}
+	}
+
+	public Action getAction() {
+		return action;
+	}
+
+	public void setAction(Action action) {
+		this.action = action;
+	}
+
+	public User getUser() {
+		return user;
+	}
+
+	public void setUser(User user) {
+		this.user = user;
+	}
+
+	public Date getDateCreated() {
+		return dateCreated;
+	}
+
+	public void setDateCreated(Date dateCreated) {
+		this.dateCreated = dateCreated;
+	}
+
+	@Override
+	public String toString() {
+		return action + " " + type + " " + identifier;
+	}
+}
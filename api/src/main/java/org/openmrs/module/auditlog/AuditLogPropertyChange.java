@@ -0,0 +1,120 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog;
+
+import org.hibernate.annotations.Type;
+
+import javax.persistence.*;
+import java.io.Serializable;
+
+/**
+ * A property changed by an {@link AuditLog} with action UPDATED, a row is written per changed
+ * property alongside the serialized data of the log so that the logs that changed a given property
+ * and optionally to or from a given value can be found via an index without decoding the serialized
+ * data of every log. Values are stored as hashes of their serialized form since they can only be
+ * matched for equality.
+ */
+@Entity
+@Table(name = "auditlog_property_change")
+public class AuditLogPropertyChange implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	@Id
+	@GeneratedValue
+	@Column(name = "property_change_id")
+	private Integer propertyChangeId;
+
+	@ManyToOne(fetch = FetchType.LAZY)
+	@JoinColumn(name = "audit_log_id", nullable = false)
+	private AuditLog auditLog;
+
+	//Stored as the key of the class name in the auditlog_type dictionary
+	@Type(type = "org.openmrs.module.auditlog.api.db.hibernate.AuditLogTypeUserType")
+	@Column(name = "type_id", nullable = false)
+	private String type;
+
+	@Column(name = "property_name", length = 255, nullable = false)
+	private String propertyName;
+
+	@Column(name = "new_value_hash", length = 64)
+	private String newValueHash;
+
+	@Column(name = "previous_value_hash", length = 64)
+	private String previousValueHash;
+
+	public AuditLogPropertyChange() {
+	}
+
+	public AuditLogPropertyChange(AuditLog auditLog, String propertyName, String newValueHash, String previousValueHash) {
+		this.auditLog = auditLog;
+		this.type = auditLog.getType();
+		this.propertyName = propertyName;
+		this.newValueHash = newValueHash;
+		this.previousValueHash = previousValueHash;
+	}
+
+	public Integer getPropertyChangeId() {
+		return propertyChangeId;
+	}
+
+	public void setPropertyChangeId(Integer propertyChangeId) {
+		this.propertyChangeId = propertyChangeId;
+	}
+
+	public AuditLog getAuditLog() {
+		return auditLog;
+	}
+
+	public void setAuditLog(AuditLog auditLog) {
+		this.auditLog = auditLog;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public void setType(String type) {
+		this.type = type;
+	}
+
+	public String getPropertyName() {
+		return propertyName;
+	}
+
+	public void setPropertyName(String propertyName) {
+		this.propertyName = propertyName;
+	}
+
+	public String getNewValueHash() {
+		return newValueHash;
+	}
+
+	public void setNewValueHash(String newValueHash) {
+		this.newValueHash = newValueHash;
+	}
+
+	public String getPreviousValueHash() {
+		return previousValueHash;
+	}
+
+	public void setPreviousValueHash(String previousValueHash) {
+		this.previousValueHash = previousValueHash;
+	}
+
+	@Override
+	public String toString() {
+		return type + "." + propertyName;
+	}
+}
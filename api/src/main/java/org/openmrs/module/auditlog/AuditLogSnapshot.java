@@ -0,0 +1,149 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog;
+
+import org.hibernate.annotations.Type;
+import org.openmrs.module.auditlog.util.AuditLogUtil;
+
+import javax.persistence.*;
+import java.io.Serializable;
+import java.sql.Blob;
+import java.util.Date;
+
+/**
+ * A checkpoint of the full state of an audited object as of a given {@link AuditLog}, snapshots
+ * are written periodically for frequently changed objects so that reconstructing the state of an
+ * object at a point in time only needs to replay the logs between the nearest snapshot and the
+ * specified date rather than the object's full history.
+ */
+@Entity
+@Table(name = "auditlog_snapshot")
+public class AuditLogSnapshot implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	@Id
+	@GeneratedValue
+	@Column(name = "snapshot_id")
+	private Integer snapshotId;
+
+	@Column(name = "uuid", length = 38, nullable = false, unique = true)
+	private String uuid;
+
+	//Stored as the key of the class name in the auditlog_type dictionary
+	@Type(type = "org.openmrs.module.auditlog.api.db.hibernate.AuditLogTypeUserType")
+	@Column(name = "type_id", nullable = false)
+	private String type;
+
+	@Column(name = "identifier", length = 255, nullable = false)
+	private String identifier;
+
+	//The log as of which the state was captured
+	@ManyToOne
+	@JoinColumn(name = "audit_log_id", nullable = false)
+	private AuditLog auditLog;
+
+	@Column(name = "date_created", nullable = false)
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date dateCreated;
+
+	@Lob
+	@Column(name = "serialized_data", nullable = false)
+	private Blob serializedData;
+
+	public AuditLogSnapshot() {
+	}
+
+	public AuditLogSnapshot(AuditLog auditLog, Blob serializedData) {
+		this.uuid = AuditLogUtil.generateUuid();
+		this.auditLog = auditLog;
+		this.type = auditLog.getType();
+		this.identifier = auditLog.getIdentifier();
+		this.dateCreated = auditLog.getDateCreated();
+		this.serializedData = serializedData;
+	}
+
+	public Integer getSnapshotId() {
+		return snapshotId;
+	}
+
+	public void setSnapshotId(Integer snapshotId) {
+		this.snapshotId = snapshotId;
+	}
+
+	public String getUuid() {
+		return uuid;
+	}
+
+	public void setUuid(String uuid) {
+		this.uuid = uuid;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public void setType(String type) {
+		this.type = type;
+	}
+
+	public String getIdentifier() {
+		return identifier;
+	}
+
+	public void setIdentifier(String identifier) {
+		this.identifier = identifier;
+	}
+
+	public AuditLog getAuditLog() {
+		return auditLog;
+	}
+
+	public void setAuditLog(AuditLog auditLog) {
+		this.auditLog = auditLog;
+	}
+
+	public Date getDateCreated() {
+		return dateCreated;
+	}
+
+	public void setDateCreated(Date dateCreated) {
+		this.dateCreated = dateCreated;
+	}
+
+	public Blob getSerializedData() {
+		return serializedData;
+	}
+
+	public void setSerializedData(Blob serializedData) {
+		this.serializedData = serializedData;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return this == obj
+		        || (obj instanceof AuditLogSnapshot && getUuid() != null && ((AuditLogSnapshot) obj).getUuid().equals(
+		            this.getUuid()));
+	}
+
+	@Override
+	public int hashCode() {
+		return (getUuid() != null) ? getUuid().hashCode() : super.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return "Snapshot of " + type + " " + identifier;
+	}
+}
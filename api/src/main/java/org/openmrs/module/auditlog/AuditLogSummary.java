@@ -0,0 +1,141 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import org.openmrs.PersonName;
+import org.openmrs.module.auditlog.AuditLog.Action;
+import org.openmrs.module.auditlog.util.AuditLogUtil;
+
+/**
+ * A read only summary of an {@link AuditLog} with just the fields needed by list views, it is
+ * populated by a projection query so the serialized data, child logs and user are never loaded.
+ */
+public class AuditLogSummary implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private Integer auditLogId;
+
+	private String uuid;
+
+	private String type;
+
+	private String identifier;
+
+	private Action action;
+
+	private Date dateCreated;
+
+	private String userUuid;
+
+	private String username;
+
+	private String personName;
+
+	private long childAuditLogCount;
+
+	public AuditLogSummary(Integer auditLogId, String uuid, String type, String identifier, Action action,
+	    Date dateCreated, String userUuid, String username, String givenName, String middleName, String familyName,
+	    Long childAuditLogCount) {
+		this.auditLogId = auditLogId;
+		this.uuid = uuid;
+		this.type = type;
+		this.identifier = identifier;
+		this.action = action;
+		this.dateCreated = dateCreated;
+		this.userUuid = userUuid;
+		this.username = username;
+		if (givenName != null || familyName != null) {
+			this.personName = new PersonName(givenName, middleName, familyName).getFullName();
+		}
+		this.childAuditLogCount = (childAuditLogCount != null) ? childAuditLogCount : 0;
+	}
+
+	public Integer getAuditLogId() {
+		return auditLogId;
+	}
+
+	public String getUuid() {
+		return uuid;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public String getIdentifier() {
+		return identifier;
+	}
+
+	public Action getAction() {
+		return action;
+	}
+
+	public Date getDateCreated() {
+		return dateCreated;
+	}
+
+	/**
+	 * @return the uuid of the user that made the change or null if there was no authenticated user
+	 */
+	public String getUserUuid() {
+		return userUuid;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	/**
+	 * @return the full preferred name of the user that made the change
+	 */
+	public String getPersonName() {
+		return personName;
+	}
+
+	public long getChildAuditLogCount() {
+		return childAuditLogCount;
+	}
+
+	public boolean hasChildLogs() {
+		return childAuditLogCount > 0;
+	}
+
+	/**
+	 * @see AuditLog#getSimpleTypeName()
+	 */
+	public String getSimpleTypeName() {
+		return AuditLogUtil.getSimpleTypeName(type);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return this == obj
+		        || (obj instanceof AuditLogSummary && getUuid() != null && ((AuditLogSummary) obj).getUuid().equals(
+		            this.getUuid()));
+	}
+
+	@Override
+	public int hashCode() {
+		return (getUuid() != null) ? getUuid().hashCode() : super.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return action + " " + type + " " + identifier;
+	}
+}
@@ -0,0 +1,76 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog;
+
+import javax.persistence.*;
+import java.io.Serializable;
+
+/**
+ * An entry in the dictionary of audited class names, audit logs and snapshots reference the small
+ * integer key instead of storing the fully qualified class name in every row.
+ */
+@Entity
+@Table(name = "auditlog_type")
+public class AuditLogType implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	@Id
+	@GeneratedValue
+	@Column(name = "type_id")
+	private Integer typeId;
+
+	@Column(name = "classname", length = 512, nullable = false, unique = true)
+	private String classname;
+
+	public AuditLogType() {
+	}
+
+	public AuditLogType(String classname) {
+		this.classname = classname;
+	}
+
+	public Integer getTypeId() {
+		return typeId;
+	}
+
+	public void setTypeId(Integer typeId) {
+		this.typeId = typeId;
+	}
+
+	public String getClassname() {
+		return classname;
+	}
+
+	public void setClassname(String classname) {
+		this.classname = classname;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return this == obj
+		        || (obj instanceof AuditLogType && getClassname() != null && ((AuditLogType) obj).getClassname().equals(
+		            this.getClassname()));
+	}
+
+	@Override
+	public int hashCode() {
+		return (getClassname() != null) ? getClassname().hashCode() : super.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return classname;
+	}
+}
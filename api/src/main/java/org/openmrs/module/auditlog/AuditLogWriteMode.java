@@ -0,0 +1,51 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog;
+
+/**
+ * Specifies how the audit logs built for a transaction are persisted relative to the transaction
+ * that made the audited changes, it is set via the
+ * {@link org.openmrs.module.auditlog.util.AuditLogConstants#GP_WRITE_MODE} global property.
+ */
+public enum AuditLogWriteMode {
+	
+	/**
+	 * The logs are written in the session and transaction that made the changes, they share its
+	 * connection and locks and are committed with it
+	 */
+	SAME_TRANSACTION,
+	
+	/**
+	 * The logs are written in a separate session and transaction before the transaction that made
+	 * the changes commits, the audit transaction is committed right after it or rolled back if it
+	 * rolls back. If committing the logs fails they are appended to the journal like in the
+	 * {@link #AFTER_COMMIT} mode. It requires the auditlog.writeDataSource connection pool, without
+	 * it the logs are written in the transaction that made the changes.
+	 */
+	SAME_COMMIT,
+	
+	/**
+	 * The logs are written in a separate session and transaction after the transaction that made
+	 * the changes has committed, if the write fails the logs are appended to the journal to be
+	 * loaded into the database by the ingest task rather than retried on the thread of the request
+	 */
+	AFTER_COMMIT,
+	
+	/**
+	 * The logs are appended to a local write-ahead journal and synced to disk before the transaction
+	 * that made the changes commits and loaded into the database later in batches by a scheduled
+	 * task, the logs of a rolled back transaction are discarded
+	 */
+	JOURNAL
+}
@@ -14,14 +14,21 @@
 package org.openmrs.module.auditlog.api;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 import org.openmrs.Concept;
+import org.openmrs.User;
 import org.openmrs.annotation.Authorized;
 import org.openmrs.api.OpenmrsService;
 import org.openmrs.module.auditlog.AuditLog;
 import org.openmrs.module.auditlog.AuditLog.Action;
+import org.openmrs.module.auditlog.AuditLogDailyCount;
+import org.openmrs.module.auditlog.AuditLogLatest;
+import org.openmrs.module.auditlog.AuditLogSummary;
 import org.openmrs.module.auditlog.strategy.AuditStrategy;
 import org.openmrs.module.auditlog.util.AuditLogConstants;
 
@@ -66,11 +73,142 @@ public interface AuditLogService extends OpenmrsService {
 	 * @should sort the logs by date of creation starting with the latest
 	 * @should include logs for subclasses when getting logs by type
 	 * @should exclude child logs if excludeChildAuditLogsis set to true
+	 * @should load the users of the logs with the logs
+	 * @should search on the primary if the read replica is unavailable
+	 * @should search on the read replica if it is usable
 	 */
 	@Authorized(AuditLogConstants.PRIV_GET_AUDITLOGS)
 	public List<AuditLog> getAuditLogs(List<Class<?>> clazzes, List<Action> actions, Date startDate, Date endDate,
 	                                   boolean excludeChildAuditLogs, Integer start, Integer length);
 	
+	/**
+	 * Fetches summaries of the audit log entries matching the specified arguments, unlike
+	 * {@link #getAuditLogs(List, List, Date, Date, boolean, Integer, Integer)} the serialized data,
+	 * child logs and users are not loaded which makes it suitable for list views
+	 * 
+	 * @param clazzes the class type to match against e.g for objects of type {@link Concept}
+	 * @param actions the list of {@link Action}s to match against
+	 * @param startDate the creation date of the log entries to return should be after or equal to
+	 *            this date
+	 * @param endDate the creation date of the log entries to return should be before or equal to
+	 *            this date
+	 * @param excludeChildAuditLogs specifies if AuditLogs for collection items should excluded or
+	 *            not
+	 * @param start index to start with (defaults to 0 if <code>null<code>)
+	 * @param length number of results to return (default to return all matching results if
+	 *            <code>null<code>)
+	 * @return a list of matching {@link AuditLogSummary}s
+	 * @should return summaries for all audit logs in the database if all args are null
+	 * @should match on the specified classes and actions
+	 * @should include the count of child logs
+	 * @should include the name of the user
+	 * @should reject a start date that is in the future
+	 */
+	@Authorized(AuditLogConstants.PRIV_GET_AUDITLOGS)
+	public List<AuditLogSummary> getAuditLogSummaries(List<Class<?>> clazzes, List<Action> actions, Date startDate,
+	                                                  Date endDate, boolean excludeChildAuditLogs, Integer start,
+	                                                  Integer length);
+	
+	/**
+	 * Fetches a page of summaries of the audit log entries matching the specified arguments, the
+	 * summaries are sorted by id starting with the latest and the next page is fetched by passing the
+	 * id of the last summary of the current page as beforeAuditLogId, this is cheaper than offsets
+	 * for deep pages and pages don't shift when new logs are created.
+	 * 
+	 * @param clazzes the class type to match against e.g for objects of type {@link Concept}
+	 * @param identifier the identifier of the audited objects to match against
+	 * @param user the user that made the changes
+	 * @param actions the list of {@link Action}s to match against
+	 * @param startDate the creation date of the log entries to return should be after or equal to
+	 *            this date
+	 * @param endDate the creation date of the log entries to return should be before or equal to
+	 *            this date
+	 * @param excludeChildAuditLogs specifies if AuditLogs for collection items should excluded or
+	 *            not
+	 * @param beforeAuditLogId the id of the last log of the previous page or <code>null<code> for
+	 *            the first page
+	 * @param length number of results to return (default to return all matching results if
+	 *            <code>null<code>)
+	 * @return a list of matching {@link AuditLogSummary}s
+	 * @should sort the summaries by id starting with the latest
+	 * @should return the summaries of logs with ids less than beforeAuditLogId
+	 * @should match on the specified identifier and user
+	 * @should reject a start date that is in the future
+	 */
+	@Authorized(AuditLogConstants.PRIV_GET_AUDITLOGS)
+	public List<AuditLogSummary> getAuditLogSummaryPage(List<Class<?>> clazzes, Serializable identifier, User user,
+	                                                    List<Action> actions, Date startDate, Date endDate,
+	                                                    boolean excludeChildAuditLogs, Integer beforeAuditLogId,
+	                                                    Integer length);
+	
+	/**
+	 * Passes the summaries of the page of audit log entries matching the specified arguments to the
+	 * specified consumer as they are read from the database, this is the same page as returned by
+	 * {@link #getAuditLogSummaryPage(List, Serializable, User, List, Date, Date, boolean, Integer, Integer)}
+	 * but it is never held in memory which allows callers to write large pages as they go.
+	 * 
+	 * @param clazzes the class type to match against e.g for objects of type {@link Concept}
+	 * @param identifier the identifier of the audited objects to match against
+	 * @param user the user that made the changes
+	 * @param actions the list of {@link Action}s to match against
+	 * @param startDate the creation date of the log entries to return should be after or equal to
+	 *            this date
+	 * @param endDate the creation date of the log entries to return should be before or equal to
+	 *            this date
+	 * @param excludeChildAuditLogs specifies if AuditLogs for collection items should excluded or
+	 *            not
+	 * @param beforeAuditLogId the id of the last log of the previous page or <code>null<code> for
+	 *            the first page
+	 * @param length number of results to return (default to return all matching results if
+	 *            <code>null<code>)
+	 * @param consumer the consumer to pass the summaries to
+	 * @return the number of summaries passed to the consumer
+	 * @should pass the summaries to the consumer sorted by id starting with the latest
+	 * @should pass the summaries of logs with ids less than beforeAuditLogId
+	 */
+	@Authorized(AuditLogConstants.PRIV_GET_AUDITLOGS)
+	public int streamAuditLogSummaryPage(List<Class<?>> clazzes, Serializable identifier, User user,
+	                                     List<Action> actions, Date startDate, Date endDate,
+	                                     boolean excludeChildAuditLogs, Integer beforeAuditLogId, Integer length,
+	                                     Consumer<AuditLogSummary> consumer);
+	
+	/**
+	 * Counts the audit log entries on the pages returned by
+	 * {@link #getAuditLogSummaryPage(List, Serializable, User, List, Date, Date, boolean, Integer, Integer)}
+	 * for the specified arguments, the count changes when a log that committed after logs with
+	 * greater ids is added to a page
+	 * 
+	 * @param clazzes the class type to match against e.g for objects of type {@link Concept}
+	 * @param identifier the identifier of the audited objects to match against
+	 * @param user the user that made the changes
+	 * @param actions the list of {@link Action}s to match against
+	 * @param startDate the creation date of the log entries to count should be after or equal to
+	 *            this date
+	 * @param endDate the creation date of the log entries to count should be before or equal to this
+	 *            date
+	 * @param excludeChildAuditLogs specifies if AuditLogs for collection items should excluded or
+	 *            not
+	 * @param beforeAuditLogId the id of the last log of the previous page or <code>null<code> for
+	 *            the first page
+	 * @return the number of matching audit log entries
+	 * @should count the logs with ids less than beforeAuditLogId
+	 */
+	@Authorized(AuditLogConstants.PRIV_GET_AUDITLOGS)
+	public long getAuditLogSummaryCount(List<Class<?>> clazzes, Serializable identifier, User user,
+	                                    List<Action> actions, Date startDate, Date endDate,
+	                                    boolean excludeChildAuditLogs, Integer beforeAuditLogId);
+	
+	/**
+	 * Fetches the audit log with the specified uuid
+	 * 
+	 * @param uuid the uuid to match against
+	 * @return the matching audit log
+	 * @should get the audit log matching the specified uuid
+	 * @should return null if no audit log matches the specified uuid
+	 */
+	@Authorized(AuditLogConstants.PRIV_GET_AUDITLOGS)
+	public AuditLog getAuditLogByUuid(String uuid);
+	
 	/**
 	 * Fetches a saved object with the specified objectId
 	 * 
@@ -91,6 +229,21 @@ public interface AuditLogService extends OpenmrsService {
 	@Authorized(AuditLogConstants.PRIV_GET_ITEMS)
 	public <T> T getObjectByUuid(Class<T> clazz, String uuid);
 	
+	/**
+	 * Fetches the saved objects of the specified type with the specified ids in as few queries as
+	 * possible, the ids are in the form they are serialized in audit logs
+	 * 
+	 * @param clazz the type of the objects
+	 * @param ids the serialized ids to match against
+	 * @return a map of the serialized ids to the matching objects, ids with no matching object are
+	 *         not included
+	 * @should get the saved objects matching the specified ids
+	 * @should ignore ids that can't be converted to the identifier type
+	 * @should return an empty map for a class that is not mapped
+	 */
+	@Authorized(AuditLogConstants.PRIV_GET_ITEMS)
+	public <T> Map<String, T> getObjectsByIds(Class<T> clazz, Collection<String> ids);
+	
 	/**
 	 * Gets the {@link org.openmrs.module.auditlog.strategy.AuditStrategy} which is the value of the
 	 * {@link org.openmrs.module.auditlog.strategy.ExceptionBasedAuditStrategy#GLOBAL_PROPERTY_EXCEPTION}
@@ -141,6 +294,51 @@ public interface AuditLogService extends OpenmrsService {
 	public List<AuditLog> getAuditLogsWithIds(List<String> ids, Class<?> type, List<Action> actions, Date startDate,
 									   Date endDate, boolean excludeChildAuditLogs, Integer start, Integer length);
 	
+	/**
+	 * Gets all audit logs for the object with the specified uuid that match the other specified
+	 * arguments, the uuid is stored on the logs when they are written so the logs can be found with a
+	 * single indexed query even if the object has been purged
+	 * 
+	 * @param uuid the uuid of the object
+	 * @param actions the actions to match against
+	 * @param startDate the start date to match against
+	 * @param endDate the end date to match against
+	 * @param excludeChildAuditLogs specifies if AuditLogs for collection items should excluded or
+	 *            not
+	 * @param start index of the first result to return
+	 * @param length number of results to return (default to return all matching results if
+	 *            <code>null<code>)
+	 * @return a list of audit logs sorted by date of creation starting with the latest
+	 * @should get all logs for the object with the specified uuid
+	 * @should get the logs of a purged object
+	 */
+	@Authorized(AuditLogConstants.PRIV_GET_AUDITLOGS)
+	public List<AuditLog> getAuditLogsByObjectUuid(String uuid, List<Action> actions, Date startDate, Date endDate,
+	                                               boolean excludeChildAuditLogs, Integer start, Integer length);
+	
+	/**
+	 * Gets all audit logs for the objects with the specified uuids that match the other specified
+	 * arguments
+	 * 
+	 * @param uuids the uuids of the objects
+	 * @param actions the actions to match against
+	 * @param startDate the start date to match against
+	 * @param endDate the end date to match against
+	 * @param excludeChildAuditLogs specifies if AuditLogs for collection items should excluded or
+	 *            not
+	 * @param start index of the first result to return
+	 * @param length number of results to return (default to return all matching results if
+	 *            <code>null<code>)
+	 * @return a list of audit logs sorted by date of creation starting with the latest
+	 * @should get all logs for the objects with the specified uuids
+	 * @should return an empty list if no uuids are specified
+	 * @should return the specified page of the logs
+	 */
+	@Authorized(AuditLogConstants.PRIV_GET_AUDITLOGS)
+	public List<AuditLog> getAuditLogsByObjectUuids(Collection<String> uuids, List<Action> actions, Date startDate,
+	                                                Date endDate, boolean excludeChildAuditLogs, Integer start,
+	                                                Integer length);
+	
 	/**
 	 * Gets all audit logs for the object that match the other specified arguments
 	 * 
@@ -156,4 +354,123 @@ public interface AuditLogService extends OpenmrsService {
 	@Authorized(AuditLogConstants.PRIV_GET_AUDITLOGS)
 	public List<AuditLog> getAuditLogs(Object object, List<Action> actions, Date startDate, Date endDate,
 	                                   boolean excludeChildAuditLogs);
+	
+	/**
+	 * Reconstructs the state of the object with the specified id and class as it was at the
+	 * specified point in time by replaying its audit logs from the nearest snapshot or the current
+	 * state of the object
+	 * 
+	 * @param id the id of the object
+	 * @param clazz the Class of the object
+	 * @param date the point in time
+	 * @return a map of property names to serialized values or null if the object did not exist at
+	 *         the specified date
+	 * @should reject a date that is in the future
+	 * @should return the state of the object at the specified date
+	 * @should return null if the object was not yet created at the specified date
+	 * @should return null if the object was already deleted at the specified date
+	 * @should replay the logs from the nearest snapshot
+	 */
+	@Authorized(AuditLogConstants.PRIV_GET_AUDITLOGS)
+	public Map<String, Object> getObjectState(Serializable id, Class<?> clazz, Date date);
+	
+	/**
+	 * Adds the audit logs created since the last run to the daily counts per day, type, action and
+	 * user, the logs are processed in id order starting after the latest log already included so
+	 * callers wanting to catch up on a large backlog should call this method repeatedly until it
+	 * returns zero. Logs created in the last few minutes are skipped to give transactions that
+	 * allocated lower ids time to commit, the logs of transactions that commit even later are
+	 * counted by a subsequent call.
+	 * 
+	 * @param maxLogs the maximum number of logs to roll up
+	 * @return the number of daily counts that were created or updated
+	 * @should add the counts of the logs created since the last run
+	 * @should not count the same logs twice
+	 * @should count the logs of transactions committed after their range was rolled up
+	 */
+	@Authorized(AuditLogConstants.PRIV_MANAGE_AUDITLOG)
+	public int updateDailyCounts(int maxLogs);
+	
+	/**
+	 * Loads the audit logs appended to the local journal when the write mode is JOURNAL into the
+	 * database, the records are processed in the order they were appended starting after the last
+	 * ingested one so callers wanting to catch up on a large backlog should call this method
+	 * repeatedly until it returns zero.
+	 * 
+	 * @param maxRecords the maximum number of journal records to load, a record holds the logs of a
+	 *            transaction
+	 * @return the number of records that were read from the journal
+	 */
+	@Authorized(AuditLogConstants.PRIV_MANAGE_AUDITLOG)
+	public int ingestJournal(int maxRecords);
+	
+	/**
+	 * Gets the daily counts of audit logs matching the specified arguments sorted by day starting
+	 * with the latest, the counts are only as recent as the last call to
+	 * {@link #updateDailyCounts(int)}
+	 * 
+	 * @param clazzes the class types to match against
+	 * @param actions the list of {@link Action}s to match against
+	 * @param user the user that made the changes
+	 * @param startDate the first day to include
+	 * @param endDate the last day to include
+	 * @return a list of daily counts
+	 * @should match on the specified classes, actions and user
+	 */
+	@Authorized(AuditLogConstants.PRIV_GET_AUDITLOGS)
+	public List<AuditLogDailyCount> getDailyCounts(List<Class<?>> clazzes, List<Action> actions, User user,
+	                                               Date startDate, Date endDate);
+	
+	/**
+	 * Gets the latest audit log entry for the object with the specified id and class, it is a single
+	 * lookup in the table of latest logs rather than a sort over the object's full history
+	 * 
+	 * @param id the id of the object
+	 * @param clazz the Class of the object
+	 * @return the latest log entry or null if the object has never been audited
+	 * @should return the latest log for the specified object
+	 * @should include logs for subclasses
+	 * @should return null if the object has no logs
+	 */
+	@Authorized(AuditLogConstants.PRIV_GET_AUDITLOGS)
+	public AuditLogLatest getLatestAuditLog(Serializable id, Class<?> clazz);
+	
+	/**
+	 * Gets the latest audit log entries for the objects with the specified ids and class
+	 * 
+	 * @param ids the ids of the objects
+	 * @param clazz the Class of the objects
+	 * @return a map of the serialized ids to the latest log entries, objects that have never been
+	 *         audited are not included
+	 * @should return the latest logs for the specified objects
+	 */
+	@Authorized(AuditLogConstants.PRIV_GET_AUDITLOGS)
+	public Map<String, AuditLogLatest> getLatestAuditLogs(Collection<? extends Serializable> ids, Class<?> clazz);
+	
+	/**
+	 * Gets the audit logs that changed the specified property of objects of the specified classes,
+	 * the logs are looked up in the table of property changes so their serialized data isn't
+	 * decoded. Values are matched by comparing hashes of their serialized forms therefore they can
+	 * only be matched for logs written while the AuditLogConstants#GP_HASH_PROPERTY_VALUES global
+	 * property was enabled.
+	 * 
+	 * @param clazzes the class types to match against, if null logs for all types are returned
+	 * @param propertyName the name of the changed property
+	 * @param newValue the value the property was changed to, if null any new value is matched
+	 * @param previousValue the value the property was changed from, if null any previous value is
+	 *            matched
+	 * @param start index to start with (defaults to 0 if <code>null<code>)
+	 * @param length number of results to return (default to return all matching results if
+	 *            <code>null<code>)
+	 * @return a list of matching {@link AuditLog}s sorted by date of creation starting with the
+	 *         latest
+	 * @should return the logs that changed the specified property
+	 * @should match on the specified new value
+	 * @should match on the specified previous value
+	 * @should include logs for subclasses
+	 * @should fail if the property name is blank
+	 */
+	@Authorized(AuditLogConstants.PRIV_GET_AUDITLOGS)
+	public List<AuditLog> getAuditLogsByChangedProperty(List<Class<?>> clazzes, String propertyName, Object newValue,
+	                                                    Object previousValue, Integer start, Integer length);
 }
@@ -14,11 +14,21 @@
 package org.openmrs.module.auditlog.api.db;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 
+import org.openmrs.User;
 import org.openmrs.module.auditlog.AuditLog;
 import org.openmrs.module.auditlog.AuditLog.Action;
+import org.openmrs.module.auditlog.AuditLogDailyCount;
+import org.openmrs.module.auditlog.AuditLogLatest;
+import org.openmrs.module.auditlog.AuditLogSnapshot;
+import org.openmrs.module.auditlog.AuditLogSummary;
+import org.openmrs.module.auditlog.AuditLogWriteMode;
 import org.openmrs.module.auditlog.api.AuditLogService;
 
 /**
@@ -70,6 +80,235 @@ public interface AuditLogDAO {
 	public List<AuditLog> getAuditLogsWithIds(List<String> ids, Class<?> type, List<Action> actions, Date startDate,
 									   Date endDate, boolean excludeChildAuditLogs, Integer start, Integer length);
 	
+	/**
+	 * Gets the audit logs of the objects with the specified uuids that match the other specified
+	 * arguments
+	 * 
+	 * @param uuids the uuids of the audited objects
+	 * @param actions the actions to match against
+	 * @param startDate the start date to match against
+	 * @param endDate the end date to match against
+	 * @param excludeChildAuditLogs specifies if AuditLogs for collection items should excluded or
+	 *            not
+	 * @param start index of the first result to return
+	 * @param length number of results to return
+	 * @return the matching logs sorted by date of creation starting with the latest
+	 */
+	public List<AuditLog> getAuditLogsByObjectUuids(Collection<String> uuids, List<Action> actions, Date startDate,
+	                                                Date endDate, boolean excludeChildAuditLogs, Integer start,
+	                                                Integer length);
+	
+	/**
+	 * Gets the uuids among the specified ones that belong to existing audit logs
+	 * 
+	 * @param uuids the audit log uuids to check
+	 * @return the uuids of the existing logs
+	 */
+	public Set<String> getExistingAuditLogUuids(Collection<String> uuids);
+	
+	/**
+	 * Gets the names of the audited classes whose logs are only written to the sinks and not to the
+	 * database, as set via the
+	 * {@link org.openmrs.module.auditlog.util.AuditLogConstants#GP_SINK_ONLY_TYPES} global property
+	 * 
+	 * @return the class names
+	 */
+	public Set<String> getSinkOnlyTypes();
+	
+	/**
+	 * Fetches summaries of the audit log entries matching the specified arguments, the summaries
+	 * are populated by a projection query that fetches the user's name in the same statement
+	 * 
+	 * @param types the class names to match against
+	 * @param actions the list of {@link org.openmrs.module.auditlog.AuditLog.Action}s to match
+	 *            against
+	 * @param startDate the creation date of the log entries to return should be after or equal to
+	 *            this date
+	 * @param endDate the creation date of the log entries to return should be before or equal to
+	 *            this date
+	 * @param excludeChildAuditLogs specifies if AuditLogs for collection items should excluded or
+	 *            not
+	 * @param start index to start with (defaults to 0 if <code>null<code>)
+	 * @param length number of results to return (default to return all matching results if
+	 *            <code>null<code>)
+	 * @return list of audit log summaries
+	 */
+	public List<AuditLogSummary> getAuditLogSummaries(List<Class<?>> types, List<Action> actions, Date startDate,
+	                                                  Date endDate, boolean excludeChildAuditLogs, Integer start,
+	                                                  Integer length);
+	
+	/**
+	 * Fetches a page of summaries of the audit log entries matching the specified arguments sorted
+	 * by id starting with the latest, the page is located with a keyset condition on the id instead
+	 * of an offset so the cost of fetching a page doesn't grow with its position
+	 * 
+	 * @param types the class names to match against
+	 * @param identifier the serialized identifier of the audited objects to match against
+	 * @param user the user that made the changes
+	 * @param actions the list of {@link org.openmrs.module.auditlog.AuditLog.Action}s to match
+	 *            against
+	 * @param startDate the creation date of the log entries to return should be after or equal to
+	 *            this date
+	 * @param endDate the creation date of the log entries to return should be before or equal to
+	 *            this date
+	 * @param excludeChildAuditLogs specifies if AuditLogs for collection items should excluded or
+	 *            not
+	 * @param beforeAuditLogId the id of the last log of the previous page, only logs with smaller
+	 *            ids are returned
+	 * @param length number of results to return
+	 * @return list of audit log summaries
+	 */
+	public List<AuditLogSummary> getAuditLogSummaryPage(List<Class<?>> types, String identifier, User user,
+	                                                    List<Action> actions, Date startDate, Date endDate,
+	                                                    boolean excludeChildAuditLogs, Integer beforeAuditLogId,
+	                                                    Integer length);
+	
+	/**
+	 * Reads the page of audit log summaries matching the specified arguments and passes each
+	 * summary to the specified consumer as soon as it is read instead of loading the entire page
+	 * into memory, the summaries are sorted by id starting with the latest
+	 * 
+	 * @param types the persistent class types to match against
+	 * @param identifier the identifier of the audited objects to match against
+	 * @param user the user that made the changes
+	 * @param actions the list of {@link Action}s to match against
+	 * @param startDate the creation date of the log entries to return should be after or equal to
+	 *            this date
+	 * @param endDate the creation date of the log entries to return should be before or equal to
+	 *            this date
+	 * @param excludeChildAuditLogs specifies if AuditLogs for collection items should excluded or
+	 *            not
+	 * @param beforeAuditLogId the id of the last log of the previous page, only logs with smaller
+	 *            ids are returned
+	 * @param length number of results to return
+	 * @param consumer the consumer to pass the summaries to
+	 * @return the number of summaries passed to the consumer
+	 */
+	public int streamAuditLogSummaryPage(List<Class<?>> types, String identifier, User user, List<Action> actions,
+	                                     Date startDate, Date endDate, boolean excludeChildAuditLogs,
+	                                     Integer beforeAuditLogId, Integer length, Consumer<AuditLogSummary> consumer);
+	
+	/**
+	 * Counts the audit logs on the pages returned by
+	 * {@link #getAuditLogSummaryPage(List, String, User, List, Date, Date, boolean, Integer, Integer)}
+	 * for the specified arguments
+	 * 
+	 * @param types the persistent class types to match against
+	 * @param identifier the identifier of the audited objects to match against
+	 * @param user the user that made the changes
+	 * @param actions the list of {@link Action}s to match against
+	 * @param startDate the creation date of the log entries to count should be after or equal to
+	 *            this date
+	 * @param endDate the creation date of the log entries to count should be before or equal to this
+	 *            date
+	 * @param excludeChildAuditLogs specifies if AuditLogs for collection items should excluded or
+	 *            not
+	 * @param beforeAuditLogId only logs with smaller ids are counted if not null
+	 * @return the number of matching logs
+	 */
+	public long getAuditLogSummaryCount(List<Class<?>> types, String identifier, User user, List<Action> actions,
+	                                    Date startDate, Date endDate, boolean excludeChildAuditLogs,
+	                                    Integer beforeAuditLogId);
+	
+	/**
+	 * Gets the count of audit log entries for the object with the specified id that match the
+	 * other specified arguments
+	 * 
+	 * @param id the id of the object
+	 * @param types the class names to match against
+	 * @param actions the list of {@link org.openmrs.module.auditlog.AuditLog.Action}s to match
+	 *            against
+	 * @param after the creation date of the log entries to count should be after this date
+	 * @param before the creation date of the log entries to count should be before this date
+	 * @return the count of matching audit logs
+	 */
+	public long getAuditLogCount(Serializable id, List<Class<?>> types, List<Action> actions, Date after, Date before);
+	
+	/**
+	 * Counts the updates of each of the objects with the specified class names and identifiers with
+	 * log ids lower than the specified id since their latest snapshot in a single query, a class
+	 * name and identifier pair that isn't one of the objects may be included in the result. Ids are
+	 * compared since logs created in the same millisecond or by servers with skewed clocks can't be
+	 * ordered by their dates.
+	 * 
+	 * @param types the class names of the objects
+	 * @param identifiers the identifiers of the objects
+	 * @param beforeId only updates whose logs have lower ids than this one are counted, null to count
+	 *            all of them
+	 * @return a map of class names to maps of identifiers to update counts, objects without updates
+	 *         are left out
+	 */
+	public Map<String, Map<String, Long>> getUpdateCountsSinceSnapshot(Collection<String> types,
+	        Collection<String> identifiers, Integer beforeId);
+	
+	/**
+	 * Fetches the snapshot nearest to the specified date for the object with the specified id
+	 * 
+	 * @param id the id of the object
+	 * @param types the class names to match against
+	 * @param date the date to match against
+	 * @param onOrBefore specifies if the latest snapshot taken on or before the date should be
+	 *            returned, otherwise the earliest snapshot taken after the date is returned
+	 * @return the matching snapshot or null if none is found
+	 */
+	public AuditLogSnapshot getSnapshot(Serializable id, List<Class<?>> types, Date date, boolean onOrBefore);
+	
+	/**
+	 * Gets the entry holding the latest log for the object with the specified type and identifier
+	 * 
+	 * @param type the class name of the object
+	 * @param identifier the serialized identifier of the object
+	 * @return the entry or null if no log exists for the object
+	 */
+	public AuditLogLatest getLatestAuditLog(String type, String identifier);
+	
+	/**
+	 * Points the entries in the table of latest logs of the objects of the specified saved logs to
+	 * them in a single round trip, entries are created for objects without one and an entry that
+	 * already points at a log with a greater id is left alone. It is an upsert so that concurrent
+	 * transactions writing the first logs of the same object don't fail on the unique key.
+	 * 
+	 * @param auditLogs the saved logs, at most one per object
+	 * @should create entries for objects without one
+	 * @should not point an entry at a log with a lower id
+	 */
+	public void saveLatestAuditLogs(Collection<AuditLog> auditLogs);
+	
+	/**
+	 * Gets the entries holding the latest logs for the objects with the specified identifiers and
+	 * types
+	 * 
+	 * @param types the types of the objects
+	 * @param identifiers the serialized identifiers of the objects
+	 * @return the entries sorted by the ids of their logs starting with the latest
+	 */
+	public List<AuditLogLatest> getLatestAuditLogs(List<Class<?>> types, Collection<String> identifiers);
+	
+	/**
+	 * Gets the audit logs that changed the specified property of objects of the specified types
+	 * 
+	 * @param types the types of the objects, if null logs for all types are returned
+	 * @param propertyName the name of the changed property
+	 * @param newValueHash the hash of the new value to match, if null any new value is matched
+	 * @param previousValueHash the hash of the previous value to match, if null any previous value
+	 *            is matched
+	 * @param start index to start with (defaults to 0 if <code>null<code>)
+	 * @param length number of results to return (default to return all matching results if
+	 *            <code>null<code>)
+	 * @return the matching logs sorted by date of creation starting with the latest
+	 */
+	public List<AuditLog> getAuditLogsByChangedProperty(List<Class<?>> types, String propertyName, String newValueHash,
+	                                                    String previousValueHash, Integer start, Integer length);
+	
+	/**
+	 * Loads the specified users along with their persons and names in batches, it initializes lazy
+	 * user proxies so that reading the names of the users of a list of logs doesn't cost a query
+	 * per user
+	 * 
+	 * @param users the users to load, nulls and already initialized users are ignored
+	 */
+	public void fetchUsers(Collection<User> users);
+	
 	/**
 	 * Saves the specified object to the database
 	 * 
@@ -93,6 +332,47 @@ public interface AuditLogDAO {
 	 */
 	public <T> T getObjectByUuid(Class<T> clazz, String uuid);
 	
+	/**
+	 * @see AuditLogService#getObjectsByIds(Class, java.util.Collection)
+	 */
+	public <T> Map<String, T> getObjectsByIds(Class<T> clazz, Collection<String> ids);
+	
+	/**
+	 * Gets the id of the latest audit log included in the daily counts
+	 * 
+	 * @return the high water mark or null if no logs have been rolled up
+	 */
+	public Integer getDailyCountHighWaterMark();
+	
+	/**
+	 * Gets the upper bound of the next range of audit logs to roll up, the range starts after the
+	 * specified id and includes at most the specified number of logs created before the specified
+	 * date
+	 * 
+	 * @param afterAuditLogId the id after which the range starts
+	 * @param createdBefore logs created on or after this date are excluded
+	 * @param maxLogs the maximum number of logs in the range
+	 * @return the id of the last log in the range or null if there are no logs to roll up
+	 */
+	public Integer getDailyCountRangeEnd(Integer afterAuditLogId, Date createdBefore, int maxLogs);
+	
+	/**
+	 * Adds the counts of the audit logs with ids in the specified range to the daily counts, the ids
+	 * in the range that have no log yet are recorded as gaps and the logs that have since been
+	 * created in the gaps of earlier ranges are counted too
+	 * 
+	 * @param afterAuditLogId the range start, exclusive
+	 * @param toAuditLogId the range end, inclusive
+	 * @return the number of daily counts that were created or updated
+	 */
+	public int rollUpDailyCounts(Integer afterAuditLogId, Integer toAuditLogId);
+	
+	/**
+	 * @see AuditLogService#getDailyCounts(List, List, org.openmrs.User, Date, Date)
+	 */
+	public List<AuditLogDailyCount> getDailyCounts(List<Class<?>> types, List<Action> actions, User user,
+	                                               Date startDate, Date endDate);
+	
 	/**
 	 * Returns true or false depending on the value of the
 	 * AuditLogConstants#GP_STORE_LAST_STATE_OF_DELETED_ITEMS global property
@@ -101,6 +381,59 @@ public interface AuditLogDAO {
 	 */
 	public boolean storeLastStateOfDeletedItems();
 	
+	/**
+	 * Returns the value of the AuditLogConstants#GP_SNAPSHOT_INTERVAL global property
+	 * 
+	 * @return the number of updates after which a snapshot is written, zero or less means snapshots
+	 *         are disabled
+	 */
+	public int getSnapshotInterval();
+	
+	/**
+	 * Returns the value of the AuditLogConstants#GP_HASH_PROPERTY_VALUES global property
+	 * 
+	 * @return true if hashes of changed property values should be stored otherwise false
+	 */
+	public boolean hashPropertyValues();
+	
+	/**
+	 * Returns the value of the AuditLogConstants#GP_WRITE_MODE global property
+	 * 
+	 * @return the write mode, defaults to {@link AuditLogWriteMode#SAME_TRANSACTION}
+	 */
+	public AuditLogWriteMode getWriteMode();
+	
+	/**
+	 * Returns the value of the AuditLogConstants#GP_BOUNDED_MEMORY global property
+	 * 
+	 * @return true if audit logs should be built at each flush otherwise false
+	 */
+	public boolean isBoundedMemory();
+	
+	/**
+	 * Returns the value of the AuditLogConstants#GP_SPILL_THRESHOLD global property
+	 * 
+	 * @return the number of audit logs of a transaction to hold in memory in the bounded memory mode
+	 *         before they are spilled to disk, zero or less means they are never spilled
+	 */
+	public int getSpillThreshold();
+	
+	/**
+	 * Returns the value of the AuditLogConstants#GP_FLUSH_WRITE_INTERVAL global property
+	 * 
+	 * @return the number of audit logs built at flushes after which they are written in the
+	 *         transaction that made the changes, zero or less means they are written when the
+	 *         transaction completes
+	 */
+	public int getFlushWriteInterval();
+	
+	/**
+	 * Returns the value of the AuditLogConstants#GP_PROPERTY_RULES global property
+	 * 
+	 * @return map of class names to their rules as maps of rule names to values
+	 */
+	public Map<String, Map<String, Object>> getPropertyRules();
+	
 	/**
 	 * Returns unique database identifier for the specified persistent object
 	 * 
@@ -0,0 +1,140 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.api.db.hibernate;
+
+import java.util.Properties;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.auditlog.util.AuditLogConstants;
+
+import com.mchange.v2.c3p0.ComboPooledDataSource;
+
+/**
+ * Holds the optional connection pools used by the module instead of the main OpenMRS pool, they
+ * are configured via runtime properties prefixed with the name of the pool i.e.
+ * auditlog.writeDataSource or auditlog.readDataSource followed by .url, .username, .password,
+ * .driverClass, .maxPoolSize, .checkoutTimeout and .acquireRetryAttempts, a pool is only created
+ * if its url is set. Callers fail fast instead of waiting for an exhausted or unreachable pool so
+ * that they can fall back to the main pool or retry later.
+ */
+public final class AuditLogDataSources {
+	
+	private static final Log log = LogFactory.getLog(AuditLogDataSources.class);
+	
+	private static final int DEFAULT_MAX_POOL_SIZE = 5;
+	
+	//In milliseconds, how long to wait for a connection when all are checked out
+	private static final int DEFAULT_CHECKOUT_TIMEOUT = 5000;
+	
+	//c3p0 defaults to 30 attempts a second apart which would hold up callers while the database is down
+	private static final int DEFAULT_ACQUIRE_RETRY_ATTEMPTS = 3;
+	
+	//In milliseconds
+	private static final int ACQUIRE_RETRY_DELAY = 500;
+	
+	private static ComboPooledDataSource writeDataSource;
+	
+	private static boolean writeDataSourceLoaded;
+	
+	private static ComboPooledDataSource readDataSource;
+	
+	private static boolean readDataSourceLoaded;
+	
+	private AuditLogDataSources() {
+	}
+	
+	/**
+	 * Gets the pool to write audit logs through
+	 * 
+	 * @return the pool or null if none is configured
+	 */
+	public static synchronized DataSource getWriteDataSource() {
+		if (!writeDataSourceLoaded) {
+			writeDataSource = create(AuditLogConstants.RP_WRITE_DATASOURCE);
+			writeDataSourceLoaded = true;
+		}
+		return writeDataSource;
+	}
+	
+	/**
+	 * Gets the pool of the read replica to run audit log searches against
+	 * 
+	 * @return the pool or null if none is configured
+	 */
+	public static synchronized DataSource getReadDataSource() {
+		if (!readDataSourceLoaded) {
+			readDataSource = create(AuditLogConstants.RP_READ_DATASOURCE);
+			readDataSourceLoaded = true;
+		}
+		return readDataSource;
+	}
+	
+	/**
+	 * Closes the pools, they are created again from the runtime properties on next use
+	 */
+	public static synchronized void close() {
+		if (writeDataSource != null) {
+			writeDataSource.close();
+			writeDataSource = null;
+		}
+		writeDataSourceLoaded = false;
+		if (readDataSource != null) {
+			readDataSource.close();
+			readDataSource = null;
+		}
+		readDataSourceLoaded = false;
+		AuditLogReadReplica.reset();
+	}
+	
+	private static ComboPooledDataSource create(String prefix) {
+		Properties props = Context.getRuntimeProperties();
+		String url = StringUtils.trimToNull(props.getProperty(prefix + ".url"));
+		if (url == null) {
+			return null;
+		}
+		
+		if (log.isInfoEnabled()) {
+			log.info("Creating connection pool " + prefix + " for " + url);
+		}
+		
+		ComboPooledDataSource dataSource = new ComboPooledDataSource(prefix);
+		try {
+			String driverClass = StringUtils.trimToNull(props.getProperty(prefix + ".driverClass"));
+			if (driverClass != null) {
+				dataSource.setDriverClass(driverClass);
+			}
+		}
+		catch (Exception e) {
+			throw new APIException("Failed to set the driver class of the connection pool " + prefix, e);
+		}
+		dataSource.setJdbcUrl(url);
+		dataSource.setUser(props.getProperty(prefix + ".username"));
+		dataSource.setPassword(props.getProperty(prefix + ".password"));
+		dataSource.setMaxPoolSize(NumberUtils.toInt(props.getProperty(prefix + ".maxPoolSize"), DEFAULT_MAX_POOL_SIZE));
+		dataSource.setCheckoutTimeout(NumberUtils.toInt(props.getProperty(prefix + ".checkoutTimeout"),
+		    DEFAULT_CHECKOUT_TIMEOUT));
+		dataSource.setAcquireRetryAttempts(NumberUtils.toInt(props.getProperty(prefix + ".acquireRetryAttempts"),
+		    DEFAULT_ACQUIRE_RETRY_ATTEMPTS));
+		dataSource.setAcquireRetryDelay(ACQUIRE_RETRY_DELAY);
+		
+		return dataSource;
+	}
+}
@@ -0,0 +1,177 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.api.db.hibernate;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.function.Function;
+
+import javax.persistence.PersistenceException;
+import javax.sql.DataSource;
+
+import org.apache.commons.lang.math.NumberUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.query.Query;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.auditlog.util.AuditLogConstants;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Runs audit log searches against the read replica configured via the auditlog.readDataSource
+ * runtime properties. The replica is only used in read only transactions so that a transaction
+ * always sees the logs it wrote, and it is skipped for a while if it fails or its replication lag
+ * exceeds auditlog.readDataSource.maxLagSeconds, in which case the searches run on the primary.
+ */
+final class AuditLogReadReplica {
+	
+	private static final Log log = LogFactory.getLog(AuditLogReadReplica.class);
+	
+	private static final int DEFAULT_MAX_LAG_SECONDS = 30;
+	
+	//How long the result of a lag check or a failure is reused before the replica is checked again
+	private static final long CHECK_INTERVAL = 5000;
+	
+	private static long nextCheckTime;
+	
+	private static boolean usable;
+	
+	//Set while a thread checks the replica, the other threads reuse the result of the last check
+	private static boolean checking;
+	
+	private AuditLogReadReplica() {
+	}
+	
+	/**
+	 * Runs the specified work with a read only session connected to the read replica, the work
+	 * should return null only if it has no result
+	 * 
+	 * @param sf the session factory
+	 * @param work the work to run
+	 * @return the result of the work or null if the replica is not configured, unavailable, lagging
+	 *         or failed to run the work
+	 */
+	static <T> T execute(SessionFactory sf, Function<Session, T> work) {
+		if (!TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+			return null;
+		}
+		
+		DataSource dataSource = AuditLogDataSources.getReadDataSource();
+		if (dataSource == null || !isUsable(sf, dataSource)) {
+			return null;
+		}
+		
+		try {
+			return doInReplica(sf, dataSource, work);
+		}
+		catch (SQLException | PersistenceException e) {
+			markUnusable("Failed to search audit logs on the read replica, using the primary", e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Clears the state of the last check so that the replica is checked again on next use
+	 */
+	static synchronized void reset() {
+		nextCheckTime = 0;
+		usable = false;
+	}
+	
+	/**
+	 * Checks if the replica is available and its lag is acceptable, the queries run outside of the
+	 * lock so that a slow replica or primary only holds up the thread checking it
+	 */
+	private static boolean isUsable(SessionFactory sf, DataSource dataSource) {
+		long now = System.currentTimeMillis();
+		synchronized (AuditLogReadReplica.class) {
+			if (now < nextCheckTime || checking) {
+				return usable;
+			}
+			checking = true;
+		}
+		
+		boolean isUsable = false;
+		try {
+			//The logs not yet replicated are those with ids greater than the greatest id on the replica
+			Integer replicaMaxId = doInReplica(sf, dataSource, new Function<Session, Integer>() {
+				
+				@Override
+				public Integer apply(Session session) {
+					return session.createQuery("select max(a.auditLogId) from AuditLog a", Integer.class)
+					        .uniqueResult();
+				}
+			});
+			
+			String hql = "select min(a.dateCreated) from AuditLog a";
+			if (replicaMaxId != null) {
+				hql += " where a.auditLogId > :maxId";
+			}
+			Query<Date> query = sf.getCurrentSession().createQuery(hql, Date.class);
+			if (replicaMaxId != null) {
+				query.setParameter("maxId", replicaMaxId);
+			}
+			Date oldestMissing = query.uniqueResult();
+			long lag = oldestMissing == null ? 0 : Math.max(0, now - oldestMissing.getTime());
+			isUsable = lag <= getMaxLagSeconds() * 1000L;
+			if (!isUsable && log.isInfoEnabled()) {
+				log.info("The audit log read replica is " + (lag / 1000) + " seconds behind, using the primary");
+			}
+		}
+		catch (SQLException | PersistenceException e) {
+			log.warn("The audit log read replica is unavailable, using the primary", e);
+		}
+		finally {
+			synchronized (AuditLogReadReplica.class) {
+				usable = isUsable;
+				nextCheckTime = System.currentTimeMillis() + CHECK_INTERVAL;
+				checking = false;
+			}
+		}
+		
+		return isUsable;
+	}
+	
+	private static synchronized void markUnusable(String message, Exception e) {
+		usable = false;
+		nextCheckTime = System.currentTimeMillis() + CHECK_INTERVAL;
+		log.warn(message, e);
+	}
+	
+	private static <T> T doInReplica(SessionFactory sf, DataSource dataSource, Function<Session, T> work)
+	    throws SQLException {
+		Connection connection = dataSource.getConnection();
+		try {
+			Session session = sf.withOptions().noInterceptor().connection(connection).openSession();
+			try {
+				session.setDefaultReadOnly(true);
+				return work.apply(session);
+			}
+			finally {
+				session.close();
+			}
+		}
+		finally {
+			connection.close();
+		}
+	}
+	
+	private static int getMaxLagSeconds() {
+		return NumberUtils.toInt(Context.getRuntimeProperties().getProperty(
+		    AuditLogConstants.RP_READ_DATASOURCE_MAX_LAG), DEFAULT_MAX_LAG_SECONDS);
+	}
+}
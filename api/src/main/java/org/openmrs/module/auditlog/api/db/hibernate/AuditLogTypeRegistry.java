@@ -0,0 +1,213 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.api.db.hibernate;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.FlushMode;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.exception.ConstraintViolationException;
+import org.hibernate.query.Query;
+import org.openmrs.module.auditlog.AuditLogType;
+
+/**
+ * In memory cache of the entries in the auditlog_type dictionary, the dictionary is small and
+ * rarely changes so after the first lookup resolving a class name to its key and vice versa
+ * doesn't need a trip to the database. Only committed entries are cached, they are loaded in a
+ * separate session while entries only visible to the calling transaction are looked up in the
+ * calling session on every use since the transaction might get rolled back. Lookups never add
+ * entries, writes call {@link #register(String, SharedSessionContractImplementor)} before
+ * inserting a row referencing a type, new entries are inserted and committed in a separate session
+ * so that the cached keys remain valid even if the transaction that triggered the insert gets
+ * rolled back.
+ */
+final class AuditLogTypeRegistry {
+
+	private static final Log log = LogFactory.getLog(AuditLogTypeRegistry.class);
+
+	//Entries added by other nodes are found in the calling session until the next reload
+	private static final long RELOAD_INTERVAL = 60 * 1000;
+
+	private static final Map<String, Integer> classnameIdMap = new ConcurrentHashMap<String, Integer>();
+
+	private static final Map<Integer, String> idClassnameMap = new ConcurrentHashMap<Integer, String>();
+
+	private static volatile long lastLoadTime;
+
+	private AuditLogTypeRegistry() {
+	}
+
+	/**
+	 * Gets the key of the specified class name without adding an entry to the dictionary
+	 *
+	 * @param classname the fully qualified class name
+	 * @param session the calling session
+	 * @return the key or null if the dictionary has no entry for the class name
+	 * @should not add an entry for an unknown class name
+	 * @should not cache an entry only visible to the calling transaction
+	 */
+	static Integer getTypeId(String classname, SharedSessionContractImplementor session) {
+		Integer typeId = classnameIdMap.get(classname);
+		if (typeId == null) {
+			loadCommitted(session.getFactory());
+			typeId = classnameIdMap.get(classname);
+			if (typeId == null) {
+				typeId = (Integer) createQuery(session, "select t.typeId from AuditLogType t where t.classname = :value")
+				        .setParameter("value", classname).uniqueResult();
+			}
+		}
+
+		return typeId;
+	}
+
+	/**
+	 * Gets the key of the specified class name, adds a new entry to the dictionary if none exists
+	 *
+	 * @param classname the fully qualified class name
+	 * @param session the calling session
+	 * @return the key
+	 * @should add an entry for an unknown class name
+	 * @should return the key of an existing entry
+	 */
+	static Integer register(String classname, SharedSessionContractImplementor session) {
+		Integer typeId = getTypeId(classname, session);
+		if (typeId == null) {
+			synchronized (AuditLogTypeRegistry.class) {
+				typeId = classnameIdMap.get(classname);
+				if (typeId == null) {
+					typeId = create(classname, session.getFactory());
+				}
+			}
+		}
+
+		return typeId;
+	}
+
+	/**
+	 * Gets the class name with the specified key
+	 *
+	 * @param typeId the key
+	 * @param session the calling session
+	 * @return the class name
+	 * @should fail for an unknown key
+	 */
+	static String getClassname(Integer typeId, SharedSessionContractImplementor session) {
+		String classname = idClassnameMap.get(typeId);
+		if (classname == null) {
+			loadCommitted(session.getFactory());
+			classname = idClassnameMap.get(typeId);
+			if (classname == null) {
+				classname = (String) createQuery(session, "select t.classname from AuditLogType t where t.typeId = :value")
+				        .setParameter("value", typeId).uniqueResult();
+				if (classname == null) {
+					throw new HibernateException("No audit log type found with id: " + typeId);
+				}
+			}
+		}
+
+		return classname;
+	}
+
+	private static Query<?> createQuery(SharedSessionContractImplementor session, String hql) {
+		Query<?> query = session.createQuery(hql);
+		//This is called while binding or reading values, must not trigger a flush of the calling session
+		query.setHibernateFlushMode(FlushMode.MANUAL);
+		return query;
+	}
+
+	/**
+	 * Loads the committed entries unless they were loaded recently
+	 */
+	@SuppressWarnings("unchecked")
+	private static void loadCommitted(SessionFactory sf) {
+		if (System.currentTimeMillis() - lastLoadTime < RELOAD_INTERVAL) {
+			return;
+		}
+		Session session = openSession(sf);
+		try {
+			for (Object[] row : (List<Object[]>) session.createQuery("select t.typeId, t.classname from AuditLogType t")
+			        .list()) {
+				cache((Integer) row[0], (String) row[1]);
+			}
+		}
+		finally {
+			session.close();
+		}
+		lastLoadTime = System.currentTimeMillis();
+	}
+	
+	private static Integer create(String classname, SessionFactory sf) {
+		if (log.isDebugEnabled()) {
+			log.debug("Adding audit log type: " + classname);
+		}
+		
+		AuditLogType type = new AuditLogType(classname);
+		Session session = openSession(sf);
+		try {
+			Transaction tx = session.beginTransaction();
+			try {
+				session.save(type);
+				tx.commit();
+			}
+			catch (ConstraintViolationException e) {
+				tx.rollback();
+				//Another node added it after our lookup
+				Integer typeId = findTypeId(classname, sf);
+				if (typeId == null) {
+					throw e;
+				}
+				
+				cache(typeId, classname);
+				return typeId;
+			}
+		}
+		finally {
+			session.close();
+		}
+		
+		cache(type.getTypeId(), type.getClassname());
+		return type.getTypeId();
+	}
+	
+	private static Integer findTypeId(String classname, SessionFactory sf) {
+		Session session = openSession(sf);
+		try {
+			return (Integer) session.createQuery("select t.typeId from AuditLogType t where t.classname = :classname")
+			        .setParameter("classname", classname).uniqueResult();
+		}
+		finally {
+			session.close();
+		}
+	}
+	
+	private static void cache(Integer typeId, String classname) {
+		classnameIdMap.put(classname, typeId);
+		idClassnameMap.put(typeId, classname);
+	}
+
+	/**
+	 * The session is opened without the interceptors since it's used from within flushes
+	 */
+	private static Session openSession(SessionFactory sf) {
+		return sf.withOptions().noInterceptor().openSession();
+	}
+}
@@ -0,0 +1,145 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.api.db.hibernate;
+
+import java.io.Serializable;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+
+import org.apache.commons.lang.ObjectUtils;
+import org.hibernate.HibernateException;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.usertype.UserType;
+
+/**
+ * Maps the class name of an audited object to the integer key of its entry in the auditlog_type
+ * dictionary, this way the entities keep exposing the class name while the database stores and
+ * filters on the key, i.e. criteria restrictions on the type property bind integers. Binding a
+ * value never adds an entry to the dictionary since values are also bound by queries, the writes
+ * register the types of the rows they insert beforehand.
+ */
+public class AuditLogTypeUserType implements UserType {
+
+	//Bound for class names without an entry, no row can match it
+	private static final int UNKNOWN_TYPE_ID = -1;
+
+	private static final int[] SQL_TYPES = { Types.INTEGER };
+
+	/**
+	 * @see org.hibernate.usertype.UserType#sqlTypes()
+	 */
+	@Override
+	public int[] sqlTypes() {
+		return SQL_TYPES;
+	}
+
+	/**
+	 * @see org.hibernate.usertype.UserType#returnedClass()
+	 */
+	@Override
+	public Class<?> returnedClass() {
+		return String.class;
+	}
+
+	/**
+	 * @see org.hibernate.usertype.UserType#equals(Object, Object)
+	 */
+	@Override
+	public boolean equals(Object x, Object y) throws HibernateException {
+		return ObjectUtils.equals(x, y);
+	}
+
+	/**
+	 * @see org.hibernate.usertype.UserType#hashCode(Object)
+	 */
+	@Override
+	public int hashCode(Object x) throws HibernateException {
+		return ObjectUtils.hashCode(x);
+	}
+
+	/**
+	 * @see org.hibernate.usertype.UserType#nullSafeGet(java.sql.ResultSet, String[],
+	 *      org.hibernate.engine.spi.SharedSessionContractImplementor, Object)
+	 * @should return the class name with the key
+	 */
+	@Override
+	public Object nullSafeGet(ResultSet rs, String[] names, SharedSessionContractImplementor session, Object owner)
+	    throws HibernateException, SQLException {
+		int typeId = rs.getInt(names[0]);
+		if (rs.wasNull()) {
+			return null;
+		}
+
+		return AuditLogTypeRegistry.getClassname(typeId, session);
+	}
+
+	/**
+	 * @see org.hibernate.usertype.UserType#nullSafeSet(java.sql.PreparedStatement, Object, int,
+	 *      org.hibernate.engine.spi.SharedSessionContractImplementor)
+	 * @should bind the key of the class name
+	 * @should bind a key matching no entry for an unknown class name
+	 */
+	@Override
+	public void nullSafeSet(PreparedStatement st, Object value, int index, SharedSessionContractImplementor session)
+	    throws HibernateException, SQLException {
+		if (value == null) {
+			st.setNull(index, Types.INTEGER);
+		} else {
+			Integer typeId = AuditLogTypeRegistry.getTypeId((String) value, session);
+			st.setInt(index, (typeId != null) ? typeId : UNKNOWN_TYPE_ID);
+		}
+	}
+
+	/**
+	 * @see org.hibernate.usertype.UserType#deepCopy(Object)
+	 */
+	@Override
+	public Object deepCopy(Object value) throws HibernateException {
+		return value;
+	}
+
+	/**
+	 * @see org.hibernate.usertype.UserType#isMutable()
+	 */
+	@Override
+	public boolean isMutable() {
+		return false;
+	}
+
+	/**
+	 * @see org.hibernate.usertype.UserType#disassemble(Object)
+	 */
+	@Override
+	public Serializable disassemble(Object value) throws HibernateException {
+		return (Serializable) value;
+	}
+
+	/**
+	 * @see org.hibernate.usertype.UserType#assemble(java.io.Serializable, Object)
+	 */
+	@Override
+	public Object assemble(Serializable cached, Object owner) throws HibernateException {
+		return cached;
+	}
+
+	/**
+	 * @see org.hibernate.usertype.UserType#replace(Object, Object, Object)
+	 */
+	@Override
+	public Object replace(Object original, Object target, Object owner) throws HibernateException {
+		return original;
+	}
+}
@@ -13,28 +13,79 @@
  */
 package org.openmrs.module.auditlog.api.db.hibernate;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
+import javax.persistence.PersistenceException;
+
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.math.NumberUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.hibernate.Criteria;
 import org.hibernate.EntityMode;
+import org.hibernate.Hibernate;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.criterion.Disjunction;
 import org.hibernate.criterion.Order;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.MySQLDialect;
+import org.hibernate.dialect.PostgreSQL81Dialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.jdbc.ReturningWork;
+import org.hibernate.jdbc.Work;
+import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.query.Query;
 import org.openmrs.GlobalProperty;
+import org.openmrs.User;
 import org.openmrs.api.GlobalPropertyListener;
 import org.openmrs.api.context.Context;
+import org.openmrs.api.db.DAOException;
 import org.openmrs.module.auditlog.AuditLog;
 import org.openmrs.module.auditlog.AuditLog.Action;
+import org.openmrs.module.auditlog.AuditLogDailyCount;
+import org.openmrs.module.auditlog.AuditLogLatest;
+import org.openmrs.module.auditlog.AuditLogPropertyChange;
+import org.openmrs.module.auditlog.AuditLogSnapshot;
+import org.openmrs.module.auditlog.AuditLogSummary;
+import org.openmrs.module.auditlog.AuditLogWriteMode;
 import org.openmrs.module.auditlog.api.db.AuditLogDAO;
+import org.openmrs.module.auditlog.api.db.hibernate.interceptor.AuditPlan;
+import org.openmrs.module.auditlog.sink.AuditSinks;
+import org.openmrs.module.auditlog.task.IngestAuditLogJournalTask;
 import org.openmrs.module.auditlog.util.AuditLogConstants;
 import org.openmrs.module.auditlog.util.AuditLogUtil;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 public class HibernateAuditLogDAO implements AuditLogDAO, GlobalPropertyListener {
 	
@@ -42,6 +93,83 @@ public class HibernateAuditLogDAO implements AuditLogDAO, GlobalPropertyListener
 	
 	private static Boolean storeLastStateOfDeletedItemsCache;
 	
+	private static Integer snapshotIntervalCache;
+	
+	private static Boolean hashPropertyValuesCache;
+	
+	private static AuditLogWriteMode writeModeCache;
+	
+	private static Set<String> sinkOnlyTypesCache;
+	
+	private static Boolean boundedMemoryCache;
+	
+	private static Integer spillThresholdCache;
+	
+	private static Integer flushWriteIntervalCache;
+	
+	private static Map<String, Map<String, Object>> propertyRulesCache;
+	
+	//Max number of values to include in an in clause
+	private static final int IN_CLAUSE_BATCH_SIZE = 500;
+	
+	private static final String LATEST_COLUMNS = "(type_id, identifier, audit_log_id, action, user_id, date_created)";
+	
+	//The audit_log_id is assigned last so that the other columns are compared against the old one
+	private static final String MYSQL_UPSERT_LATEST = "insert into auditlog_latest " + LATEST_COLUMNS
+	        + " values (?, ?, ?, ?, ?, ?) on duplicate key update"
+	        + " action = if(values(audit_log_id) > audit_log_id, values(action), action),"
+	        + " user_id = if(values(audit_log_id) > audit_log_id, values(user_id), user_id),"
+	        + " date_created = if(values(audit_log_id) > audit_log_id, values(date_created), date_created),"
+	        + " audit_log_id = greatest(audit_log_id, values(audit_log_id))";
+	
+	private static final String POSTGRESQL_UPSERT_LATEST = "insert into auditlog_latest " + LATEST_COLUMNS
+	        + " values (?, ?, ?, ?, ?, ?) on conflict (type_id, identifier) do update set"
+	        + " audit_log_id = excluded.audit_log_id, action = excluded.action, user_id = excluded.user_id,"
+	        + " date_created = excluded.date_created where auditlog_latest.audit_log_id < excluded.audit_log_id";
+	
+	private static final String UPDATE_LATEST = "update auditlog_latest set audit_log_id = ?, action = ?, user_id = ?,"
+	        + " date_created = ? where type_id = ? and identifier = ? and audit_log_id < ?";
+	
+	//auditlog_type is used as a single row source since the type_id is its primary key
+	private static final String INSERT_LATEST = "insert into auditlog_latest " + LATEST_COLUMNS
+	        + " select ?, ?, ?, ?, ?, ? from auditlog_type where type_id = ? and not exists"
+	        + " (select 1 from auditlog_latest where type_id = ? and identifier = ?)";
+	
+	private static final String DAILY_COUNT_COLUMNS = "(day, type_id, action, user_id, user_key, log_count, last_audit_log_id)";
+	
+	//The last_audit_log_id never decreases so that counting late logs doesn't move the high water mark back
+	private static final String MYSQL_UPSERT_DAILY_COUNT = "insert into auditlog_daily_count " + DAILY_COUNT_COLUMNS
+	        + " values (?, ?, ?, ?, ?, ?, ?) on duplicate key update log_count = log_count + values(log_count),"
+	        + " last_audit_log_id = greatest(last_audit_log_id, values(last_audit_log_id))";
+	
+	private static final String POSTGRESQL_UPSERT_DAILY_COUNT = "insert into auditlog_daily_count "
+	        + DAILY_COUNT_COLUMNS + " values (?, ?, ?, ?, ?, ?, ?) on conflict (day, type_id, action, user_key) do update"
+	        + " set log_count = auditlog_daily_count.log_count + excluded.log_count, last_audit_log_id ="
+	        + " greatest(auditlog_daily_count.last_audit_log_id, excluded.last_audit_log_id)";
+	
+	private static final String UPDATE_DAILY_COUNT = "update auditlog_daily_count set log_count = log_count + ?,"
+	        + " last_audit_log_id = case when last_audit_log_id < ? then ? else last_audit_log_id end"
+	        + " where day = ? and type_id = ? and action = ? and user_key = ?";
+	
+	private static final String INSERT_DAILY_COUNT = "insert into auditlog_daily_count " + DAILY_COUNT_COLUMNS
+	        + " select ?, ?, ?, ?, ?, ?, ? from auditlog_type where type_id = ? and not exists"
+	        + " (select 1 from auditlog_daily_count where day = ? and type_id = ? and action = ? and user_key = ?)";
+	
+	private static final String SELECT_DAILY_COUNT_RANGE = "select cast(date_created as date), type_id, action,"
+	        + " user_id, count(*) from auditlog_audit_log where (audit_log_id > ? and audit_log_id <= ?)";
+	
+	private static final String GROUP_BY_DAILY_COUNT = " group by cast(date_created as date), type_id, action, user_id";
+	
+	//The gaps of earlier ranges whose logs have been committed since
+	private static final String SELECT_FILLED_DAILY_COUNT_GAPS = "select g.audit_log_id from auditlog_daily_count_gap g"
+	        + " join auditlog_audit_log a on a.audit_log_id = g.audit_log_id order by g.audit_log_id";
+	
+	//Max number of late logs to count per roll up and of gaps to record per range
+	private static final int MAX_DAILY_COUNT_GAPS = 1000;
+	
+	//A transaction still pending after this long is assumed to have rolled back
+	private static final long DAILY_COUNT_GAP_EXPIRY = 24 * 60 * 60 * 1000;
+	
 	private SessionFactory sessionFactory;
 	
 	/**
@@ -55,12 +183,20 @@ public class HibernateAuditLogDAO implements AuditLogDAO, GlobalPropertyListener
 	 * @see AuditLogDAO#getAuditLogs(java.io.Serializable, java.util.List, java.util.List,
 	 *      java.util.Date, java.util.Date, boolean, Integer, Integer)
 	 */
-	@SuppressWarnings("unchecked")
 	@Override
 	public List<AuditLog> getAuditLogs(Serializable id, List<Class<?>> types, List<Action> actions, Date startDate,
 	                                   Date endDate, boolean excludeChildAuditLogs, Integer start, Integer length) {
 		
-		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(AuditLog.class);
+		return listAuditLogs(session -> {
+			return createAuditLogCriteria(session, id, types, actions, startDate, endDate, excludeChildAuditLogs,
+			    start, length);
+		});
+	}
+	
+	private Criteria createAuditLogCriteria(Session session, Serializable id, List<Class<?>> types,
+	                                        List<Action> actions, Date startDate, Date endDate,
+	                                        boolean excludeChildAuditLogs, Integer start, Integer length) {
+		Criteria criteria = session.createCriteria(AuditLog.class);
 		if (id != null) {
 			criteria.add(Restrictions.eq("identifier", AuditLogUtil.serializeObject(id)));
 		}
@@ -93,12 +229,21 @@ public class HibernateAuditLogDAO implements AuditLogDAO, GlobalPropertyListener
 		//Show the latest logs first
 		criteria.addOrder(Order.desc("dateCreated"));
 		
-		return criteria.list();
+		return criteria;
 	}
 
 	@Override
 	public List<AuditLog> getAuditLogsWithIds(List<String> ids, Class<?> type, List<Action> actions, Date startDate, Date endDate, boolean excludeChildAuditLogs, Integer start, Integer length) {
-		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(AuditLog.class);
+		return listAuditLogs(session -> {
+			return createAuditLogWithIdsCriteria(session, ids, type, actions, startDate, endDate,
+			    excludeChildAuditLogs, start, length);
+		});
+	}
+	
+	private Criteria createAuditLogWithIdsCriteria(Session session, List<String> ids, Class<?> type,
+	                                               List<Action> actions, Date startDate, Date endDate,
+	                                               boolean excludeChildAuditLogs, Integer start, Integer length) {
+		Criteria criteria = session.createCriteria(AuditLog.class);
 		if (ids != null) {
 			criteria.add(Restrictions.in("identifier", ids));
 		}
@@ -128,14 +273,349 @@ public class HibernateAuditLogDAO implements AuditLogDAO, GlobalPropertyListener
 		//Show the latest logs first
 		criteria.addOrder(Order.desc("dateCreated"));
 
+		return criteria;
+	}
+	
+	/**
+	 * Searches audit logs with the criteria created by the specified factory, if the search runs on
+	 * the read replica only the ids of the matches are read from it and the logs are loaded from the
+	 * primary so that their lazy associations can be initialized later by the caller.
+	 */
+	@SuppressWarnings("unchecked")
+	private List<AuditLog> listAuditLogs(Function<Session, Criteria> criteriaFactory) {
+		List<Integer> auditLogIds = AuditLogReadReplica.execute(sessionFactory, session -> {
+			Criteria criteria = criteriaFactory.apply(session);
+			criteria.setProjection(Projections.id());
+			return (List<Integer>) criteria.list();
+		});
+		if (auditLogIds != null) {
+			return getAuditLogsByIds(auditLogIds);
+		}
+		
+		Criteria criteria = criteriaFactory.apply(sessionFactory.getCurrentSession());
+		//Audit logs are never modified, no need to keep snapshots of them for dirty checking
+		criteria.setReadOnly(true);
+		
 		return criteria.list();
 	}
+	
+	/**
+	 * Loads the audit logs with the specified ids from the primary
+	 * 
+	 * @return the logs in the order of the ids, ids that don't match a log are skipped
+	 */
+	@SuppressWarnings("unchecked")
+	private List<AuditLog> getAuditLogsByIds(List<Integer> auditLogIds) {
+		Map<Integer, AuditLog> idLogMap = new HashMap<Integer, AuditLog>();
+		for (int i = 0; i < auditLogIds.size(); i += IN_CLAUSE_BATCH_SIZE) {
+			Criteria criteria = sessionFactory.getCurrentSession().createCriteria(AuditLog.class);
+			criteria.add(Restrictions.in("auditLogId",
+			    auditLogIds.subList(i, Math.min(i + IN_CLAUSE_BATCH_SIZE, auditLogIds.size()))));
+			criteria.setReadOnly(true);
+			for (AuditLog auditLog : (List<AuditLog>) criteria.list()) {
+				idLogMap.put(auditLog.getAuditLogId(), auditLog);
+			}
+		}
+		
+		List<AuditLog> auditLogs = new ArrayList<AuditLog>(auditLogIds.size());
+		for (Integer auditLogId : auditLogIds) {
+			AuditLog auditLog = idLogMap.get(auditLogId);
+			if (auditLog != null) {
+				auditLogs.add(auditLog);
+			}
+		}
+		
+		return auditLogs;
+	}
 
+	/**
+	 * @see AuditLogDAO#getAuditLogSummaries(List, List, Date, Date, boolean, Integer, Integer)
+	 */
+	@Override
+	public List<AuditLogSummary> getAuditLogSummaries(List<Class<?>> types, List<Action> actions, Date startDate,
+	                                                  Date endDate, boolean excludeChildAuditLogs, Integer start,
+	                                                  Integer length) {
+		return listSummaries(session -> {
+			Query<AuditLogSummary> query = createSummaryQuery(session, types, null, null, actions, startDate, endDate,
+			    excludeChildAuditLogs, null, "a.dateCreated desc");
+			if (start != null) {
+				query.setFirstResult(start);
+			}
+			if (length != null && length > 0) {
+				query.setMaxResults(length);
+			}
+			
+			return query.list();
+		});
+	}
+	
+	/**
+	 * @see AuditLogDAO#getAuditLogSummaryPage(List, String, User, List, Date, Date, boolean,
+	 *      Integer, Integer)
+	 */
+	@Override
+	public List<AuditLogSummary> getAuditLogSummaryPage(List<Class<?>> types, String identifier, User user,
+	                                                    List<Action> actions, Date startDate, Date endDate,
+	                                                    boolean excludeChildAuditLogs, Integer beforeAuditLogId,
+	                                                    Integer length) {
+		return listSummaries(session -> {
+			Query<AuditLogSummary> query = createSummaryQuery(session, types, identifier, user, actions, startDate,
+			    endDate, excludeChildAuditLogs, beforeAuditLogId, "a.auditLogId desc");
+			if (length != null && length > 0) {
+				query.setMaxResults(length);
+			}
+			
+			return query.list();
+		});
+	}
+	
+	/**
+	 * @see AuditLogDAO#streamAuditLogSummaryPage(List, String, User, List, Date, Date, boolean,
+	 *      Integer, Integer, Consumer)
+	 */
+	@Override
+	public int streamAuditLogSummaryPage(List<Class<?>> types, String identifier, User user, List<Action> actions,
+	                                     Date startDate, Date endDate, boolean excludeChildAuditLogs,
+	                                     Integer beforeAuditLogId, Integer length, Consumer<AuditLogSummary> consumer) {
+		final int[] count = { 0 };
+		Function<Session, Integer> search = session -> {
+			Query<AuditLogSummary> query = createSummaryQuery(session, types, identifier, user, actions, startDate,
+			    endDate, excludeChildAuditLogs, beforeAuditLogId, "a.auditLogId desc");
+			if (length != null && length > 0) {
+				query.setMaxResults(length);
+			}
+			
+			ScrollableResults results = query.scroll(ScrollMode.FORWARD_ONLY);
+			try {
+				while (results.next()) {
+					consumer.accept((AuditLogSummary) results.get(0));
+					count[0]++;
+				}
+			}
+			catch (PersistenceException e) {
+				//The summaries already passed on can't be taken back, so the search mustn't be rerun
+				//on the primary when the replica fails midway
+				if (count[0] > 0) {
+					throw new DAOException("Failed to read the audit log summaries after " + count[0] + " of them", e);
+				}
+				throw e;
+			}
+			finally {
+				results.close();
+			}
+			
+			return count[0];
+		};
+		
+		Integer streamed = AuditLogReadReplica.execute(sessionFactory, search);
+		if (streamed != null) {
+			return streamed;
+		}
+		
+		return search.apply(sessionFactory.getCurrentSession());
+	}
+	
+	/**
+	 * Runs the specified summary search on the read replica if possible otherwise on the primary,
+	 * summaries hold no entities so they are read entirely from the replica
+	 */
+	private List<AuditLogSummary> listSummaries(Function<Session, List<AuditLogSummary>> search) {
+		List<AuditLogSummary> summaries = AuditLogReadReplica.execute(sessionFactory, search);
+		if (summaries != null) {
+			return summaries;
+		}
+		
+		return search.apply(sessionFactory.getCurrentSession());
+	}
+	
+	private Query<AuditLogSummary> createSummaryQuery(Session session, List<Class<?>> types, String identifier, User user,
+	                                                  List<Action> actions, Date startDate, Date endDate,
+	                                                  boolean excludeChildAuditLogs, Integer beforeAuditLogId,
+	                                                  String orderBy) {
+		StringBuilder hql = new StringBuilder("select new " + AuditLogSummary.class.getName());
+		hql.append("(a.auditLogId, a.uuid, a.type, a.identifier, a.action, a.dateCreated, u.uuid, u.username, ");
+		hql.append("n.givenName, n.middleName, n.familyName, ");
+		hql.append("(select count(c.auditLogId) from AuditLog c where c.parentAuditLog = a)) ");
+		hql.append("from AuditLog a left join a.user u left join u.person p ");
+		hql.append("left join p.names n with n.preferred = true and n.voided = false where 1 = 1");
+		appendSummaryFilters(hql, types, identifier, user, actions, startDate, endDate, excludeChildAuditLogs,
+		    beforeAuditLogId);
+		hql.append(" order by ").append(orderBy);
+		
+		Query<AuditLogSummary> query = session.createQuery(hql.toString(), AuditLogSummary.class);
+		query.setReadOnly(true);
+		setSummaryParameters(query, types, identifier, user, actions, startDate, endDate, beforeAuditLogId);
+		
+		return query;
+	}
+	
+	private void appendSummaryFilters(StringBuilder hql, List<Class<?>> types, String identifier, User user,
+	                                  List<Action> actions, Date startDate, Date endDate,
+	                                  boolean excludeChildAuditLogs, Integer beforeAuditLogId) {
+		if (types != null) {
+			hql.append(" and a.type in (:types)");
+		}
+		if (identifier != null) {
+			hql.append(" and a.identifier = :identifier");
+		}
+		if (user != null) {
+			hql.append(" and a.user = :user");
+		}
+		if (actions != null) {
+			hql.append(" and a.action in (:actions)");
+		}
+		if (excludeChildAuditLogs) {
+			hql.append(" and a.parentAuditLog is null");
+		}
+		if (startDate != null) {
+			hql.append(" and a.dateCreated >= :startDate");
+		}
+		if (endDate != null) {
+			hql.append(" and a.dateCreated <= :endDate");
+		}
+		if (beforeAuditLogId != null) {
+			hql.append(" and a.auditLogId < :beforeAuditLogId");
+		}
+	}
+	
+	private void setSummaryParameters(Query<?> query, List<Class<?>> types, String identifier, User user,
+	                                  List<Action> actions, Date startDate, Date endDate, Integer beforeAuditLogId) {
+		if (types != null) {
+			query.setParameterList("types", getClassNames(types));
+		}
+		if (identifier != null) {
+			query.setParameter("identifier", identifier);
+		}
+		if (user != null) {
+			query.setParameter("user", user);
+		}
+		if (actions != null) {
+			query.setParameterList("actions", actions);
+		}
+		if (startDate != null) {
+			query.setParameter("startDate", startDate);
+		}
+		if (endDate != null) {
+			query.setParameter("endDate", endDate);
+		}
+		if (beforeAuditLogId != null) {
+			query.setParameter("beforeAuditLogId", beforeAuditLogId);
+		}
+	}
+	
+	/**
+	 * @see AuditLogDAO#getAuditLogSummaryCount(List, String, User, List, Date, Date, boolean,
+	 *      Integer)
+	 */
+	@Override
+	public long getAuditLogSummaryCount(List<Class<?>> types, String identifier, User user, List<Action> actions,
+	                                    Date startDate, Date endDate, boolean excludeChildAuditLogs,
+	                                    Integer beforeAuditLogId) {
+		Function<Session, Long> count = session -> {
+			StringBuilder hql = new StringBuilder("select count(a.auditLogId) from AuditLog a where 1 = 1");
+			appendSummaryFilters(hql, types, identifier, user, actions, startDate, endDate, excludeChildAuditLogs,
+			    beforeAuditLogId);
+			Query<Long> query = session.createQuery(hql.toString(), Long.class);
+			query.setReadOnly(true);
+			setSummaryParameters(query, types, identifier, user, actions, startDate, endDate, beforeAuditLogId);
+			
+			return query.uniqueResult();
+		};
+		
+		Long counted = AuditLogReadReplica.execute(sessionFactory, count);
+		if (counted != null) {
+			return counted;
+		}
+		
+		return count.apply(sessionFactory.getCurrentSession());
+	}
+	
+	/**
+	 * @see AuditLogDAO#getAuditLogCount(Serializable, List, List, Date, Date)
+	 */
+	@Override
+	public long getAuditLogCount(Serializable id, List<Class<?>> types, List<Action> actions, Date after, Date before) {
+		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(AuditLog.class);
+		criteria.add(Restrictions.eq("identifier", AuditLogUtil.serializeObject(id)));
+		criteria.add(Restrictions.in("type", getClassNames(types)));
+		if (actions != null) {
+			criteria.add(Restrictions.in("action", actions));
+		}
+		if (after != null) {
+			criteria.add(Restrictions.gt("dateCreated", after));
+		}
+		if (before != null) {
+			criteria.add(Restrictions.lt("dateCreated", before));
+		}
+		criteria.setProjection(Projections.rowCount());
+		
+		return ((Number) criteria.uniqueResult()).longValue();
+	}
+	
+	/**
+	 * @see AuditLogDAO#getUpdateCountsSinceSnapshot(Collection, Collection, Integer)
+	 */
+	@Override
+	public Map<String, Map<String, Long>> getUpdateCountsSinceSnapshot(Collection<String> types,
+	        Collection<String> identifiers, Integer beforeId) {
+		Map<String, Map<String, Long>> counts = new HashMap<String, Map<String, Long>>();
+		List<String> identifierList = new ArrayList<String>(identifiers);
+		for (int i = 0; i < identifierList.size(); i += IN_CLAUSE_BATCH_SIZE) {
+			List<String> batch = identifierList.subList(i, Math.min(i + IN_CLAUSE_BATCH_SIZE, identifierList.size()));
+			Query<Object[]> query = sessionFactory.getCurrentSession().createQuery("select a.type, a.identifier, "
+			        + "count(a.auditLogId) from AuditLog a where a.type in (:types) and a.identifier in (:identifiers) "
+			        + "and a.action = :action " + (beforeId != null ? "and a.auditLogId < :beforeId " : "")
+			        + "and not exists (select s.snapshotId from AuditLogSnapshot s where s.type = a.type and "
+			        + "s.identifier = a.identifier and s.auditLog.auditLogId >= a.auditLogId) group by a.type, "
+			        + "a.identifier", Object[].class);
+			query.setParameterList("types", types);
+			query.setParameterList("identifiers", batch);
+			query.setParameter("action", Action.UPDATED);
+			if (beforeId != null) {
+				query.setParameter("beforeId", beforeId);
+			}
+			for (Object[] row : query.list()) {
+				Map<String, Long> typeCounts = counts.get(row[0]);
+				if (typeCounts == null) {
+					typeCounts = new HashMap<String, Long>();
+					counts.put((String) row[0], typeCounts);
+				}
+				typeCounts.put((String) row[1], ((Number) row[2]).longValue());
+			}
+		}
+		
+		return counts;
+	}
+	
+	/**
+	 * @see AuditLogDAO#getSnapshot(Serializable, List, Date, boolean)
+	 */
+	@Override
+	public AuditLogSnapshot getSnapshot(Serializable id, List<Class<?>> types, Date date, boolean onOrBefore) {
+		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(AuditLogSnapshot.class);
+		criteria.add(Restrictions.eq("identifier", AuditLogUtil.serializeObject(id)));
+		criteria.add(Restrictions.in("type", getClassNames(types)));
+		if (onOrBefore) {
+			criteria.add(Restrictions.le("dateCreated", date));
+			criteria.addOrder(Order.desc("dateCreated"));
+			criteria.addOrder(Order.desc("snapshotId"));
+		} else {
+			criteria.add(Restrictions.gt("dateCreated", date));
+			criteria.addOrder(Order.asc("dateCreated"));
+			criteria.addOrder(Order.asc("snapshotId"));
+		}
+		criteria.setMaxResults(1);
+		criteria.setReadOnly(true);
+		
+		return (AuditLogSnapshot) criteria.uniqueResult();
+	}
+	
 	/**
 	 * @see AuditLogDAO#save(Object)
 	 */
 	@Override
 	public <T> T save(T object) {
+		registerTypes(object);
 		if (object instanceof AuditLog) {
 			AuditLog auditLog = (AuditLog) object;
 			//Hibernate has issues with saving the parentAuditLog field if the parent isn't yet saved
@@ -149,6 +629,34 @@ public class HibernateAuditLogDAO implements AuditLogDAO, GlobalPropertyListener
 		return object;
 	}
 	
+	/**
+	 * Adds the types referenced by the specified object to the dictionary if necessary, including
+	 * those of the child logs saved by cascade
+	 */
+	private void registerTypes(Object object) {
+		String type = null;
+		if (object instanceof AuditLog) {
+			AuditLog auditLog = (AuditLog) object;
+			type = auditLog.getType();
+			if (auditLog.getChildAuditLogs() != null && Hibernate.isInitialized(auditLog.getChildAuditLogs())) {
+				for (AuditLog childLog : auditLog.getChildAuditLogs()) {
+					registerTypes(childLog);
+				}
+			}
+		} else if (object instanceof AuditLogSnapshot) {
+			type = ((AuditLogSnapshot) object).getType();
+		} else if (object instanceof AuditLogPropertyChange) {
+			type = ((AuditLogPropertyChange) object).getType();
+		} else if (object instanceof AuditLogLatest) {
+			type = ((AuditLogLatest) object).getType();
+		} else if (object instanceof AuditLogDailyCount) {
+			type = ((AuditLogDailyCount) object).getType();
+		}
+		if (type != null) {
+			AuditLogTypeRegistry.register(type, (SharedSessionContractImplementor) sessionFactory.getCurrentSession());
+		}
+	}
+	
 	/**
 	 * @see AuditLogDAO#delete(Object)
 	 */
@@ -196,6 +704,574 @@ public class HibernateAuditLogDAO implements AuditLogDAO, GlobalPropertyListener
 		return (T) criteria.uniqueResult();
 	}
 	
+	/**
+	 * @see AuditLogDAO#getObjectsByIds(Class, Collection)
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> Map<String, T> getObjectsByIds(Class<T> clazz, Collection<String> ids) {
+		Map<String, T> idObjectMap = new HashMap<String, T>();
+		ClassMetadata metadata = sessionFactory.getClassMetadata(clazz);
+		if (metadata == null || ids.isEmpty()) {
+			return idObjectMap;
+		}
+		
+		Class<?> idType = metadata.getIdentifierType().getReturnedClass();
+		List<Serializable> convertedIds = new ArrayList<Serializable>(ids.size());
+		for (String id : ids) {
+			Serializable convertedId = convertId(StringUtils.trimToNull(id), idType);
+			if (convertedId != null) {
+				convertedIds.add(convertedId);
+			}
+		}
+		
+		Session session = sessionFactory.getCurrentSession();
+		for (int i = 0; i < convertedIds.size(); i += IN_CLAUSE_BATCH_SIZE) {
+			List<Serializable> batch = convertedIds.subList(i, Math.min(i + IN_CLAUSE_BATCH_SIZE, convertedIds.size()));
+			Criteria criteria = session.createCriteria(clazz);
+			criteria.add(Restrictions.in(metadata.getIdentifierPropertyName(), batch));
+			criteria.setReadOnly(true);
+			for (T object : (List<T>) criteria.list()) {
+				idObjectMap.put(AuditLogUtil.serializeObject(session.getIdentifier(object)), object);
+			}
+		}
+		
+		return idObjectMap;
+	}
+	
+	/**
+	 * Converts the serialized form of an id to the identifier type of the entity, returns null if
+	 * the value can't be converted
+	 */
+	private Serializable convertId(String id, Class<?> idType) {
+		if (id == null) {
+			return null;
+		}
+		try {
+			if (Integer.class.equals(idType) || Integer.TYPE.equals(idType)) {
+				return Integer.valueOf(id);
+			} else if (Long.class.equals(idType) || Long.TYPE.equals(idType)) {
+				return Long.valueOf(id);
+			} else if (String.class.equals(idType)) {
+				return id;
+			}
+		}
+		catch (NumberFormatException e) {
+			//ignore
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * @see AuditLogDAO#getLatestAuditLog(String, String)
+	 */
+	@Override
+	public AuditLogLatest getLatestAuditLog(String type, String identifier) {
+		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(AuditLogLatest.class);
+		criteria.add(Restrictions.eq("type", type));
+		criteria.add(Restrictions.eq("identifier", identifier));
+		
+		return (AuditLogLatest) criteria.uniqueResult();
+	}
+	
+	/**
+	 * @see AuditLogDAO#saveLatestAuditLogs(Collection)
+	 */
+	@Override
+	public void saveLatestAuditLogs(final Collection<AuditLog> auditLogs) {
+		if (auditLogs.isEmpty()) {
+			return;
+		}
+		
+		final Session session = sessionFactory.getCurrentSession();
+		final Map<AuditLog, Integer> logTypeIdMap = new LinkedHashMap<AuditLog, Integer>();
+		for (AuditLog auditLog : auditLogs) {
+			logTypeIdMap.put(auditLog,
+			    AuditLogTypeRegistry.register(auditLog.getType(), (SharedSessionContractImplementor) session));
+		}
+		
+		final Dialect dialect = ((SessionFactoryImplementor) sessionFactory).getJdbcServices().getDialect();
+		//Plain jdbc so that no flush of the session is triggered, the logs might not be flushed yet
+		//which is why the table has no foreign key to the logs
+		session.doWork(new Work() {
+			
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				if (dialect instanceof MySQLDialect || dialect instanceof PostgreSQL81Dialect) {
+					String sql = (dialect instanceof MySQLDialect) ? MYSQL_UPSERT_LATEST : POSTGRESQL_UPSERT_LATEST;
+					try (PreparedStatement ps = connection.prepareStatement(sql)) {
+						for (Map.Entry<AuditLog, Integer> entry : logTypeIdMap.entrySet()) {
+							setLatestValues(ps, 1, entry.getValue(), entry.getKey());
+							ps.addBatch();
+						}
+						ps.executeBatch();
+					}
+					return;
+				}
+				
+				//No portable upsert, update the existing entries and insert the missing ones
+				try (PreparedStatement ps = connection.prepareStatement(UPDATE_LATEST)) {
+					for (Map.Entry<AuditLog, Integer> entry : logTypeIdMap.entrySet()) {
+						AuditLog auditLog = entry.getKey();
+						ps.setInt(1, auditLog.getAuditLogId());
+						ps.setString(2, auditLog.getAction().name());
+						setUserId(ps, 3, auditLog);
+						ps.setTimestamp(4, new Timestamp(auditLog.getDateCreated().getTime()));
+						ps.setInt(5, entry.getValue());
+						ps.setString(6, auditLog.getIdentifier());
+						ps.setInt(7, auditLog.getAuditLogId());
+						ps.addBatch();
+					}
+					ps.executeBatch();
+				}
+				try (PreparedStatement ps = connection.prepareStatement(INSERT_LATEST)) {
+					for (Map.Entry<AuditLog, Integer> entry : logTypeIdMap.entrySet()) {
+						setLatestValues(ps, 1, entry.getValue(), entry.getKey());
+						ps.setInt(7, entry.getValue());
+						ps.setInt(8, entry.getValue());
+						ps.setString(9, entry.getKey().getIdentifier());
+						ps.addBatch();
+					}
+					ps.executeBatch();
+				}
+			}
+		});
+	}
+	
+	private static void setLatestValues(PreparedStatement ps, int index, Integer typeId, AuditLog auditLog)
+	    throws SQLException {
+		ps.setInt(index, typeId);
+		ps.setString(index + 1, auditLog.getIdentifier());
+		ps.setInt(index + 2, auditLog.getAuditLogId());
+		ps.setString(index + 3, auditLog.getAction().name());
+		setUserId(ps, index + 4, auditLog);
+		ps.setTimestamp(index + 5, new Timestamp(auditLog.getDateCreated().getTime()));
+	}
+	
+	private static void setUserId(PreparedStatement ps, int index, AuditLog auditLog) throws SQLException {
+		if (auditLog.getUser() != null) {
+			ps.setInt(index, auditLog.getUser().getUserId());
+		} else {
+			ps.setNull(index, Types.INTEGER);
+		}
+	}
+	
+	/**
+	 * @see AuditLogDAO#getLatestAuditLogs(List, Collection)
+	 */
+	@Override
+	public List<AuditLogLatest> getLatestAuditLogs(List<Class<?>> types, Collection<String> identifiers) {
+		List<AuditLogLatest> latestLogs = new ArrayList<AuditLogLatest>();
+		List<String> identifierList = new ArrayList<String>(identifiers);
+		for (int i = 0; i < identifierList.size(); i += IN_CLAUSE_BATCH_SIZE) {
+			Criteria criteria = sessionFactory.getCurrentSession().createCriteria(AuditLogLatest.class);
+			criteria.add(Restrictions.in("type", getClassNames(types)));
+			criteria.add(Restrictions.in("identifier",
+			    identifierList.subList(i, Math.min(i + IN_CLAUSE_BATCH_SIZE, identifierList.size()))));
+			criteria.setReadOnly(true);
+			latestLogs.addAll(criteria.list());
+		}
+		//The log ids decide which log is the latest just like when the entries are written
+		Collections.sort(latestLogs, new Comparator<AuditLogLatest>() {
+			
+			@Override
+			public int compare(AuditLogLatest l1, AuditLogLatest l2) {
+				return l2.getAuditLog().getAuditLogId().compareTo(l1.getAuditLog().getAuditLogId());
+			}
+		});
+		
+		return latestLogs;
+	}
+	
+	/**
+	 * @see AuditLogDAO#fetchUsers(Collection)
+	 */
+	@Override
+	public void fetchUsers(Collection<User> users) {
+		Set<Integer> userIds = new LinkedHashSet<Integer>();
+		for (User user : users) {
+			if (user != null && !Hibernate.isInitialized(user)) {
+				userIds.add((Integer) ((HibernateProxy) user).getHibernateLazyInitializer().getIdentifier());
+			}
+		}
+		
+		//Loading the users into the session also initializes their proxies without any more queries
+		List<Integer> userIdList = new ArrayList<Integer>(userIds);
+		for (int i = 0; i < userIdList.size(); i += IN_CLAUSE_BATCH_SIZE) {
+			Query<User> query = sessionFactory.getCurrentSession().createQuery(
+			    "select distinct u from User u left join fetch u.person p left join fetch p.names "
+			            + "where u.userId in (:userIds)", User.class);
+			query.setParameterList("userIds", userIdList.subList(i, Math.min(i + IN_CLAUSE_BATCH_SIZE, userIdList.size())));
+			query.list();
+		}
+	}
+	
+	/**
+	 * @see AuditLogDAO#getAuditLogsByObjectUuids(Collection, List, Date, Date, boolean, Integer,
+	 *      Integer)
+	 */
+	@Override
+	public List<AuditLog> getAuditLogsByObjectUuids(Collection<String> uuids, List<Action> actions, Date startDate,
+	                                                Date endDate, boolean excludeChildAuditLogs, Integer start,
+	                                                Integer length) {
+		return listAuditLogs(session -> {
+			Criteria criteria = session.createCriteria(AuditLog.class);
+			//The in clauses are or'ed in a single query so that the logs are sorted and paged by the database
+			Disjunction uuidRestrictions = Restrictions.disjunction();
+			List<String> uuidList = new ArrayList<String>(uuids);
+			for (int i = 0; i < uuidList.size(); i += IN_CLAUSE_BATCH_SIZE) {
+				uuidRestrictions.add(Restrictions.in("objectUuid",
+				    uuidList.subList(i, Math.min(i + IN_CLAUSE_BATCH_SIZE, uuidList.size()))));
+			}
+			criteria.add(uuidRestrictions);
+			if (actions != null) {
+				criteria.add(Restrictions.in("action", actions));
+			}
+			if (excludeChildAuditLogs) {
+				criteria.add(Restrictions.isNull("parentAuditLog"));
+			}
+			if (startDate != null) {
+				criteria.add(Restrictions.ge("dateCreated", startDate));
+			}
+			if (endDate != null) {
+				criteria.add(Restrictions.le("dateCreated", endDate));
+			}
+			if (start != null) {
+				criteria.setFirstResult(start);
+			}
+			if (length != null && length > 0) {
+				criteria.setMaxResults(length);
+			}
+			
+			//Show the latest logs first, logs created in the same millisecond stay in the same order across pages
+			criteria.addOrder(Order.desc("dateCreated"));
+			criteria.addOrder(Order.desc("auditLogId"));
+			
+			return criteria;
+		});
+	}
+	
+	/**
+	 * @see AuditLogDAO#getExistingAuditLogUuids(Collection)
+	 */
+	@Override
+	public Set<String> getExistingAuditLogUuids(Collection<String> uuids) {
+		Set<String> existingUuids = new HashSet<String>();
+		List<String> uuidList = new ArrayList<String>(uuids);
+		for (int i = 0; i < uuidList.size(); i += IN_CLAUSE_BATCH_SIZE) {
+			Query<String> query = sessionFactory.getCurrentSession().createQuery(
+			    "select a.uuid from AuditLog a where a.uuid in (:uuids)", String.class);
+			query.setParameterList("uuids", uuidList.subList(i, Math.min(i + IN_CLAUSE_BATCH_SIZE, uuidList.size())));
+			existingUuids.addAll(query.list());
+		}
+		
+		return existingUuids;
+	}
+	
+	/**
+	 * @see AuditLogDAO#getAuditLogsByChangedProperty(List, String, String, String, Integer,
+	 *      Integer)
+	 */
+	@Override
+	public List<AuditLog> getAuditLogsByChangedProperty(List<Class<?>> types, String propertyName, String newValueHash,
+	                                                    String previousValueHash, Integer start, Integer length) {
+		List<Integer> auditLogIds = AuditLogReadReplica.execute(sessionFactory, session -> {
+			return createChangedPropertyQuery(session, "a.auditLogId", Integer.class, types, propertyName,
+			    newValueHash, previousValueHash, start, length).list();
+		});
+		if (auditLogIds != null) {
+			return getAuditLogsByIds(auditLogIds);
+		}
+		
+		Query<AuditLog> query = createChangedPropertyQuery(sessionFactory.getCurrentSession(), "a", AuditLog.class,
+		    types, propertyName, newValueHash, previousValueHash, start, length);
+		query.setReadOnly(true);
+		
+		return query.list();
+	}
+	
+	private <T> Query<T> createChangedPropertyQuery(Session session, String select, Class<T> resultType,
+	                                                List<Class<?>> types, String propertyName, String newValueHash,
+	                                                String previousValueHash, Integer start, Integer length) {
+		StringBuilder hql = new StringBuilder("select " + select + " from AuditLogPropertyChange pc join pc.auditLog a ");
+		hql.append("where pc.propertyName = :propertyName");
+		if (types != null) {
+			hql.append(" and pc.type in (:types)");
+		}
+		if (newValueHash != null) {
+			hql.append(" and pc.newValueHash = :newValueHash");
+		}
+		if (previousValueHash != null) {
+			hql.append(" and pc.previousValueHash = :previousValueHash");
+		}
+		hql.append(" order by a.dateCreated desc, a.auditLogId desc");
+		
+		Query<T> query = session.createQuery(hql.toString(), resultType);
+		query.setParameter("propertyName", propertyName);
+		if (types != null) {
+			query.setParameterList("types", getClassNames(types));
+		}
+		if (newValueHash != null) {
+			query.setParameter("newValueHash", newValueHash);
+		}
+		if (previousValueHash != null) {
+			query.setParameter("previousValueHash", previousValueHash);
+		}
+		if (start != null) {
+			query.setFirstResult(start);
+		}
+		if (length != null && length > 0) {
+			query.setMaxResults(length);
+		}
+		
+		return query;
+	}
+	
+	/**
+	 * @see AuditLogDAO#getDailyCountHighWaterMark()
+	 */
+	@Override
+	public Integer getDailyCountHighWaterMark() {
+		return sessionFactory.getCurrentSession()
+		        .createQuery("select max(d.lastAuditLogId) from AuditLogDailyCount d", Integer.class).uniqueResult();
+	}
+	
+	/**
+	 * @see AuditLogDAO#getDailyCountRangeEnd(Integer, Date, int)
+	 */
+	@Override
+	public Integer getDailyCountRangeEnd(Integer afterAuditLogId, Date createdBefore, int maxLogs) {
+		Session session = sessionFactory.getCurrentSession();
+		Query<Integer> query = session.createQuery("select a.auditLogId from AuditLog a where a.auditLogId > :after "
+		        + "and a.dateCreated < :before order by a.auditLogId", Integer.class);
+		query.setParameter("after", afterAuditLogId);
+		query.setParameter("before", createdBefore);
+		query.setFirstResult(Math.max(maxLogs, 1) - 1);
+		query.setMaxResults(1);
+		Integer rangeEnd = query.uniqueResult();
+		if (rangeEnd == null) {
+			//There are fewer logs than the maximum, take them all
+			Query<Integer> maxQuery = session.createQuery("select max(a.auditLogId) from AuditLog a where "
+			        + "a.auditLogId > :after and a.dateCreated < :before", Integer.class);
+			maxQuery.setParameter("after", afterAuditLogId);
+			maxQuery.setParameter("before", createdBefore);
+			rangeEnd = maxQuery.uniqueResult();
+		}
+		
+		return rangeEnd;
+	}
+	
+	/**
+	 * @see AuditLogDAO#rollUpDailyCounts(Integer, Integer)
+	 */
+	@Override
+	public int rollUpDailyCounts(final Integer afterAuditLogId, final Integer toAuditLogId) {
+		final Dialect dialect = ((SessionFactoryImplementor) sessionFactory).getJdbcServices().getDialect();
+		//Plain jdbc so that each count is upserted in a single statement without loading it first
+		return sessionFactory.getCurrentSession().doReturningWork(new ReturningWork<Integer>() {
+			
+			@Override
+			public Integer execute(Connection connection) throws SQLException {
+				List<Integer> lateIds = new ArrayList<Integer>();
+				try (PreparedStatement ps = connection.prepareStatement(SELECT_FILLED_DAILY_COUNT_GAPS)) {
+					ps.setMaxRows(MAX_DAILY_COUNT_GAPS);
+					try (ResultSet rs = ps.executeQuery()) {
+						while (rs.next()) {
+							lateIds.add(rs.getInt(1));
+						}
+					}
+				}
+				
+				saveDailyCountGaps(connection, afterAuditLogId, toAuditLogId);
+				
+				StringBuilder sql = new StringBuilder(SELECT_DAILY_COUNT_RANGE);
+				if (!lateIds.isEmpty()) {
+					sql.append(" or audit_log_id in (").append(StringUtils.repeat("?", ", ", lateIds.size())).append(")");
+				}
+				sql.append(GROUP_BY_DAILY_COUNT);
+				List<Object[]> rows = new ArrayList<Object[]>();
+				try (PreparedStatement ps = connection.prepareStatement(sql.toString())) {
+					ps.setInt(1, afterAuditLogId);
+					ps.setInt(2, toAuditLogId);
+					int index = 3;
+					for (Integer lateId : lateIds) {
+						ps.setInt(index++, lateId);
+					}
+					try (ResultSet rs = ps.executeQuery()) {
+						while (rs.next()) {
+							Integer userId = rs.getInt(4);
+							if (rs.wasNull()) {
+								userId = null;
+							}
+							rows.add(new Object[] { rs.getDate(1), rs.getInt(2), rs.getString(3), userId, rs.getLong(5) });
+						}
+					}
+				}
+				
+				upsertDailyCounts(connection, dialect, rows, toAuditLogId);
+				
+				try (PreparedStatement ps = connection
+				        .prepareStatement("delete from auditlog_daily_count_gap where audit_log_id = ?")) {
+					for (Integer lateId : lateIds) {
+						ps.setInt(1, lateId);
+						ps.addBatch();
+					}
+					if (!lateIds.isEmpty()) {
+						ps.executeBatch();
+					}
+				}
+				try (PreparedStatement ps = connection
+				        .prepareStatement("delete from auditlog_daily_count_gap where date_created < ?")) {
+					ps.setTimestamp(1, new Timestamp(System.currentTimeMillis() - DAILY_COUNT_GAP_EXPIRY));
+					ps.executeUpdate();
+				}
+				
+				return rows.size();
+			}
+		});
+	}
+	
+	/**
+	 * Records the ids in the specified range that have no log, they belong to transactions that
+	 * were still pending or were rolled back
+	 */
+	private void saveDailyCountGaps(Connection connection, Integer afterAuditLogId, Integer toAuditLogId)
+	    throws SQLException {
+		List<Integer> missingIds = new ArrayList<Integer>();
+		try (PreparedStatement ps = connection.prepareStatement("select audit_log_id from auditlog_audit_log where"
+		        + " audit_log_id > ? and audit_log_id <= ? order by audit_log_id")) {
+			ps.setInt(1, afterAuditLogId);
+			ps.setInt(2, toAuditLogId);
+			try (ResultSet rs = ps.executeQuery()) {
+				int expectedId = afterAuditLogId + 1;
+				while (rs.next() && missingIds.size() < MAX_DAILY_COUNT_GAPS) {
+					int id = rs.getInt(1);
+					for (; expectedId < id && missingIds.size() < MAX_DAILY_COUNT_GAPS; expectedId++) {
+						missingIds.add(expectedId);
+					}
+					expectedId = id + 1;
+				}
+			}
+		}
+		if (missingIds.isEmpty()) {
+			return;
+		}
+		if (missingIds.size() == MAX_DAILY_COUNT_GAPS) {
+			log.warn("Too many missing audit log ids after " + afterAuditLogId + ", logs committed later might not "
+			        + "be included in the daily counts");
+		}
+		
+		Timestamp now = new Timestamp(System.currentTimeMillis());
+		try (PreparedStatement ps = connection
+		        .prepareStatement("insert into auditlog_daily_count_gap (audit_log_id, date_created) values (?, ?)")) {
+			for (Integer missingId : missingIds) {
+				ps.setInt(1, missingId);
+				ps.setTimestamp(2, now);
+				ps.addBatch();
+			}
+			ps.executeBatch();
+		}
+	}
+	
+	/**
+	 * Adds the specified counts to the existing ones, rows are day, type id, action, user id and
+	 * count
+	 */
+	private static void upsertDailyCounts(Connection connection, Dialect dialect, List<Object[]> rows,
+	        int lastAuditLogId) throws SQLException {
+		if (rows.isEmpty()) {
+			return;
+		}
+		
+		if (dialect instanceof MySQLDialect || dialect instanceof PostgreSQL81Dialect) {
+			String sql = (dialect instanceof MySQLDialect) ? MYSQL_UPSERT_DAILY_COUNT : POSTGRESQL_UPSERT_DAILY_COUNT;
+			try (PreparedStatement ps = connection.prepareStatement(sql)) {
+				for (Object[] row : rows) {
+					setDailyCountValues(ps, row, lastAuditLogId);
+					ps.addBatch();
+				}
+				ps.executeBatch();
+			}
+			return;
+		}
+		
+		//No portable upsert, update the existing counts and insert the missing ones
+		try (PreparedStatement ps = connection.prepareStatement(UPDATE_DAILY_COUNT)) {
+			for (Object[] row : rows) {
+				ps.setLong(1, (Long) row[4]);
+				ps.setInt(2, lastAuditLogId);
+				ps.setInt(3, lastAuditLogId);
+				setDailyCountKey(ps, 4, row);
+				ps.addBatch();
+			}
+			ps.executeBatch();
+		}
+		try (PreparedStatement ps = connection.prepareStatement(INSERT_DAILY_COUNT)) {
+			for (Object[] row : rows) {
+				setDailyCountValues(ps, row, lastAuditLogId);
+				ps.setInt(8, (Integer) row[1]);
+				setDailyCountKey(ps, 9, row);
+				ps.addBatch();
+			}
+			ps.executeBatch();
+		}
+	}
+	
+	private static void setDailyCountValues(PreparedStatement ps, Object[] row, int lastAuditLogId)
+	    throws SQLException {
+		Integer userId = (Integer) row[3];
+		ps.setDate(1, (java.sql.Date) row[0]);
+		ps.setInt(2, (Integer) row[1]);
+		ps.setString(3, (String) row[2]);
+		if (userId != null) {
+			ps.setInt(4, userId);
+		} else {
+			ps.setNull(4, Types.INTEGER);
+		}
+		ps.setInt(5, (userId != null) ? userId : 0);
+		ps.setLong(6, (Long) row[4]);
+		ps.setInt(7, lastAuditLogId);
+	}
+	
+	private static void setDailyCountKey(PreparedStatement ps, int index, Object[] row) throws SQLException {
+		Integer userId = (Integer) row[3];
+		ps.setDate(index, (java.sql.Date) row[0]);
+		ps.setInt(index + 1, (Integer) row[1]);
+		ps.setString(index + 2, (String) row[2]);
+		ps.setInt(index + 3, (userId != null) ? userId : 0);
+	}
+	
+	/**
+	 * @see AuditLogDAO#getDailyCounts(List, List, User, Date, Date)
+	 */
+	@Override
+	public List<AuditLogDailyCount> getDailyCounts(List<Class<?>> types, List<Action> actions, User user,
+	                                               Date startDate, Date endDate) {
+		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(AuditLogDailyCount.class);
+		if (types != null) {
+			criteria.add(Restrictions.in("type", getClassNames(types)));
+		}
+		if (actions != null) {
+			criteria.add(Restrictions.in("action", actions));
+		}
+		if (user != null) {
+			criteria.add(Restrictions.eq("user", user));
+		}
+		if (startDate != null) {
+			criteria.add(Restrictions.ge("day", startDate));
+		}
+		if (endDate != null) {
+			criteria.add(Restrictions.le("day", endDate));
+		}
+		criteria.addOrder(Order.desc("day"));
+		criteria.addOrder(Order.asc("type"));
+		criteria.addOrder(Order.asc("action"));
+		criteria.setReadOnly(true);
+		
+		return criteria.list();
+	}
+	
 	/**
 	 * @see org.openmrs.module.auditlog.api.db.AuditLogDAO#storeLastStateOfDeletedItems()
 	 * @return
@@ -209,6 +1285,149 @@ public class HibernateAuditLogDAO implements AuditLogDAO, GlobalPropertyListener
 		return storeLastStateOfDeletedItemsCache;
 	}
 	
+	/**
+	 * @see org.openmrs.module.auditlog.api.db.AuditLogDAO#getSnapshotInterval()
+	 */
+	@Override
+	public int getSnapshotInterval() {
+		if (snapshotIntervalCache == null) {
+			String gpValue = Context.getAdministrationService().getGlobalProperty(AuditLogConstants.GP_SNAPSHOT_INTERVAL);
+			snapshotIntervalCache = NumberUtils.toInt(StringUtils.trimToNull(gpValue), 0);
+		}
+		return snapshotIntervalCache;
+	}
+	
+	/**
+	 * @see org.openmrs.module.auditlog.api.db.AuditLogDAO#hashPropertyValues()
+	 */
+	@Override
+	public boolean hashPropertyValues() {
+		if (hashPropertyValuesCache == null) {
+			String gpValue = Context.getAdministrationService().getGlobalProperty(
+			    AuditLogConstants.GP_HASH_PROPERTY_VALUES);
+			//Hashing is on unless explicitly turned off
+			hashPropertyValuesCache = !"false".equalsIgnoreCase(StringUtils.trim(gpValue));
+		}
+		return hashPropertyValuesCache;
+	}
+	
+	/**
+	 * @see org.openmrs.module.auditlog.api.db.AuditLogDAO#getWriteMode()
+	 */
+	@Override
+	public AuditLogWriteMode getWriteMode() {
+		if (writeModeCache == null) {
+			String gpValue = StringUtils.trimToNull(Context.getAdministrationService().getGlobalProperty(
+			    AuditLogConstants.GP_WRITE_MODE));
+			AuditLogWriteMode writeMode = AuditLogWriteMode.SAME_TRANSACTION;
+			if (gpValue != null) {
+				try {
+					writeMode = AuditLogWriteMode.valueOf(gpValue.toUpperCase());
+				}
+				catch (IllegalArgumentException e) {
+					log.warn("Invalid value for the " + AuditLogConstants.GP_WRITE_MODE + " global property:" + gpValue
+					        + ", defaulting to " + writeMode);
+				}
+			}
+			writeModeCache = writeMode;
+		}
+		return writeModeCache;
+	}
+	
+	/**
+	 * @see org.openmrs.module.auditlog.api.db.AuditLogDAO#isBoundedMemory()
+	 */
+	@Override
+	public boolean isBoundedMemory() {
+		if (boundedMemoryCache == null) {
+			String gpValue = Context.getAdministrationService().getGlobalProperty(AuditLogConstants.GP_BOUNDED_MEMORY);
+			boundedMemoryCache = Boolean.valueOf(StringUtils.trim(gpValue));
+		}
+		return boundedMemoryCache;
+	}
+	
+	/**
+	 * @see org.openmrs.module.auditlog.api.db.AuditLogDAO#getSpillThreshold()
+	 */
+	@Override
+	public int getSpillThreshold() {
+		if (spillThresholdCache == null) {
+			String gpValue = Context.getAdministrationService().getGlobalProperty(AuditLogConstants.GP_SPILL_THRESHOLD);
+			spillThresholdCache = NumberUtils.toInt(StringUtils.trimToNull(gpValue), 0);
+		}
+		return spillThresholdCache;
+	}
+	
+	/**
+	 * @see org.openmrs.module.auditlog.api.db.AuditLogDAO#getFlushWriteInterval()
+	 */
+	@Override
+	public int getFlushWriteInterval() {
+		if (flushWriteIntervalCache == null) {
+			String gpValue = Context.getAdministrationService().getGlobalProperty(
+			    AuditLogConstants.GP_FLUSH_WRITE_INTERVAL);
+			flushWriteIntervalCache = NumberUtils.toInt(StringUtils.trimToNull(gpValue), 0);
+		}
+		return flushWriteIntervalCache;
+	}
+	
+	/**
+	 * @see org.openmrs.module.auditlog.api.db.AuditLogDAO#getPropertyRules()
+	 */
+	@Override
+	public Map<String, Map<String, Object>> getPropertyRules() {
+		if (propertyRulesCache == null) {
+			propertyRulesCache = parsePropertyRules(Context.getAdministrationService().getGlobalProperty(
+			    AuditLogConstants.GP_PROPERTY_RULES));
+		}
+		return propertyRulesCache;
+	}
+	
+	/**
+	 * Parses the specified value of the {@link AuditLogConstants#GP_PROPERTY_RULES} global property
+	 */
+	@SuppressWarnings("unchecked")
+	private Map<String, Map<String, Object>> parsePropertyRules(String gpValue) {
+		Map<String, Map<String, Object>> propertyRules = new HashMap<String, Map<String, Object>>();
+		if (StringUtils.isNotBlank(gpValue)) {
+			try {
+				Map<String, Object> classRulesMap = new ObjectMapper().readValue(gpValue, Map.class);
+				for (Map.Entry<String, Object> entry : classRulesMap.entrySet()) {
+					if (entry.getValue() instanceof Map) {
+						propertyRules.put(entry.getKey().trim(), (Map<String, Object>) entry.getValue());
+					} else {
+						log.warn("Ignoring invalid rule for " + entry.getKey() + " in the "
+						        + AuditLogConstants.GP_PROPERTY_RULES + " global property");
+					}
+				}
+			}
+			catch (IOException e) {
+				log.warn("Invalid value for the " + AuditLogConstants.GP_PROPERTY_RULES + " global property:" + gpValue, e);
+			}
+		}
+		return Collections.unmodifiableMap(propertyRules);
+	}
+	
+	/**
+	 * @see AuditLogDAO#getSinkOnlyTypes()
+	 */
+	@Override
+	public Set<String> getSinkOnlyTypes() {
+		if (sinkOnlyTypesCache == null) {
+			Set<String> sinkOnlyTypes = new HashSet<String>();
+			String gpValue = Context.getAdministrationService().getGlobalProperty(AuditLogConstants.GP_SINK_ONLY_TYPES);
+			if (StringUtils.isNotBlank(gpValue)) {
+				for (String className : StringUtils.split(gpValue, ",")) {
+					if (StringUtils.isNotBlank(className)) {
+						sinkOnlyTypes.add(className.trim());
+					}
+				}
+			}
+			sinkOnlyTypesCache = Collections.unmodifiableSet(sinkOnlyTypes);
+		}
+		return sinkOnlyTypesCache;
+	}
+	
 	/**
 	 * @see org.openmrs.module.auditlog.api.db.AuditLogDAO#getId(Object)
 	 * @return
@@ -225,6 +1444,29 @@ public class HibernateAuditLogDAO implements AuditLogDAO, GlobalPropertyListener
 	public void globalPropertyChanged(GlobalProperty gp) {
 		if (AuditLogConstants.GP_STORE_LAST_STATE_OF_DELETED_ITEMS.equals(gp.getProperty())) {
 			storeLastStateOfDeletedItemsCache = null;
+		} else if (AuditLogConstants.GP_SNAPSHOT_INTERVAL.equals(gp.getProperty())) {
+			snapshotIntervalCache = null;
+		} else if (AuditLogConstants.GP_HASH_PROPERTY_VALUES.equals(gp.getProperty())) {
+			hashPropertyValuesCache = null;
+		} else if (AuditLogConstants.GP_UUID_GENERATOR.equals(gp.getProperty())) {
+			AuditLogUtil.setUuidGenerator(null);
+		} else if (AuditLogConstants.GP_WRITE_MODE.equals(gp.getProperty())) {
+			writeModeCache = null;
+			if (getWriteMode() != AuditLogWriteMode.SAME_TRANSACTION) {
+				IngestAuditLogJournalTask.scheduleIfNecessary();
+			}
+		} else if (AuditLogConstants.GP_SINKS.equals(gp.getProperty())) {
+			AuditSinks.shutdown();
+		} else if (AuditLogConstants.GP_SINK_ONLY_TYPES.equals(gp.getProperty())) {
+			sinkOnlyTypesCache = null;
+		} else if (AuditLogConstants.GP_BOUNDED_MEMORY.equals(gp.getProperty())) {
+			boundedMemoryCache = null;
+		} else if (AuditLogConstants.GP_SPILL_THRESHOLD.equals(gp.getProperty())) {
+			spillThresholdCache = null;
+		} else if (AuditLogConstants.GP_FLUSH_WRITE_INTERVAL.equals(gp.getProperty())) {
+			flushWriteIntervalCache = null;
+		} else if (AuditLogConstants.GP_PROPERTY_RULES.equals(gp.getProperty())) {
+			setPropertyRulesAfterCommit(gp.getPropertyValue());
 		}
 	}
 	
@@ -235,14 +1477,72 @@ public class HibernateAuditLogDAO implements AuditLogDAO, GlobalPropertyListener
 	public void globalPropertyDeleted(String gpName) {
 		if (AuditLogConstants.GP_STORE_LAST_STATE_OF_DELETED_ITEMS.equals(gpName)) {
 			storeLastStateOfDeletedItemsCache = null;
+		} else if (AuditLogConstants.GP_SNAPSHOT_INTERVAL.equals(gpName)) {
+			snapshotIntervalCache = null;
+		} else if (AuditLogConstants.GP_HASH_PROPERTY_VALUES.equals(gpName)) {
+			hashPropertyValuesCache = null;
+		} else if (AuditLogConstants.GP_UUID_GENERATOR.equals(gpName)) {
+			AuditLogUtil.setUuidGenerator(null);
+		} else if (AuditLogConstants.GP_WRITE_MODE.equals(gpName)) {
+			writeModeCache = null;
+		} else if (AuditLogConstants.GP_SINKS.equals(gpName)) {
+			AuditSinks.shutdown();
+		} else if (AuditLogConstants.GP_SINK_ONLY_TYPES.equals(gpName)) {
+			sinkOnlyTypesCache = null;
+		} else if (AuditLogConstants.GP_BOUNDED_MEMORY.equals(gpName)) {
+			boundedMemoryCache = null;
+		} else if (AuditLogConstants.GP_SPILL_THRESHOLD.equals(gpName)) {
+			spillThresholdCache = null;
+		} else if (AuditLogConstants.GP_FLUSH_WRITE_INTERVAL.equals(gpName)) {
+			flushWriteIntervalCache = null;
+		} else if (AuditLogConstants.GP_PROPERTY_RULES.equals(gpName)) {
+			setPropertyRulesAfterCommit(null);
 		}
 	}
 	
+	/**
+	 * Replaces the cached property rules and the plans built from them with the specified value of
+	 * the global property once the transaction that changed it commits, clearing them before would
+	 * let another transaction cache the old value again. The new rules are parsed from the value so
+	 * that the interceptor doesn't load the global property during a flush.
+	 */
+	private void setPropertyRulesAfterCommit(final String gpValue) {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			setPropertyRules(gpValue);
+			return;
+		}
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+			
+			@Override
+			public void afterCommit() {
+				setPropertyRules(gpValue);
+			}
+		});
+	}
+	
+	private void setPropertyRules(String gpValue) {
+		propertyRulesCache = parsePropertyRules(gpValue);
+		AuditPlan.setRules(propertyRulesCache);
+	}
+	
 	/**
 	 * @see org.openmrs.api.GlobalPropertyListener#supportsPropertyName(java.lang.String)
 	 */
 	@Override
 	public boolean supportsPropertyName(String gpName) {
-		return AuditLogConstants.GP_STORE_LAST_STATE_OF_DELETED_ITEMS.equals(gpName);
+		return AuditLogConstants.GP_STORE_LAST_STATE_OF_DELETED_ITEMS.equals(gpName)
+		        || AuditLogConstants.GP_SNAPSHOT_INTERVAL.equals(gpName)
+		        || AuditLogConstants.GP_HASH_PROPERTY_VALUES.equals(gpName)
+		        || AuditLogConstants.GP_UUID_GENERATOR.equals(gpName)
+		        || AuditLogConstants.GP_WRITE_MODE.equals(gpName) || AuditLogConstants.GP_SINKS.equals(gpName)
+		        || AuditLogConstants.GP_SINK_ONLY_TYPES.equals(gpName)
+		        || AuditLogConstants.GP_BOUNDED_MEMORY.equals(gpName)
+		        || AuditLogConstants.GP_SPILL_THRESHOLD.equals(gpName)
+		        || AuditLogConstants.GP_FLUSH_WRITE_INTERVAL.equals(gpName)
+		        || AuditLogConstants.GP_PROPERTY_RULES.equals(gpName);
+	}
+	
+	private List<String> getClassNames(List<Class<?>> types) {
+		return types.stream().map(Class::getName).collect(Collectors.toList());
 	}
 }
@@ -0,0 +1,165 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.api.db.hibernate.interceptor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openmrs.module.auditlog.AuditLog;
+
+/**
+ * The audit logs built by the interceptor for a transaction along with what is needed to write the
+ * entries derived from them i.e. the property changes of the updates and the updated objects to
+ * take snapshots of, batches replayed from the journal carry the serialized states of the updated
+ * objects instead of the objects.
+ */
+final class AuditLogBatch {
+	
+	private final List<AuditLog> auditLogs;
+	
+	private final Map<AuditLog, Map<String, Object[]>> propertyChanges;
+	
+	private final Map<Object, AuditLog> updatedObjects;
+	
+	private final Map<AuditLog, String> updatedStates;
+	
+	AuditLogBatch(List<AuditLog> auditLogs, Map<AuditLog, Map<String, Object[]>> propertyChanges,
+	    Map<Object, AuditLog> updatedObjects) {
+		this(auditLogs, propertyChanges, updatedObjects, Collections.<AuditLog, String> emptyMap());
+	}
+	
+	AuditLogBatch(List<AuditLog> auditLogs, Map<AuditLog, Map<String, Object[]>> propertyChanges,
+	    Map<Object, AuditLog> updatedObjects, Map<AuditLog, String> updatedStates) {
+		this.auditLogs = auditLogs;
+		this.propertyChanges = propertyChanges;
+		this.updatedObjects = updatedObjects;
+		this.updatedStates = updatedStates;
+	}
+	
+	/**
+	 * Creates a batch without the top level logs of the specified types and the entries derived from
+	 * them
+	 * 
+	 * @param types the class names of the logs to exclude
+	 * @return the new batch or this batch if no log is excluded
+	 */
+	AuditLogBatch withoutTypes(Set<String> types) {
+		List<AuditLog> keptLogs = new ArrayList<AuditLog>(auditLogs.size());
+		Set<AuditLog> kept = new HashSet<AuditLog>();
+		for (AuditLog auditLog : auditLogs) {
+			if (!types.contains(auditLog.getType())) {
+				keptLogs.add(auditLog);
+				addWithChildLogs(auditLog, kept);
+			}
+		}
+		if (keptLogs.size() == auditLogs.size()) {
+			return this;
+		}
+		
+		Map<AuditLog, Map<String, Object[]>> keptChanges = new LinkedHashMap<AuditLog, Map<String, Object[]>>();
+		for (Map.Entry<AuditLog, Map<String, Object[]>> entry : propertyChanges.entrySet()) {
+			if (kept.contains(entry.getKey())) {
+				keptChanges.put(entry.getKey(), entry.getValue());
+			}
+		}
+		Map<Object, AuditLog> keptObjects = new LinkedHashMap<Object, AuditLog>();
+		for (Map.Entry<Object, AuditLog> entry : updatedObjects.entrySet()) {
+			if (kept.contains(entry.getValue())) {
+				keptObjects.put(entry.getKey(), entry.getValue());
+			}
+		}
+		Map<AuditLog, String> keptStates = new LinkedHashMap<AuditLog, String>();
+		for (Map.Entry<AuditLog, String> entry : updatedStates.entrySet()) {
+			if (kept.contains(entry.getKey())) {
+				keptStates.put(entry.getKey(), entry.getValue());
+			}
+		}
+		
+		return new AuditLogBatch(keptLogs, keptChanges, keptObjects, keptStates);
+	}
+	
+	private static void addWithChildLogs(AuditLog auditLog, Set<AuditLog> logs) {
+		logs.add(auditLog);
+		for (AuditLog childLog : auditLog.getChildAuditLogs()) {
+			addWithChildLogs(childLog, logs);
+		}
+	}
+	
+	/**
+	 * Checks if any log of the batch including the child logs references one of the specified users
+	 * 
+	 * @param userIds the user ids to look for
+	 * @return true if a log references one of the users otherwise false
+	 */
+	boolean hasLogsOfUsers(Set<Integer> userIds) {
+		if (userIds.isEmpty()) {
+			return false;
+		}
+		for (AuditLog auditLog : auditLogs) {
+			if (isLogOfUsers(auditLog, userIds)) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	private static boolean isLogOfUsers(AuditLog auditLog, Set<Integer> userIds) {
+		if (auditLog.getUser() != null && userIds.contains(auditLog.getUser().getUserId())) {
+			return true;
+		}
+		for (AuditLog childLog : auditLog.getChildAuditLogs()) {
+			if (isLogOfUsers(childLog, userIds)) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * @return the top level logs, child logs are reachable from their parents
+	 */
+	List<AuditLog> getAuditLogs() {
+		return auditLogs;
+	}
+	
+	/**
+	 * @return map of the logs with action UPDATED to their changed property names and lists of
+	 *         serialized new and previous values
+	 */
+	Map<AuditLog, Map<String, Object[]>> getPropertyChanges() {
+		return propertyChanges;
+	}
+	
+	/**
+	 * @return map of the updated objects to their logs
+	 */
+	Map<Object, AuditLog> getUpdatedObjects() {
+		return updatedObjects;
+	}
+	
+	/**
+	 * @return map of the logs of updated objects to the serialized states of the objects after the
+	 *         update
+	 */
+	Map<AuditLog, String> getUpdatedStates() {
+		return updatedStates;
+	}
+}
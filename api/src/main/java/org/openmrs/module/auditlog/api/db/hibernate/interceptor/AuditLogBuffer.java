@@ -0,0 +1,309 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.api.db.hibernate.interceptor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.auditlog.AuditLog;
+import org.openmrs.module.auditlog.sink.AuditRecord;
+import org.openmrs.util.OpenmrsUtil;
+
+/**
+ * Accumulates the audit logs built at each flush of a transaction in the bounded memory mode, the
+ * updated objects whose update counts reach the snapshot interval are replaced with their
+ * serialized states so that no reference to a persistent object is kept. Once the number of logs held in memory exceeds the
+ * spill threshold they are encoded with the {@link AuditLogJournalCodec} and appended to a
+ * temporary file in the auditlog/spill folder of the application data directory that only the
+ * owner can read, they are read back when the transaction completes or when the buffer is drained
+ * to write the logs at a flush. The logs of different flushes aren't merged, an object changed at
+ * several flushes gets a log for each of them.
+ */
+final class AuditLogBuffer {
+	
+	private static final Log log = LogFactory.getLog(AuditLogBuffer.class);
+	
+	private static final String SPILL_DIRECTORY = "auditlog" + File.separator + "spill";
+	
+	private static final String SPILL_SUFFIX = ".spill";
+	
+	private static File spillDirectory;
+	
+	private final int spillThreshold;
+	
+	private List<AuditLog> auditLogs = new ArrayList<AuditLog>();
+	
+	private Map<AuditLog, Map<String, Object[]>> propertyChanges = new LinkedHashMap<AuditLog, Map<String, Object[]>>();
+	
+	private Map<AuditLog, String> updatedStates = new LinkedHashMap<AuditLog, String>();
+	
+	private int logCount;
+	
+	private int memoryLogCount;
+	
+	//The records for the sinks of the logs already written in the transaction
+	private List<AuditRecord> writtenSinkRecords;
+	
+	private File spillFile;
+	
+	private DataOutputStream spillOut;
+	
+	/**
+	 * @param spillThreshold the number of logs to hold in memory before they are spilled to disk,
+	 *            zero or less means they are never spilled
+	 */
+	AuditLogBuffer(int spillThreshold) {
+		this.spillThreshold = spillThreshold;
+	}
+	
+	/**
+	 * Adds the logs of the specified batch to this buffer
+	 * 
+	 * @param batch the logs built at a flush
+	 * @throws Exception if the logs can't be spilled to disk
+	 */
+	void add(AuditLogBatch batch) throws Exception {
+		auditLogs.addAll(batch.getAuditLogs());
+		propertyChanges.putAll(batch.getPropertyChanges());
+		updatedStates.putAll(batch.getUpdatedStates());
+		//Only the objects due a snapshot when their logs are written need their states
+		for (Map.Entry<Object, AuditLog> entry : InterceptorUtil.getObjectsDueSnapshots(batch.getUpdatedObjects())
+		        .entrySet()) {
+			updatedStates.put(entry.getValue(), InterceptorUtil.serializePersistentObject(entry.getKey()));
+		}
+		for (AuditLog auditLog : batch.getAuditLogs()) {
+			int count = countLogs(auditLog);
+			logCount += count;
+			memoryLogCount += count;
+		}
+		
+		if (spillThreshold > 0 && memoryLogCount > spillThreshold) {
+			spill();
+		}
+	}
+	
+	/**
+	 * @return true if no log is held by this buffer and no written log awaits submission to the
+	 *         sinks
+	 */
+	boolean isEmpty() {
+		return auditLogs.isEmpty() && spillFile == null && writtenSinkRecords == null;
+	}
+	
+	/**
+	 * @return the number of logs added to this buffer since it was created or last drained
+	 */
+	int getLogCount() {
+		return logCount;
+	}
+	
+	/**
+	 * Gets all the logs added to this buffer since it was created or last drained and empties it
+	 * 
+	 * @return the batch
+	 * @throws IOException if the spilled logs can't be read
+	 */
+	AuditLogBatch drain() throws IOException {
+		AuditLogBatch batch = toBatch();
+		deleteSpillFile();
+		auditLogs = new ArrayList<AuditLog>();
+		propertyChanges = new LinkedHashMap<AuditLog, Map<String, Object[]>>();
+		updatedStates = new LinkedHashMap<AuditLog, String>();
+		logCount = 0;
+		memoryLogCount = 0;
+		
+		return batch;
+	}
+	
+	/**
+	 * Puts back the specified drained batch that failed to be written ahead of the logs added since
+	 * 
+	 * @param batch the batch returned by {@link #drain()}
+	 * @throws Exception if the logs can't be spilled to disk
+	 */
+	void restore(AuditLogBatch batch) throws Exception {
+		AuditLogBatch added = drain();
+		add(batch);
+		add(added);
+	}
+	
+	/**
+	 * Keeps the specified records of logs written at a flush to be submitted to the sinks after the
+	 * transaction is committed
+	 * 
+	 * @param sinkRecords the records to keep, can be null
+	 */
+	void addWrittenSinkRecords(List<AuditRecord> sinkRecords) {
+		if (sinkRecords != null) {
+			if (writtenSinkRecords == null) {
+				writtenSinkRecords = new ArrayList<AuditRecord>();
+			}
+			writtenSinkRecords.addAll(sinkRecords);
+		}
+	}
+	
+	/**
+	 * @return the records for the sinks of the logs written at flushes or null if there are none
+	 */
+	List<AuditRecord> getWrittenSinkRecords() {
+		return writtenSinkRecords;
+	}
+	
+	/**
+	 * Gets all the logs added to this buffer in the order they were added, the spilled logs are
+	 * decoded which reloads their users
+	 * 
+	 * @return the batch
+	 * @throws IOException if the spilled logs can't be read
+	 */
+	AuditLogBatch toBatch() throws IOException {
+		if (spillFile == null) {
+			return new AuditLogBatch(auditLogs, propertyChanges, new LinkedHashMap<Object, AuditLog>(), updatedStates);
+		}
+		
+		spillOut.close();
+		spillOut = null;
+		List<AuditLog> allLogs = new ArrayList<AuditLog>();
+		Map<AuditLog, Map<String, Object[]>> allChanges = new LinkedHashMap<AuditLog, Map<String, Object[]>>();
+		Map<AuditLog, String> allStates = new LinkedHashMap<AuditLog, String>();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)));
+		try {
+			while (true) {
+				int length;
+				try {
+					length = in.readInt();
+				}
+				catch (EOFException e) {
+					break;
+				}
+				byte[] record = new byte[length];
+				in.readFully(record);
+				AuditLogBatch spilled = AuditLogJournalCodec.decode(record);
+				allLogs.addAll(spilled.getAuditLogs());
+				allChanges.putAll(spilled.getPropertyChanges());
+				allStates.putAll(spilled.getUpdatedStates());
+			}
+		}
+		finally {
+			in.close();
+		}
+		allLogs.addAll(auditLogs);
+		allChanges.putAll(propertyChanges);
+		allStates.putAll(updatedStates);
+		
+		return new AuditLogBatch(allLogs, allChanges, new LinkedHashMap<Object, AuditLog>(), allStates);
+	}
+	
+	/**
+	 * Discards the logs and deletes the spill file if any
+	 */
+	void close() {
+		auditLogs = null;
+		propertyChanges = null;
+		updatedStates = null;
+		writtenSinkRecords = null;
+		deleteSpillFile();
+	}
+	
+	private void deleteSpillFile() {
+		if (spillOut != null) {
+			try {
+				spillOut.close();
+			}
+			catch (IOException e) {
+				log.warn("Failed to close the audit log spill file", e);
+			}
+		}
+		spillOut = null;
+		if (spillFile != null && !spillFile.delete()) {
+			log.warn("Failed to delete the audit log spill file " + spillFile);
+		}
+		spillFile = null;
+	}
+	
+	private void spill() throws Exception {
+		byte[] record = AuditLogJournalCodec.encode(new AuditLogBatch(auditLogs, propertyChanges,
+		        new LinkedHashMap<Object, AuditLog>(), updatedStates));
+		if (spillFile == null) {
+			Path directory = getSpillDirectory().toPath();
+			if (directory.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+				spillFile = Files.createTempFile(directory, "auditlog-", SPILL_SUFFIX,
+				    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))).toFile();
+			} else {
+				spillFile = Files.createTempFile(directory, "auditlog-", SPILL_SUFFIX).toFile();
+			}
+			spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+			if (log.isDebugEnabled()) {
+				log.debug("Spilling audit logs to " + spillFile);
+			}
+		}
+		spillOut.writeInt(record.length);
+		spillOut.write(record);
+		
+		auditLogs = new ArrayList<AuditLog>();
+		propertyChanges = new LinkedHashMap<AuditLog, Map<String, Object[]>>();
+		updatedStates = new LinkedHashMap<AuditLog, String>();
+		memoryLogCount = 0;
+	}
+	
+	/**
+	 * Gets the directory of the spill files, the files left by a crash are deleted the first time
+	 * it is used
+	 */
+	private static synchronized File getSpillDirectory() throws IOException {
+		if (spillDirectory == null) {
+			File directory = new File(OpenmrsUtil.getApplicationDataDirectory(), SPILL_DIRECTORY);
+			if (!directory.exists() && !directory.mkdirs()) {
+				throw new IOException("Failed to create the audit log spill directory " + directory);
+			}
+			File[] leftovers = directory.listFiles();
+			if (leftovers != null) {
+				for (File leftover : leftovers) {
+					if (leftover.getName().endsWith(SPILL_SUFFIX) && !leftover.delete()) {
+						log.warn("Failed to delete the leftover audit log spill file " + leftover);
+					}
+				}
+			}
+			spillDirectory = directory;
+		}
+		
+		return spillDirectory;
+	}
+	
+	private static int countLogs(AuditLog auditLog) {
+		int count = 1;
+		if (auditLog.hasChildLogs()) {
+			for (AuditLog childLog : auditLog.getChildAuditLogs()) {
+				count += countLogs(childLog);
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,540 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.api.db.hibernate.interceptor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.auditlog.util.AuditLogConstants;
+import org.openmrs.util.OpenmrsUtil;
+
+/**
+ * A local write-ahead journal of encoded audit log batches, records are appended to memory mapped
+ * segment files each prefixed with its length and CRC32 checksum. Callers wait for their records to
+ * be synced to disk, a single sync covers all the records appended before it so concurrent
+ * committers share their syncs. Each time the application starts a new segment is started so that
+ * a record torn by a crash is always at the end of an older segment, the ingester reads the
+ * records from the position stored in the checkpoint file and advances it once they are loaded
+ * into the database, fully ingested segments are deleted.
+ * <p>
+ * The batch of a transaction is appended as a pending record before the transaction commits, the
+ * outcome of the transaction is kept in memory and also appended as a commit or aborted record so
+ * that it is known after a restart. A pending record left by an earlier run without an outcome is
+ * quarantined since the application stopped before it could tell whether the transaction
+ * committed.
+ */
+public final class AuditLogJournal {
+	
+	private static final Log log = LogFactory.getLog(AuditLogJournal.class);
+	
+	private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+	
+	//The length and checksum of a record
+	private static final int HEADER_SIZE = 8;
+	
+	private static final String SEGMENT_SUFFIX = ".journal";
+	
+	private static final String CHECKPOINT_FILE = "checkpoint";
+	
+	private static final String QUARANTINE_DIRECTORY = "quarantine";
+	
+	//The kinds of records, stored in their first byte
+	static final byte PENDING = 1;
+	
+	static final byte COMMITTED = 2;
+	
+	static final byte ABORTED = 3;
+	
+	//Holds the position of a pending record whose transaction committed
+	static final byte COMMIT = 4;
+	
+	private static AuditLogJournal instance;
+	
+	private final File directory;
+	
+	private final Object syncLock = new Object();
+	
+	private long segment;
+	
+	private FileChannel channel;
+	
+	private MappedByteBuffer buffer;
+	
+	//Guarded by syncLock
+	private long syncedPosition;
+	
+	//The segments before it were written by earlier runs
+	private final long firstSegment;
+	
+	//The outcomes of the transactions of the pending records of this run by their positions
+	private final NavigableMap<Long, Boolean> outcomes = new ConcurrentSkipListMap<Long, Boolean>();
+	
+	//The outcomes of the transactions of the pending records of earlier runs by their positions
+	private Map<Long, Boolean> earlierOutcomes;
+	
+	AuditLogJournal(File directory) {
+		this.directory = directory;
+		List<Long> segments = getSegments();
+		segment = segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+		firstSegment = segment + 1;
+	}
+	
+	/**
+	 * Gets the journal in the directory set via the
+	 * {@link AuditLogConstants#RP_JOURNAL_DIRECTORY} runtime property or the auditlog/journal folder
+	 * in the application data directory
+	 * 
+	 * @return the journal
+	 */
+	static synchronized AuditLogJournal getInstance() {
+		if (instance == null) {
+			String path = Context.getRuntimeProperties().getProperty(AuditLogConstants.RP_JOURNAL_DIRECTORY);
+			File directory;
+			if (StringUtils.isNotBlank(path)) {
+				directory = new File(path.trim());
+			} else {
+				directory = new File(OpenmrsUtil.getApplicationDataDirectory(), "auditlog" + File.separator + "journal");
+			}
+			//The directory is created when the first record is appended
+			instance = new AuditLogJournal(directory);
+		}
+		return instance;
+	}
+	
+	/**
+	 * Syncs and closes the journal, it is opened again on next use
+	 */
+	public static synchronized void shutdown() {
+		if (instance != null) {
+			try {
+				instance.close();
+			}
+			catch (IOException e) {
+				log.warn("Failed to close the audit log journal", e);
+			}
+			instance = null;
+		}
+	}
+	
+	/**
+	 * Appends the specified batch of a transaction that is about to commit and waits for it to be
+	 * synced to disk, {@link #complete(long, boolean)} must be called once the transaction completes
+	 * 
+	 * @param batch the encoded batch
+	 * @return the position of the record
+	 * @throws IOException if the record can't be written
+	 */
+	long writePending(byte[] batch) throws IOException {
+		long position = append(toRecord(PENDING, batch));
+		sync(position);
+		return position;
+	}
+	
+	/**
+	 * Appends the specified batch of a committed transaction and waits for it to be synced to disk
+	 * 
+	 * @param batch the encoded batch
+	 * @throws IOException if the record can't be written
+	 */
+	void writeCommitted(byte[] batch) throws IOException {
+		write(toRecord(COMMITTED, batch));
+	}
+	
+	/**
+	 * Records the outcome of the transaction of the pending record at the specified position and
+	 * appends a commit or aborted record, waiting for it to be synced to disk like the pending record
+	 * 
+	 * @param position the position of the pending record
+	 * @param committed specifies if the transaction was committed
+	 * @throws IOException if the outcome record can't be written
+	 * @should discard the pending record of a rolled back transaction
+	 * @should keep the outcome of a committed transaction after a restart
+	 */
+	void complete(long position, boolean committed) throws IOException {
+		outcomes.put(position, committed);
+		write(toRecord(committed ? COMMIT : ABORTED, ByteBuffer.allocate(8).putLong(position).array()));
+	}
+	
+	/**
+	 * Gets the outcome of the transaction of the specified pending record
+	 * 
+	 * @param record the pending record
+	 * @return true if committed, false if rolled back or null if the transaction hasn't completed or
+	 *         the record is orphaned
+	 * @should return null for a transaction of this run that hasn't completed
+	 * @see #isOrphaned(JournalRecord)
+	 */
+	Boolean getOutcome(JournalRecord record) throws IOException {
+		Boolean committed = outcomes.get(record.getNextPosition());
+		if (committed == null && toSegment(record.getNextPosition()) < firstSegment) {
+			committed = getEarlierOutcomes().get(record.getNextPosition());
+		}
+		
+		return committed;
+	}
+	
+	/**
+	 * Checks if the specified pending record was left by an earlier run without the outcome of its
+	 * transaction, the application stopped between the commit and the outcome record or while the
+	 * transaction was completing so it can't tell whether the logs should be ingested
+	 * 
+	 * @param record the pending record
+	 * @return true if the record is orphaned otherwise false
+	 * @should return true for a pending record of an earlier run without outcome
+	 * @should return false for a pending record of an earlier run with an outcome
+	 */
+	boolean isOrphaned(JournalRecord record) throws IOException {
+		return toSegment(record.getNextPosition()) < firstSegment
+		        && !getEarlierOutcomes().containsKey(record.getNextPosition());
+	}
+	
+	/**
+	 * Moves the specified record to the quarantine directory for review so that it doesn't block the
+	 * ingestion of the records after it
+	 * 
+	 * @param record the record
+	 * @param reason why the record is quarantined, for the log
+	 * @should write the record to the quarantine directory
+	 */
+	void quarantine(JournalRecord record, String reason) throws IOException {
+		File quarantine = new File(directory, QUARANTINE_DIRECTORY);
+		if (!quarantine.exists() && !quarantine.mkdirs()) {
+			throw new IOException("Failed to create the audit log journal quarantine directory " + quarantine);
+		}
+		File file = new File(quarantine, String.format("%019d", record.getNextPosition()) + ".record");
+		Files.write(file.toPath(), record.getData());
+		log.error("Moved the audit log journal record before position " + record.getNextPosition() + " to " + file
+		        + ", " + reason);
+	}
+	
+	/**
+	 * @return true if there are records that haven't been ingested
+	 */
+	boolean hasRecords() throws IOException {
+		return !read(getCheckpoint(), 1).isEmpty();
+	}
+	
+	/**
+	 * Appends the specified record and waits for it to be synced to disk
+	 * 
+	 * @param record the record to append
+	 * @throws IOException if the record can't be written
+	 */
+	void write(byte[] record) throws IOException {
+		sync(append(record));
+	}
+	
+	/**
+	 * Appends the specified record without syncing it
+	 * 
+	 * @param record the record to append
+	 * @return the position after the record
+	 */
+	synchronized long append(byte[] record) throws IOException {
+		int size = HEADER_SIZE + record.length;
+		if (buffer == null || buffer.remaining() < size) {
+			roll(size);
+		}
+		
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		int start = buffer.position();
+		buffer.position(start + HEADER_SIZE);
+		buffer.put(record);
+		buffer.putInt(start + 4, (int) crc.getValue());
+		//The length is written last so that readers never take a partially written record for a complete one
+		buffer.putInt(start, record.length);
+		
+		return toPosition(segment, buffer.position());
+	}
+	
+	/**
+	 * Syncs the journal to disk up to at least the specified position
+	 * 
+	 * @param position the position returned when a record was appended
+	 */
+	void sync(long position) throws IOException {
+		synchronized (syncLock) {
+			if (syncedPosition >= position) {
+				return;
+			}
+			
+			MappedByteBuffer toSync;
+			long target;
+			synchronized (this) {
+				if (buffer == null) {
+					//The journal was closed, closing it synced it
+					return;
+				}
+				toSync = buffer;
+				target = toPosition(segment, buffer.position());
+			}
+			//Records appended by other threads while waiting for the lock are synced too
+			toSync.force();
+			syncedPosition = target;
+		}
+	}
+	
+	/**
+	 * Reads the records following the specified position
+	 * 
+	 * @param position the position to start at
+	 * @param maxRecords the maximum number of records to read
+	 * @return the records
+	 * @should read the appended records in order
+	 * @should continue with the next segment after the end of a segment
+	 * @should skip the rest of a segment after a torn record
+	 */
+	List<JournalRecord> read(long position, int maxRecords) throws IOException {
+		List<JournalRecord> records = new ArrayList<JournalRecord>();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		for (Long segmentNumber : getSegments()) {
+			if (segmentNumber < toSegment(position)) {
+				continue;
+			}
+			
+			long offset = (segmentNumber == toSegment(position)) ? toOffset(position) : 0;
+			FileChannel readChannel = FileChannel.open(getSegmentFile(segmentNumber).toPath(), StandardOpenOption.READ);
+			try {
+				long size = readChannel.size();
+				while (records.size() < maxRecords && offset + HEADER_SIZE <= size) {
+					header.clear();
+					readFully(readChannel, header, offset);
+					int length = header.getInt(0);
+					if (length <= 0 || offset + HEADER_SIZE + length > size) {
+						break;
+					}
+					
+					ByteBuffer data = ByteBuffer.allocate(length);
+					readFully(readChannel, data, offset + HEADER_SIZE);
+					CRC32 crc = new CRC32();
+					crc.update(data.array());
+					if ((int) crc.getValue() != header.getInt(4)) {
+						log.warn("Skipping the rest of audit log journal segment " + segmentNumber
+						        + " after a torn record at offset " + offset);
+						break;
+					}
+					
+					offset += HEADER_SIZE + length;
+					records.add(new JournalRecord(data.array(), toPosition(segmentNumber, offset)));
+				}
+			}
+			finally {
+				readChannel.close();
+			}
+			
+			if (records.size() >= maxRecords) {
+				break;
+			}
+		}
+		
+		return records;
+	}
+	
+	/**
+	 * @return the position after the last ingested record
+	 */
+	long getCheckpoint() throws IOException {
+		File file = new File(directory, CHECKPOINT_FILE);
+		if (!file.exists()) {
+			return 0;
+		}
+		
+		return Long.parseLong(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim());
+	}
+	
+	/**
+	 * Records the position after the last ingested record and deletes the segments before it
+	 * 
+	 * @param position the new checkpoint
+	 * @should delete the segments before the checkpoint
+	 */
+	void setCheckpoint(long position) throws IOException {
+		File file = new File(directory, CHECKPOINT_FILE);
+		File tmp = new File(directory, CHECKPOINT_FILE + ".tmp");
+		Files.write(tmp.toPath(), String.valueOf(position).getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		outcomes.headMap(position, true).clear();
+		
+		for (Long segmentNumber : getSegments()) {
+			if (segmentNumber >= toSegment(position)) {
+				break;
+			}
+			if (!getSegmentFile(segmentNumber).delete()) {
+				log.warn("Failed to delete ingested audit log journal segment " + segmentNumber);
+			}
+		}
+	}
+	
+	/**
+	 * Syncs the current segment and starts a new one large enough for a record of the specified size
+	 */
+	private void roll(int minSize) throws IOException {
+		if (buffer != null) {
+			buffer.force();
+			channel.close();
+		}
+		
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new IOException("Failed to create the audit log journal directory " + directory);
+		}
+		
+		segment++;
+		channel = FileChannel.open(getSegmentFile(segment).toPath(), StandardOpenOption.CREATE_NEW,
+		    StandardOpenOption.READ, StandardOpenOption.WRITE);
+		//The file is zero filled, a zero length marks the end of the records
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(SEGMENT_SIZE, minSize));
+	}
+	
+	synchronized void close() throws IOException {
+		if (buffer != null) {
+			buffer.force();
+			channel.close();
+			buffer = null;
+			channel = null;
+		}
+	}
+	
+	/**
+	 * Scans the segments of earlier runs for commit and aborted records, it is done once since no
+	 * more records are appended to them
+	 */
+	private synchronized Map<Long, Boolean> getEarlierOutcomes() throws IOException {
+		if (earlierOutcomes == null) {
+			Map<Long, Boolean> earlier = new HashMap<Long, Boolean>();
+			long position = getCheckpoint();
+			List<JournalRecord> records;
+			do {
+				records = read(position, 1000);
+				for (JournalRecord record : records) {
+					if (toSegment(record.getNextPosition()) >= firstSegment) {
+						records = Collections.emptyList();
+						break;
+					}
+					if (record.getKind() == COMMIT || record.getKind() == ABORTED) {
+						earlier.put(ByteBuffer.wrap(record.getBatch()).getLong(), record.getKind() == COMMIT);
+					}
+					position = record.getNextPosition();
+				}
+			} while (!records.isEmpty());
+			earlierOutcomes = earlier;
+		}
+		
+		return earlierOutcomes;
+	}
+	
+	private static byte[] toRecord(byte kind, byte[] data) {
+		byte[] record = new byte[data.length + 1];
+		record[0] = kind;
+		System.arraycopy(data, 0, record, 1, data.length);
+		
+		return record;
+	}
+	
+	private List<Long> getSegments() {
+		List<Long> segments = new ArrayList<Long>();
+		String[] names = directory.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.endsWith(SEGMENT_SUFFIX)) {
+					segments.add(Long.valueOf(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+				}
+			}
+		}
+		Collections.sort(segments);
+		
+		return segments;
+	}
+	
+	private File getSegmentFile(long segmentNumber) {
+		return new File(directory, String.format("%019d", segmentNumber) + SEGMENT_SUFFIX);
+	}
+	
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of audit log journal segment");
+			}
+		}
+	}
+	
+	private static long toPosition(long segmentNumber, long offset) {
+		return (segmentNumber << 32) | offset;
+	}
+	
+	private static long toSegment(long position) {
+		return position >>> 32;
+	}
+	
+	private static long toOffset(long position) {
+		return position & 0xFFFFFFFFL;
+	}
+	
+	/**
+	 * A record read from the journal along with the position after it
+	 */
+	static class JournalRecord {
+		
+		private final byte[] data;
+		
+		private final long nextPosition;
+		
+		JournalRecord(byte[] data, long nextPosition) {
+			this.data = data;
+			this.nextPosition = nextPosition;
+		}
+		
+		byte[] getData() {
+			return data;
+		}
+		
+		/**
+		 * @return the kind of the record
+		 */
+		byte getKind() {
+			return data[0];
+		}
+		
+		/**
+		 * @return the data of the record following its kind
+		 */
+		byte[] getBatch() {
+			return Arrays.copyOfRange(data, 1, data.length);
+		}
+		
+		long getNextPosition() {
+			return nextPosition;
+		}
+	}
+}
@@ -0,0 +1,158 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.api.db.hibernate.interceptor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openmrs.User;
+import org.openmrs.module.auditlog.AuditLog;
+import org.openmrs.module.auditlog.AuditLog.Action;
+import org.openmrs.module.auditlog.util.AuditLogUtil;
+
+/**
+ * Converts audit log batches to and from the JSON records stored in the {@link AuditLogJournal},
+ * users are stored by id and the updated objects by their serialized states which are only
+ * included if snapshots are enabled.
+ */
+final class AuditLogJournalCodec {
+	
+	private static final ObjectMapper mapper = new ObjectMapper();
+	
+	private AuditLogJournalCodec() {
+	}
+	
+	/**
+	 * Encodes the specified batch, it must be called before the session that built the batch is
+	 * closed since the serialized data of the logs and the states of the updated objects are read
+	 * 
+	 * @param batch the batch to encode
+	 * @return the record
+	 */
+	static byte[] encode(AuditLogBatch batch) throws Exception {
+		Map<AuditLog, String> updatedStates = new HashMap<AuditLog, String>(batch.getUpdatedStates());
+		if (InterceptorUtil.getAuditLogDao().getSnapshotInterval() > 0) {
+			for (Map.Entry<Object, AuditLog> entry : batch.getUpdatedObjects().entrySet()) {
+				updatedStates.put(entry.getValue(), InterceptorUtil.serializePersistentObject(entry.getKey()));
+			}
+		}
+		
+		List<Map<String, Object>> logs = new ArrayList<Map<String, Object>>(batch.getAuditLogs().size());
+		for (AuditLog auditLog : batch.getAuditLogs()) {
+			logs.add(encode(auditLog, batch, updatedStates));
+		}
+		
+		return mapper.writeValueAsBytes(logs);
+	}
+	
+	/**
+	 * Decodes the specified record
+	 * 
+	 * @param record the record to decode
+	 * @return the batch
+	 */
+	@SuppressWarnings("unchecked")
+	static AuditLogBatch decode(byte[] record) throws IOException {
+		List<AuditLog> auditLogs = new ArrayList<AuditLog>();
+		Map<AuditLog, Map<String, Object[]>> propertyChanges = new LinkedHashMap<AuditLog, Map<String, Object[]>>();
+		Map<AuditLog, String> updatedStates = new HashMap<AuditLog, String>();
+		for (Map<String, Object> logMap : (List<Map<String, Object>>) mapper.readValue(record, List.class)) {
+			auditLogs.add(decode(logMap, null, propertyChanges, updatedStates));
+		}
+		
+		return new AuditLogBatch(auditLogs, propertyChanges, new HashMap<Object, AuditLog>(), updatedStates);
+	}
+	
+	private static Map<String, Object> encode(AuditLog auditLog, AuditLogBatch batch, Map<AuditLog, String> updatedStates)
+	    throws Exception {
+		Map<String, Object> logMap = new LinkedHashMap<String, Object>();
+		logMap.put("uuid", auditLog.getUuid());
+		logMap.put("type", auditLog.getType());
+		logMap.put("identifier", auditLog.getIdentifier());
+		logMap.put("objectUuid", auditLog.getObjectUuid());
+		logMap.put("action", auditLog.getAction().name());
+		logMap.put("userId", (auditLog.getUser() != null) ? auditLog.getUser().getUserId() : null);
+		logMap.put("dateCreated", auditLog.getDateCreated().getTime());
+		logMap.put("openmrsVersion", auditLog.getOpenmrsVersion());
+		logMap.put("moduleVersion", auditLog.getModuleVersion());
+		if (auditLog.getSerializedData() != null) {
+			logMap.put("serializedData", AuditLogUtil.getAsString(auditLog.getSerializedData()));
+		}
+		if (batch.getPropertyChanges().containsKey(auditLog)) {
+			logMap.put("propertyChanges", batch.getPropertyChanges().get(auditLog));
+		}
+		if (updatedStates.containsKey(auditLog)) {
+			logMap.put("updatedState", updatedStates.get(auditLog));
+		}
+		if (auditLog.hasChildLogs()) {
+			List<Map<String, Object>> childLogs = new ArrayList<Map<String, Object>>();
+			for (AuditLog childLog : auditLog.getChildAuditLogs()) {
+				childLogs.add(encode(childLog, batch, updatedStates));
+			}
+			logMap.put("childLogs", childLogs);
+		}
+		
+		return logMap;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static AuditLog decode(Map<String, Object> logMap, AuditLog parentLog,
+	                               Map<AuditLog, Map<String, Object[]>> propertyChanges,
+	                               Map<AuditLog, String> updatedStates) {
+		AuditLog auditLog = new AuditLog();
+		auditLog.setUuid((String) logMap.get("uuid"));
+		auditLog.setType((String) logMap.get("type"));
+		auditLog.setIdentifier((String) logMap.get("identifier"));
+		auditLog.setObjectUuid((String) logMap.get("objectUuid"));
+		auditLog.setAction(Action.valueOf((String) logMap.get("action")));
+		if (logMap.get("userId") != null) {
+			auditLog.setUser(InterceptorUtil.getAuditLogDao().getObjectById(User.class,
+			    ((Number) logMap.get("userId")).intValue()));
+		}
+		auditLog.setDateCreated(new Date(((Number) logMap.get("dateCreated")).longValue()));
+		auditLog.setOpenmrsVersion((String) logMap.get("openmrsVersion"));
+		auditLog.setModuleVersion((String) logMap.get("moduleVersion"));
+		if (logMap.get("serializedData") != null) {
+			auditLog.setSerializedData(InterceptorUtil.createBlob(((String) logMap.get("serializedData")).getBytes()));
+		}
+		if (logMap.get("propertyChanges") != null) {
+			Map<String, Object[]> changes = new LinkedHashMap<String, Object[]>();
+			for (Map.Entry<String, List<Object>> entry : ((Map<String, List<Object>>) logMap.get("propertyChanges"))
+			        .entrySet()) {
+				changes.put(entry.getKey(), entry.getValue().toArray());
+			}
+			propertyChanges.put(auditLog, changes);
+		}
+		if (logMap.get("updatedState") != null) {
+			updatedStates.put(auditLog, (String) logMap.get("updatedState"));
+		}
+		if (parentLog != null) {
+			auditLog.setParentAuditLog(parentLog);
+			parentLog.getChildAuditLogs().add(auditLog);
+		}
+		if (logMap.get("childLogs") != null) {
+			for (Map<String, Object> childMap : (List<Map<String, Object>>) logMap.get("childLogs")) {
+				decode(childMap, auditLog, propertyChanges, updatedStates);
+			}
+		}
+		
+		return auditLog;
+	}
+}
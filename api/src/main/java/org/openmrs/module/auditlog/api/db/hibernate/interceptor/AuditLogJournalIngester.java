@@ -0,0 +1,139 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.api.db.hibernate.interceptor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.auditlog.AuditLog;
+import org.openmrs.module.auditlog.AuditLogWriteMode;
+import org.openmrs.module.auditlog.api.db.hibernate.interceptor.AuditLogJournal.JournalRecord;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Loads the records appended to the {@link AuditLogJournal} into the database, the checkpoint of
+ * the journal is only advanced after the transaction commits so records are replayed if the
+ * application stops before, records whose logs are already in the database are skipped.
+ */
+public final class AuditLogJournalIngester {
+	
+	private static final Log log = LogFactory.getLog(AuditLogJournalIngester.class);
+	
+	private AuditLogJournalIngester() {
+	}
+	
+	/**
+	 * Writes the records following the checkpoint of the journal in the current transaction, it stops
+	 * at the first pending record whose transaction hasn't completed yet, the records of rolled back
+	 * transactions are skipped, records that can't be decoded and pending records left by an earlier
+	 * run without the outcome of their transactions are quarantined
+	 * 
+	 * @param maxRecords the maximum number of records to load
+	 * @return the number of records read from the journal
+	 * @throws IOException if the journal can't be read
+	 */
+	public static synchronized int ingest(int maxRecords) throws IOException {
+		final AuditLogJournal journal = AuditLogJournal.getInstance();
+		List<JournalRecord> records = journal.read(journal.getCheckpoint(), maxRecords);
+		
+		List<AuditLogBatch> batches = new ArrayList<AuditLogBatch>(records.size());
+		List<String> uuids = new ArrayList<String>();
+		long position = -1;
+		int count = 0;
+		for (JournalRecord record : records) {
+			if (record.getKind() == AuditLogJournal.PENDING) {
+				Boolean committed = journal.getOutcome(record);
+				if (committed == null) {
+					if (!journal.isOrphaned(record)) {
+						//The transaction is still completing, the records after it wait for it
+						break;
+					}
+					//The transaction may have been rolled back, the logs are kept for review
+					journal.quarantine(record, "the outcome of its transaction is unknown");
+				} else if (committed) {
+					addBatch(journal, record, batches, uuids);
+				}
+			} else if (record.getKind() == AuditLogJournal.COMMITTED) {
+				addBatch(journal, record, batches, uuids);
+			}
+			position = record.getNextPosition();
+			count++;
+		}
+		if (count == 0) {
+			return 0;
+		}
+		
+		//The logs of a record are written in a single transaction so they are either all or none ingested
+		Set<String> ingestedUuids = InterceptorUtil.getAuditLogDao().getExistingAuditLogUuids(uuids);
+		for (AuditLogBatch batch : batches) {
+			if (batch.getAuditLogs().isEmpty() || ingestedUuids.contains(batch.getAuditLogs().get(0).getUuid())) {
+				continue;
+			}
+			AuditLogWriter.writeBatch(batch);
+		}
+		
+		final long checkpoint = position;
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+			
+			@Override
+			public void afterCommit() {
+				try {
+					journal.setCheckpoint(checkpoint);
+				}
+				catch (IOException e) {
+					//The records will be skipped as duplicates on the next run
+					log.warn("Failed to advance the checkpoint of the audit log journal", e);
+				}
+			}
+		});
+		
+		return count;
+	}
+	
+	/**
+	 * Checks if the journal needs to be ingested i.e. a write mode that appends to the journal is
+	 * enabled, the isolated modes append the logs they fail to write, or the journal has records
+	 * that haven't been ingested
+	 * 
+	 * @return true if the journal needs to be ingested otherwise false
+	 * @throws IOException if the journal can't be read
+	 */
+	public static boolean isIngestionNeeded() throws IOException {
+		return InterceptorUtil.getAuditLogDao().getWriteMode() != AuditLogWriteMode.SAME_TRANSACTION
+		        || AuditLogJournal.getInstance().hasRecords();
+	}
+	
+	private static void addBatch(AuditLogJournal journal, JournalRecord record, List<AuditLogBatch> batches,
+	                             List<String> uuids) throws IOException {
+		AuditLogBatch batch;
+		try {
+			batch = AuditLogJournalCodec.decode(record.getBatch());
+		}
+		catch (Exception e) {
+			log.error("Failed to decode audit log journal record", e);
+			journal.quarantine(record, "it can't be decoded");
+			return;
+		}
+		
+		batches.add(batch);
+		for (AuditLog auditLog : batch.getAuditLogs()) {
+			uuids.add(auditLog.getUuid());
+		}
+	}
+}
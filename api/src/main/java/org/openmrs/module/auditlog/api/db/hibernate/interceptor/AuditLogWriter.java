@@ -0,0 +1,360 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.api.db.hibernate.interceptor;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.Session;
+import org.hibernate.SessionBuilder;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.resource.transaction.spi.TransactionStatus;
+import org.openmrs.module.auditlog.AuditLog;
+import org.openmrs.module.auditlog.AuditLogWriteMode;
+import org.openmrs.module.auditlog.api.db.hibernate.AuditLogDataSources;
+import org.openmrs.module.auditlog.sink.AuditRecord;
+import org.openmrs.module.auditlog.sink.AuditSinks;
+import org.springframework.orm.hibernate5.SessionHolder;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Persists the audit logs built by the interceptor for a transaction according to the configured
+ * {@link AuditLogWriteMode}. In the isolated modes the logs are written in a separate session that
+ * is opened without the interceptors and gets its connection from the pool configured via the
+ * auditlog.writeDataSource runtime properties if any otherwise from the main pool, the separate
+ * session is bound as the current session while the logs are written so that the DAO writes
+ * through it. In the journal mode the logs are encoded and appended to the {@link AuditLogJournal}
+ * before the commit and the outcome of the transaction is recorded in the journal after it.
+ */
+final class AuditLogWriter {
+	
+	private static final Log log = LogFactory.getLog(AuditLogWriter.class);
+	
+	private static volatile boolean warnedNoWritePool;
+	
+	//The audit writes handed off to be completed after the transactions that made the changes
+	private static final ThreadLocal<Map<Transaction, Handoff>> handoffs = new ThreadLocal<Map<Transaction, Handoff>>() {
+		
+		@Override
+		protected Map<Transaction, Handoff> initialValue() {
+			return new IdentityHashMap<Transaction, Handoff>();
+		}
+	};
+	
+	private AuditLogWriter() {
+	}
+	
+	/**
+	 * Writes the specified batch or hands it off to be completed after the specified transaction
+	 * depending on the write mode, called before the transaction that made the changes completes.
+	 * If sinks are configured the records for them are created and handed off too.
+	 * 
+	 * @param tx the transaction that made the changes
+	 * @param batch the logs to write
+	 * @throws Exception if no connection can be obtained for the separate session or the batch
+	 *             can't be encoded
+	 */
+	static void write(Transaction tx, AuditLogBatch batch) throws Exception {
+		write(tx, batch, null, Collections.<Integer> emptySet());
+	}
+	
+	/**
+	 * Writes the specified batch like {@link #write(Transaction, AuditLogBatch)}, the specified
+	 * records of the logs written earlier in the transaction are handed off along with those of the
+	 * batch to be submitted to the sinks after the transaction is committed
+	 * 
+	 * @param tx the transaction that made the changes
+	 * @param batch the logs to write
+	 * @param writtenSinkRecords the records of the logs written at flushes, can be null
+	 * @param writtenUserIds the ids of the users whose rows the transaction created, updated or
+	 *            deleted
+	 * @throws Exception if no connection can be obtained for the separate session or the batch
+	 *             can't be encoded
+	 */
+	static void write(Transaction tx, AuditLogBatch batch, List<AuditRecord> writtenSinkRecords,
+	                  Set<Integer> writtenUserIds) throws Exception {
+		List<AuditRecord> sinkRecords = writtenSinkRecords;
+		if (AuditSinks.isEnabled()) {
+			sinkRecords = new ArrayList<AuditRecord>();
+			if (writtenSinkRecords != null) {
+				sinkRecords.addAll(writtenSinkRecords);
+			}
+			sinkRecords.addAll(AuditSinks.toRecords(batch.getAuditLogs()));
+			batch = batch.withoutTypes(InterceptorUtil.getAuditLogDao().getSinkOnlyTypes());
+		}
+		
+		AuditLogWriteMode writeMode = InterceptorUtil.getAuditLogDao().getWriteMode();
+		Handoff handoff = null;
+		if (writeMode == AuditLogWriteMode.SAME_TRANSACTION) {
+			writeBatch(batch);
+		} else if (writeMode == AuditLogWriteMode.SAME_COMMIT) {
+			if (AuditLogDataSources.getWriteDataSource() == null) {
+				//Holding a second connection from the main pool until the commit can exhaust it
+				if (!warnedNoWritePool) {
+					warnedNoWritePool = true;
+					log.warn("The " + AuditLogWriteMode.SAME_COMMIT + " write mode requires a connection pool configured "
+					        + "via the auditlog.writeDataSource runtime properties, writing the logs in the transaction");
+				}
+				writeBatch(batch);
+			} else if (batch.hasLogsOfUsers(writtenUserIds)) {
+				//Inserting a log checks its foreign key to the users, which would wait on the lock the
+				//transaction holds on the row of the user until the commit that waits on the insert
+				writeBatch(batch);
+			} else {
+				handoff = new Handoff(batch);
+				boolean written = false;
+				try {
+					handoff.open();
+					writeInSession(handoff.session, batch);
+					written = true;
+				}
+				finally {
+					if (!written) {
+						handoff.close(false);
+					}
+				}
+			}
+		} else if (writeMode == AuditLogWriteMode.JOURNAL) {
+			handoff = new Handoff(null);
+			handoff.journalPosition = AuditLogJournal.getInstance().writePending(AuditLogJournalCodec.encode(batch));
+		} else {
+			handoff = new Handoff(batch);
+		}
+		
+		if (sinkRecords != null) {
+			if (handoff == null) {
+				handoff = new Handoff(null);
+			}
+			handoff.sinkRecords = sinkRecords;
+		}
+		if (handoff != null) {
+			handoffs.get().put(tx, handoff);
+		}
+	}
+	
+	/**
+	 * Writes the specified batch built at a flush in the current session, it is only called in the
+	 * {@link AuditLogWriteMode#SAME_TRANSACTION} mode since the other modes write outside of the
+	 * transaction that made the changes
+	 * 
+	 * @param batch the logs to write
+	 * @return the records of the logs for the sinks to be submitted after the transaction is
+	 *         committed or null if no sink is configured
+	 * @throws Exception if the records for the sinks can't be created
+	 */
+	static List<AuditRecord> writeFlushed(AuditLogBatch batch) throws Exception {
+		List<AuditRecord> sinkRecords = null;
+		if (AuditSinks.isEnabled()) {
+			sinkRecords = AuditSinks.toRecords(batch.getAuditLogs());
+			batch = batch.withoutTypes(InterceptorUtil.getAuditLogDao().getSinkOnlyTypes());
+		}
+		writeBatch(batch);
+		
+		return sinkRecords;
+	}
+	
+	/**
+	 * Completes the writes handed off for the specified transaction, the audit transaction is
+	 * committed only if the specified transaction was committed
+	 * 
+	 * @param tx the transaction that made the changes
+	 */
+	static void afterTransactionCompletion(Transaction tx) {
+		Map<Transaction, Handoff> txHandoffs = handoffs.get();
+		Handoff handoff = txHandoffs.remove(tx);
+		if (txHandoffs.isEmpty()) {
+			handoffs.remove();
+		}
+		if (handoff == null) {
+			return;
+		}
+		
+		boolean committed = tx.getStatus() == TransactionStatus.COMMITTED;
+		if (handoff.journalPosition >= 0) {
+			try {
+				AuditLogJournal.getInstance().complete(handoff.journalPosition, committed);
+			}
+			catch (Exception e) {
+				log.error("An error occured while completing audit log journal record:", e);
+			}
+		} else if (handoff.session != null) {
+			//Written before the commit in the SAME_COMMIT mode
+			if (!handoff.close(committed) && committed) {
+				appendToJournal(handoff.batch);
+			}
+		} else if (handoff.batch != null && committed) {
+			writeAfterCommit(handoff.batch);
+		}
+		
+		if (handoff.sinkRecords != null && committed) {
+			AuditSinks.submit(handoff.sinkRecords);
+		}
+	}
+	
+	/**
+	 * Writes the specified batch in a separate session after the transaction that made the changes
+	 * has committed, if the write fails the batch is appended to the {@link AuditLogJournal} so that
+	 * it is loaded into the database by the ingest task instead of retrying on the thread of the
+	 * request.
+	 * 
+	 * @param batch the logs to write, must be called before the session that built them is closed
+	 */
+	private static void writeAfterCommit(AuditLogBatch batch) {
+		Handoff handoff = new Handoff(batch);
+		try {
+			handoff.open();
+			writeInSession(handoff.session, batch);
+			if (handoff.close(true)) {
+				return;
+			}
+		}
+		catch (Exception e) {
+			handoff.close(false);
+			log.warn("An error occured while writing audit log(s), appending them to the journal", e);
+		}
+		
+		appendToJournal(batch);
+	}
+	
+	/**
+	 * Appends the specified batch of a committed transaction to the {@link AuditLogJournal} after a
+	 * failed write, the journal is synced to disk along with the records of other threads
+	 * 
+	 * @see #writeAfterCommit(AuditLogBatch)
+	 */
+	private static void appendToJournal(AuditLogBatch batch) {
+		try {
+			AuditLogJournal.getInstance().writeCommitted(AuditLogJournalCodec.encode(batch));
+			log.warn("Appended audit log(s) that couldn't be written to the journal to be loaded by the ingest task");
+		}
+		catch (Exception e) {
+			log.error("Failed to append audit log(s) to the journal after failing to write them, the logs are lost:", e);
+		}
+	}
+	
+	/**
+	 * Writes the specified batch in the current session
+	 */
+	static void writeBatch(AuditLogBatch batch) {
+		for (AuditLog al : batch.getAuditLogs()) {
+			InterceptorUtil.saveAuditLog(al);
+		}
+		InterceptorUtil.saveLatestAuditLogs(batch.getAuditLogs());
+		InterceptorUtil.savePropertyChanges(batch.getPropertyChanges());
+		InterceptorUtil.saveSnapshotsIfNecessary(batch);
+	}
+	
+	/**
+	 * Writes the specified batch with the specified session bound as the current session
+	 */
+	private static void writeInSession(Session session, AuditLogBatch batch) {
+		SessionFactory sf = InterceptorUtil.getSessionFactory();
+		Object previous = TransactionSynchronizationManager.unbindResourceIfPossible(sf);
+		SessionHolder holder = new SessionHolder(session);
+		//Prevents the holder from being synchronized with the transaction of the main session
+		holder.setSynchronizedWithTransaction(true);
+		TransactionSynchronizationManager.bindResource(sf, holder);
+		try {
+			writeBatch(batch);
+			session.flush();
+		}
+		finally {
+			TransactionSynchronizationManager.unbindResource(sf);
+			if (previous != null) {
+				TransactionSynchronizationManager.bindResource(sf, previous);
+			}
+		}
+	}
+	
+	/**
+	 * A batch or the position of a pending journal record waiting for the transaction that made the
+	 * changes to complete or the separate session and transaction the batch was written in
+	 */
+	private static class Handoff {
+		
+		private final AuditLogBatch batch;
+		
+		private long journalPosition = -1;
+		
+		private List<AuditRecord> sinkRecords;
+		
+		private Connection connection;
+		
+		private Session session;
+		
+		private Transaction transaction;
+		
+		Handoff(AuditLogBatch batch) {
+			this.batch = batch;
+		}
+		
+		void open() throws SQLException {
+			SessionBuilder builder = InterceptorUtil.getSessionFactory().withOptions().noInterceptor();
+			DataSource dataSource = AuditLogDataSources.getWriteDataSource();
+			if (dataSource != null) {
+				connection = dataSource.getConnection();
+				builder.connection(connection);
+			}
+			session = builder.openSession();
+			transaction = session.beginTransaction();
+		}
+		
+		/**
+		 * Commits or rolls back the audit transaction and releases the session and connection
+		 * 
+		 * @param commit specifies if the transaction should be committed
+		 * @return false if committing the transaction failed otherwise true
+		 */
+		boolean close(boolean commit) {
+			try {
+				if (transaction != null && transaction.isActive()) {
+					if (commit) {
+						transaction.commit();
+					} else {
+						transaction.rollback();
+					}
+				}
+				return true;
+			}
+			catch (Exception e) {
+				log.warn("An error occured while completing the audit log transaction:", e);
+				return false;
+			}
+			finally {
+				if (session != null) {
+					session.close();
+				}
+				if (connection != null) {
+					try {
+						connection.close();
+					}
+					catch (SQLException e) {
+						log.warn("Failed to close the audit log connection", e);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,304 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.api.db.hibernate.interceptor;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.lang.StringUtils;
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.collection.CollectionPersister;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.CollectionType;
+import org.hibernate.type.StringType;
+import org.hibernate.type.TextType;
+import org.hibernate.type.Type;
+
+/**
+ * The decisions the interceptor makes for each property of an audited class when an object of the
+ * class is flushed, they are worked out once from the persister of the class and the rules set via
+ * the {@link org.openmrs.module.auditlog.util.AuditLogConstants#GP_PROPERTY_RULES} global property
+ * so that the flush callbacks only visit the relevant property indexes. The rule of a class is the
+ * one of the class itself, else of its nearest superclass with one, else the one with the *
+ * wildcard key, it also lists the properties to include in or exclude from the last states of the
+ * deleted objects of the class. The plans are discarded together with the rules they were built
+ * from when the global property changes, rules loaded while the cache was being cleared are never
+ * published. The rules are loaded at startup and replaced with the new value of the global property
+ * once it is committed so that the flush callbacks don't query it.
+ */
+public final class AuditPlan {
+	
+	static final String RULE_INCLUDE = "include";
+	
+	static final String RULE_EXCLUDE = "exclude";
+	
+	static final String RULE_CASE_SENSITIVE = "caseSensitive";
+	
+	static final String RULE_BLANK_EQUALS_NULL = "blankEqualsNull";
+	
+	static final String RULE_DELETED_STATE_INCLUDE = "deletedStateInclude";
+	
+	static final String RULE_DELETED_STATE_EXCLUDE = "deletedStateExclude";
+	
+	static final String WILDCARD = "*";
+	
+	//Ignore these properties because they match auditLog.user and auditLog.dateCreated
+	private static final String[] IGNORED_PROPERTIES = new String[] { "changedBy", "dateChanged", "creator", "dateCreated",
+	        "voidedBy", "dateVoided", "retiredBy", "dateRetired", "personChangedBy", "personDateChanged", "personCreator",
+	        "personDateCreated" };
+	
+	private static final AtomicReference<CompiledRules> compiledRules = new AtomicReference<CompiledRules>();
+	
+	//Incremented each time the cache is cleared so that rules loaded before are never published
+	private static final AtomicLong generation = new AtomicLong();
+	
+	private final BitSet auditedIndexes;
+	
+	private final boolean[] stringIndexes;
+	
+	private final boolean caseSensitive;
+	
+	private final boolean blankEqualsNull;
+	
+	private final int[] collectionIndexes;
+	
+	private final Set<String> ignoredCollections;
+	
+	private final Collection<?> deletedStateIncludes;
+	
+	private final Collection<?> deletedStateExcludes;
+	
+	private AuditPlan(Class<?> clazz, Map<String, Map<String, Object>> rules) {
+		SessionFactoryImplementor sf = (SessionFactoryImplementor) InterceptorUtil.getSessionFactory();
+		EntityPersister persister = sf.getMetamodel().entityPersister(clazz);
+		String[] propertyNames = persister.getPropertyNames();
+		Type[] types = persister.getPropertyTypes();
+		
+		Map<String, Object> rule = getRule(clazz, rules);
+		Collection<?> includes = getCollection(rule, RULE_INCLUDE);
+		Collection<?> excludes = getCollection(rule, RULE_EXCLUDE);
+		caseSensitive = Boolean.TRUE.equals(rule.get(RULE_CASE_SENSITIVE));
+		blankEqualsNull = !Boolean.FALSE.equals(rule.get(RULE_BLANK_EQUALS_NULL));
+		deletedStateIncludes = getCollection(rule, RULE_DELETED_STATE_INCLUDE);
+		deletedStateExcludes = getCollection(rule, RULE_DELETED_STATE_EXCLUDE);
+		
+		auditedIndexes = new BitSet(types.length);
+		stringIndexes = new boolean[types.length];
+		List<Integer> collIndexes = new ArrayList<Integer>();
+		Set<String> ignoredColls = new HashSet<String>();
+		for (int i = 0; i < types.length; i++) {
+			boolean ignored = ArrayUtils.contains(IGNORED_PROPERTIES, propertyNames[i])
+			        || (includes != null && !includes.contains(propertyNames[i]))
+			        || (excludes != null && excludes.contains(propertyNames[i]));
+			if (types[i].isCollectionType()) {
+				if (ignored) {
+					ignoredColls.add(propertyNames[i]);
+					continue;
+				}
+				CollectionPersister cp = sf.getMetamodel().collectionPersister(((CollectionType) types[i]).getRole());
+				if (!cp.isManyToMany()) {
+					collIndexes.add(i);
+				}
+			} else if (!ignored) {
+				auditedIndexes.set(i);
+				stringIndexes[i] = types[i].getClass() == StringType.class || types[i].getClass() == TextType.class;
+			}
+		}
+		
+		collectionIndexes = new int[collIndexes.size()];
+		for (int i = 0; i < collectionIndexes.length; i++) {
+			collectionIndexes[i] = collIndexes.get(i);
+		}
+		ignoredCollections = ignoredColls.isEmpty() ? Collections.<String> emptySet() : ignoredColls;
+	}
+	
+	/**
+	 * Gets the plan for the specified class
+	 * 
+	 * @param clazz the audited class
+	 * @return the plan
+	 */
+	static AuditPlan get(Class<?> clazz) {
+		CompiledRules compiled = getCompiledRules(true);
+		AuditPlan plan = compiled.plans.get(clazz);
+		if (plan == null) {
+			plan = new AuditPlan(clazz, compiled.rules);
+			compiled.plans.put(clazz, plan);
+		}
+		return plan;
+	}
+	
+	/**
+	 * Loads the rules if they aren't cached, called at startup outside of flushes
+	 */
+	public static void preload() {
+		getCompiledRules(false);
+	}
+	
+	/**
+	 * Replaces the rules and discards the plans built from the previous ones
+	 * 
+	 * @param rules the new rules by class name
+	 */
+	public static void setRules(Map<String, Map<String, Object>> rules) {
+		generation.incrementAndGet();
+		compiledRules.set(new CompiledRules(rules));
+	}
+	
+	private static CompiledRules getCompiledRules(boolean inFlush) {
+		CompiledRules compiled = compiledRules.get();
+		if (compiled == null) {
+			long loadedGeneration = generation.get();
+			if (inFlush) {
+				Session session = InterceptorUtil.getSessionFactory().getCurrentSession();
+				FlushMode flushMode = session.getHibernateFlushMode();
+				//Only if the rules weren't loaded at startup, don't trigger a flush from inside the
+				//interceptor when loading the global property
+				session.setHibernateFlushMode(FlushMode.MANUAL);
+				try {
+					compiled = new CompiledRules(InterceptorUtil.getAuditLogDao().getPropertyRules());
+				}
+				finally {
+					session.setHibernateFlushMode(flushMode);
+				}
+			} else {
+				compiled = new CompiledRules(InterceptorUtil.getAuditLogDao().getPropertyRules());
+			}
+			//Rules loaded across a change to the global property are only used for this call, they
+			//are withdrawn if the cache was cleared between the check and the publication
+			if (generation.get() == loadedGeneration && compiledRules.compareAndSet(null, compiled)
+			        && generation.get() != loadedGeneration) {
+				compiledRules.compareAndSet(compiled, null);
+			}
+		}
+		
+		return compiled;
+	}
+	
+	/**
+	 * @return the indexes of the properties whose changes are logged, collections and the ignored
+	 *         properties are excluded
+	 */
+	BitSet getAuditedIndexes() {
+		return auditedIndexes;
+	}
+	
+	/**
+	 * Checks if the specified values of the property at the specified index are equivalent, the
+	 * values are expected to differ by equality, string values are equivalent if they only differ
+	 * by case unless the rule is case sensitive or if both are null or blank unless the rule
+	 * disables it.
+	 * 
+	 * @param index the property index
+	 * @param previousValue the previous value
+	 * @param currentValue the current value
+	 * @return true if the change should be ignored otherwise false
+	 */
+	boolean isEquivalent(int index, Object previousValue, Object currentValue) {
+		if (!stringIndexes[index]) {
+			return false;
+		}
+		
+		String previous = (String) previousValue;
+		String current = (String) currentValue;
+		if (blankEqualsNull) {
+			if (StringUtils.isBlank(previous)) {
+				previous = null;
+			}
+			if (StringUtils.isBlank(current)) {
+				current = null;
+			}
+		}
+		if (previous == null || current == null) {
+			return previous == current;
+		}
+		
+		return caseSensitive ? previous.equals(current) : previous.equalsIgnoreCase(current);
+	}
+	
+	/**
+	 * @return the indexes of the collection properties that aren't ignored or many to many, their
+	 *         elements are checked for changes that make the owner dirty
+	 */
+	int[] getCollectionIndexes() {
+		return collectionIndexes;
+	}
+	
+	/**
+	 * @param propertyName the name of a collection property
+	 * @return true if changes to the collection property with the specified name aren't logged
+	 */
+	boolean isIgnoredCollection(String propertyName) {
+		return ignoredCollections.contains(propertyName);
+	}
+	
+	/**
+	 * @return the names of the only properties to include in the last states of deleted objects or
+	 *         null if all are included
+	 */
+	Collection<?> getDeletedStateIncludes() {
+		return deletedStateIncludes;
+	}
+	
+	/**
+	 * @return the names of the properties to exclude from the last states of deleted objects or null
+	 *         if none is excluded
+	 */
+	Collection<?> getDeletedStateExcludes() {
+		return deletedStateExcludes;
+	}
+	
+	private static Collection<?> getCollection(Map<String, Object> rule, String key) {
+		Object value = rule.get(key);
+		return (value instanceof Collection) ? (Collection<?>) value : null;
+	}
+	
+	private static Map<String, Object> getRule(Class<?> clazz, Map<String, Map<String, Object>> rules) {
+		for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+			Map<String, Object> rule = rules.get(c.getName());
+			if (rule != null) {
+				return rule;
+			}
+		}
+		Map<String, Object> rule = rules.get(WILDCARD);
+		return rule != null ? rule : Collections.<String, Object> emptyMap();
+	}
+	
+	/**
+	 * Rules along with the plans built from them, they are replaced together so that no plan built
+	 * from stale rules is used after a change
+	 */
+	private static class CompiledRules {
+		
+		private final Map<String, Map<String, Object>> rules;
+		
+		private final Map<Class<?>, AuditPlan> plans = new ConcurrentHashMap<Class<?>, AuditPlan>();
+		
+		CompiledRules(Map<String, Map<String, Object>> rules) {
+			this.rules = rules;
+		}
+	}
+}
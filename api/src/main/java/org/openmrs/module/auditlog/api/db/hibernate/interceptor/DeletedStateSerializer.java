@@ -0,0 +1,215 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.api.db.hibernate.interceptor;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.hibernate.collection.spi.PersistentCollection;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.persister.collection.CollectionPersister;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.type.CollectionType;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.Type;
+import org.openmrs.module.auditlog.util.AuditLogUtil;
+
+/**
+ * Serializes the last states of deleted objects from the property values hibernate passes to the
+ * interceptor when they are deleted instead of reading them from the objects, associated entities
+ * and entity collection elements are stored as their ids which are read from uninitialized
+ * proxies and collections without loading them, the values of uninitialized collections are
+ * fetched with projection queries. The properties to serialize for each class are worked out once
+ * from its persister and the deleted state includes and excludes of its {@link AuditPlan}, they are
+ * worked out again when the plan is replaced after the rules change.
+ */
+public final class DeletedStateSerializer {
+	
+	private static final int VALUE = 0;
+	
+	private static final int ENTITY = 1;
+	
+	private static final int ENTITY_COLLECTION = 2;
+	
+	private static final int VALUE_COLLECTION = 3;
+	
+	private static final int MAP = 4;
+	
+	//The plans are released along with the audit plans they were built from
+	private static final Map<AuditPlan, Plan> plans = Collections.synchronizedMap(new WeakHashMap<AuditPlan, Plan>());
+	
+	private DeletedStateSerializer() {
+	}
+	
+	/**
+	 * Serializes the specified state of the specified deleted object
+	 * 
+	 * @param entity the deleted object
+	 * @param id the id of the deleted object
+	 * @param state the property values of the deleted object as passed to the interceptor
+	 * @param fetchedElementIds map of collection property names to the ids of their elements if
+	 *            already fetched
+	 * @return the serialized state
+	 */
+	static String serialize(Object entity, Serializable id, Object[] state, Map<String, List<Serializable>> fetchedElementIds) {
+		Plan plan = getPlan(entity.getClass());
+		SharedSessionContractImplementor session = (SharedSessionContractImplementor) InterceptorUtil.getSessionFactory()
+		        .getCurrentSession();
+		Map<String, Object> propertyNameValueMap = new HashMap<String, Object>();
+		propertyNameValueMap.put(plan.identifierPropertyName, id);
+		for (int index : plan.indexes) {
+			Object value = state[index];
+			if (value == null) {
+				continue;
+			}
+			
+			Object serializedValue = null;
+			boolean uninitialized = value instanceof PersistentCollection
+			        && !((PersistentCollection) value).wasInitialized();
+			switch (plan.kinds[index]) {
+				case ENTITY:
+					serializedValue = AuditLogUtil.serializeObject(getEntityId(value, plan.entityPersisters[index], session));
+					break;
+				case ENTITY_COLLECTION:
+					List<Serializable> elementIds = fetchedElementIds.get(plan.propertyNames[index]);
+					if (elementIds == null) {
+						if (uninitialized) {
+							elementIds = InterceptorUtil.getCollectionElementIds(plan.collectionPersisters[index], id);
+						} else {
+							elementIds = new ArrayList<Serializable>();
+							for (Object element : (Collection<?>) value) {
+								elementIds.add(getEntityId(element, plan.entityPersisters[index], session));
+							}
+						}
+					}
+					serializedValue = AuditLogUtil.serializeCollectionItems(elementIds);
+					break;
+				case VALUE_COLLECTION:
+					if (uninitialized) {
+						value = InterceptorUtil.getCollectionElements(plan.collectionPersisters[index], id);
+					}
+					serializedValue = AuditLogUtil.serializeCollectionItems((Collection<?>) value);
+					break;
+				case MAP:
+					if (uninitialized) {
+						Map<Object, Object> map = new HashMap<Object, Object>();
+						for (Object[] entry : InterceptorUtil.getMapEntries(plan.collectionPersisters[index], id)) {
+							map.put(entry[0], entry[1]);
+						}
+						value = map;
+					}
+					serializedValue = AuditLogUtil.serializeMapItems((Map<?, ?>) value);
+					break;
+				default:
+					serializedValue = AuditLogUtil.serializeObject(value);
+			}
+			if (serializedValue != null) {
+				propertyNameValueMap.put(plan.propertyNames[index], serializedValue);
+			}
+		}
+		
+		return AuditLogUtil.serializeToJson(propertyNameValueMap);
+	}
+	
+	private static Serializable getEntityId(Object entity, EntityPersister persister, SharedSessionContractImplementor session) {
+		if (entity instanceof HibernateProxy) {
+			return ((HibernateProxy) entity).getHibernateLazyInitializer().getIdentifier();
+		}
+		return persister.getIdentifier(entity, session);
+	}
+	
+	private static Plan getPlan(Class<?> clazz) {
+		AuditPlan auditPlan = AuditPlan.get(clazz);
+		Plan plan = plans.get(auditPlan);
+		if (plan == null) {
+			plan = new Plan(clazz, auditPlan);
+			plans.put(auditPlan, plan);
+		}
+		return plan;
+	}
+	
+	/**
+	 * The indexes of the properties of a class to serialize along with how to serialize them
+	 */
+	private static class Plan {
+		
+		private final String identifierPropertyName;
+		
+		private final String[] propertyNames;
+		
+		private final int[] indexes;
+		
+		private final int[] kinds;
+		
+		//The persisters of the associated entities and the elements of entity collections
+		private final EntityPersister[] entityPersisters;
+		
+		private final CollectionPersister[] collectionPersisters;
+		
+		Plan(Class<?> clazz, AuditPlan auditPlan) {
+			SessionFactoryImplementor sf = (SessionFactoryImplementor) InterceptorUtil.getSessionFactory();
+			EntityPersister persister = sf.getMetamodel().entityPersister(clazz);
+			Collection<?> includes = auditPlan.getDeletedStateIncludes();
+			Collection<?> excludes = auditPlan.getDeletedStateExcludes();
+			
+			identifierPropertyName = persister.getIdentifierPropertyName();
+			propertyNames = persister.getPropertyNames();
+			Type[] types = persister.getPropertyTypes();
+			kinds = new int[types.length];
+			entityPersisters = new EntityPersister[types.length];
+			collectionPersisters = new CollectionPersister[types.length];
+			List<Integer> includedIndexes = new ArrayList<Integer>();
+			for (int i = 0; i < types.length; i++) {
+				if ((includes != null && !includes.contains(propertyNames[i]))
+				        || (excludes != null && excludes.contains(propertyNames[i]))) {
+					continue;
+				}
+				
+				includedIndexes.add(i);
+				if (types[i].isEntityType()) {
+					kinds[i] = ENTITY;
+					entityPersisters[i] = sf.getMetamodel().entityPersister(
+					    ((EntityType) types[i]).getAssociatedEntityName(sf));
+				} else if (types[i].isCollectionType()) {
+					CollectionPersister cp = sf.getMetamodel().collectionPersister(((CollectionType) types[i]).getRole());
+					collectionPersisters[i] = cp;
+					if (Map.class.isAssignableFrom(types[i].getReturnedClass())) {
+						kinds[i] = MAP;
+					} else if (cp.getElementType().isEntityType()) {
+						kinds[i] = ENTITY_COLLECTION;
+						entityPersisters[i] = sf.getMetamodel().entityPersister(
+						    ((EntityType) cp.getElementType()).getAssociatedEntityName(sf));
+					} else {
+						kinds[i] = VALUE_COLLECTION;
+					}
+				} else {
+					kinds[i] = VALUE;
+				}
+			}
+			
+			indexes = new int[includedIndexes.size()];
+			for (int i = 0; i < indexes.length; i++) {
+				indexes[i] = includedIndexes.get(i);
+			}
+		}
+	}
+}
@@ -16,11 +16,15 @@ package org.openmrs.module.auditlog.api.db.hibernate.interceptor;
 import java.io.Serializable;
 import java.sql.Blob;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -28,8 +32,6 @@ import java.util.Stack;
 
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.collections.MapUtils;
-import org.apache.commons.lang.ArrayUtils;
-import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.CallbackException;
@@ -40,19 +42,26 @@ import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
 import org.hibernate.collection.spi.PersistentCollection;
+import org.hibernate.engine.spi.CascadeStyle;
+import org.hibernate.engine.spi.CascadingActions;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
 import org.hibernate.engine.spi.SessionImplementor;
 import org.hibernate.engine.spi.SharedSessionContractImplementor;
 import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.persister.collection.CollectionPersister;
 import org.hibernate.persister.entity.EntityPersister;
-import org.hibernate.type.StringType;
-import org.hibernate.type.TextType;
+import org.hibernate.resource.transaction.spi.TransactionStatus;
+import org.hibernate.type.CollectionType;
 import org.hibernate.type.Type;
+import org.openmrs.OpenmrsObject;
+import org.openmrs.User;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.auditlog.AuditLog;
 import org.openmrs.module.auditlog.AuditLog.Action;
-import org.openmrs.module.auditlog.api.db.DAOUtils;
+import org.openmrs.module.auditlog.AuditLogWriteMode;
 import org.openmrs.module.auditlog.util.AuditLogConstants;
 import org.openmrs.module.auditlog.util.AuditLogUtil;
+import org.openmrs.module.auditlog.util.DisplayLabelCache;
 import org.openmrs.util.OpenmrsConstants;
 import org.openmrs.util.OpenmrsUtil;
 import org.springframework.orm.hibernate5.SessionFactoryUtils;
@@ -104,12 +113,26 @@ public class HibernateAuditLogInterceptor extends EmptyInterceptor {
 	//Mapping between parent entities and sets of removed collection elements
 	private ThreadLocal<Stack<Map<Object, HashSet<Object>>>> entityRemovedChildrenMap = new ThreadLocal<Stack<Map<Object, HashSet<Object>>>>();
 	
+	//Mapping between deleted entities and the ids of the elements of their uninitialized collections by element type
+	private ThreadLocal<Stack<Map<Object, Map<Class<?>, Set<Serializable>>>>> entityRemovedChildIdsMap = new ThreadLocal<Stack<Map<Object, Map<Class<?>, Set<Serializable>>>>>();
+	
+	//Mapping between deleted entities and their serialized last states
+	private ThreadLocal<Stack<Map<Object, String>>> deletedStates = new ThreadLocal<Stack<Map<Object, String>>>();
+	
 	private ThreadLocal<Stack<Date>> date = new ThreadLocal<Stack<Date>>();
 	
-	//Ignore these properties because they match auditLog.user and auditLog.dateCreated
-	private static final String[] IGNORED_PROPERTIES = new String[] { "changedBy", "dateChanged", "creator", "dateCreated",
-	        "voidedBy", "dateVoided", "retiredBy", "dateRetired", "personChangedBy", "personDateChanged", "personCreator",
-	        "personDateCreated" };
+	//The logs built at the previous flushes in the bounded memory mode or if they are written at
+	//flushes, null elements otherwise
+	private ThreadLocal<Stack<AuditLogBuffer>> buffers = new ThreadLocal<Stack<AuditLogBuffer>>();
+	
+	//The ids of the users whose rows were created, updated or deleted in the transaction
+	private ThreadLocal<Stack<Set<Integer>>> userIds = new ThreadLocal<Stack<Set<Integer>>>();
+	
+	//The keys of the display labels to evict once the transaction commits
+	private ThreadLocal<Stack<Set<String>>> labelKeys = new ThreadLocal<Stack<Set<String>>>();
+	
+	//The keys of the display labels to evict by the transactions that are completing
+	private ThreadLocal<Map<Transaction, Set<String>>> completingLabelKeys = new ThreadLocal<Map<Transaction, Set<String>>>();
 	
 	/**
 	 * @see org.hibernate.EmptyInterceptor#afterTransactionBegin(org.hibernate.Transaction)
@@ -126,7 +149,20 @@ public class HibernateAuditLogInterceptor extends EmptyInterceptor {
 		ownerUuidChildLogsMap.get().push(new HashMap<Object, List<AuditLog>>());
 		childbjectUuidAuditLogMap.get().push(new HashMap<Object, AuditLog>());
 		entityRemovedChildrenMap.get().push(new HashMap<Object, HashSet<Object>>());
+		entityRemovedChildIdsMap.get().push(new HashMap<Object, Map<Class<?>, Set<Serializable>>>());
+		deletedStates.get().push(new HashMap<Object, String>());
 		date.get().push(new Date());
+		labelKeys.get().push(new HashSet<String>());
+		userIds.get().push(new HashSet<Integer>());
+		//The logs are only written at flushes in the same transaction mode since the other modes write
+		//outside of the transaction that made the changes
+		if (InterceptorUtil.getAuditLogDao().isBoundedMemory()
+		        || (InterceptorUtil.getAuditLogDao().getFlushWriteInterval() > 0
+		                && InterceptorUtil.getAuditLogDao().getWriteMode() == AuditLogWriteMode.SAME_TRANSACTION)) {
+			buffers.get().push(new AuditLogBuffer(InterceptorUtil.getAuditLogDao().getSpillThreshold()));
+		} else {
+			buffers.get().push(null);
+		}
 	}
 	
 	/**
@@ -135,6 +171,7 @@ public class HibernateAuditLogInterceptor extends EmptyInterceptor {
 	 */
 	@Override
 	public boolean onSave(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+		addUserId(entity, id);
 		if (InterceptorUtil.isAudited(entity.getClass())) {
 			if (log.isDebugEnabled()) {
 				log.debug("Creating log entry for created object with id:" + id + " of type:" + entity.getClass().getName());
@@ -153,8 +190,9 @@ public class HibernateAuditLogInterceptor extends EmptyInterceptor {
 	@Override
 	public boolean onFlushDirty(Object entity, Serializable id, Object[] currentState, Object[] previousState,
 	                            String[] propertyNames, Type[] types) {
-		
+		addUserId(entity, id);
 		if (propertyNames != null && InterceptorUtil.isAudited(entity.getClass())) {
+			addLabelKeys(entity, id);
 			if (previousState == null) {
 				//This is a detached object, load the previous state in a separate session
 				Session tmpSession = null;
@@ -176,34 +214,18 @@ public class HibernateAuditLogInterceptor extends EmptyInterceptor {
 				
 			}
 			Map<String, Object[]> propertyChangesMap = null;//Map<propertyName, Object[]{currentValue, PreviousValue}>
-			for (int i = 0; i < propertyNames.length; i++) {
-				//we need to ignore dateChanged and changedBy fields in any case they
-				//are actually part of the Auditlog in form of user and dateCreated
-				if (ArrayUtils.contains(IGNORED_PROPERTIES, propertyNames[i])) {
-					continue;
-				}
-				
+			//we need to ignore dateChanged and changedBy fields in any case they
+			//are actually part of the Auditlog in form of user and dateCreated
+			AuditPlan plan = AuditPlan.get(entity.getClass());
+			BitSet auditedIndexes = plan.getAuditedIndexes();
+			for (int i = auditedIndexes.nextSetBit(0); i >= 0; i = auditedIndexes.nextSetBit(i + 1)) {
 				Object previousValue = (previousState != null) ? previousState[i] : null;
 				Object currentValue = (currentState != null) ? currentState[i] : null;
-				if (!types[i].isCollectionType() && !OpenmrsUtil.nullSafeEquals(currentValue, previousValue)) {
-					//For string properties, ignore changes from null to blank and vice versa
-					//TODO This should be user configurable via a module GP
-					if (StringType.class.getName().equals(types[i].getClass().getName())
-					        || TextType.class.getName().equals(types[i].getClass().getName())) {
-						String currentStateString = null;
-						if (currentValue != null && !StringUtils.isBlank(currentValue.toString())) {
-							currentStateString = currentValue.toString();
-						}
-						
-						String previousValueString = null;
-						if (previousValue != null && !StringUtils.isBlank(previousValue.toString())) {
-							previousValueString = previousValue.toString();
-						}
-						
-						//TODO Case sensibility here should be configurable via a GP
-						if (OpenmrsUtil.nullSafeEqualsIgnoreCase(previousValueString, currentStateString)) {
-							continue;
-						}
+				if (!OpenmrsUtil.nullSafeEquals(currentValue, previousValue)) {
+					//For string properties, ignore changes from null to blank and vice versa and of
+					//case unless the rules of the class say otherwise
+					if (plan.isEquivalent(i, previousValue, currentValue)) {
+						continue;
 					}
 					
 					if (propertyChangesMap == null) {
@@ -238,14 +260,68 @@ public class HibernateAuditLogInterceptor extends EmptyInterceptor {
 	 */
 	@Override
 	public void onDelete(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+		addUserId(entity, id);
 		if (InterceptorUtil.isAudited(entity.getClass())) {
+			addLabelKeys(entity, id);
 			if (log.isDebugEnabled()) {
 				log.debug("Creating log entry for deleted object with id:" + id + " of type:" + entity.getClass().getName());
 			}
+			Map<String, List<Serializable>> fetchedElementIds = new HashMap<String, List<Serializable>>();
+			CascadeStyle[] cascadeStyles = null;
 			for (int i = 0; i < types.length; i++) {
-				if (types[i].isCollectionType()) {
-					//Avoids LazyInitializationException since the parent is already purged
-					Hibernate.initialize(state[i]);
+				if (types[i].isCollectionType() && state[i] instanceof PersistentCollection
+				        && !((PersistentCollection) state[i]).wasInitialized()) {
+					SessionFactoryImplementor sf = (SessionFactoryImplementor) InterceptorUtil.getSessionFactory();
+					if (cascadeStyles == null) {
+						cascadeStyles = sf.getMetamodel().entityPersister(entity.getClass()).getPropertyCascadeStyles();
+					}
+					//Hibernate loads the collections it cascades the delete to, for the others only fetch
+					//the ids of the elements to find those deleted along with the owner when it's flushed
+					if (!cascadeStyles[i].doCascade(CascadingActions.DELETE)) {
+						CollectionPersister cp = sf.getMetamodel().collectionPersister(((CollectionType) types[i]).getRole());
+						if (cp.getElementType().isEntityType()) {
+							List<Serializable> elementIds;
+							try {
+								elementIds = InterceptorUtil.getCollectionElementIds(cp, id);
+							}
+							catch (Exception e) {
+								log.warn("Failed to fetch the element ids of " + cp.getRole() + ", loading the collection", e);
+								try {
+									//The elements are then handled in onCollectionRemove like for other initialized collections
+									Hibernate.initialize(state[i]);
+								}
+								catch (Exception initError) {
+									//error should not bubble out of the interceptor
+									log.error("Failed to load " + cp.getRole()
+									        + ", no logs will be created for its deleted elements", initError);
+								}
+								continue;
+							}
+							fetchedElementIds.put(propertyNames[i], elementIds);
+							if (!elementIds.isEmpty()) {
+								if (entityRemovedChildIdsMap.get().peek().get(entity) == null) {
+									entityRemovedChildIdsMap.get().peek().put(entity, new HashMap<Class<?>, Set<Serializable>>());
+								}
+								Map<Class<?>, Set<Serializable>> classIdsMap = entityRemovedChildIdsMap.get().peek().get(entity);
+								Class<?> elementClass = cp.getElementType().getReturnedClass();
+								if (classIdsMap.get(elementClass) == null) {
+									classIdsMap.put(elementClass, new HashSet<Serializable>());
+								}
+								classIdsMap.get(elementClass).addAll(elementIds);
+							}
+						}
+					}
+				}
+			}
+			if (InterceptorUtil.storeLastStateOfDeletedItems()) {
+				try {
+					deletedStates.get().peek().put(entity,
+					    DeletedStateSerializer.serialize(entity, id, state, fetchedElementIds));
+				}
+				catch (Exception e) {
+					//The object is serialized from its properties when the logs are built instead
+					log.warn("Failed to serialize the deleted state of " + entity.getClass().getName() + " with id:" + id,
+					    e);
 				}
 			}
 			deletes.get().peek().add(entity);
@@ -294,6 +370,10 @@ public class HibernateAuditLogInterceptor extends EmptyInterceptor {
 				//I believe hibernate calls onDelete for the owner before onCollectionRemove for all its
 				//collections so we can guarantee that the owner is already in the 'deletes' thread local
 				boolean isOwnerDeleted = OpenmrsUtil.collectionContains(deletes.get().peek(), owningObject);
+				if (isOwnerDeleted && !persistentColl.wasInitialized()) {
+					//The ids of the elements were fetched when the owner was deleted
+					return;
+				}
 				if (Collection.class.isAssignableFrom(collection.getClass())) {
 					Collection coll = (Collection) collection;
 					if (!coll.isEmpty()) {
@@ -346,26 +426,21 @@ public class HibernateAuditLogInterceptor extends EmptyInterceptor {
 					log.debug("Finding collections for object:" + entity.getClass() + " #" + id);
 				}
 				
-				for (int i = 0; i < propertyNames.length; i++) {
-					if (types[i].isCollectionType()) {
-						Object coll = currentState[i];
-						//For now ignore maps because still cant imagine a logical case where the
-						//keys or values are Persistent objects that can't exist on their own
-						if (coll != null && Collection.class.isAssignableFrom(coll.getClass())) {
-							Collection<?> collection = (Collection<?>) coll;
-							if (!collection.isEmpty()) {
-								if (entityCollectionsMap.get().peek().get(entity) == null) {
-									entityCollectionsMap.get().peek().put(entity, new ArrayList<Collection<?>>());
-								}
-								if (!AuditLogUtil.getCollectionPersister(propertyNames[i], entity.getClass(), null)
-								        .isManyToMany()) {
-									entityCollectionsMap.get().peek().get(entity).add(collection);
-								}
+				for (int i : AuditPlan.get(entity.getClass()).getCollectionIndexes()) {
+					Object coll = currentState[i];
+					//For now ignore maps because still cant imagine a logical case where the
+					//keys or values are Persistent objects that can't exist on their own
+					if (coll != null && Collection.class.isAssignableFrom(coll.getClass())) {
+						Collection<?> collection = (Collection<?>) coll;
+						if (!collection.isEmpty()) {
+							if (entityCollectionsMap.get().peek().get(entity) == null) {
+								entityCollectionsMap.get().peek().put(entity, new ArrayList<Collection<?>>());
 							}
-						} //else {
-						  //TODO handle maps too because hibernate treats maps to be of CollectionType
-						  //}
-					}
+							entityCollectionsMap.get().peek().get(entity).add(collection);
+						}
+					} //else {
+					  //TODO handle maps too because hibernate treats maps to be of CollectionType
+					  //}
 				}
 			}
 		}
@@ -373,105 +448,81 @@ public class HibernateAuditLogInterceptor extends EmptyInterceptor {
 		return super.findDirty(entity, id, currentState, previousState, propertyNames, types);
 	}
 	
+	/**
+	 * In the bounded memory mode, builds the audit logs for the changes tracked since the previous
+	 * flush and releases the references to the changed objects so that they can be garbage
+	 * collected once they are evicted from the session. If the logs are written at flushes, they
+	 * are written in the current transaction once their number reaches the flush write interval.
+	 * 
+	 * @see org.hibernate.EmptyInterceptor#postFlush(java.util.Iterator)
+	 */
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void postFlush(Iterator entities) {
+		if (buffers.get() == null || buffers.get().empty()) {
+			return;
+		}
+		
+		AuditLogBuffer buffer = buffers.get().peek();
+		if (buffer != null && hasTrackedChanges()) {
+			try {
+				buffer.add(buildBatch());
+			}
+			catch (Exception e) {
+				//error should not bubble out of the interceptor
+				log.error("An error occured while creating audit log(s):", e);
+			}
+			finally {
+				clearTrackedChanges();
+			}
+			
+			int writeInterval = InterceptorUtil.getAuditLogDao().getFlushWriteInterval();
+			if (writeInterval > 0 && buffer.getLogCount() >= writeInterval
+			        && InterceptorUtil.getAuditLogDao().getWriteMode() == AuditLogWriteMode.SAME_TRANSACTION) {
+				AuditLogBatch batch = null;
+				try {
+					//The buffer is drained before writing in case the write triggers a nested flush
+					batch = buffer.drain();
+					buffer.addWrittenSinkRecords(AuditLogWriter.writeFlushed(batch));
+				}
+				catch (Exception e) {
+					log.error("An error occured while writing audit log(s), they will be written when the transaction completes:",
+					    e);
+					if (batch != null) {
+						try {
+							buffer.restore(batch);
+						}
+						catch (Exception restoreError) {
+							log.error("Failed to keep the audit log(s) that couldn't be written:", restoreError);
+						}
+					}
+				}
+			}
+		}
+	}
+	
 	/**
 	 * @see org.hibernate.EmptyInterceptor#beforeTransactionCompletion(org.hibernate.Transaction)
 	 */
 	@Override
 	public void beforeTransactionCompletion(Transaction tx) {
+		AuditLogBuffer buffer = buffers.get().peek();
 		try {
-			if (inserts.get().peek().isEmpty() && updates.get().peek().isEmpty() && deletes.get().peek().isEmpty()) {
+			if (!hasTrackedChanges() && (buffer == null || buffer.isEmpty())) {
 				return;
 			}
 			
 			try {
 				//TODO handle daemon or un authenticated operations
 				
-				//If we have any entities in the session that have child collections and there were some updates,
-				//check all collection items to find dirty ones so that we can mark the the owners as dirty too
-				//I.e if a ConceptName/Mapping/Description was edited, mark the the Concept as dirty too
-				for (Map.Entry<Object, List<Collection<?>>> entry : entityCollectionsMap.get().peek().entrySet()) {
-					for (Collection<?> coll : entry.getValue()) {
-						for (Object obj : coll) {
-							boolean isInsert = OpenmrsUtil.collectionContains(inserts.get().peek(), obj);
-							boolean isUpdate = OpenmrsUtil.collectionContains(updates.get().peek(), obj);
-							
-							//We handle the removed collections items below because either way they
-							//are nolonger in the current collection
-							if (isInsert || isUpdate) {
-								Object owner = entry.getKey();
-								boolean ownerHasUpdates = OpenmrsUtil.collectionContains(updates.get().peek(), owner);
-								boolean isOwnerNew = OpenmrsUtil.collectionContains(inserts.get().peek(), owner);
-								if (ownerHasUpdates) {
-									if (log.isDebugEnabled()) {
-										log.debug("There is already an auditlog for owner:" + owner.getClass() + " - "
-										        + InterceptorUtil.getId(owner));
-									}
-								} else if (!isOwnerNew) {
-									//A collection item was updated and no other update had been made on the owner
-									if (log.isDebugEnabled()) {
-										log.debug("Creating log entry for edited owner object with id:"
-										        + InterceptorUtil.getId(owner) + " of type:" + owner.getClass().getName()
-										        + " due to an update for a item in a child collection");
-									}
-									updates.get().peek().add(owner);
-								}
-								
-								if (InterceptorUtil.isAudited(obj.getClass())) {
-									if (ownerUuidChildLogsMap.get().peek().get(owner) == null) {
-										ownerUuidChildLogsMap.get().peek().put(owner, new ArrayList<AuditLog>());
-									}
-									
-									AuditLog childLog = instantiateAuditLog(obj, isInsert ? Action.CREATED : Action.UPDATED);
-									
-									childbjectUuidAuditLogMap.get().peek().put(obj, childLog);
-									ownerUuidChildLogsMap.get().peek().get(owner).add(childLog);
-								}
-								
-								//TODO add this collection to the list of changes properties
-								/*Map<String, Object[]> propertyValuesMap = objectChangesMap.get().peek().get(owner);
-								if(propertyValuesMap == null)
-									propertyValuesMap = new HashMap<String, Object[]>();
-									propertyValuesMap.put(arg0, arg1);*/
-							}
-						}
-					}
-				}
-				
-				for (Map.Entry<Object, HashSet<Object>> entry : entityRemovedChildrenMap.get().peek().entrySet()) {
-					Object removedItemsOwner = entry.getKey();
-					for (Object removed : entry.getValue()) {
-						//TODO add test to ensure that this should fail for collections
-						//that don't have all-delete-orphan cascade
-						boolean isDelete = OpenmrsUtil.collectionContains(deletes.get().peek(), removed);
-						if (isDelete) {
-							if (InterceptorUtil.isAudited(removed.getClass())) {
-								if (ownerUuidChildLogsMap.get().peek().get(removedItemsOwner) == null)
-									ownerUuidChildLogsMap.get().peek().put(removedItemsOwner, new ArrayList<AuditLog>());
-								
-								AuditLog childLog = instantiateAuditLog(removed, Action.DELETED);
-								
-								childbjectUuidAuditLogMap.get().peek().put(removed, childLog);
-								ownerUuidChildLogsMap.get().peek().get(removedItemsOwner).add(childLog);
-							}
-						}
+				if (buffer != null) {
+					if (hasTrackedChanges()) {
+						buffer.add(buildBatch());
+						clearTrackedChanges();
 					}
-				}
-				
-				List<AuditLog> logs = new ArrayList<AuditLog>();
-				for (Object insert : inserts.get().peek()) {
-					logs.add(createAuditLogIfNecessary(insert, Action.CREATED));
-				}
-				
-				for (Object delete : deletes.get().peek()) {
-					logs.add(createAuditLogIfNecessary(delete, Action.DELETED));
-				}
-				
-				for (Object update : updates.get().peek()) {
-					logs.add(createAuditLogIfNecessary(update, Action.UPDATED));
-				}
-				
-				for (AuditLog al : logs) {
-					InterceptorUtil.saveAuditLog(al);
+					AuditLogWriter.write(tx, buffer.toBatch(), buffer.getWrittenSinkRecords(), userIds.get().peek());
+				} else {
+					AuditLogWriter.write(tx, buildBatch(), null, userIds.get().peek());
 				}
 			}
 			catch (Exception e) {
@@ -489,12 +540,217 @@ public class HibernateAuditLogInterceptor extends EmptyInterceptor {
 			ownerUuidChildLogsMap.get().pop();
 			childbjectUuidAuditLogMap.get().pop();
 			entityRemovedChildrenMap.get().pop();
+			entityRemovedChildIdsMap.get().pop();
+			deletedStates.get().pop();
 			date.get().pop();
+			buffers.get().pop();
+			userIds.get().pop();
+			Set<String> keys = labelKeys.get().pop();
+			if (!keys.isEmpty()) {
+				if (completingLabelKeys.get() == null) {
+					completingLabelKeys.set(new IdentityHashMap<Transaction, Set<String>>());
+				}
+				completingLabelKeys.get().put(tx, keys);
+			}
+			if (buffer != null) {
+				buffer.close();
+			}
 			
 			removeStacksIfEmpty();
 		}
 	}
 	
+	/**
+	 * Builds the audit logs for the changes tracked in the current transaction
+	 * 
+	 * @return the batch of logs
+	 */
+	private AuditLogBatch buildBatch() {
+		//If we have any entities in the session that have child collections and there were some updates,
+		//check all collection items to find dirty ones so that we can mark the the owners as dirty too
+		//I.e if a ConceptName/Mapping/Description was edited, mark the the Concept as dirty too
+		for (Map.Entry<Object, List<Collection<?>>> entry : entityCollectionsMap.get().peek().entrySet()) {
+			for (Collection<?> coll : entry.getValue()) {
+				for (Object obj : coll) {
+					boolean isInsert = OpenmrsUtil.collectionContains(inserts.get().peek(), obj);
+					boolean isUpdate = OpenmrsUtil.collectionContains(updates.get().peek(), obj);
+					
+					//We handle the removed collections items below because either way they
+					//are nolonger in the current collection
+					if (isInsert || isUpdate) {
+						Object owner = entry.getKey();
+						boolean ownerHasUpdates = OpenmrsUtil.collectionContains(updates.get().peek(), owner);
+						boolean isOwnerNew = OpenmrsUtil.collectionContains(inserts.get().peek(), owner);
+						if (ownerHasUpdates) {
+							if (log.isDebugEnabled()) {
+								log.debug("There is already an auditlog for owner:" + owner.getClass() + " - "
+								        + InterceptorUtil.getId(owner));
+							}
+						} else if (!isOwnerNew) {
+							//A collection item was updated and no other update had been made on the owner
+							if (log.isDebugEnabled()) {
+								log.debug("Creating log entry for edited owner object with id:"
+								        + InterceptorUtil.getId(owner) + " of type:" + owner.getClass().getName()
+								        + " due to an update for a item in a child collection");
+							}
+							updates.get().peek().add(owner);
+						}
+						
+						if (InterceptorUtil.isAudited(obj.getClass())) {
+							if (ownerUuidChildLogsMap.get().peek().get(owner) == null) {
+								ownerUuidChildLogsMap.get().peek().put(owner, new ArrayList<AuditLog>());
+							}
+							
+							AuditLog childLog = instantiateAuditLog(obj, isInsert ? Action.CREATED : Action.UPDATED);
+							
+							childbjectUuidAuditLogMap.get().peek().put(obj, childLog);
+							ownerUuidChildLogsMap.get().peek().get(owner).add(childLog);
+						}
+						
+						//TODO add this collection to the list of changes properties
+						/*Map<String, Object[]> propertyValuesMap = objectChangesMap.get().peek().get(owner);
+						if(propertyValuesMap == null)
+							propertyValuesMap = new HashMap<String, Object[]>();
+							propertyValuesMap.put(arg0, arg1);*/
+					}
+				}
+			}
+		}
+		
+		for (Map.Entry<Object, HashSet<Object>> entry : entityRemovedChildrenMap.get().peek().entrySet()) {
+			Object removedItemsOwner = entry.getKey();
+			for (Object removed : entry.getValue()) {
+				//TODO add test to ensure that this should fail for collections
+				//that don't have all-delete-orphan cascade
+				boolean isDelete = OpenmrsUtil.collectionContains(deletes.get().peek(), removed);
+				if (isDelete) {
+					if (InterceptorUtil.isAudited(removed.getClass())) {
+						if (ownerUuidChildLogsMap.get().peek().get(removedItemsOwner) == null)
+							ownerUuidChildLogsMap.get().peek().put(removedItemsOwner, new ArrayList<AuditLog>());
+						
+						AuditLog childLog = instantiateAuditLog(removed, Action.DELETED);
+						
+						childbjectUuidAuditLogMap.get().peek().put(removed, childLog);
+						ownerUuidChildLogsMap.get().peek().get(removedItemsOwner).add(childLog);
+					}
+				}
+			}
+		}
+		
+		if (!entityRemovedChildIdsMap.get().peek().isEmpty()) {
+			Map<Serializable, List<Object>> idDeletesMap = new HashMap<Serializable, List<Object>>();
+			for (Object delete : deletes.get().peek()) {
+				Serializable id = InterceptorUtil.getId(delete);
+				if (idDeletesMap.get(id) == null) {
+					idDeletesMap.put(id, new ArrayList<Object>());
+				}
+				idDeletesMap.get(id).add(delete);
+			}
+			
+			for (Map.Entry<Object, Map<Class<?>, Set<Serializable>>> entry : entityRemovedChildIdsMap.get().peek()
+			        .entrySet()) {
+				Object removedItemsOwner = entry.getKey();
+				for (Map.Entry<Class<?>, Set<Serializable>> classIds : entry.getValue().entrySet()) {
+					for (Serializable removedId : classIds.getValue()) {
+						List<Object> matches = idDeletesMap.get(removedId);
+						if (matches == null) {
+							continue;
+						}
+						for (Object removed : matches) {
+							if (classIds.getKey().isInstance(removed) && InterceptorUtil.isAudited(removed.getClass())
+							        && !childbjectUuidAuditLogMap.get().peek().containsKey(removed)) {
+								if (ownerUuidChildLogsMap.get().peek().get(removedItemsOwner) == null)
+									ownerUuidChildLogsMap.get().peek().put(removedItemsOwner, new ArrayList<AuditLog>());
+								
+								AuditLog childLog = instantiateAuditLog(removed, Action.DELETED);
+								
+								childbjectUuidAuditLogMap.get().peek().put(removed, childLog);
+								ownerUuidChildLogsMap.get().peek().get(removedItemsOwner).add(childLog);
+							}
+						}
+					}
+				}
+			}
+		}
+		
+		List<AuditLog> logs = new ArrayList<AuditLog>();
+		for (Object insert : inserts.get().peek()) {
+			logs.add(createAuditLogIfNecessary(insert, Action.CREATED));
+		}
+		
+		for (Object delete : deletes.get().peek()) {
+			logs.add(createAuditLogIfNecessary(delete, Action.DELETED));
+		}
+		
+		Map<Object, AuditLog> updateLogs = new HashMap<Object, AuditLog>();
+		for (Object update : updates.get().peek()) {
+			AuditLog updateLog = createAuditLogIfNecessary(update, Action.UPDATED);
+			updateLogs.put(update, updateLog);
+			logs.add(updateLog);
+		}
+		
+		Map<AuditLog, Map<String, Object[]>> logChangesMap = new LinkedHashMap<AuditLog, Map<String, Object[]>>();
+		for (Map.Entry<Object, Map<String, Object[]>> entry : objectChangesMap.get().peek().entrySet()) {
+			AuditLog updateLog = updateLogs.get(entry.getKey());
+			if (updateLog == null) {
+				updateLog = childbjectUuidAuditLogMap.get().peek().get(entry.getKey());
+			}
+			if (updateLog != null && updateLog.getAction() == Action.UPDATED) {
+				logChangesMap.put(updateLog, entry.getValue());
+			}
+		}
+		
+		return new AuditLogBatch(logs, logChangesMap, updateLogs);
+	}
+	
+	/**
+	 * Collects the keys of the display labels of the specified entity to evict them after the commit
+	 */
+	private void addLabelKeys(Object entity, Serializable id) {
+		if (labelKeys.get() != null && !labelKeys.get().empty()) {
+			DisplayLabelCache.addKeys(entity, id, labelKeys.get().peek());
+		}
+	}
+	
+	private boolean hasTrackedChanges() {
+		return !inserts.get().peek().isEmpty() || !updates.get().peek().isEmpty() || !deletes.get().peek().isEmpty();
+	}
+	
+	/**
+	 * Forgets the changes tracked in the current transaction along with the references to the
+	 * changed objects
+	 */
+	private void clearTrackedChanges() {
+		inserts.get().peek().clear();
+		updates.get().peek().clear();
+		deletes.get().peek().clear();
+		objectChangesMap.get().peek().clear();
+		entityCollectionsMap.get().peek().clear();
+		ownerUuidChildLogsMap.get().peek().clear();
+		childbjectUuidAuditLogMap.get().peek().clear();
+		entityRemovedChildrenMap.get().peek().clear();
+		entityRemovedChildIdsMap.get().peek().clear();
+		deletedStates.get().peek().clear();
+	}
+	
+	/**
+	 * @see org.hibernate.EmptyInterceptor#afterTransactionCompletion(org.hibernate.Transaction)
+	 */
+	@Override
+	public void afterTransactionCompletion(Transaction tx) {
+		AuditLogWriter.afterTransactionCompletion(tx);
+		Map<Transaction, Set<String>> txLabelKeys = completingLabelKeys.get();
+		if (txLabelKeys != null) {
+			Set<String> keys = txLabelKeys.remove(tx);
+			if (txLabelKeys.isEmpty()) {
+				completingLabelKeys.remove();
+			}
+			if (keys != null && tx.getStatus() == TransactionStatus.COMMITTED) {
+				DisplayLabelCache.evict(keys);
+			}
+		}
+	}
+	
 	/**
 	 * Creates if necessary
 	 * 
@@ -531,16 +787,18 @@ public class HibernateAuditLogInterceptor extends EmptyInterceptor {
 		        .peek());
 		auditLog.setOpenmrsVersion(OpenmrsConstants.OPENMRS_VERSION_SHORT);
 		auditLog.setModuleVersion(AuditLogConstants.MODULE_VERSION);
+		if (object instanceof OpenmrsObject) {
+			auditLog.setObjectUuid(((OpenmrsObject) object).getUuid());
+		}
 		if (action == Action.UPDATED || action == Action.DELETED) {
 			Map<String, Object[]> propertyValuesMap = null;
-			SessionFactory sf = DAOUtils.getSessionFactory();
 
 			if (action == Action.UPDATED) {
 				propertyValuesMap = objectChangesMap.get().peek().get(object);
 
 				if (propertyValuesMap != null) {
 					byte[] bytes = AuditLogUtil.serializeToJson(propertyValuesMap).getBytes();
-					Blob blob = sf.getCurrentSession().getLobHelper().createBlob(bytes);
+					Blob blob = InterceptorUtil.createBlob(bytes);
 
 //					Blob blob = Hibernate.createBlob(AuditLogUtil.serializeToJson(propertyValuesMap).getBytes());
 					auditLog.setSerializedData(blob);
@@ -549,8 +807,12 @@ public class HibernateAuditLogInterceptor extends EmptyInterceptor {
 				//TODO if one edits and deletes an object in the same API call, the property
 				//value that gets serialized is the new one but actually was never saved
 				//Should we store the value in the DB or the one in the current session?
-				byte[] serializedData = InterceptorUtil.serializePersistentObject(object).getBytes();
-				Blob blob = sf.getCurrentSession().getLobHelper().createBlob(serializedData);
+				String state = deletedStates.get().peek().get(object);
+				if (state == null) {
+					state = InterceptorUtil.serializePersistentObject(object);
+				}
+				byte[] serializedData = state.getBytes();
+				Blob blob = InterceptorUtil.createBlob(serializedData);
 
 //				Blob blob = Hibernate.createBlob(InterceptorUtil.serializePersistentObject(object).getBytes());
 				auditLog.setSerializedData(blob);
@@ -584,9 +846,34 @@ public class HibernateAuditLogInterceptor extends EmptyInterceptor {
 		if (entityRemovedChildrenMap.get() == null) {
 			entityRemovedChildrenMap.set(new Stack<Map<Object, HashSet<Object>>>());
 		}
+		if (entityRemovedChildIdsMap.get() == null) {
+			entityRemovedChildIdsMap.set(new Stack<Map<Object, Map<Class<?>, Set<Serializable>>>>());
+		}
+		if (deletedStates.get() == null) {
+			deletedStates.set(new Stack<Map<Object, String>>());
+		}
 		if (date.get() == null) {
 			date.set(new Stack<Date>());
 		}
+		if (buffers.get() == null) {
+			buffers.set(new Stack<AuditLogBuffer>());
+		}
+		if (labelKeys.get() == null) {
+			labelKeys.set(new Stack<Set<String>>());
+		}
+		if (userIds.get() == null) {
+			userIds.set(new Stack<Set<Integer>>());
+		}
+	}
+	
+	/**
+	 * Keeps the id of the specified entity if it is a user whose row is written in the transaction,
+	 * whether users are audited or not
+	 */
+	private void addUserId(Object entity, Serializable id) {
+		if (entity instanceof User && id instanceof Integer && userIds.get() != null && !userIds.get().empty()) {
+			userIds.get().peek().add((Integer) id);
+		}
 	}
 	
 	private void removeStacksIfEmpty() {
@@ -614,15 +901,33 @@ public class HibernateAuditLogInterceptor extends EmptyInterceptor {
 		if (entityRemovedChildrenMap.get().empty()) {
 			entityRemovedChildrenMap.remove();
 		}
+		if (entityRemovedChildIdsMap.get().empty()) {
+			entityRemovedChildIdsMap.remove();
+		}
+		if (deletedStates.get().empty()) {
+			deletedStates.remove();
+		}
 		if (date.get().empty()) {
 			date.remove();
 		}
+		if (buffers.get().empty()) {
+			buffers.remove();
+		}
+		if (labelKeys.get().empty()) {
+			labelKeys.remove();
+		}
+		if (userIds.get().empty()) {
+			userIds.remove();
+		}
 	}
 	
 	private void handleUpdatedCollection(Object currentCollOrMap, Object previousCollOrMap, Object owningObject, String role) {
 		
 		if (currentCollOrMap != null || previousCollOrMap != null) {
 			String propertyName = role.substring(role.lastIndexOf('.') + 1);
+			if (AuditPlan.get(AuditLogUtil.getActualType(owningObject)).isIgnoredCollection(propertyName)) {
+				return;
+			}
 			
 			if (objectChangesMap.get().peek().get(owningObject) == null) {
 				objectChangesMap.get().peek().put(owningObject, new HashMap<String, Object[]>());
@@ -14,20 +14,29 @@
 package org.openmrs.module.auditlog.api.db.hibernate.interceptor;
 
 import java.io.Serializable;
+import java.sql.Blob;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.hibernate.EntityMode;
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
 import org.hibernate.SessionFactory;
-import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.engine.jdbc.BlobProxy;
+import org.hibernate.persister.collection.CollectionPersister;
+import org.hibernate.query.Query;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.auditlog.AuditLog;
 import org.openmrs.module.auditlog.AuditLogHelper;
+import org.openmrs.module.auditlog.AuditLogPropertyChange;
+import org.openmrs.module.auditlog.AuditLogSnapshot;
+import org.openmrs.module.auditlog.AuditLogWriteMode;
 import org.openmrs.module.auditlog.api.db.AuditLogDAO;
-import org.openmrs.module.auditlog.api.db.DAOUtils;
 import org.openmrs.module.auditlog.util.AuditLogUtil;
 
 /**
@@ -61,10 +70,234 @@ final class InterceptorUtil {
 		return helper;
 	}
 	
+	/**
+	 * Creates a blob holding the specified serialized data of a log, if the logs are written in a
+	 * separate session the blob isn't tied to the connection of the current session
+	 * 
+	 * @param bytes the serialized data
+	 * @return the blob
+	 */
+	static Blob createBlob(byte[] bytes) {
+		if (getAuditLogDao().getWriteMode() == AuditLogWriteMode.SAME_TRANSACTION) {
+			return getSessionFactory().getCurrentSession().getLobHelper().createBlob(bytes);
+		}
+		return BlobProxy.generateProxy(bytes);
+	}
+	
 	static void saveAuditLog(AuditLog auditLog) {
 		getAuditLogDao().save(auditLog);
 	}
 	
+	/**
+	 * Writes snapshots of the current state of the updated objects in the specified batch whose
+	 * number of updates since their last snapshot has reached the value of the
+	 * {@link org.openmrs.module.auditlog.util.AuditLogConstants#GP_SNAPSHOT_INTERVAL} global
+	 * property, the update counts of all the objects are fetched with a single query
+	 * 
+	 * @param batch the batch holding the updated objects and their logs
+	 */
+	static void saveSnapshotsIfNecessary(AuditLogBatch batch) {
+		int interval = getAuditLogDao().getSnapshotInterval();
+		if (interval <= 0 || (batch.getUpdatedObjects().isEmpty() && batch.getUpdatedStates().isEmpty())) {
+			return;
+		}
+		
+		Map<AuditLog, Object> logStates = new LinkedHashMap<AuditLog, Object>();
+		for (Map.Entry<Object, AuditLog> entry : batch.getUpdatedObjects().entrySet()) {
+			logStates.put(entry.getValue(), entry.getKey());
+		}
+		logStates.putAll(batch.getUpdatedStates());
+		Map<String, Map<String, Long>> updateCounts = getUpdateCountsSinceSnapshot(logStates.keySet());
+		for (Map.Entry<AuditLog, Object> entry : logStates.entrySet()) {
+			AuditLog auditLog = entry.getKey();
+			if (isSnapshotDue(updateCounts, auditLog, interval)) {
+				Object state = entry.getValue();
+				saveSnapshot((state instanceof String) ? (String) state : serializePersistentObject(state), auditLog);
+			}
+		}
+	}
+	
+	/**
+	 * Gets the updated objects in the specified map whose number of updates since their last
+	 * snapshot reaches the snapshot interval with their unsaved logs, the update counts are fetched
+	 * with a single query. An object whose count changes before its log is saved gets its snapshot at
+	 * a later update.
+	 * 
+	 * @param updatedObjects map of updated objects to their unsaved logs
+	 * @return the objects that are due a snapshot mapped to their logs
+	 */
+	static Map<Object, AuditLog> getObjectsDueSnapshots(Map<Object, AuditLog> updatedObjects) {
+		int interval = getAuditLogDao().getSnapshotInterval();
+		Map<Object, AuditLog> dueObjects = new LinkedHashMap<Object, AuditLog>();
+		if (interval <= 0 || updatedObjects.isEmpty()) {
+			return dueObjects;
+		}
+		
+		Map<String, Map<String, Long>> updateCounts = getUpdateCountsSinceSnapshot(updatedObjects.values());
+		for (Map.Entry<Object, AuditLog> entry : updatedObjects.entrySet()) {
+			if (isSnapshotDue(updateCounts, entry.getValue(), interval)) {
+				dueObjects.put(entry.getKey(), entry.getValue());
+			}
+		}
+		
+		return dueObjects;
+	}
+	
+	private static Map<String, Map<String, Long>> getUpdateCountsSinceSnapshot(Collection<AuditLog> auditLogs) {
+		Set<String> types = new HashSet<String>();
+		Set<String> identifiers = new HashSet<String>();
+		Integer beforeId = null;
+		for (AuditLog auditLog : auditLogs) {
+			types.add(auditLog.getType());
+			identifiers.add(auditLog.getIdentifier());
+			//An object has a single log per batch, the lowest id excludes the logs of the batch, unsaved logs have none
+			if (auditLog.getAuditLogId() != null && (beforeId == null || auditLog.getAuditLogId() < beforeId)) {
+				beforeId = auditLog.getAuditLogId();
+			}
+		}
+		
+		Session session = getSessionFactory().getCurrentSession();
+		FlushMode flushMode = session.getHibernateFlushMode();
+		//The logs of the current transaction aren't yet flushed, don't trigger a flush from inside the interceptor
+		session.setHibernateFlushMode(FlushMode.MANUAL);
+		try {
+			return getAuditLogDao().getUpdateCountsSinceSnapshot(types, identifiers, beforeId);
+		}
+		finally {
+			session.setHibernateFlushMode(flushMode);
+		}
+	}
+	
+	private static boolean isSnapshotDue(Map<String, Map<String, Long>> updateCounts, AuditLog auditLog, int interval) {
+		Map<String, Long> typeCounts = updateCounts.get(auditLog.getType());
+		Long updateCount = (typeCounts != null) ? typeCounts.get(auditLog.getIdentifier()) : null;
+		//Include the current update
+		return (updateCount != null ? updateCount : 0) + 1 >= interval;
+	}
+	
+	private static void saveSnapshot(String state, AuditLog auditLog) {
+		if (log.isDebugEnabled()) {
+			log.debug("Creating snapshot for object with id:" + auditLog.getIdentifier() + " of type:"
+			        + auditLog.getType());
+		}
+		Blob blob = getSessionFactory().getCurrentSession().getLobHelper().createBlob(state.getBytes());
+		getAuditLogDao().save(new AuditLogSnapshot(auditLog, blob));
+	}
+	
+	/**
+	 * Points the entries in the table of latest logs of the audited objects of the specified logs and
+	 * their child logs to the specified logs, entries are created for objects without one
+	 * 
+	 * @param auditLogs the saved logs
+	 */
+	static void saveLatestAuditLogs(List<AuditLog> auditLogs) {
+		Map<String, AuditLog> keyLogMap = new LinkedHashMap<String, AuditLog>();
+		for (AuditLog auditLog : auditLogs) {
+			putIfLater(keyLogMap, auditLog);
+			for (AuditLog childLog : auditLog.getChildAuditLogs()) {
+				putIfLater(keyLogMap, childLog);
+			}
+		}
+		
+		getAuditLogDao().saveLatestAuditLogs(keyLogMap.values());
+	}
+	
+	private static void putIfLater(Map<String, AuditLog> keyLogMap, AuditLog auditLog) {
+		String key = auditLog.getType() + "#" + auditLog.getIdentifier();
+		AuditLog existing = keyLogMap.get(key);
+		if (existing == null || existing.getAuditLogId() < auditLog.getAuditLogId()) {
+			keyLogMap.put(key, auditLog);
+		}
+	}
+	
+	/**
+	 * Saves a property change entry for each property changed by the specified logs with action
+	 * UPDATED, the hashes of the values are included if enabled via the
+	 * AuditLogConstants#GP_HASH_PROPERTY_VALUES global property
+	 * 
+	 * @param logChangesMap map of the saved logs to their changed property names and lists of
+	 *            serialized new and previous values
+	 */
+	static void savePropertyChanges(Map<AuditLog, Map<String, Object[]>> logChangesMap) {
+		boolean hashValues = getAuditLogDao().hashPropertyValues();
+		for (Map.Entry<AuditLog, Map<String, Object[]>> entry : logChangesMap.entrySet()) {
+			for (Map.Entry<String, Object[]> change : entry.getValue().entrySet()) {
+				String newValueHash = null;
+				String previousValueHash = null;
+				if (hashValues) {
+					newValueHash = hashChangedValue(change.getValue()[0]);
+					previousValueHash = hashChangedValue(change.getValue()[1]);
+				}
+				getAuditLogDao().save(
+				    new AuditLogPropertyChange(entry.getKey(), change.getKey(), newValueHash, previousValueHash));
+			}
+		}
+	}
+	
+	/**
+	 * Hashes the specified changed property value, values of collections are lists of serialized
+	 * items and values of maps are maps of serialized entries so they are hashed by their json
+	 * 
+	 * @param value the serialized value
+	 * @return the hash
+	 */
+	private static String hashChangedValue(Object value) {
+		if (value == null || value instanceof String) {
+			return AuditLogUtil.hashPropertyValue((String) value);
+		}
+		return AuditLogUtil.hashPropertyValue(AuditLogUtil.serializeToJson(value));
+	}
+	
+	/**
+	 * Fetches the ids of the elements of the collection with the specified role owned by the object
+	 * with the specified id without initializing the collection, the elements must be entities
+	 * 
+	 * @param persister the persister of the collection
+	 * @param ownerId the id of the owner
+	 * @return the ids of the elements
+	 */
+	static List<Serializable> getCollectionElementIds(CollectionPersister persister, Serializable ownerId) {
+		return listCollection("e.id", persister, ownerId);
+	}
+	
+	/**
+	 * Fetches the elements of the collection with the specified role owned by the object with the
+	 * specified id without initializing the collection, the elements should be values
+	 * 
+	 * @param persister the persister of the collection
+	 * @param ownerId the id of the owner
+	 * @return the elements
+	 */
+	static List<Object> getCollectionElements(CollectionPersister persister, Serializable ownerId) {
+		return listCollection("e", persister, ownerId);
+	}
+	
+	/**
+	 * Fetches the entries of the map with the specified role owned by the object with the specified
+	 * id without initializing the map
+	 * 
+	 * @param persister the persister of the map
+	 * @param ownerId the id of the owner
+	 * @return the entries as arrays of keys and values
+	 */
+	static List<Object[]> getMapEntries(CollectionPersister persister, Serializable ownerId) {
+		return listCollection("key(e), value(e)", persister, ownerId);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <T> List<T> listCollection(String select, CollectionPersister persister, Serializable ownerId) {
+		String ownerEntityName = persister.getOwnerEntityPersister().getEntityName();
+		String path = persister.getRole().substring(ownerEntityName.length() + 1);
+		Query<T> query = getSessionFactory().getCurrentSession().createQuery(
+		    "select " + select + " from " + ownerEntityName + " o join o." + path + " e where o.id = :ownerId");
+		//The delete of the owner isn't yet flushed, don't trigger a flush from inside the interceptor
+		query.setHibernateFlushMode(FlushMode.MANUAL);
+		query.setReadOnly(true);
+		query.setParameter("ownerId", ownerId);
+		
+		return query.list();
+	}
+	
 	/**
 	 * Checks if a class is marked as audited or is explicitly audited
 	 * 
@@ -82,36 +315,7 @@ final class InterceptorUtil {
 	 * @return the serialized JSON text
 	 */
 	static String serializePersistentObject(Object object) {
-		//TODO Might be better to use xstream
-		Map<String, Object> propertyNameValueMap = null;
-		ClassMetadata cmd = DAOUtils.getClassMetadata(AuditLogUtil.getActualType(object));
-		if (cmd != null) {
-			propertyNameValueMap = new HashMap<String, Object>();
-//			propertyNameValueMap.put(cmd.getIdentifierPropertyName(), cmd.getIdentifier(object, EntityMode.POJO));
-			propertyNameValueMap.put(cmd.getIdentifierPropertyName(), cmd.getIdentifier(object));
-
-			for (String propertyName : cmd.getPropertyNames()) {
-//				Object value = cmd.getPropertyValue(object, propertyName, EntityMode.POJO);
-				Object value = cmd.getPropertyValue(object, propertyName);
-				if (value != null) {
-					Object serializedValue = null;
-					if (cmd.getPropertyType(propertyName).isCollectionType()) {
-						if (Collection.class.isAssignableFrom(value.getClass())) {
-							serializedValue = AuditLogUtil.serializeCollectionItems((Collection) value);
-						} else if (Map.class.isAssignableFrom(value.getClass())) {
-							serializedValue = AuditLogUtil.serializeMapItems((Map) value);
-						}
-					} else {
-						serializedValue = AuditLogUtil.serializeObject(value);
-					}
-					if (serializedValue != null) {
-						propertyNameValueMap.put(propertyName, serializedValue);
-					}
-				}
-			}
-		}
-		
-		return AuditLogUtil.serializeToJson(propertyNameValueMap);
+		return AuditLogUtil.serializeToJson(AuditLogUtil.getPersistentState(object));
 	}
 	
 	static SessionFactory getSessionFactory() {
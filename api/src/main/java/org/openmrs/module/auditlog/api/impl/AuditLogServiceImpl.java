@@ -13,23 +13,36 @@
  */
 package org.openmrs.module.auditlog.api.impl;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
+import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang.StringUtils;
+import org.openmrs.User;
 import org.openmrs.api.APIException;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.impl.BaseOpenmrsService;
 import org.openmrs.module.auditlog.AuditLog;
 import org.openmrs.module.auditlog.AuditLog.Action;
+import org.openmrs.module.auditlog.AuditLogDailyCount;
+import org.openmrs.module.auditlog.AuditLogLatest;
 import org.openmrs.module.auditlog.AuditLogHelper;
+import org.openmrs.module.auditlog.AuditLogSummary;
 import org.openmrs.module.auditlog.api.AuditLogService;
 import org.openmrs.module.auditlog.api.db.AuditLogDAO;
 import org.openmrs.module.auditlog.api.db.DAOUtils;
+import org.openmrs.module.auditlog.api.db.hibernate.interceptor.AuditLogJournalIngester;
 import org.openmrs.module.auditlog.strategy.AuditStrategy;
 import org.openmrs.module.auditlog.util.AuditLogConstants;
+import org.openmrs.module.auditlog.util.AuditLogUtil;
 import org.openmrs.util.OpenmrsUtil;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.transaction.annotation.Transactional;
@@ -37,6 +50,10 @@ import org.springframework.transaction.annotation.Transactional;
 @Transactional
 public class AuditLogServiceImpl extends BaseOpenmrsService implements AuditLogService {
 	
+	//Logs younger than this are not rolled up yet since transactions with lower ids are likely pending, the
+	//ids of logs still missing after it are recorded as gaps and the logs are counted once they exist
+	private static final long DAILY_COUNT_LAG = 5 * 60 * 1000;
+	
 	private AuditLogDAO dao;
 	
 	@Autowired
@@ -70,16 +87,116 @@ public class AuditLogServiceImpl extends BaseOpenmrsService implements AuditLogS
 	 *      java.util.List, java.util.Date, java.util.Date, boolean, java.lang.Integer,
 	 *      java.lang.Integer)
 	 */
-	@SuppressWarnings({ "rawtypes" })
 	@Override
 	@Transactional(readOnly = true)
 	public List<AuditLog> getAuditLogs(List<Class<?>> clazzes, List<Action> actions, Date startDate, Date endDate,
 	                                   boolean excludeChildAuditLogs, Integer start, Integer length) {
+		validateStartDate(startDate);
+		
+		return fetchUsers(dao.getAuditLogs(null, getClassesToMatch(clazzes), actions, startDate, endDate,
+		    excludeChildAuditLogs, start, length));
+	}
+	
+	/**
+	 * @see AuditLogService#getAuditLogSummaries(List, List, Date, Date, boolean, Integer, Integer)
+	 */
+	@Override
+	@Transactional(readOnly = true)
+	public List<AuditLogSummary> getAuditLogSummaries(List<Class<?>> clazzes, List<Action> actions, Date startDate,
+	                                                  Date endDate, boolean excludeChildAuditLogs, Integer start,
+	                                                  Integer length) {
+		validateStartDate(startDate);
+		
+		return dao.getAuditLogSummaries(getClassesToMatch(clazzes), actions, startDate, endDate, excludeChildAuditLogs,
+		    start, length);
+	}
+	
+	/**
+	 * @see AuditLogService#getAuditLogSummaryPage(List, Serializable, User, List, Date, Date,
+	 *      boolean, Integer, Integer)
+	 */
+	@Override
+	@Transactional(readOnly = true)
+	public List<AuditLogSummary> getAuditLogSummaryPage(List<Class<?>> clazzes, Serializable identifier, User user,
+	                                                    List<Action> actions, Date startDate, Date endDate,
+	                                                    boolean excludeChildAuditLogs, Integer beforeAuditLogId,
+	                                                    Integer length) {
+		validateStartDate(startDate);
+		
+		return dao.getAuditLogSummaryPage(getClassesToMatch(clazzes), AuditLogUtil.serializeObject(identifier), user,
+		    actions, startDate, endDate, excludeChildAuditLogs, beforeAuditLogId, length);
+	}
+	
+	/**
+	 * @see AuditLogService#streamAuditLogSummaryPage(List, Serializable, User, List, Date, Date,
+	 *      boolean, Integer, Integer, Consumer)
+	 */
+	@Override
+	@Transactional(readOnly = true)
+	public int streamAuditLogSummaryPage(List<Class<?>> clazzes, Serializable identifier, User user,
+	                                     List<Action> actions, Date startDate, Date endDate,
+	                                     boolean excludeChildAuditLogs, Integer beforeAuditLogId, Integer length,
+	                                     Consumer<AuditLogSummary> consumer) {
+		validateStartDate(startDate);
+		
+		return dao.streamAuditLogSummaryPage(getClassesToMatch(clazzes), AuditLogUtil.serializeObject(identifier), user,
+		    actions, startDate, endDate, excludeChildAuditLogs, beforeAuditLogId, length, consumer);
+	}
+	
+	/**
+	 * @see AuditLogService#getAuditLogSummaryCount(List, Serializable, User, List, Date, Date,
+	 *      boolean, Integer)
+	 */
+	@Override
+	@Transactional(readOnly = true)
+	public long getAuditLogSummaryCount(List<Class<?>> clazzes, Serializable identifier, User user,
+	                                    List<Action> actions, Date startDate, Date endDate,
+	                                    boolean excludeChildAuditLogs, Integer beforeAuditLogId) {
+		validateStartDate(startDate);
+		
+		return dao.getAuditLogSummaryCount(getClassesToMatch(clazzes), AuditLogUtil.serializeObject(identifier), user,
+		    actions, startDate, endDate, excludeChildAuditLogs, beforeAuditLogId);
+	}
+	
+	/**
+	 * @see AuditLogService#getAuditLogByUuid(String)
+	 */
+	@Override
+	@Transactional(readOnly = true)
+	public AuditLog getAuditLogByUuid(String uuid) {
+		if (StringUtils.isBlank(uuid)) {
+			return null;
+		}
+		
+		return dao.getObjectByUuid(AuditLog.class, uuid);
+	}
+	
+	private void validateStartDate(Date startDate) {
 		if (OpenmrsUtil.compareWithNullAsEarliest(startDate, new Date()) > 0) {
 			throw new APIException(Context.getMessageSourceService().getMessage(
 			    AuditLogConstants.MODULE_ID + ".exception.startDateInFuture"));
 		}
+	}
+	
+	/**
+	 * Loads the users of the specified logs in batches so that displaying the logs doesn't
+	 * initialize the lazy user of each log with separate queries
+	 */
+	private List<AuditLog> fetchUsers(List<AuditLog> auditLogs) {
+		List<User> users = new ArrayList<User>(auditLogs.size());
+		for (AuditLog auditLog : auditLogs) {
+			users.add(auditLog.getUser());
+		}
+		dao.fetchUsers(users);
 		
+		return auditLogs;
+	}
+	
+	/**
+	 * Returns the specified classes and their persistent subclasses
+	 */
+	@SuppressWarnings("rawtypes")
+	private List<Class<?>> getClassesToMatch(List<Class<?>> clazzes) {
 		List<Class<?>> classesToMatch = null;
 		if (clazzes != null) {
 			classesToMatch = new ArrayList<Class<?>>();
@@ -90,8 +207,7 @@ public class AuditLogServiceImpl extends BaseOpenmrsService implements AuditLogS
 				}
 			}
 		}
-		
-		return dao.getAuditLogs(null, classesToMatch, actions, startDate, endDate, excludeChildAuditLogs, start, length);
+		return classesToMatch;
 	}
 	
 	/**
@@ -117,6 +233,19 @@ public class AuditLogServiceImpl extends BaseOpenmrsService implements AuditLogS
 		return dao.getObjectByUuid(clazz, uuid);
 	}
 	
+	/**
+	 * @see AuditLogService#getObjectsByIds(Class, java.util.Collection)
+	 */
+	@Override
+	@Transactional(readOnly = true)
+	public <T> Map<String, T> getObjectsByIds(Class<T> clazz, Collection<String> ids) {
+		if (CollectionUtils.isEmpty(ids)) {
+			return new HashMap<String, T>();
+		}
+		
+		return dao.getObjectsByIds(clazz, ids);
+	}
+	
 	/**
 	 * @see org.openmrs.module.auditlog.api.AuditLogService#getAuditingStrategy()
 	 */
@@ -144,15 +273,45 @@ public class AuditLogServiceImpl extends BaseOpenmrsService implements AuditLogS
 		for (Class subclass : DAOUtils.getPersistentConcreteSubclasses(clazz)) {
 			clazzes.add(subclass);
 		}
-		
-		return dao.getAuditLogs(id, clazzes, actions, startDate, endDate, excludeChildAuditLogs, null, null);
+		return fetchUsers(dao.getAuditLogs(id, clazzes, actions, startDate, endDate, excludeChildAuditLogs, null, null));
 	}
 
 	@Override
 	@Transactional(readOnly = true)
 	public List<AuditLog> getAuditLogsWithIds(List<String> ids, Class<?> type, List<Action> actions, Date startDate,
 									   Date endDate, boolean excludeChildAuditLogs, Integer start, Integer length) {
-		return dao.getAuditLogsWithIds(ids, type, actions, startDate, endDate, excludeChildAuditLogs, start, length);
+		return fetchUsers(dao.getAuditLogsWithIds(ids, type, actions, startDate, endDate, excludeChildAuditLogs, start,
+		    length));
+	}
+	
+	/**
+	 * @see AuditLogService#getAuditLogsByObjectUuid(String, List, Date, Date, boolean, Integer,
+	 *      Integer)
+	 */
+	@Override
+	@Transactional(readOnly = true)
+	public List<AuditLog> getAuditLogsByObjectUuid(String uuid, List<Action> actions, Date startDate, Date endDate,
+	                                               boolean excludeChildAuditLogs, Integer start, Integer length) {
+		return getAuditLogsByObjectUuids(Collections.singletonList(uuid), actions, startDate, endDate,
+		    excludeChildAuditLogs, start, length);
+	}
+	
+	/**
+	 * @see AuditLogService#getAuditLogsByObjectUuids(Collection, List, Date, Date, boolean, Integer,
+	 *      Integer)
+	 */
+	@Override
+	@Transactional(readOnly = true)
+	public List<AuditLog> getAuditLogsByObjectUuids(Collection<String> uuids, List<Action> actions, Date startDate,
+	                                                Date endDate, boolean excludeChildAuditLogs, Integer start,
+	                                                Integer length) {
+		if (CollectionUtils.isEmpty(uuids)) {
+			return new ArrayList<AuditLog>();
+		}
+		validateStartDate(startDate);
+		
+		return fetchUsers(dao.getAuditLogsByObjectUuids(uuids, actions, startDate, endDate, excludeChildAuditLogs, start,
+		    length));
 	}
 	
 	/**
@@ -165,4 +324,132 @@ public class AuditLogServiceImpl extends BaseOpenmrsService implements AuditLogS
 	                                   boolean excludeChildAuditLogs) {
 		return getAuditLogs(dao.getId(object), object.getClass(), actions, startDate, endDate, excludeChildAuditLogs);
 	}
+	
+	/**
+	 * @see AuditLogService#getObjectState(java.io.Serializable, Class, java.util.Date)
+	 */
+	@Override
+	@Transactional(readOnly = true)
+	public Map<String, Object> getObjectState(Serializable id, Class<?> clazz, Date date) {
+		if (id == null || clazz == null || date == null) {
+			throw new APIException("id, class and date are required when reconstructing the state of an object");
+		}
+		if (date.after(new Date())) {
+			throw new APIException(Context.getMessageSourceService().getMessage(
+			    AuditLogConstants.MODULE_ID + ".exception.dateInFuture"));
+		}
+		
+		List<Class<?>> clazzes = new ArrayList<Class<?>>();
+		clazzes.add(clazz);
+		for (Class subclass : DAOUtils.getPersistentConcreteSubclasses(clazz)) {
+			clazzes.add(subclass);
+		}
+		
+		return new ObjectStateReconstructor(dao).reconstruct(id, clazz, clazzes, date);
+	}
+	
+	/**
+	 * @see AuditLogService#updateDailyCounts(int)
+	 */
+	@Override
+	@Transactional
+	public int updateDailyCounts(int maxLogs) {
+		Integer highWaterMark = dao.getDailyCountHighWaterMark();
+		if (highWaterMark == null) {
+			highWaterMark = 0;
+		}
+		Date createdBefore = new Date(System.currentTimeMillis() - DAILY_COUNT_LAG);
+		Integer rangeEnd = dao.getDailyCountRangeEnd(highWaterMark, createdBefore, maxLogs);
+		if (rangeEnd == null) {
+			//Still roll up an empty range to count the logs of transactions that committed late
+			rangeEnd = highWaterMark;
+		}
+		
+		return dao.rollUpDailyCounts(highWaterMark, rangeEnd);
+	}
+	
+	/**
+	 * @see AuditLogService#ingestJournal(int)
+	 */
+	@Override
+	@Transactional
+	public int ingestJournal(int maxRecords) {
+		try {
+			return AuditLogJournalIngester.ingest(maxRecords);
+		}
+		catch (IOException e) {
+			throw new APIException("Failed to read the audit log journal", e);
+		}
+	}
+	
+	/**
+	 * @see AuditLogService#getDailyCounts(List, List, User, Date, Date)
+	 */
+	@Override
+	@Transactional(readOnly = true)
+	public List<AuditLogDailyCount> getDailyCounts(List<Class<?>> clazzes, List<Action> actions, User user,
+	                                               Date startDate, Date endDate) {
+		List<AuditLogDailyCount> dailyCounts = dao.getDailyCounts(getClassesToMatch(clazzes), actions, user, startDate,
+		    endDate);
+		List<User> users = new ArrayList<User>(dailyCounts.size());
+		for (AuditLogDailyCount dailyCount : dailyCounts) {
+			users.add(dailyCount.getUser());
+		}
+		dao.fetchUsers(users);
+		
+		return dailyCounts;
+	}
+	
+	/**
+	 * @see AuditLogService#getLatestAuditLog(Serializable, Class)
+	 */
+	@Override
+	@Transactional(readOnly = true)
+	public AuditLogLatest getLatestAuditLog(Serializable id, Class<?> clazz) {
+		List<Class<?>> clazzes = getClassesToMatch(Collections.<Class<?>> singletonList(clazz));
+		List<AuditLogLatest> latestLogs = dao.getLatestAuditLogs(clazzes,
+		    Collections.singletonList(AuditLogUtil.serializeObject(id)));
+		
+		return latestLogs.isEmpty() ? null : latestLogs.get(0);
+	}
+	
+	/**
+	 * @see AuditLogService#getLatestAuditLogs(Collection, Class)
+	 */
+	@Override
+	@Transactional(readOnly = true)
+	public Map<String, AuditLogLatest> getLatestAuditLogs(Collection<? extends Serializable> ids, Class<?> clazz) {
+		List<String> identifiers = new ArrayList<String>(ids.size());
+		for (Serializable id : ids) {
+			identifiers.add(AuditLogUtil.serializeObject(id));
+		}
+		
+		List<Class<?>> clazzes = getClassesToMatch(Collections.<Class<?>> singletonList(clazz));
+		Map<String, AuditLogLatest> identifierLatestMap = new HashMap<String, AuditLogLatest>();
+		//The results are sorted with the latest first, keep the latest in case of a subclass
+		for (AuditLogLatest latest : dao.getLatestAuditLogs(clazzes, identifiers)) {
+			if (!identifierLatestMap.containsKey(latest.getIdentifier())) {
+				identifierLatestMap.put(latest.getIdentifier(), latest);
+			}
+		}
+		
+		return identifierLatestMap;
+	}
+	
+	/**
+	 * @see AuditLogService#getAuditLogsByChangedProperty(List, String, Object, Object, Integer,
+	 *      Integer)
+	 */
+	@Override
+	@Transactional(readOnly = true)
+	public List<AuditLog> getAuditLogsByChangedProperty(List<Class<?>> clazzes, String propertyName, Object newValue,
+	                                                    Object previousValue, Integer start, Integer length) {
+		if (StringUtils.isBlank(propertyName)) {
+			throw new APIException("The property name is required");
+		}
+		
+		return fetchUsers(dao.getAuditLogsByChangedProperty(getClassesToMatch(clazzes), propertyName.trim(),
+		    AuditLogUtil.hashPropertyValue(AuditLogUtil.serializeObject(newValue)),
+		    AuditLogUtil.hashPropertyValue(AuditLogUtil.serializeObject(previousValue)), start, length));
+	}
 }
@@ -0,0 +1,182 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.api.impl;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.openmrs.api.APIException;
+import org.openmrs.module.auditlog.AuditLog;
+import org.openmrs.module.auditlog.AuditLog.Action;
+import org.openmrs.module.auditlog.AuditLogSnapshot;
+import org.openmrs.module.auditlog.api.db.AuditLogDAO;
+import org.openmrs.module.auditlog.util.AuditLogUtil;
+
+/**
+ * Reconstructs the state of an audited object at a point in time by replaying the changes in its
+ * audit logs. If there is a snapshot taken on or before the date, the changes made after it are
+ * replayed forwards, otherwise if there is a snapshot taken after the date or the object still
+ * exists, the changes are undone backwards from there, this implies the number of logs to replay
+ * is bounded by the snapshot interval for objects that have snapshots.
+ */
+class ObjectStateReconstructor {
+
+	private static final int NEW_VALUE_INDEX = 0;
+
+	private static final int PREVIOUS_VALUE_INDEX = 1;
+
+	//Sorts logs by date of creation and then id, starting with the oldest
+	private static final Comparator<AuditLog> OLDEST_FIRST = new Comparator<AuditLog>() {
+
+		@Override
+		public int compare(AuditLog log1, AuditLog log2) {
+			int result = log1.getDateCreated().compareTo(log2.getDateCreated());
+			if (result == 0) {
+				result = log1.getAuditLogId().compareTo(log2.getAuditLogId());
+			}
+			return result;
+		}
+	};
+
+	private final AuditLogDAO dao;
+
+	ObjectStateReconstructor(AuditLogDAO dao) {
+		this.dao = dao;
+	}
+
+	/**
+	 * @param id the id of the object
+	 * @param clazz the class of the object
+	 * @param types the class and its subclasses to match against
+	 * @param date the point in time
+	 * @return the state of the object or null if it didn't exist at the specified date
+	 */
+	Map<String, Object> reconstruct(Serializable id, Class<?> clazz, List<Class<?>> types, Date date) {
+		AuditLogSnapshot snapshot = dao.getSnapshot(id, types, date, true);
+		if (snapshot != null) {
+			return replayForwards(snapshot, id, types, date);
+		}
+
+		snapshot = dao.getSnapshot(id, types, date, false);
+		if (snapshot != null) {
+			return replayBackwardsFromSnapshot(snapshot, id, types, date);
+		}
+
+		return replayBackwardsFromCurrentState(id, clazz, types, date);
+	}
+
+	private Map<String, Object> replayForwards(AuditLogSnapshot snapshot, Serializable id, List<Class<?>> types, Date date) {
+		Map<String, Object> state = AuditLogUtil.getStateFromJson(snapshot.getSerializedData());
+		List<AuditLog> logs = getLogs(id, types, snapshot.getDateCreated(), date);
+		Collections.sort(logs, OLDEST_FIRST);
+		for (AuditLog auditLog : logs) {
+			if (!isAfter(auditLog, snapshot)) {
+				continue;
+			}
+			if (auditLog.getAction() == Action.DELETED) {
+				return null;
+			} else if (auditLog.getAction() == Action.UPDATED) {
+				applyChanges(state, auditLog, NEW_VALUE_INDEX);
+			}
+		}
+
+		return state;
+	}
+
+	private Map<String, Object> replayBackwardsFromSnapshot(AuditLogSnapshot snapshot, Serializable id,
+	                                                        List<Class<?>> types, Date date) {
+		Map<String, Object> state = AuditLogUtil.getStateFromJson(snapshot.getSerializedData());
+		List<AuditLog> logs = getLogs(id, types, date, snapshot.getDateCreated());
+		Collections.sort(logs, Collections.reverseOrder(OLDEST_FIRST));
+		for (AuditLog auditLog : logs) {
+			if (!auditLog.getDateCreated().after(date) || isAfter(auditLog, snapshot)) {
+				continue;
+			}
+			if (auditLog.getAction() == Action.CREATED) {
+				return null;
+			} else if (auditLog.getAction() == Action.UPDATED) {
+				applyChanges(state, auditLog, PREVIOUS_VALUE_INDEX);
+			}
+		}
+
+		return state;
+	}
+
+	private Map<String, Object> replayBackwardsFromCurrentState(Serializable id, Class<?> clazz, List<Class<?>> types,
+	                                                            Date date) {
+		Map<String, Object> state = null;
+		Object object = dao.getObjectById(clazz, id);
+		if (object != null) {
+			state = AuditLogUtil.getPersistentState(object);
+		}
+
+		List<AuditLog> logs = getLogs(id, types, date, null);
+		Collections.sort(logs, Collections.reverseOrder(OLDEST_FIRST));
+		for (AuditLog auditLog : logs) {
+			if (!auditLog.getDateCreated().after(date)) {
+				continue;
+			}
+			if (auditLog.getAction() == Action.DELETED) {
+				if (auditLog.getSerializedData() == null) {
+					throw new APIException("Can't reconstruct the state of " + clazz.getName() + " #" + id
+					        + " because its last state before deletion was not stored");
+				}
+				state = AuditLogUtil.getStateFromJson(auditLog.getSerializedData());
+			} else if (auditLog.getAction() == Action.CREATED) {
+				return null;
+			} else if (state == null) {
+				throw new APIException("Can't reconstruct the state of " + clazz.getName() + " #" + id
+				        + " because it no longer exists");
+			} else {
+				applyChanges(state, auditLog, PREVIOUS_VALUE_INDEX);
+			}
+		}
+
+		return state;
+	}
+
+	private List<AuditLog> getLogs(Serializable id, List<Class<?>> types, Date startDate, Date endDate) {
+		return new ArrayList<AuditLog>(dao.getAuditLogs(id, types, null, startDate, endDate, false, null, null));
+	}
+
+	/**
+	 * Checks if the specified log was created after the log as of which the snapshot was taken
+	 */
+	private boolean isAfter(AuditLog auditLog, AuditLogSnapshot snapshot) {
+		int result = auditLog.getDateCreated().compareTo(snapshot.getDateCreated());
+		if (result == 0) {
+			result = auditLog.getAuditLogId().compareTo(snapshot.getAuditLog().getAuditLogId());
+		}
+		return result > 0;
+	}
+
+	@SuppressWarnings("rawtypes")
+	private void applyChanges(Map<String, Object> state, AuditLog auditLog, int valueIndex) {
+		Map<String, List> changes = AuditLogUtil.getChangesOfUpdatedItem(auditLog);
+		for (Map.Entry<String, List> entry : changes.entrySet()) {
+			List values = entry.getValue();
+			Object value = (values != null && values.size() > valueIndex) ? values.get(valueIndex) : null;
+			if (value == null) {
+				state.remove(entry.getKey());
+			} else {
+				state.put(entry.getKey(), value);
+			}
+		}
+	}
+}
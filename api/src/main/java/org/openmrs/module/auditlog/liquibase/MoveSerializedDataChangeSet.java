@@ -0,0 +1,135 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.liquibase;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import liquibase.change.custom.CustomTaskChange;
+import liquibase.database.Database;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.CustomChangeException;
+import liquibase.exception.DatabaseException;
+import liquibase.exception.SetupException;
+import liquibase.exception.ValidationErrors;
+import liquibase.resource.ResourceAccessor;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Copies the serialized data of audit logs from the auditlog_audit_log table to the
+ * auditlog_audit_log_data table in ranges of audit log ids, each range is committed separately so
+ * that the tables are never locked for the entire migration and if it gets interrupted it resumes
+ * after the last copied range the next time it runs.
+ */
+public class MoveSerializedDataChangeSet implements CustomTaskChange {
+	
+	private static final Log log = LogFactory.getLog(MoveSerializedDataChangeSet.class);
+	
+	private static final int DEFAULT_BATCH_SIZE = 1000;
+	
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	
+	private int movedCount;
+	
+	/**
+	 * @param batchSize the number of audit log ids in each range to set
+	 */
+	public void setBatchSize(String batchSize) {
+		this.batchSize = Integer.parseInt(batchSize);
+	}
+	
+	/**
+	 * @see CustomTaskChange#execute(Database)
+	 * @should copy the serialized data of all audit logs in ranges of the batch size
+	 * @should resume after the last copied range if an earlier run was interrupted
+	 */
+	@Override
+	public void execute(Database database) throws CustomChangeException {
+		JdbcConnection connection = (JdbcConnection) database.getConnection();
+		try {
+			long maxId = getMaxId(connection,
+			    "select max(audit_log_id) from auditlog_audit_log where serialized_data is not null");
+			//Everything up to the last copied id was committed in an earlier run
+			long lastMovedId = getMaxId(connection, "select max(audit_log_id) from auditlog_audit_log_data");
+			PreparedStatement ps = connection.prepareStatement("insert into auditlog_audit_log_data "
+			        + "(audit_log_id, serialized_data) select audit_log_id, serialized_data from auditlog_audit_log "
+			        + "where serialized_data is not null and audit_log_id > ? and audit_log_id <= ?");
+			try {
+				for (long from = lastMovedId; from < maxId; from += batchSize) {
+					ps.setLong(1, from);
+					ps.setLong(2, from + batchSize);
+					movedCount += ps.executeUpdate();
+					connection.commit();
+					if (log.isDebugEnabled()) {
+						log.debug("Moved serialized data of audit logs up to id: " + Math.min(from + batchSize, maxId));
+					}
+				}
+			}
+			finally {
+				ps.close();
+			}
+		}
+		catch (DatabaseException e) {
+			throw new CustomChangeException("Failed to move the serialized data of audit logs", e);
+		}
+		catch (SQLException e) {
+			throw new CustomChangeException("Failed to move the serialized data of audit logs", e);
+		}
+	}
+	
+	private long getMaxId(JdbcConnection connection, String query) throws DatabaseException, SQLException {
+		Statement statement = connection.createStatement();
+		try {
+			ResultSet rs = statement.executeQuery(query);
+			return rs.next() ? rs.getLong(1) : 0;
+		}
+		finally {
+			statement.close();
+		}
+	}
+	
+	/**
+	 * @see liquibase.change.custom.CustomChange#getConfirmationMessage()
+	 */
+	@Override
+	public String getConfirmationMessage() {
+		return "Moved the serialized data of " + movedCount + " audit logs to the auditlog_audit_log_data table";
+	}
+	
+	/**
+	 * @see liquibase.change.custom.CustomChange#setUp()
+	 */
+	@Override
+	public void setUp() throws SetupException {
+	}
+	
+	/**
+	 * @see liquibase.change.custom.CustomChange#setFileOpener(ResourceAccessor)
+	 */
+	@Override
+	public void setFileOpener(ResourceAccessor resourceAccessor) {
+	}
+	
+	/**
+	 * @see liquibase.change.custom.CustomChange#validate(Database)
+	 */
+	@Override
+	public ValidationErrors validate(Database database) {
+		return null;
+	}
+}
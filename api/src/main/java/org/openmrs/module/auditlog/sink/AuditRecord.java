@@ -0,0 +1,99 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.sink;
+
+import java.util.Date;
+
+import org.openmrs.module.auditlog.AuditLog.Action;
+
+/**
+ * A detached copy of an {@link org.openmrs.module.auditlog.AuditLog} handed to the
+ * {@link AuditSink}s, unlike the log it holds no references to persistent objects so it can be
+ * used after the session that created the log is closed. Child logs are separate records that
+ * reference their parents by uuid.
+ */
+public class AuditRecord {
+	
+	private final String uuid;
+	
+	private final String parentUuid;
+	
+	private final String type;
+	
+	private final String identifier;
+	
+	private final String objectUuid;
+	
+	private final Action action;
+	
+	private final Integer userId;
+	
+	private final Date dateCreated;
+	
+	private final String serializedData;
+	
+	public AuditRecord(String uuid, String parentUuid, String type, String identifier, String objectUuid, Action action,
+	    Integer userId, Date dateCreated, String serializedData) {
+		this.uuid = uuid;
+		this.parentUuid = parentUuid;
+		this.type = type;
+		this.identifier = identifier;
+		this.objectUuid = objectUuid;
+		this.action = action;
+		this.userId = userId;
+		this.dateCreated = dateCreated;
+		this.serializedData = serializedData;
+	}
+	
+	public String getUuid() {
+		return uuid;
+	}
+	
+	public String getParentUuid() {
+		return parentUuid;
+	}
+	
+	public String getType() {
+		return type;
+	}
+	
+	public String getIdentifier() {
+		return identifier;
+	}
+	
+	public String getObjectUuid() {
+		return objectUuid;
+	}
+	
+	public Action getAction() {
+		return action;
+	}
+	
+	public Integer getUserId() {
+		return userId;
+	}
+	
+	public Date getDateCreated() {
+		return dateCreated;
+	}
+	
+	public String getSerializedData() {
+		return serializedData;
+	}
+	
+	@Override
+	public String toString() {
+		return action + " " + type + " " + identifier;
+	}
+}
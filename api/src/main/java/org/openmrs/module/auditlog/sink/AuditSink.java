@@ -0,0 +1,50 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.sink;
+
+import java.util.List;
+
+/**
+ * A destination the audit logs of committed transactions are copied to in addition to or instead
+ * of the audit log tables, sinks are listed by class name in the
+ * {@link org.openmrs.module.auditlog.util.AuditLogConstants#GP_SINKS} global property and must have
+ * a public no-arg constructor. Each sink is called from its own thread, records are queued for it
+ * and go to an overflow file on disk when the queue is full.
+ */
+public interface AuditSink {
+	
+	/**
+	 * Writes the specified records, the records of several transactions may be passed in a single
+	 * call and are in the order the transactions committed
+	 * 
+	 * @param records the records to write
+	 * @throws Exception if the records can't be written, they are kept in an overflow file and
+	 *             passed again after an increasing delay until they are written, records written
+	 *             before a restart may be passed again after it
+	 */
+	public void write(List<AuditRecord> records) throws Exception;
+	
+	/**
+	 * @return the maximum number of transactions whose records can wait in memory for this sink
+	 *         before they are written to its overflow file
+	 */
+	public int getQueueCapacity();
+	
+	/**
+	 * Releases the resources held by this sink, called after the queued records are written
+	 * 
+	 * @throws Exception
+	 */
+	public void close() throws Exception;
+}
@@ -0,0 +1,631 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.sink;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.auditlog.AuditLog;
+import org.openmrs.module.auditlog.AuditLog.Action;
+import org.openmrs.module.auditlog.util.AuditLogConstants;
+import org.openmrs.module.auditlog.util.AuditLogUtil;
+import org.openmrs.util.OpenmrsUtil;
+
+/**
+ * Fans out the records of committed transactions to the {@link AuditSink}s listed in the
+ * {@link AuditLogConstants#GP_SINKS} global property, each sink has a bounded queue and a single
+ * thread that writes the queued records in batches. The committing threads never wait for a sink,
+ * when a queue is full the records are appended to an overflow file in the auditlog/sink-overflow
+ * folder of the application data directory that the thread of the sink reads back in order once it
+ * has caught up, the overflow files left by a shutdown are written when the sink is created again.
+ * Records a sink fails to write are kept in an overflow file and passed again with an increasing
+ * delay until it writes them, the records after them wait.
+ */
+public final class AuditSinks {
+	
+	private static final Log log = LogFactory.getLog(AuditSinks.class);
+	
+	private static final String OVERFLOW_DIRECTORY = "auditlog" + File.separator + "sink-overflow";
+	
+	private static final String OVERFLOW_SUFFIX = ".overflow";
+	
+	//How long the queued records are given to be written when the sinks are shut down
+	private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+	
+	//Max number of queued transactions written in a single call to a sink
+	private static final int MAX_DRAIN = 100;
+	
+	//In milliseconds, doubled after each failed write up to the max
+	private static final long INITIAL_RETRY_DELAY = 1000;
+	
+	private static final long MAX_RETRY_DELAY = 60000;
+	
+	//Volatile so that the committing threads check for sinks without locking
+	private static volatile List<SinkWorker> workers;
+	
+	private AuditSinks() {
+	}
+	
+	/**
+	 * @return true if any sink is configured
+	 */
+	public static boolean isEnabled() {
+		return !getWorkers().isEmpty();
+	}
+	
+	/**
+	 * Queues the specified records for each sink
+	 * 
+	 * @param records the records of a committed transaction
+	 */
+	public static void submit(List<AuditRecord> records) {
+		for (SinkWorker worker : getWorkers()) {
+			worker.offer(records);
+		}
+	}
+	
+	/**
+	 * Gets the configured sink of the specified type
+	 * 
+	 * @param type the sink type
+	 * @return the sink or null if none is configured
+	 */
+	public static <T extends AuditSink> T getSink(Class<T> type) {
+		for (SinkWorker worker : getWorkers()) {
+			if (type.isInstance(worker.sink)) {
+				return type.cast(worker.sink);
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Writes the queued records and closes the sinks, they are created again from the global
+	 * property on next use
+	 */
+	public static synchronized void shutdown() {
+		if (workers != null) {
+			for (SinkWorker worker : workers) {
+				worker.stop();
+			}
+			workers = null;
+		}
+	}
+	
+	/**
+	 * Creates the records to hand to the sinks for the specified logs and their child logs, it must
+	 * be called before the session the logs were created in is closed
+	 * 
+	 * @param auditLogs the top level logs
+	 * @return the records
+	 */
+	public static List<AuditRecord> toRecords(Collection<AuditLog> auditLogs) throws Exception {
+		List<AuditRecord> records = new ArrayList<AuditRecord>(auditLogs.size());
+		for (AuditLog auditLog : auditLogs) {
+			addRecords(auditLog, records);
+		}
+		return records;
+	}
+	
+	private static void addRecords(AuditLog auditLog, List<AuditRecord> records) throws Exception {
+		String serializedData = null;
+		if (auditLog.getSerializedData() != null) {
+			serializedData = AuditLogUtil.getAsString(auditLog.getSerializedData());
+		}
+		String parentUuid = (auditLog.getParentAuditLog() != null) ? auditLog.getParentAuditLog().getUuid() : null;
+		Integer userId = (auditLog.getUser() != null) ? auditLog.getUser().getUserId() : null;
+		records.add(new AuditRecord(auditLog.getUuid(), parentUuid, auditLog.getType(), auditLog.getIdentifier(),
+		        auditLog.getObjectUuid(), auditLog.getAction(), userId, auditLog.getDateCreated(), serializedData));
+		for (AuditLog childLog : auditLog.getChildAuditLogs()) {
+			addRecords(childLog, records);
+		}
+	}
+	
+	private static List<SinkWorker> getWorkers() {
+		List<SinkWorker> currentWorkers = workers;
+		if (currentWorkers == null) {
+			currentWorkers = createWorkers();
+		}
+		return currentWorkers;
+	}
+	
+	private static synchronized List<SinkWorker> createWorkers() {
+		if (workers == null) {
+			List<SinkWorker> newWorkers = new ArrayList<SinkWorker>();
+			String gpValue = Context.getAdministrationService().getGlobalProperty(AuditLogConstants.GP_SINKS);
+			if (StringUtils.isNotBlank(gpValue)) {
+				for (String className : StringUtils.split(gpValue, ",")) {
+					AuditSink sink;
+					try {
+						sink = (AuditSink) Context.loadClass(className.trim()).newInstance();
+					}
+					catch (Exception e) {
+						for (SinkWorker worker : newWorkers) {
+							worker.stop();
+						}
+						throw new APIException("Failed to create the audit sink:" + className, e);
+					}
+					newWorkers.add(new SinkWorker(sink, new File(OpenmrsUtil.getApplicationDataDirectory(),
+					        OVERFLOW_DIRECTORY)));
+				}
+			}
+			workers = Collections.unmodifiableList(newWorkers);
+		}
+		return workers;
+	}
+	
+	/**
+	 * The queue and thread of a sink, the records that don't fit in the queue go to the overflow
+	 * file and keep going there until the thread has read them back so that the order is kept, the
+	 * records the sink failed to write go to an overflow file of their own that is read back first
+	 */
+	static class SinkWorker implements Runnable {
+		
+		private final AuditSink sink;
+		
+		private final BlockingQueue<List<AuditRecord>> queue;
+		
+		private final ExecutorService executor;
+		
+		private final File overflowDirectory;
+		
+		private final String overflowPrefix;
+		
+		//The overflow files to read back in order, only accessed by the thread of the sink
+		private final Deque<File> readableOverflowFiles = new ArrayDeque<File>();
+		
+		private File overflowFile;
+		
+		private DataOutputStream overflowOut;
+		
+		//The number of transactions of the first readable overflow file already written, only
+		//accessed by the thread of the sink
+		private int writtenTransactions;
+		
+		//Only accessed by the thread of the sink
+		private long retryDelay = INITIAL_RETRY_DELAY;
+		
+		private volatile boolean stopped;
+		
+		SinkWorker(AuditSink sink, File overflowDirectory) {
+			this.sink = sink;
+			this.queue = new ArrayBlockingQueue<List<AuditRecord>>(Math.max(1, sink.getQueueCapacity()));
+			this.overflowDirectory = overflowDirectory;
+			this.overflowPrefix = sink.getClass().getName() + "-";
+			File[] leftovers = overflowDirectory.listFiles();
+			if (leftovers != null) {
+				//The temp file names are random, the modification times give the order
+				Arrays.sort(leftovers, (f1, f2) -> Long.compare(f1.lastModified(), f2.lastModified()));
+				for (File leftover : leftovers) {
+					if (leftover.getName().startsWith(overflowPrefix) && leftover.getName().endsWith(OVERFLOW_SUFFIX)) {
+						readableOverflowFiles.add(leftover);
+					}
+				}
+			}
+			final String threadName = "auditlog-sink-" + sink.getClass().getSimpleName();
+			this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, threadName);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			executor.execute(this);
+		}
+		
+		/**
+		 * Queues the specified records or appends them to the overflow file if the queue is full
+		 * 
+		 * @param records the records of a committed transaction
+		 * @should not wait for the sink when the queue is full
+		 * @should pass the overflowing records to the sink in order
+		 */
+		void offer(List<AuditRecord> records) {
+			synchronized (this) {
+				if (overflowFile == null && queue.offer(records)) {
+					return;
+				}
+				try {
+					writeOverflow(records);
+					return;
+				}
+				catch (IOException e) {
+					log.error("Failed to write the overflow file of the sink " + sink.getClass().getName(), e);
+				}
+			}
+			
+			//Waiting is the last resort since the records must not be lost
+			try {
+				queue.put(records);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				log.error("Interrupted while queuing " + records.size() + " audit record(s) for the sink "
+				        + sink.getClass().getName());
+			}
+		}
+		
+		private void writeOverflow(List<AuditRecord> records) throws IOException {
+			if (overflowFile == null) {
+				overflowFile = createOverflowFile();
+				overflowOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(overflowFile)));
+				log.warn("The sink " + sink.getClass().getName() + " is not keeping up, writing its records to "
+				        + overflowFile);
+			}
+			writeTransaction(overflowOut, records);
+			overflowOut.flush();
+		}
+		
+		private File createOverflowFile() throws IOException {
+			if (!overflowDirectory.exists() && !overflowDirectory.mkdirs()) {
+				throw new IOException("Failed to create the audit sink overflow directory " + overflowDirectory);
+			}
+			Path directory = overflowDirectory.toPath();
+			if (directory.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+				return Files.createTempFile(directory, overflowPrefix, OVERFLOW_SUFFIX,
+				    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))).toFile();
+			}
+			return Files.createTempFile(directory, overflowPrefix, OVERFLOW_SUFFIX).toFile();
+		}
+		
+		/**
+		 * Writes the records of the specified transactions to a new overflow file
+		 * 
+		 * @param transactions the records of each transaction
+		 * @return the file
+		 */
+		private File writeOverflowFile(List<List<AuditRecord>> transactions) throws IOException {
+			File file = createOverflowFile();
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+				for (List<AuditRecord> records : transactions) {
+					writeTransaction(out, records);
+				}
+			}
+			
+			return file;
+		}
+		
+		/**
+		 * Hands the current overflow file to the thread of the sink once the queue is empty, the
+		 * records queued after that are newer than the ones in the file
+		 */
+		private synchronized void rollOverflowFile() {
+			if (overflowFile == null || !queue.isEmpty()) {
+				return;
+			}
+			try {
+				overflowOut.close();
+			}
+			catch (IOException e) {
+				log.warn("Failed to close the overflow file " + overflowFile, e);
+			}
+			readableOverflowFiles.add(overflowFile);
+			overflowFile = null;
+			overflowOut = null;
+		}
+		
+		private synchronized boolean hasOverflow() {
+			return overflowFile != null;
+		}
+		
+		/**
+		 * Writes the queued records and the overflow files in order
+		 * 
+		 * @should retry the records the sink failed to write
+		 * @should keep the records the sink failed to write in an overflow file
+		 */
+		@Override
+		public void run() {
+			List<List<AuditRecord>> drained = new ArrayList<List<AuditRecord>>();
+			while (true) {
+				while (!readableOverflowFiles.isEmpty()) {
+					if (!readOverflowFile(readableOverflowFiles.peek())) {
+						if (!backOff()) {
+							return;
+						}
+						continue;
+					}
+					readableOverflowFiles.poll();
+					writtenTransactions = 0;
+				}
+				
+				List<AuditRecord> first;
+				try {
+					first = queue.poll(1, TimeUnit.SECONDS);
+				}
+				catch (InterruptedException e) {
+					break;
+				}
+				if (first == null) {
+					if (hasOverflow()) {
+						rollOverflowFile();
+						continue;
+					}
+					if (stopped) {
+						break;
+					}
+					continue;
+				}
+				
+				drained.add(first);
+				queue.drainTo(drained, MAX_DRAIN - 1);
+				List<AuditRecord> records = new ArrayList<AuditRecord>();
+				for (List<AuditRecord> next : drained) {
+					records.addAll(next);
+				}
+				if (!write(records) && !keepForRetry(drained)) {
+					return;
+				}
+				drained.clear();
+			}
+		}
+		
+		/**
+		 * Passes the records of the specified overflow file to the sink skipping the transactions
+		 * already written, the file is deleted once all are written
+		 * 
+		 * @return false if the sink failed to write some records otherwise true
+		 */
+		private boolean readOverflowFile(File file) {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+				List<AuditRecord> records = new ArrayList<AuditRecord>();
+				int readTransactions = 0;
+				int transactionCount = 0;
+				while (true) {
+					int recordCount;
+					try {
+						recordCount = in.readInt();
+					}
+					catch (EOFException e) {
+						break;
+					}
+					List<AuditRecord> transaction = new ArrayList<AuditRecord>(recordCount);
+					for (int i = 0; i < recordCount; i++) {
+						transaction.add(readRecord(in));
+					}
+					if (readTransactions++ < writtenTransactions) {
+						continue;
+					}
+					records.addAll(transaction);
+					if (++transactionCount == MAX_DRAIN) {
+						if (!write(records)) {
+							return false;
+						}
+						writtenTransactions += transactionCount;
+						records = new ArrayList<AuditRecord>();
+						transactionCount = 0;
+					}
+				}
+				if (!records.isEmpty() && !write(records)) {
+					return false;
+				}
+			}
+			catch (IOException e) {
+				//Reading it again would fail the same way, it is left for review
+				log.error("Failed to read the overflow file " + file + " of the sink " + sink.getClass().getName(), e);
+				return true;
+			}
+			if (!file.delete()) {
+				log.warn("Failed to delete the overflow file " + file);
+			}
+			return true;
+		}
+		
+		/**
+		 * @return false if the sink failed to write the records otherwise true
+		 */
+		private boolean write(List<AuditRecord> records) {
+			try {
+				sink.write(records);
+				retryDelay = INITIAL_RETRY_DELAY;
+				return true;
+			}
+			catch (Exception e) {
+				log.error("The sink " + sink.getClass().getName() + " failed to write " + records.size()
+				        + " audit record(s), retrying in " + retryDelay + "ms", e);
+				return false;
+			}
+		}
+		
+		/**
+		 * Keeps the records of the specified transactions the sink failed to write in an overflow file
+		 * that is read back after a delay before the records queued after them, they are only kept in
+		 * memory if the file can't be written
+		 * 
+		 * @return false if the sink was stopped otherwise true
+		 */
+		private boolean keepForRetry(List<List<AuditRecord>> transactions) {
+			try {
+				readableOverflowFiles.addFirst(writeOverflowFile(transactions));
+				return backOff();
+			}
+			catch (IOException e) {
+				log.error("Failed to write the overflow file of the sink " + sink.getClass().getName()
+				        + ", keeping the records to retry in memory", e);
+				List<AuditRecord> records = new ArrayList<AuditRecord>();
+				for (List<AuditRecord> next : transactions) {
+					records.addAll(next);
+				}
+				while (backOff()) {
+					if (write(records)) {
+						return true;
+					}
+				}
+				log.error("The sink " + sink.getClass().getName() + " was stopped before writing " + records.size()
+				        + " audit record(s), they are lost");
+				return false;
+			}
+		}
+		
+		/**
+		 * Waits before the sink is passed records again, the delay doubles after each failed write
+		 * 
+		 * @return false if the sink was stopped otherwise true
+		 */
+		private boolean backOff() {
+			long end = System.currentTimeMillis() + retryDelay;
+			retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+			try {
+				//Sleeps in short steps to notice when the sink is stopped
+				for (long now = System.currentTimeMillis(); now < end && !stopped; now = System.currentTimeMillis()) {
+					Thread.sleep(Math.min(end - now, 1000));
+				}
+			}
+			catch (InterruptedException e) {
+				return false;
+			}
+			return !stopped;
+		}
+		
+		void stop() {
+			stopped = true;
+			executor.shutdown();
+			try {
+				if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+					log.warn("Timed out waiting for the sink " + sink.getClass().getName() + " to write its queued records");
+					executor.shutdownNow();
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			synchronized (this) {
+				//The overflow files are read back in the order of their modification times when the
+				//sink is created again, the records that weren't written are oldest first
+				List<File> leftovers = new ArrayList<File>(readableOverflowFiles);
+				List<List<AuditRecord>> queued = new ArrayList<List<AuditRecord>>();
+				queue.drainTo(queued);
+				if (!queued.isEmpty()) {
+					try {
+						leftovers.add(writeOverflowFile(queued));
+					}
+					catch (IOException e) {
+						log.error("Failed to keep the queued audit records of the sink " + sink.getClass().getName()
+						        + ", they are lost", e);
+					}
+				}
+				if (overflowOut != null) {
+					try {
+						overflowOut.close();
+					}
+					catch (IOException e) {
+						log.warn("Failed to close the overflow file " + overflowFile, e);
+					}
+					leftovers.add(overflowFile);
+				}
+				long time = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(leftovers.size());
+				for (int i = 0; i < leftovers.size(); i++) {
+					//Whole seconds since some file systems don't keep milliseconds
+					leftovers.get(i).setLastModified(time + TimeUnit.SECONDS.toMillis(i));
+				}
+				if (!leftovers.isEmpty()) {
+					log.warn("The overflow files " + leftovers + " will be written when the sink "
+					        + sink.getClass().getName() + " is created again");
+				}
+			}
+			try {
+				sink.close();
+			}
+			catch (Exception e) {
+				log.warn("Failed to close the sink " + sink.getClass().getName(), e);
+			}
+		}
+	}
+	
+	private static void writeTransaction(DataOutputStream out, List<AuditRecord> records) throws IOException {
+		out.writeInt(records.size());
+		for (AuditRecord record : records) {
+			writeRecord(out, record);
+		}
+	}
+	
+	private static void writeRecord(DataOutputStream out, AuditRecord record) throws IOException {
+		writeString(out, record.getUuid());
+		writeString(out, record.getParentUuid());
+		writeString(out, record.getType());
+		writeString(out, record.getIdentifier());
+		writeString(out, record.getObjectUuid());
+		writeString(out, record.getAction().name());
+		out.writeInt((record.getUserId() != null) ? record.getUserId() : -1);
+		out.writeLong(record.getDateCreated().getTime());
+		writeString(out, record.getSerializedData());
+	}
+	
+	private static AuditRecord readRecord(DataInputStream in) throws IOException {
+		String uuid = readString(in);
+		String parentUuid = readString(in);
+		String type = readString(in);
+		String identifier = readString(in);
+		String objectUuid = readString(in);
+		Action action = Action.valueOf(readString(in));
+		int userId = in.readInt();
+		Date dateCreated = new Date(in.readLong());
+		String serializedData = readString(in);
+		return new AuditRecord(uuid, parentUuid, type, identifier, objectUuid, action, (userId >= 0) ? userId : null,
+		        dateCreated, serializedData);
+	}
+	
+	//Unlike writeUTF the length isn't limited to 64KB which serialized data can exceed
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,99 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.sink;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sink that keeps the latest records in a fixed size ring buffer, older records are overwritten,
+ * it is meant for tests and for benchmarking the capture of audit logs without any storage cost.
+ */
+public class InMemoryAuditSink implements AuditSink {
+	
+	private static final int DEFAULT_CAPACITY = 10000;
+	
+	private final AuditRecord[] buffer;
+	
+	//The total number of records written, the next record goes at count % capacity
+	private long count;
+	
+	public InMemoryAuditSink() {
+		this(DEFAULT_CAPACITY);
+	}
+	
+	public InMemoryAuditSink(int capacity) {
+		this.buffer = new AuditRecord[capacity];
+	}
+	
+	/**
+	 * @see AuditSink#write(List)
+	 */
+	@Override
+	public synchronized void write(List<AuditRecord> records) {
+		for (AuditRecord record : records) {
+			buffer[(int) (count % buffer.length)] = record;
+			count++;
+		}
+	}
+	
+	/**
+	 * Gets the records in the buffer
+	 * 
+	 * @return the records starting with the oldest
+	 * @should keep only the latest records when full
+	 */
+	public synchronized List<AuditRecord> getRecords() {
+		int size = (int) Math.min(count, buffer.length);
+		List<AuditRecord> records = new ArrayList<AuditRecord>(size);
+		for (long i = count - size; i < count; i++) {
+			records.add(buffer[(int) (i % buffer.length)]);
+		}
+		return records;
+	}
+	
+	/**
+	 * @return the total number of records written including those overwritten
+	 */
+	public synchronized long getCount() {
+		return count;
+	}
+	
+	/**
+	 * Removes all the records from the buffer and resets the count
+	 * 
+	 * @should remove all the records
+	 */
+	public synchronized void clear() {
+		for (int i = 0; i < buffer.length; i++) {
+			buffer[i] = null;
+		}
+		count = 0;
+	}
+	
+	/**
+	 * @see AuditSink#getQueueCapacity()
+	 */
+	@Override
+	public int getQueueCapacity() {
+		return DEFAULT_CAPACITY;
+	}
+	
+	/**
+	 * @see AuditSink#close()
+	 */
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,134 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.sink;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.auditlog.api.db.hibernate.AuditLogDataSources;
+
+/**
+ * Sink that inserts the records into the denormalized auditlog_sink_record table with JDBC batches,
+ * the table has no foreign keys and stores the type names instead of dictionary keys so it can live
+ * in a cheaper database. The connections are taken from the pool configured via the
+ * auditlog.writeDataSource runtime properties if any otherwise from the main pool.
+ */
+public class JdbcAuditSink implements AuditSink {
+	
+	private static final String INSERT = "insert into auditlog_sink_record (uuid, parent_uuid, type, identifier, "
+	        + "object_uuid, action, user_id, date_created, serialized_data) values (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	
+	private static final int BATCH_SIZE = 500;
+	
+	private static final int QUEUE_CAPACITY = 100;
+	
+	/**
+	 * @see AuditSink#write(List)
+	 */
+	@Override
+	public void write(List<AuditRecord> records) throws SQLException {
+		DataSource dataSource = AuditLogDataSources.getWriteDataSource();
+		ConnectionProvider provider = null;
+		Connection connection;
+		if (dataSource != null) {
+			connection = dataSource.getConnection();
+		} else {
+			SessionFactory sf = Context.getRegisteredComponents(SessionFactory.class).get(0);
+			provider = sf.unwrap(SessionFactoryImplementor.class).getServiceRegistry()
+			        .getService(ConnectionProvider.class);
+			connection = provider.getConnection();
+		}
+		
+		try {
+			boolean autoCommit = connection.getAutoCommit();
+			connection.setAutoCommit(false);
+			try {
+				insert(connection, records);
+				connection.commit();
+			}
+			catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			}
+			finally {
+				connection.setAutoCommit(autoCommit);
+			}
+		}
+		finally {
+			if (provider != null) {
+				provider.closeConnection(connection);
+			} else {
+				connection.close();
+			}
+		}
+	}
+	
+	private void insert(Connection connection, List<AuditRecord> records) throws SQLException {
+		PreparedStatement ps = connection.prepareStatement(INSERT);
+		try {
+			int batched = 0;
+			for (AuditRecord record : records) {
+				ps.setString(1, record.getUuid());
+				ps.setString(2, record.getParentUuid());
+				ps.setString(3, record.getType());
+				ps.setString(4, record.getIdentifier());
+				ps.setString(5, record.getObjectUuid());
+				ps.setString(6, record.getAction().name());
+				if (record.getUserId() != null) {
+					ps.setInt(7, record.getUserId());
+				} else {
+					ps.setNull(7, Types.INTEGER);
+				}
+				ps.setTimestamp(8, new Timestamp(record.getDateCreated().getTime()));
+				ps.setString(9, record.getSerializedData());
+				ps.addBatch();
+				if (++batched == BATCH_SIZE) {
+					ps.executeBatch();
+					batched = 0;
+				}
+			}
+			if (batched > 0) {
+				ps.executeBatch();
+			}
+		}
+		finally {
+			ps.close();
+		}
+	}
+	
+	/**
+	 * @see AuditSink#getQueueCapacity()
+	 */
+	@Override
+	public int getQueueCapacity() {
+		return QUEUE_CAPACITY;
+	}
+	
+	/**
+	 * @see AuditSink#close()
+	 */
+	@Override
+	public void close() {
+	}
+}
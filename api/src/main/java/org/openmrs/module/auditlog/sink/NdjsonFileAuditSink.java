@@ -0,0 +1,134 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.sink;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.lang.StringUtils;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.auditlog.util.AuditLogConstants;
+import org.openmrs.util.OpenmrsUtil;
+
+/**
+ * Sink that appends the records as newline delimited JSON to gzip compressed files, a new file is
+ * started each day and whenever the current one has received
+ * {@link #MAX_FILE_BYTES} bytes of uncompressed data. The files are written to the directory set
+ * via the {@link AuditLogConstants#RP_SINK_DIRECTORY} runtime property or the auditlog/sink folder
+ * in the application data directory.
+ */
+public class NdjsonFileAuditSink implements AuditSink {
+	
+	public static final long MAX_FILE_BYTES = 64 * 1024 * 1024;
+	
+	private static final int QUEUE_CAPACITY = 1000;
+	
+	private static final byte[] NEW_LINE = "\n".getBytes();
+	
+	private final ObjectMapper mapper = new ObjectMapper();
+	
+	private OutputStream out;
+	
+	private String day;
+	
+	private long fileBytes;
+	
+	/**
+	 * @see AuditSink#write(List)
+	 */
+	@Override
+	public synchronized void write(List<AuditRecord> records) throws IOException {
+		for (AuditRecord record : records) {
+			byte[] line = mapper.writeValueAsBytes(toMap(record));
+			rollIfNecessary(line.length + NEW_LINE.length);
+			out.write(line);
+			out.write(NEW_LINE);
+			fileBytes += line.length + NEW_LINE.length;
+		}
+		//A sync flush makes the records readable without waiting for the file to be closed
+		out.flush();
+	}
+	
+	/**
+	 * @see AuditSink#getQueueCapacity()
+	 */
+	@Override
+	public int getQueueCapacity() {
+		return QUEUE_CAPACITY;
+	}
+	
+	/**
+	 * @see AuditSink#close()
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (out != null) {
+			out.close();
+			out = null;
+		}
+	}
+	
+	private void rollIfNecessary(int size) throws IOException {
+		Date now = new Date();
+		String today = new SimpleDateFormat("yyyyMMdd").format(now);
+		if (out != null && today.equals(day) && fileBytes + size <= MAX_FILE_BYTES) {
+			return;
+		}
+		
+		close();
+		File file = new File(getDirectory(), "auditlog-" + new SimpleDateFormat("yyyyMMdd-HHmmssSSS").format(now)
+		        + ".ndjson.gz");
+		out = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(file)), true);
+		day = today;
+		fileBytes = 0;
+	}
+	
+	private File getDirectory() throws IOException {
+		String path = Context.getRuntimeProperties().getProperty(AuditLogConstants.RP_SINK_DIRECTORY);
+		File directory;
+		if (StringUtils.isNotBlank(path)) {
+			directory = new File(path.trim());
+		} else {
+			directory = new File(OpenmrsUtil.getApplicationDataDirectory(), "auditlog" + File.separator + "sink");
+		}
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new IOException("Failed to create the audit sink directory " + directory);
+		}
+		return directory;
+	}
+	
+	private Map<String, Object> toMap(AuditRecord record) {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("uuid", record.getUuid());
+		map.put("parentUuid", record.getParentUuid());
+		map.put("type", record.getType());
+		map.put("identifier", record.getIdentifier());
+		map.put("objectUuid", record.getObjectUuid());
+		map.put("action", record.getAction().name());
+		map.put("userId", record.getUserId());
+		map.put("dateCreated", new SimpleDateFormat(AuditLogConstants.DATE_FORMAT).format(record.getDateCreated()));
+		map.put("serializedData", record.getSerializedData());
+		return map;
+	}
+}
@@ -0,0 +1,111 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.task;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.auditlog.api.AuditLogService;
+import org.openmrs.module.auditlog.api.db.hibernate.interceptor.AuditLogJournalIngester;
+import org.openmrs.scheduler.SchedulerException;
+import org.openmrs.scheduler.SchedulerService;
+import org.openmrs.scheduler.TaskDefinition;
+import org.openmrs.scheduler.tasks.AbstractTask;
+import org.openmrs.util.PrivilegeConstants;
+
+/**
+ * Scheduled task that loads the audit logs appended to the local journal since its last run into
+ * the database, the records are processed in batches each in its own transaction up to a maximum
+ * number of batches per run. The task isn't started on startup, it is scheduled when a write mode
+ * that appends to the journal is enabled or the journal has records left and shuts itself down
+ * once neither holds.
+ */
+public class IngestAuditLogJournalTask extends AbstractTask {
+	
+	private static final Log log = LogFactory.getLog(IngestAuditLogJournalTask.class);
+	
+	static final String TASK_NAME = "Ingest Audit Log Journal";
+	
+	private static final int BATCH_SIZE = 1000;
+	
+	private static final int MAX_BATCHES_PER_RUN = 50;
+	
+	/**
+	 * @see org.openmrs.scheduler.tasks.AbstractTask#execute()
+	 */
+	@Override
+	public void execute() {
+		if (isExecuting()) {
+			return;
+		}
+		
+		startExecuting();
+		try {
+			AuditLogService service = Context.getService(AuditLogService.class);
+			int records = 0;
+			for (int batch = 0; batch < MAX_BATCHES_PER_RUN; batch++) {
+				int count = service.ingestJournal(BATCH_SIZE);
+				records += count;
+				if (count < BATCH_SIZE) {
+					break;
+				}
+			}
+			
+			if (log.isDebugEnabled()) {
+				log.debug("Ingested " + records + " audit log journal record(s)");
+			}
+			
+			if (!AuditLogJournalIngester.isIngestionNeeded()) {
+				TaskDefinition taskDefinition = getTaskDefinition();
+				if (taskDefinition != null) {
+					log.info("Stopping the " + TASK_NAME + " task since the audit log journal is empty and not in use");
+					try {
+						Context.getSchedulerService().shutdownTask(taskDefinition);
+					}
+					catch (SchedulerException e) {
+						log.warn("Failed to stop the " + TASK_NAME + " task", e);
+					}
+				}
+			}
+		}
+		finally {
+			stopExecuting();
+		}
+	}
+	
+	/**
+	 * Schedules the task if a write mode that appends to the journal is enabled or the journal has
+	 * records left and it isn't already running
+	 */
+	public static void scheduleIfNecessary() {
+		try {
+			Context.addProxyPrivilege(PrivilegeConstants.MANAGE_SCHEDULER);
+			if (!AuditLogJournalIngester.isIngestionNeeded()) {
+				return;
+			}
+			
+			SchedulerService schedulerService = Context.getSchedulerService();
+			TaskDefinition taskDefinition = schedulerService.getTaskByName(TASK_NAME);
+			if (taskDefinition != null && !taskDefinition.getStarted()) {
+				schedulerService.scheduleTask(taskDefinition);
+			}
+		}
+		catch (Exception e) {
+			log.error("Failed to schedule the " + TASK_NAME + " task", e);
+		}
+		finally {
+			Context.removeProxyPrivilege(PrivilegeConstants.MANAGE_SCHEDULER);
+		}
+	}
+}
@@ -0,0 +1,57 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.task;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.auditlog.api.AuditLogService;
+import org.openmrs.scheduler.tasks.AbstractTask;
+
+/**
+ * Scheduled task that rolls up the audit logs created since its last run into the daily counts, the
+ * logs are processed in batches each in its own transaction until the counts have caught up.
+ */
+public class UpdateAuditLogDailyCountsTask extends AbstractTask {
+	
+	private static final Log log = LogFactory.getLog(UpdateAuditLogDailyCountsTask.class);
+	
+	private static final int BATCH_SIZE = 5000;
+	
+	/**
+	 * @see org.openmrs.scheduler.tasks.AbstractTask#execute()
+	 */
+	@Override
+	public void execute() {
+		if (isExecuting()) {
+			return;
+		}
+		
+		startExecuting();
+		try {
+			AuditLogService service = Context.getService(AuditLogService.class);
+			int batches = 0;
+			while (service.updateDailyCounts(BATCH_SIZE) > 0) {
+				batches++;
+			}
+			
+			if (log.isDebugEnabled()) {
+				log.debug("Rolled up " + batches + " batch(es) of audit logs into the daily counts");
+			}
+		}
+		finally {
+			stopExecuting();
+		}
+	}
+}
@@ -37,6 +37,52 @@ public final class AuditLogConstants {
 	//Specifies whether the last states of deleted items should be stored on the auditlog
 	public static final String GP_STORE_LAST_STATE_OF_DELETED_ITEMS = MODULE_ID + ".storeLastStateOfDeletedItems";
 	
+	//Specifies the number of updates to an object after which a snapshot of its state is written
+	public static final String GP_SNAPSHOT_INTERVAL = MODULE_ID + ".snapshotInterval";
+	
+	//Specifies whether hashes of the new and previous values of changed properties should be stored
+	public static final String GP_HASH_PROPERTY_VALUES = MODULE_ID + ".hashPropertyValues";
+	
+	//Specifies the class name of the UuidGenerator used to generate the uuids of audit logs
+	public static final String GP_UUID_GENERATOR = MODULE_ID + ".uuidGenerator";
+	
+	//Specifies how audit logs are persisted relative to the transaction that made the changes
+	public static final String GP_WRITE_MODE = MODULE_ID + ".writeMode";
+	
+	//Prefix of the runtime properties of the connection pool to write audit logs through
+	public static final String RP_WRITE_DATASOURCE = MODULE_ID + ".writeDataSource";
+	
+	//Prefix of the runtime properties of the connection pool of the read replica to search audit logs on
+	public static final String RP_READ_DATASOURCE = MODULE_ID + ".readDataSource";
+	
+	//Runtime property for the max replication lag in seconds beyond which searches fall back to the primary
+	public static final String RP_READ_DATASOURCE_MAX_LAG = RP_READ_DATASOURCE + ".maxLagSeconds";
+	
+	//Runtime property for the directory of the write-ahead journal used by the JOURNAL write mode
+	public static final String RP_JOURNAL_DIRECTORY = MODULE_ID + ".journalDirectory";
+	
+	//Comma separated list of the class names of the sinks the audit logs are copied to
+	public static final String GP_SINKS = MODULE_ID + ".sinks";
+	
+	//Comma separated list of the audited class names whose logs are only written to the sinks
+	public static final String GP_SINK_ONLY_TYPES = MODULE_ID + ".sinkOnlyTypes";
+	
+	//Runtime property for the directory the file sink writes to
+	public static final String RP_SINK_DIRECTORY = MODULE_ID + ".sinkDirectory";
+	
+	//Specifies whether audit logs are built at each flush so that no reference to the changed objects is kept
+	public static final String GP_BOUNDED_MEMORY = MODULE_ID + ".boundedMemory";
+	
+	//Specifies the number of audit logs of a transaction held in memory before they are spilled to disk
+	public static final String GP_SPILL_THRESHOLD = MODULE_ID + ".spillThreshold";
+	
+	//Specifies the number of audit logs built at flushes after which they are written in the transaction
+	public static final String GP_FLUSH_WRITE_INTERVAL = MODULE_ID + ".flushWriteInterval";
+	
+	//JSON object of class names to the rules deciding which property changes of their objects are logged
+	//and which properties are kept in the last states of their deleted items
+	public static final String GP_PROPERTY_RULES = MODULE_ID + ".propertyRules";
+	
 	/* MODULE PRIVILEGES */
 	public static final String PRIV_GET_AUDITLOGS = "Get Audit Logs";
 	
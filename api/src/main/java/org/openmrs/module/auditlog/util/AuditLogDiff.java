@@ -0,0 +1,135 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openmrs.api.APIException;
+import org.openmrs.module.auditlog.AuditLog;
+import org.openmrs.module.auditlog.AuditLog.Action;
+
+/**
+ * The decoded form of the serialized data of an {@link AuditLog}, for a log with action UPDATED it
+ * maps each changed property to a list of its new and previous values while for a log with action
+ * DELETED it maps each property to its last value. Instances are deeply immutable and are obtained
+ * via {@link AuditLogUtil#getDiff(AuditLog)} which decodes the serialized data of a log only once.
+ */
+@SuppressWarnings("rawtypes")
+public final class AuditLogDiff {
+
+	private static final int NEW_VALUE_INDEX = 0;
+
+	private static final int PREVIOUS_VALUE_INDEX = 1;
+
+	private final Action action;
+
+	private final Map<String, Object> data;
+
+	@SuppressWarnings("unchecked")
+	AuditLogDiff(Action action, Map<String, Object> data) {
+		this.action = action;
+		this.data = (Map<String, Object>) readOnlyCopy(data);
+	}
+
+	/**
+	 * Copies the specified decoded JSON value into read only maps and lists all the way down since
+	 * instances are shared via the cache
+	 */
+	@SuppressWarnings("unchecked")
+	private static Object readOnlyCopy(Object value) {
+		if (value instanceof Map) {
+			Map<Object, Object> copy = new LinkedHashMap<Object, Object>();
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				copy.put(entry.getKey(), readOnlyCopy(entry.getValue()));
+			}
+			return Collections.unmodifiableMap(copy);
+		}
+		if (value instanceof List) {
+			List<Object> copy = new ArrayList<Object>(((List<?>) value).size());
+			for (Object element : (List<?>) value) {
+				copy.add(readOnlyCopy(element));
+			}
+			return Collections.unmodifiableList(copy);
+		}
+		return value;
+	}
+
+	/**
+	 * @return the names of the properties in the serialized data
+	 */
+	public Set<String> getPropertyNames() {
+		return data.keySet();
+	}
+
+	/**
+	 * Returns a read only map of changes for AuditLogs with action UPDATED
+	 *
+	 * @return a map of property names and lists of their new and previous values
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<String, List> getChanges() {
+		checkAction(Action.UPDATED);
+		return (Map) data;
+	}
+
+	/**
+	 * Returns a read only map of property names and values for AuditLogs with action DELETED
+	 *
+	 * @return a map of property names and values
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<String, String> getLastState() {
+		checkAction(Action.DELETED);
+		return (Map) data;
+	}
+
+	/**
+	 * Gets the new value of the specified property for AuditLogs with action UPDATED
+	 *
+	 * @param propertyName the property name
+	 * @return the new property value if found
+	 */
+	public Object getNewValue(String propertyName) {
+		return getValue(propertyName, NEW_VALUE_INDEX);
+	}
+
+	/**
+	 * Gets the previous value of the specified property for AuditLogs with action UPDATED
+	 *
+	 * @param propertyName the property name
+	 * @return the previous property value if found
+	 */
+	public Object getPreviousValue(String propertyName) {
+		return getValue(propertyName, PREVIOUS_VALUE_INDEX);
+	}
+
+	private Object getValue(String propertyName, int index) {
+		List values = getChanges().get(propertyName);
+		if (values != null && values.size() > index) {
+			return values.get(index);
+		}
+		return null;
+	}
+
+	private void checkAction(Action expected) {
+		if (action != expected) {
+			throw new APIException("Can't call this method for an AuditLog item with action " + action);
+		}
+	}
+}
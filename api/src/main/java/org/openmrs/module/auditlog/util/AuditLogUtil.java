@@ -19,18 +19,23 @@ import static org.openmrs.module.auditlog.AuditLog.Action.UPDATED;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Field;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Blob;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.collections.MapUtils;
@@ -62,6 +67,24 @@ public class AuditLogUtil {
 	private static final Log log = LogFactory.getLog(AuditLogUtil.class);
 	
 	private static ObjectMapper mapper = null;
+
+	private static volatile UuidGenerator uuidGenerator;
+	
+	//Caches the display names of the types since they are computed for every rendered row
+	private static final Map<String, String> simpleTypeNames = new ConcurrentHashMap<String, String>();
+	
+	private static final int DIFF_CACHE_SIZE = 100;
+	
+	//Caches the decoded serialized data of the most recently viewed audit logs keyed by uuid
+	private static final Map<String, AuditLogDiff> diffCache = new LinkedHashMap<String, AuditLogDiff>(16, 0.75f, true) {
+		
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, AuditLogDiff> eldest) {
+			return size() > DIFF_CACHE_SIZE;
+		}
+	};
 	
 	private static ObjectMapper getMapper() {
 		if (mapper == null) {
@@ -70,6 +93,29 @@ public class AuditLogUtil {
 		return mapper;
 	}
 	
+	/**
+	 * Returns the simple form of the specified class name e.g 'Concept Name' will be returned for
+	 * org.openmrs.ConceptName
+	 * 
+	 * @param classname the fully qualified class name
+	 * @return the simple type name
+	 */
+	public static String getSimpleTypeName(String classname) {
+		String simpleTypeName = simpleTypeNames.get(classname);
+		if (simpleTypeName == null) {
+			String[] sections;
+			try {
+				sections = StringUtils.splitByCharacterTypeCamelCase(Class.forName(classname).getSimpleName());
+			}
+			catch (ClassNotFoundException e) {
+				throw new APIException(e);
+			}
+			simpleTypeName = StringUtils.join(sections, " ");
+			simpleTypeNames.put(classname, simpleTypeName);
+		}
+		return simpleTypeName;
+	}
+	
 	/**
 	 * Converts a set of class objects to a list of class name strings
 	 * 
@@ -135,28 +181,77 @@ public class AuditLogUtil {
 	}
 	
 	/**
-	 * Returns a map of changes for AuditLogs with action UPDATED
+	 * Returns the decoded form of the serialized data of the specified AuditLog, since audit logs are
+	 * immutable the decoded forms of the most recently used logs are cached by uuid so that the
+	 * serialized data of a log is read and parsed only once no matter how many of its values are
+	 * looked up. Empty results e.g. when the serialized data can't be decoded aren't cached.
 	 * 
-	 * @param auditLog
-	 * @return a map of changes
+	 * @param auditLog the AuditLog with action UPDATED or DELETED
+	 * @return the decoded serialized data
+	 * @should decode the serialized data of an audit log only once
+	 * @should not cache the result if the serialized data can't be decoded
 	 */
-	public static Map<String, List> getChangesOfUpdatedItem(AuditLog auditLog) {
-		if (auditLog.getAction() != UPDATED) {
+	public static AuditLogDiff getDiff(AuditLog auditLog) {
+		if (auditLog.getAction() != UPDATED && auditLog.getAction() != DELETED) {
 			throw new APIException("Can't call this method for an AuditLog item with action " + auditLog.getAction());
 		}
 		
-		Map<String, List> changes = new HashMap<String, List>();
+		String key = auditLog.getUuid();
+		AuditLogDiff diff;
+		synchronized (diffCache) {
+			diff = diffCache.get(key);
+		}
+		if (diff == null) {
+			Map<String, Object> data = decodeSerializedData(auditLog);
+			diff = new AuditLogDiff(auditLog.getAction(), data);
+			//An empty result is cheap to recompute and may come from a failed decode that would
+			//otherwise be served for the log until it is evicted
+			if (auditLog.getAuditLogId() != null && !data.isEmpty()) {
+				synchronized (diffCache) {
+					diffCache.put(key, diff);
+				}
+			}
+		}
+		
+		return diff;
+	}
+	
+	private static Map<String, Object> decodeSerializedData(AuditLog auditLog) {
+		Map<String, Object> data = null;
 		if (auditLog.getSerializedData() != null) {
 			try {
 				String serializedStr = getAsString(auditLog.getSerializedData());
 				if (StringUtils.isNotBlank(serializedStr)) {
-					changes = new ObjectMapper().readValue(serializedStr, Map.class);
+					data = getMapper().readValue(serializedStr, Map.class);
 				}
 			}
 			catch (Exception e) {
 				log.warn("Failed to convert serialized data to a map", e);
 			}
 		}
+		
+		return (data != null) ? data : new HashMap<String, Object>();
+	}
+	
+	/**
+	 * Returns a map of changes for AuditLogs with action UPDATED
+	 * 
+	 * @param auditLog
+	 * @return a map of changes
+	 * @see #getDiff(AuditLog)
+	 * @should return copies of the lists of values of the cached diff
+	 */
+	public static Map<String, List> getChangesOfUpdatedItem(AuditLog auditLog) {
+		if (auditLog.getAction() != UPDATED) {
+			throw new APIException("Can't call this method for an AuditLog item with action " + auditLog.getAction());
+		}
+		
+		//The lists of values are copied too so that changes to them don't leak into the cached diff
+		Map<String, List> changes = new HashMap<String, List>();
+		for (Map.Entry<String, List> entry : getDiff(auditLog).getChanges().entrySet()) {
+			changes.put(entry.getKey(), (entry.getValue() != null) ? new ArrayList(entry.getValue()) : null);
+		}
+		
 		return changes;
 	}
 	
@@ -165,26 +260,14 @@ public class AuditLogUtil {
 	 * 
 	 * @param auditLog
 	 * @return a map of property names and values
+	 * @see #getDiff(AuditLog)
 	 */
 	public static Map<String, String> getLastStateOfDeletedItem(AuditLog auditLog) {
 		if (auditLog.getAction() != DELETED) {
 			throw new APIException("Can't call this method for an AuditLog item with action " + auditLog.getAction());
 		}
 		
-		Map<String, String> changes = new HashMap<String, String>();
-		if (auditLog.getSerializedData() != null) {
-			try {
-				String serializedStr = getAsString(auditLog.getSerializedData());
-				if (StringUtils.isNotBlank(serializedStr)) {
-					changes = new ObjectMapper().readValue(serializedStr, Map.class);
-				}
-			}
-			catch (Exception e) {
-				log.warn("Failed to convert serialized last state data to a map", e);
-			}
-		}
-		
-		return changes;
+		return new HashMap<String, String>(getDiff(auditLog).getLastState());
 	}
 	
 	/**
@@ -195,11 +278,7 @@ public class AuditLogUtil {
 	 * @return the new property value if found
 	 */
 	public static Object getNewValueOfUpdatedItem(String propertyName, AuditLog auditLog) {
-		Map<String, List> changes = getChangesOfUpdatedItem(auditLog);
-		if (changes.get(propertyName) != null) {
-			return (changes.get(propertyName)).get(0);
-		}
-		return null;
+		return getDiff(auditLog).getNewValue(propertyName);
 	}
 	
 	/**
@@ -210,11 +289,7 @@ public class AuditLogUtil {
 	 * @return the old property value if found
 	 */
 	public static Object getPreviousValueOfUpdatedItem(String propertyName, AuditLog auditLog) {
-		Map<String, List> changes = getChangesOfUpdatedItem(auditLog);
-		if (changes.get(propertyName) != null) {
-			return (changes.get(propertyName)).get(1);
-		}
-		return null;
+		return getDiff(auditLog).getPreviousValue(propertyName);
 	}
 	
 	/**
@@ -272,6 +347,68 @@ public class AuditLogUtil {
 		return DAOUtils.getClassMetadata(clazz);
 	}
 	
+	/**
+	 * Gets the current state of the specified persistent object as a map of property names and
+	 * their serialized values, the identifier is included while properties with null values are
+	 * excluded
+	 *
+	 * @param object the persistent object
+	 * @return a map of property names and serialized values
+	 */
+	public static Map<String, Object> getPersistentState(Object object) {
+		Map<String, Object> propertyNameValueMap = null;
+		ClassMetadata cmd = getClassMetadata(getActualType(object));
+		if (cmd != null) {
+			propertyNameValueMap = new HashMap<String, Object>();
+			propertyNameValueMap.put(cmd.getIdentifierPropertyName(), cmd.getIdentifier(object));
+			for (String propertyName : cmd.getPropertyNames()) {
+				Object value = cmd.getPropertyValue(object, propertyName);
+				if (value != null) {
+					Object serializedValue = null;
+					if (cmd.getPropertyType(propertyName).isCollectionType()) {
+						if (Collection.class.isAssignableFrom(value.getClass())) {
+							serializedValue = serializeCollectionItems((Collection) value);
+						} else if (Map.class.isAssignableFrom(value.getClass())) {
+							serializedValue = serializeMapItems((Map) value);
+						}
+					} else {
+						serializedValue = serializeObject(value);
+					}
+					if (serializedValue != null) {
+						propertyNameValueMap.put(propertyName, serializedValue);
+					}
+				}
+			}
+		}
+
+		return propertyNameValueMap;
+	}
+
+	/**
+	 * Converts the specified serialized json state back to a map of property names and serialized
+	 * values, this is the reverse of {@link #serializeToJson(Object)} for a state or changes map
+	 *
+	 * @param blob the blob containing the json text
+	 * @return a map of property names and values
+	 */
+	@SuppressWarnings("unchecked")
+	public static Map<String, Object> getStateFromJson(Blob blob) {
+		Map<String, Object> state = new HashMap<String, Object>();
+		if (blob != null) {
+			try {
+				String serializedStr = getAsString(blob);
+				if (StringUtils.isNotBlank(serializedStr)) {
+					state = getMapper().readValue(serializedStr, Map.class);
+				}
+			}
+			catch (Exception e) {
+				throw new APIException("Failed to convert serialized data to a map", e);
+			}
+		}
+
+		return state;
+	}
+
 	public static String getAsString(Blob blob) throws Exception {
 		BufferedReader br = new BufferedReader(new InputStreamReader(blob.getBinaryStream()));
 		StringBuffer sb = new StringBuffer();
@@ -323,6 +460,89 @@ public class AuditLogUtil {
 		return serializedValue;
 	}
 
+	/**
+	 * Generates a uuid for a new audit log with the generator specified via the
+	 * {@link AuditLogConstants#GP_UUID_GENERATOR} global property
+	 *
+	 * @return the generated uuid
+	 * @should generate time ordered uuids by default
+	 * @should use the generator specified via the global property
+	 */
+	public static String generateUuid() {
+		return getUuidGenerator().generateUuid();
+	}
+
+	/**
+	 * Gets the generator of the uuids of audit logs, defaults to {@link TimeOrderedUuidGenerator} if
+	 * none is specified via the {@link AuditLogConstants#GP_UUID_GENERATOR} global property or if
+	 * the specified one can't be created, the generator is cached until the global property changes
+	 *
+	 * @return the uuid generator
+	 * @should fall back to the default generator if the specified one can't be created
+	 */
+	public static UuidGenerator getUuidGenerator() {
+		UuidGenerator generator = uuidGenerator;
+		if (generator == null) {
+			String gpValue = Context.getAdministrationService().getGlobalProperty(AuditLogConstants.GP_UUID_GENERATOR);
+			if (StringUtils.isNotBlank(gpValue)) {
+				try {
+					generator = (UuidGenerator) Context.loadClass(gpValue.trim()).newInstance();
+				}
+				catch (Exception e) {
+					//Failing here would fail every audited save, so the default is used until the
+					//global property is fixed
+					log.warn("Failed to create the uuid generator: " + gpValue + ", using the default", e);
+				}
+			}
+			if (generator == null) {
+				generator = new TimeOrderedUuidGenerator();
+			}
+			uuidGenerator = generator;
+		}
+
+		return generator;
+	}
+
+	/**
+	 * Sets the generator of the uuids of audit logs, setting it to null causes it to be looked up
+	 * again from the {@link AuditLogConstants#GP_UUID_GENERATOR} global property
+	 *
+	 * @param generator the generator to set
+	 */
+	public static void setUuidGenerator(UuidGenerator generator) {
+		uuidGenerator = generator;
+	}
+
+	/**
+	 * Computes the hash stored in the property change table for the specified serialized property
+	 * value, it is the hex encoded SHA-256 digest of the UTF-8 bytes of the value
+	 *
+	 * @param serializedValue the serialized value
+	 * @return the hash or null if the value is null
+	 */
+	public static String hashPropertyValue(String serializedValue) {
+		if (serializedValue == null) {
+			return null;
+		}
+
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256").digest(serializedValue.getBytes("UTF-8"));
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new APIException("Failed to hash property value", e);
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new APIException("Failed to hash property value", e);
+		}
+
+		StringBuilder hash = new StringBuilder(digest.length * 2);
+		for (byte b : digest) {
+			hash.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return hash.toString();
+	}
+
 
 
 	private static boolean isMappedEntity(Class<?> clazz) {
@@ -0,0 +1,173 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.util;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.openmrs.Concept;
+import org.openmrs.ConceptName;
+import org.openmrs.Person;
+import org.openmrs.PersonName;
+
+/**
+ * A bounded cache with time limited entries of the display labels of the entities referenced by
+ * audit logs keyed by entity type and serialized id, it saves the audit log UI from navigating the
+ * lazy associations of the same entities every time a log is viewed. Entries are evicted when the
+ * transaction that updated or deleted the audited entity they belong to commits, since a label can
+ * also be derived from other entities e.g. the concept of an obs, the time limit bounds how long
+ * such labels stay stale.
+ */
+public final class DisplayLabelCache {
+
+	private static final int MAX_SIZE = 1000;
+
+	private static final long TIME_TO_LIVE = 10 * 60 * 1000;
+
+	private static final Map<String, Entry> labels = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size() > MAX_SIZE;
+		}
+	};
+
+	private DisplayLabelCache() {
+	}
+
+	/**
+	 * Gets the cached display label of the entity of the specified type with the specified id
+	 *
+	 * @param type the entity type
+	 * @param id the serialized id
+	 * @return the label or null if none is cached or it has expired
+	 */
+	public static String get(Class<?> type, Object id) {
+		String key = getKey(type, id);
+		synchronized (labels) {
+			Entry entry = labels.get(key);
+			if (entry == null) {
+				return null;
+			}
+			if (entry.expiresAt < System.currentTimeMillis()) {
+				labels.remove(key);
+				return null;
+			}
+			return entry.label;
+		}
+	}
+
+	/**
+	 * Caches the display label of the entity of the specified type with the specified id
+	 *
+	 * @param type the entity type
+	 * @param id the serialized id
+	 * @param label the label to cache
+	 */
+	public static void put(Class<?> type, Object id, String label) {
+		synchronized (labels) {
+			labels.put(getKey(type, id), new Entry(label, System.currentTimeMillis() + TIME_TO_LIVE));
+		}
+	}
+
+	/**
+	 * Adds the keys of the cached labels to evict when the specified entity is updated or deleted,
+	 * those of the entity that owns it are included in case its label is derived from the specified
+	 * entity e.g. a concept and its names, the keys are added for the class of the entity and all its
+	 * super classes since references are cached by their declared types. No lock is taken so that it
+	 * can be called while a session is flushed.
+	 *
+	 * @param entity the updated or deleted entity
+	 * @param id the id of the entity
+	 * @param keys the keys to add to
+	 * @should add the keys of the entity and its super classes
+	 * @should add the keys of the owner of a name
+	 */
+	public static void addKeys(Object entity, Object id, Set<String> keys) {
+		if (entity instanceof ConceptName) {
+			Concept concept = ((ConceptName) entity).getConcept();
+			if (concept != null) {
+				addTypeKeys(AuditLogUtil.getActualType(concept), concept.getConceptId(), keys);
+			}
+		} else if (entity instanceof PersonName) {
+			Person person = ((PersonName) entity).getPerson();
+			if (person != null) {
+				addTypeKeys(AuditLogUtil.getActualType(person), person.getPersonId(), keys);
+			}
+		}
+
+		addTypeKeys(AuditLogUtil.getActualType(entity), id, keys);
+	}
+
+	/**
+	 * Evicts the cached labels with the specified keys, it is called once the transaction that
+	 * changed the entities has committed
+	 *
+	 * @param keys the keys collected by {@link #addKeys(Object, Object, Set)}
+	 * @should evict the labels with the specified keys
+	 */
+	public static void evict(Collection<String> keys) {
+		if (keys.isEmpty()) {
+			return;
+		}
+
+		synchronized (labels) {
+			if (labels.isEmpty()) {
+				return;
+			}
+			for (String key : keys) {
+				labels.remove(key);
+			}
+		}
+	}
+
+	private static void addTypeKeys(Class<?> type, Object id, Set<String> keys) {
+		if (id == null) {
+			return;
+		}
+
+		for (Class<?> clazz = type; clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+			keys.add(getKey(clazz, id));
+		}
+	}
+
+	/**
+	 * Removes all the cached labels
+	 */
+	public static void clear() {
+		synchronized (labels) {
+			labels.clear();
+		}
+	}
+
+	private static String getKey(Class<?> type, Object id) {
+		return type.getName() + "#" + id.toString().trim();
+	}
+
+	private static class Entry {
+
+		private final String label;
+
+		private final long expiresAt;
+
+		Entry(String label, long expiresAt) {
+			this.label = label;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
@@ -0,0 +1,32 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.util;
+
+import java.util.UUID;
+
+/**
+ * Generates random(version 4) uuids via {@link UUID#randomUUID()}, they are drawn from a shared
+ * SecureRandom instance and are scattered across the uuid index, it is the generator that was used
+ * before {@link TimeOrderedUuidGenerator} became the default.
+ */
+public class RandomUuidGenerator implements UuidGenerator {
+	
+	/**
+	 * @see UuidGenerator#generateUuid()
+	 */
+	@Override
+	public String generateUuid() {
+		return UUID.randomUUID().toString();
+	}
+}
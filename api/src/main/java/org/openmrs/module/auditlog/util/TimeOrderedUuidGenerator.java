@@ -0,0 +1,71 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.util;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates time ordered uuids laid out like version 7 uuids, the first 48 bits hold the unix time
+ * in milliseconds followed by the version, a 12 bit sequence that orders the uuids generated within
+ * the same millisecond, the variant and 62 random bits. Uuids generated one after the other sort in
+ * generation order so they are appended to the end of the uuid index instead of being scattered
+ * across its pages, the random bits keep them unique across nodes.
+ * <p>
+ * The time and sequence are advanced with a compare and set and the random bits are drawn from
+ * {@link ThreadLocalRandom} so concurrent callers never block each other. If more than 4096 uuids
+ * are generated within a millisecond or the clock moves backwards, the time is advanced past the
+ * clock to keep the uuids ordered.
+ */
+public class TimeOrderedUuidGenerator implements UuidGenerator {
+	
+	private static final int SEQUENCE_BITS = 12;
+	
+	private static final long TIMESTAMP_MASK = 0xFFFFFFFFFFFFL;
+	
+	private static final long SEQUENCE_MASK = 0xFFFL;
+	
+	private static final long VERSION = 0x7000L;
+	
+	private static final long VARIANT = 0x8000000000000000L;
+	
+	private static final long RANDOM_MASK = 0x3FFFFFFFFFFFFFFFL;
+	
+	//The time in milliseconds shifted left by the sequence bits plus the sequence of the last uuid
+	private final AtomicLong lastTimeAndSequence = new AtomicLong();
+	
+	/**
+	 * @see UuidGenerator#generateUuid()
+	 */
+	@Override
+	public String generateUuid() {
+		long timeAndSequence = nextTimeAndSequence();
+		long mostSigBits = (((timeAndSequence >>> SEQUENCE_BITS) & TIMESTAMP_MASK) << 16) | VERSION
+		        | (timeAndSequence & SEQUENCE_MASK);
+		long leastSigBits = VARIANT | (ThreadLocalRandom.current().nextLong() & RANDOM_MASK);
+		
+		return new UUID(mostSigBits, leastSigBits).toString();
+	}
+	
+	private long nextTimeAndSequence() {
+		while (true) {
+			long last = lastTimeAndSequence.get();
+			long next = Math.max(System.currentTimeMillis() << SEQUENCE_BITS, last + 1);
+			if (lastTimeAndSequence.compareAndSet(last, next)) {
+				return next;
+			}
+		}
+	}
+}
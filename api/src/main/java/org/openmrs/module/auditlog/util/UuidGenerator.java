@@ -0,0 +1,33 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.util;
+
+/**
+ * Generates the uuids of audit logs, the implementation in use is specified via the
+ * {@link AuditLogConstants#GP_UUID_GENERATOR} global property which takes the fully qualified name
+ * of a class implementing this interface that has a no argument constructor. Implementations must
+ * be thread safe and generate values that are unique across all the nodes writing to the database.
+ * 
+ * @see TimeOrderedUuidGenerator
+ * @see RandomUuidGenerator
+ */
+public interface UuidGenerator {
+	
+	/**
+	 * Generates a new uuid
+	 * 
+	 * @return the uuid in its standard 36 character string form
+	 */
+	public String generateUuid();
+}
@@ -34,6 +34,9 @@ import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.reflect.FieldUtils;
+import org.hibernate.Hibernate;
+import org.junit.After;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.openmrs.Concept;
@@ -53,6 +56,8 @@ import org.openmrs.api.EncounterService;
 import org.openmrs.api.PatientService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.auditlog.AuditLog.Action;
+import org.openmrs.module.auditlog.api.db.AuditLogDAO;
+import org.openmrs.module.auditlog.api.db.hibernate.interceptor.AuditPlan;
 import org.openmrs.module.auditlog.strategy.AuditStrategy;
 import org.openmrs.module.auditlog.strategy.ExceptionBasedAuditStrategy;
 import org.openmrs.module.auditlog.util.AuditLogConstants;
@@ -60,6 +65,8 @@ import org.openmrs.module.auditlog.util.AuditLogUtil;
 import org.skyscreamer.jsonassert.JSONAssert;
 import org.skyscreamer.jsonassert.JSONCompareMode;
 import org.springframework.jdbc.UncategorizedSQLException;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 /**
  * Contains tests for testing the core functionality of the module
@@ -68,6 +75,26 @@ import org.springframework.jdbc.UncategorizedSQLException;
 @Ignore
 public class AuditLogBehaviorTest extends BaseBehaviorTest {
 	
+	private AuditLogDAO getAuditLogDAO() {
+		return Context.getRegisteredComponents(AuditLogDAO.class).get(0);
+	}
+	
+	/**
+	 * Sets the property rules global property and applies the rules, they are otherwise applied once
+	 * the global property is committed and the test transactions are rolled back
+	 */
+	private void setPropertyRules(String rules) throws Exception {
+		AuditLogUtil.setGlobalProperty(AuditLogConstants.GP_PROPERTY_RULES, rules);
+		for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+			synchronization.afterCommit();
+		}
+	}
+	
+	@After
+	public void resetPropertyRules() {
+		AuditPlan.setRules(Collections.<String, Map<String, Object>> emptyMap());
+	}
+	
 	@Test
 	
 	public void shouldCreateAnAuditLogEntryWhenANewObjectIsCreated() {
@@ -118,6 +145,36 @@ public class AuditLogBehaviorTest extends BaseBehaviorTest {
 		        + "\"uuid\":\"02c533ab-b74b-4ee4-b6e5-ffb6d09a0ac8\"," + "\"creator\":\"1\"}", serializedData, JSONCompareMode.STRICT);
 	}
 	
+	@Test
+	public void shouldLoadTheSerializedDataOfAnAuditLogOnlyWhenItIsRequested() throws Exception {
+		AuditLogUtil.setGlobalProperty(AuditLogConstants.GP_STORE_LAST_STATE_OF_DELETED_ITEMS, "true");
+		EncounterType encounterType = encounterService.getEncounterType(6);
+		encounterService.purgeEncounterType(encounterType);
+		String uuid = getAllLogs(encounterType.getId(), EncounterType.class, null).get(0).getUuid();
+		Context.flushSession();
+		Context.clearSession();
+		
+		AuditLog al = auditLogService.getAuditLogByUuid(uuid);
+		Set<?> data = (Set<?>) FieldUtils.readField(al, "data", true);
+		assertFalse(Hibernate.isInitialized(data));
+		assertNotNull(al.getSerializedData());
+		assertTrue(Hibernate.isInitialized(data));
+	}
+	
+	@Test
+	public void shouldExcludeTheConfiguredPropertiesFromTheLastStateOfADeletedObject() throws Exception {
+		AuditLogUtil.setGlobalProperty(AuditLogConstants.GP_STORE_LAST_STATE_OF_DELETED_ITEMS, "true");
+		setPropertyRules("{\"org.openmrs.EncounterType\": {\"deletedStateExclude\": [\"description\", \"retireReason\"]}}");
+		EncounterType encounterType = encounterService.getEncounterType(6);
+		encounterService.purgeEncounterType(encounterType);
+		List<AuditLog> logs = getAllLogs(encounterType.getId(), EncounterType.class, null);
+		assertEquals(1, logs.size());
+		Map<String, String> lastState = AuditLogUtil.getLastStateOfDeletedItem(logs.get(0));
+		assertEquals("Laboratory", lastState.get("name"));
+		assertFalse(lastState.containsKey("description"));
+		assertFalse(lastState.containsKey("retireReason"));
+	}
+	
 	@Test
 	
 	public void shouldCreateAnAuditLogEntryWhenAnObjectIsEdited() throws Exception {
@@ -155,6 +212,67 @@ public class AuditLogBehaviorTest extends BaseBehaviorTest {
 		assertEquals(newVersion, AuditLogUtil.getNewValueOfUpdatedItem("version", auditLog));
 	}
 	
+	@Test
+	public void shouldApplyTheConfiguredPropertyRulesWhenAnObjectIsEdited() throws Exception {
+		setPropertyRules("{\"org.openmrs.EncounterType\": {\"exclude\": [\"description\"], \"caseSensitive\": true}}");
+		EncounterType type = encounterService.getEncounterType(6);
+		String oldName = type.getName();
+		type.setName(oldName.toUpperCase());
+		type.setDescription("new description");
+		encounterService.saveEncounterType(type);
+		
+		List<AuditLog> logs = getAllLogs(type.getId(), EncounterType.class, Collections.singletonList(UPDATED));
+		assertEquals(1, logs.size());
+		Map<String, List> changes = AuditLogUtil.getChangesOfUpdatedItem(logs.get(0));
+		assertEquals(1, changes.size());
+		assertEquals(oldName, AuditLogUtil.getPreviousValueOfUpdatedItem("name", logs.get(0)));
+	}
+	
+	@Test
+	public void shouldUpdateTheLatestLogOfAnObjectWhenItIsEdited() throws Exception {
+		Concept concept = conceptService.getConcept(3);
+		concept.setVersion("1.11");
+		conceptService.saveConcept(concept);
+		List<AuditLog> logs = getAllLogs();
+		assertEquals(1, logs.size());
+		
+		AuditLogLatest latest = auditLogService.getLatestAuditLog(concept.getConceptId(), Concept.class);
+		assertEquals(logs.get(0), latest.getAuditLog());
+		assertEquals(UPDATED, latest.getAction());
+	}
+	
+	@Test
+	public void shouldRecordTheChangedPropertiesOfAnObjectWhenItIsEdited() throws Exception {
+		Concept concept = conceptService.getConcept(3);
+		String previousVersion = concept.getVersion();
+		concept.setVersion("1.11");
+		conceptService.saveConcept(concept);
+		List<AuditLog> logs = getAllLogs();
+		assertEquals(1, logs.size());
+	
+		List<Class<?>> clazzes = new ArrayList<Class<?>>();
+		clazzes.add(Concept.class);
+		List<AuditLog> changedLogs = auditLogService.getAuditLogsByChangedProperty(clazzes, "version", "1.11",
+		    previousVersion, null, null);
+		assertEquals(1, changedLogs.size());
+		assertEquals(logs.get(0), changedLogs.get(0));
+		assertTrue(auditLogService.getAuditLogsByChangedProperty(clazzes, "version", "1.12", null, null, null).isEmpty());
+	}
+	
+	@Test
+	public void shouldStoreTheUuidOfTheAuditedObject() throws Exception {
+		EncounterType encounterType = encounterService.getEncounterType(6);
+		String uuid = encounterType.getUuid();
+		encounterService.purgeEncounterType(encounterType);
+		List<AuditLog> logs = getAllLogs(encounterType.getId(), EncounterType.class, null);
+		assertEquals(1, logs.size());
+		assertEquals(uuid, logs.get(0).getObjectUuid());
+		
+		List<AuditLog> uuidLogs = auditLogService.getAuditLogsByObjectUuid(uuid, null, null, null, false, null, null);
+		assertEquals(1, uuidLogs.size());
+		assertEquals(logs.get(0), uuidLogs.get(0));
+	}
+	
 	@Test
 	
 	public void shouldCreateNoLogEntryIfNoChangesAreMadeToAnExistingObject() throws Exception {
@@ -567,4 +685,59 @@ public class AuditLogBehaviorTest extends BaseBehaviorTest {
 		assertEquals(oldName, AuditLogUtil.getPreviousValueOfUpdatedItem("name", log));
 		assertEquals(newName, AuditLogUtil.getNewValueOfUpdatedItem("name", log));
 	}
+	
+	@Test
+	public void shouldCreateLogsForChangesFlushedBeforeTheTransactionCompletesInTheBoundedMemoryMode() throws Exception {
+		AuditLogUtil.setGlobalProperty(AuditLogConstants.GP_BOUNDED_MEMORY, "true");
+		//Spill the logs of every flush to disk
+		AuditLogUtil.setGlobalProperty(AuditLogConstants.GP_SPILL_THRESHOLD, "1");
+		//Caches the values for the new transaction below which can't see the uncommitted ones
+		assertTrue(getAuditLogDAO().isBoundedMemory());
+		assertEquals(1, getAuditLogDAO().getSpillThreshold());
+		final EncounterType type1 = new EncounterType("first", "first type");
+		final EncounterType type2 = new EncounterType("second", "second type");
+		final String oldName = encounterService.getEncounterType(1).getName();
+		//The mode is picked when the transaction begins
+		Context.getService(MockNestedService.class).runInNewTransaction(new Runnable() {
+			
+			@Override
+			public void run() {
+				encounterService.saveEncounterType(type1);
+				Context.flushSession();
+				Context.clearSession();
+				
+				encounterService.saveEncounterType(type2);
+				EncounterType type = encounterService.getEncounterType(1);
+				type.setName("new name");
+				encounterService.saveEncounterType(type);
+			}
+		});
+		
+		assertEquals(CREATED, getAllLogs(type1.getId(), EncounterType.class, null).get(0).getAction());
+		assertEquals(CREATED, getAllLogs(type2.getId(), EncounterType.class, null).get(0).getAction());
+		List<AuditLog> logs = getAllLogs(1, EncounterType.class, Collections.singletonList(UPDATED));
+		assertEquals(1, logs.size());
+		assertEquals(oldName, AuditLogUtil.getPreviousValueOfUpdatedItem("name", logs.get(0)));
+	}
+	
+	@Test
+	public void shouldWriteTheLogsAtTheFlushesOnceTheirNumberReachesTheFlushWriteInterval() throws Exception {
+		AuditLogUtil.setGlobalProperty(AuditLogConstants.GP_FLUSH_WRITE_INTERVAL, "1");
+		//Caches the value for the new transaction below which can't see the uncommitted one
+		assertEquals(1, getAuditLogDAO().getFlushWriteInterval());
+		//The mode is picked when the transaction begins
+		Context.getService(MockNestedService.class).runInNewTransaction(new Runnable() {
+			
+			@Override
+			public void run() {
+				EncounterType type = new EncounterType("first", "first type");
+				encounterService.saveEncounterType(type);
+				Context.flushSession();
+				
+				//The log should be in the database before the transaction completes
+				assertEquals(1, auditLogService.getAuditLogs(type.getId(), EncounterType.class, null, null, null, false)
+				        .size());
+			}
+		});
+	}
 }
@@ -33,6 +33,7 @@ import java.util.Map;
 import java.util.Set;
 
 import org.codehaus.jackson.map.ObjectMapper;
+import org.hibernate.Hibernate;
 import org.hibernate.persister.collection.CollectionPersister;
 import org.junit.Ignore;
 import org.junit.Test;
@@ -766,6 +767,31 @@ public class CollectionsAuditLogBehaviorTest extends BaseBehaviorTest {
 
     @Test
 
+    public void shouldRecordThePropertyChangesOfEditedCollectionsAndMaps() throws Exception {
+        executeDataSet("org/openmrs/api/include/UserServiceTest.xml");
+        UserService us = Context.getUserService();
+        User user = us.getUser(505);
+        Role role = us.saveRole(new Role("Some new role", "Some description"));
+        startAuditing(User.class);
+        user.setUserProperty("some new key", "some new value");
+        user.addRole(role);
+        us.saveUser(user);
+        List<AuditLog> logs = getAllLogs(user.getId(), User.class, null);
+        assertEquals(1, logs.size());
+
+        List<Class<?>> clazzes = new ArrayList<Class<?>>();
+        clazzes.add(User.class);
+        List<AuditLog> changedLogs = auditLogService.getAuditLogsByChangedProperty(clazzes, "userProperties", null, null,
+                null, null);
+        assertEquals(1, changedLogs.size());
+        assertEquals(logs.get(0), changedLogs.get(0));
+        changedLogs = auditLogService.getAuditLogsByChangedProperty(clazzes, "roles", null, null, null, null);
+        assertEquals(1, changedLogs.size());
+        assertEquals(logs.get(0), changedLogs.get(0));
+    }
+
+    @Test
+
     public void shouldCreateAnAuditLogForTheParentWhenAMapPropertyIsReplacedWithANullValue() throws Exception {
         executeDataSet("org/openmrs/api/include/UserServiceTest.xml");
         UserService us = Context.getUserService();
@@ -1433,4 +1459,41 @@ public class CollectionsAuditLogBehaviorTest extends BaseBehaviorTest {
         List<AuditLog> logs = auditLogService.getAuditLogs(classes, actions, null, null, false, null, null);
         assertEquals(0, logs.size());
     }
+
+    @Test
+    public void shouldLinkTheLogsOfDeletedElementsOfAnUninitializedCollectionNotCascadingTheDeleteToTheDeletedParent()
+            throws Exception {
+        LocationService ls = Context.getLocationService();
+        LocationTag tag1 = ls.saveLocationTag(new LocationTag("first tag", "first tag"));
+        LocationTag tag2 = ls.saveLocationTag(new LocationTag("second tag", "second tag"));
+        Location location = new Location();
+        location.setName("some location");
+        location.addTag(tag1);
+        location.addTag(tag2);
+        ls.saveLocation(location);
+        Context.flushSession();
+        Context.clearSession();
+
+        startAuditing(Location.class);
+        startAuditing(LocationTag.class);
+        location = ls.getLocation(location.getId());
+        //Location.tags doesn't cascade the delete so its elements are not loaded by hibernate
+        assertFalse(Hibernate.isInitialized(location.getTags()));
+        ls.purgeLocation(location);
+        ls.purgeLocationTag(ls.getLocationTag(tag1.getId()));
+        ls.purgeLocationTag(ls.getLocationTag(tag2.getId()));
+
+        List<AuditLog> locationLogs = getAllLogs(location.getId(), Location.class, Collections.singletonList(DELETED));
+        assertEquals(1, locationLogs.size());
+        Set<AuditLog> childLogs = locationLogs.get(0).getChildAuditLogs();
+        assertEquals(2, childLogs.size());
+        Set<String> childIds = new HashSet<String>();
+        for (AuditLog childLog : childLogs) {
+            assertEquals(DELETED, childLog.getAction());
+            assertEquals(LocationTag.class.getName(), childLog.getType());
+            childIds.add(childLog.getIdentifier());
+        }
+        assertTrue(childIds.contains(tag1.getId().toString()));
+        assertTrue(childIds.contains(tag2.getId().toString()));
+    }
 }
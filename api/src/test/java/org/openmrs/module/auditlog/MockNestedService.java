@@ -24,4 +24,6 @@ public interface MockNestedService extends OpenmrsService {
 	
 	void innerTransaction(boolean rollback);
 	
+	void runInNewTransaction(Runnable work);
+	
 }
@@ -52,4 +52,10 @@ public class MockNestedServiceImpl extends BaseOpenmrsService implements MockNes
 		}
 	}
 	
+	@Override
+	@Transactional(propagation = Propagation.REQUIRES_NEW)
+	public void runInNewTransaction(Runnable work) {
+		work.run();
+	}
+	
 }
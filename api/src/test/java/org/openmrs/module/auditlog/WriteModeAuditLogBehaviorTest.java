@@ -0,0 +1,145 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog;
+
+import static org.junit.Assert.assertEquals;
+import static org.openmrs.module.auditlog.AuditLog.Action.UPDATED;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openmrs.EncounterType;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.auditlog.api.db.hibernate.AuditLogDataSources;
+import org.openmrs.module.auditlog.api.db.hibernate.interceptor.AuditLogJournal;
+import org.openmrs.module.auditlog.util.AuditLogConstants;
+import org.openmrs.module.auditlog.util.AuditLogUtil;
+
+/**
+ * Contains tests for the write modes of the logs, the audited changes are made in a new
+ * transaction that is committed or rolled back before the logs are checked
+ */
+@Ignore
+public class WriteModeAuditLogBehaviorTest extends BaseBehaviorTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private Properties originalProps;
+	
+	private void setWriteMode(AuditLogWriteMode writeMode, String writeDataSourceUrl) throws Exception {
+		AuditLogUtil.setGlobalProperty(AuditLogConstants.GP_WRITE_MODE, writeMode.name());
+		originalProps = Context.getRuntimeProperties();
+		Properties props = Context.getRuntimeProperties();
+		if (writeDataSourceUrl != null) {
+			props.setProperty(AuditLogConstants.RP_WRITE_DATASOURCE + ".url", writeDataSourceUrl);
+		}
+		props.setProperty(AuditLogConstants.RP_JOURNAL_DIRECTORY, folder.getRoot().getAbsolutePath());
+		Context.setRuntimeProperties(props);
+		AuditLogDataSources.close();
+	}
+	
+	private String getConnectionUrl() {
+		return Context.getRuntimeProperties().getProperty("connection.url");
+	}
+	
+	private List<AuditLog> updateEncounterTypeInNewTransaction(boolean rollback) {
+		try {
+			Context.getService(MockNestedService.class).innerTransaction(rollback);
+		}
+		catch (APIException e) {}
+		
+		return getAllLogs(MockNestedService.ENCOUNTER_TYPE_ID, EncounterType.class, Collections.singletonList(UPDATED));
+	}
+	
+	@After
+	public void after() {
+		if (originalProps != null) {
+			Context.setRuntimeProperties(originalProps);
+		}
+		AuditLogDataSources.close();
+		AuditLogJournal.shutdown();
+	}
+	
+	@Test
+	public void shouldWriteTheLogsOfACommittedTransactionInTheSameCommitMode() throws Exception {
+		setWriteMode(AuditLogWriteMode.SAME_COMMIT, getConnectionUrl());
+		assertEquals(1, updateEncounterTypeInNewTransaction(false).size());
+	}
+	
+	@Test
+	public void shouldNotWriteTheLogsOfARolledBackTransactionInTheSameCommitMode() throws Exception {
+		setWriteMode(AuditLogWriteMode.SAME_COMMIT, getConnectionUrl());
+		assertEquals(0, updateEncounterTypeInNewTransaction(true).size());
+	}
+	
+	@Test
+	public void shouldWriteTheLogsInTheTransactionInTheSameCommitModeIfNoWritePoolIsConfigured() throws Exception {
+		setWriteMode(AuditLogWriteMode.SAME_COMMIT, null);
+		assertEquals(1, updateEncounterTypeInNewTransaction(false).size());
+		//No log is added for the rolled back transaction
+		assertEquals(1, updateEncounterTypeInNewTransaction(true).size());
+	}
+	
+	@Test
+	public void shouldWriteTheLogsOfACommittedTransactionInTheAfterCommitMode() throws Exception {
+		setWriteMode(AuditLogWriteMode.AFTER_COMMIT, null);
+		assertEquals(1, updateEncounterTypeInNewTransaction(false).size());
+	}
+	
+	@Test
+	public void shouldNotWriteTheLogsOfARolledBackTransactionInTheAfterCommitMode() throws Exception {
+		setWriteMode(AuditLogWriteMode.AFTER_COMMIT, null);
+		assertEquals(0, updateEncounterTypeInNewTransaction(true).size());
+	}
+	
+	@Test
+	public void shouldAppendTheLogsToTheJournalIfWritingThemFailsInTheAfterCommitMode() throws Exception {
+		//A second empty H2 database has no audit log tables so all the attempts fail
+		setWriteMode(AuditLogWriteMode.AFTER_COMMIT, "jdbc:h2:mem:auditlog_unavailable;DB_CLOSE_DELAY=-1");
+		assertEquals(0, updateEncounterTypeInNewTransaction(false).size());
+		
+		assertEquals(1, auditLogService.ingestJournal(10));
+		assertEquals(1, getAllLogs(MockNestedService.ENCOUNTER_TYPE_ID, EncounterType.class,
+		    Collections.singletonList(UPDATED)).size());
+	}
+	
+	@Test
+	public void shouldWriteTheLogsOfACommittedTransactionInTheJournalMode() throws Exception {
+		setWriteMode(AuditLogWriteMode.JOURNAL, null);
+		assertEquals(0, updateEncounterTypeInNewTransaction(false).size());
+		
+		assertEquals(1, auditLogService.ingestJournal(10));
+		assertEquals(1, getAllLogs(MockNestedService.ENCOUNTER_TYPE_ID, EncounterType.class,
+		    Collections.singletonList(UPDATED)).size());
+	}
+	
+	@Test
+	public void shouldNotWriteTheLogsOfARolledBackTransactionInTheJournalMode() throws Exception {
+		setWriteMode(AuditLogWriteMode.JOURNAL, null);
+		updateEncounterTypeInNewTransaction(true);
+		
+		//The pending record and the aborted record
+		assertEquals(2, auditLogService.ingestJournal(10));
+		assertEquals(0, getAllLogs(MockNestedService.ENCOUNTER_TYPE_ID, EncounterType.class,
+		    Collections.singletonList(UPDATED)).size());
+	}
+}
@@ -19,12 +19,25 @@ import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertNull;
 import static junit.framework.Assert.assertTrue;
 
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 
 import org.apache.commons.lang.ArrayUtils;
+import org.dbunit.dataset.ReplacementDataSet;
+import org.dbunit.dataset.xml.FlatXmlDataSetBuilder;
+import org.hibernate.Hibernate;
 import org.junit.Ignore;
 import org.junit.Rule;
 import org.junit.Test;
@@ -33,17 +46,26 @@ import org.openmrs.Concept;
 import org.openmrs.ConceptDescription;
 import org.openmrs.ConceptName;
 import org.openmrs.ConceptNumeric;
+import org.openmrs.EncounterType;
 import org.openmrs.Location;
 import org.openmrs.OpenmrsObject;
+import org.openmrs.User;
 import org.openmrs.api.APIException;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.auditlog.AuditLog;
 import org.openmrs.module.auditlog.AuditLog.Action;
+import org.openmrs.module.auditlog.AuditLogDailyCount;
+import org.openmrs.module.auditlog.AuditLogLatest;
+import org.openmrs.module.auditlog.AuditLogSummary;
 import org.openmrs.module.auditlog.BaseAuditLogTest;
 import org.openmrs.module.auditlog.api.db.AuditLogDAO;
+import org.openmrs.module.auditlog.api.db.hibernate.AuditLogDataSources;
 import org.openmrs.module.auditlog.strategy.AuditStrategy;
+import org.openmrs.module.auditlog.util.AuditLogConstants;
+import org.openmrs.module.auditlog.util.AuditLogUtil;
 import org.openmrs.test.Verifies;
 import org.openmrs.util.OpenmrsUtil;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 /**
  * Contains tests for methods in {@link AuditLogService}
@@ -66,6 +88,48 @@ public class AuditLogServiceTest extends BaseAuditLogTest {
 		return Context.getRegisteredComponents(AuditLogDAO.class).get(0);
 	}
 	
+	/**
+	 * Executes the audit logs dataset, its type ids are placeholders replaced with the keys of the
+	 * class names since entries added by earlier tests are committed and could clash with fixed keys
+	 */
+	private void executeAuditLogsDataSet() throws Exception {
+		FlatXmlDataSetBuilder builder = new FlatXmlDataSetBuilder();
+		builder.setColumnSensing(true);
+		ReplacementDataSet dataSet = new ReplacementDataSet(builder.build(getClass().getClassLoader()
+		        .getResourceAsStream(MODULE_TEST_DATA_AUDIT_LOGS)));
+		for (Class<?> clazz : Arrays.<Class<?>> asList(ConceptNumeric.class, ConceptDescription.class, ConceptName.class)) {
+			dataSet.addReplacementObject("[" + clazz.getName() + "]", getTypeId(clazz.getName()));
+		}
+		executeDataSet(dataSet);
+	}
+	
+	private Integer getTypeId(String classname) throws Exception {
+		PreparedStatement ps = getConnection().prepareStatement("select type_id from auditlog_type where classname = ?");
+		try {
+			ps.setString(1, classname);
+			ResultSet rs = ps.executeQuery();
+			if (rs.next()) {
+				return rs.getInt(1);
+			}
+		}
+		finally {
+			ps.close();
+		}
+		
+		ps = getConnection().prepareStatement("insert into auditlog_type (classname) values (?)",
+		    Statement.RETURN_GENERATED_KEYS);
+		try {
+			ps.setString(1, classname);
+			ps.executeUpdate();
+			ResultSet rs = ps.getGeneratedKeys();
+			rs.next();
+			return rs.getInt(1);
+		}
+		finally {
+			ps.close();
+		}
+	}
+	
 	private void setAuditConfiguration(AuditStrategy strategy) throws Exception {
 		setAuditConfiguration(strategy, null, false);
 	}
@@ -76,7 +140,7 @@ public class AuditLogServiceTest extends BaseAuditLogTest {
 	@Test
 	@Verifies(value = "should get the saved object matching the specified arguments", method = "get(Class<T>,Integer)")
 	public void getObjectById_shouldGetTheSavedObjectMatchingTheSpecifiedArguments() throws Exception {
-		executeDataSet(MODULE_TEST_DATA_AUDIT_LOGS);
+		executeAuditLogsDataSet();
 		AuditLog al = auditLogService.getObjectById(AuditLog.class, 1);
 		assertEquals("4f7d57f0-9077-11e1-aaa4-00248140a5eb", al.getUuid());
 		
@@ -99,7 +163,7 @@ public class AuditLogServiceTest extends BaseAuditLogTest {
 	@Test
 	@Verifies(value = "should match on the specified audit log actions", method = "getAuditLogs(Class<*>,List<Action>,Date,Date,Integer,Integer)")
 	public void getAuditLogs_shouldMatchOnTheSpecifiedAuditLogActions() throws Exception {
-		executeDataSet(MODULE_TEST_DATA_AUDIT_LOGS);
+		executeAuditLogsDataSet();
 		List<Action> actions = new ArrayList<Action>();
 		actions.add(Action.CREATED);//get only inserts
 		assertEquals(3, auditLogService.getAuditLogs(null, actions, null, null, false, null, null).size());
@@ -122,7 +186,7 @@ public class AuditLogServiceTest extends BaseAuditLogTest {
 	@Test
 	@Verifies(value = "should return all audit logs in the database if all args are null", method = "getAuditLogs(Class<*>,List<Action>,Date,Date,Integer,Integer)")
 	public void getAuditLogs_shouldReturnAllAuditLogsInTheDatabaseIfAllArgsAreNull() throws Exception {
-		executeDataSet(MODULE_TEST_DATA_AUDIT_LOGS);
+		executeAuditLogsDataSet();
 		assertEquals(6, getAllAuditLogs().size());
 	}
 	
@@ -132,7 +196,7 @@ public class AuditLogServiceTest extends BaseAuditLogTest {
 	@Test
 	@Verifies(value = "should match on the specified classes", method = "getAuditLogs(List<Class<?>>,List<Action>,Date,Date,Integer,Integer)")
 	public void getAuditLogs_shouldMatchOnTheSpecifiedClasses() throws Exception {
-		executeDataSet(MODULE_TEST_DATA_AUDIT_LOGS);
+		executeAuditLogsDataSet();
 		List<Class<?>> clazzes = new ArrayList<Class<?>>();
 		clazzes.add(Concept.class);
 		assertEquals(3, auditLogService.getAuditLogs(clazzes, null, null, null, false, null, null).size());
@@ -146,7 +210,7 @@ public class AuditLogServiceTest extends BaseAuditLogTest {
 	@Test
 	@Verifies(value = "should return logs created on or after the specified startDate", method = "getAuditLogs(List<Class<?>>,List<Action>,Date,Date,Integer,Integer)")
 	public void getAuditLogs_shouldReturnLogsCreatedOnOrAfterTheSpecifiedStartDate() throws Exception {
-		executeDataSet(MODULE_TEST_DATA_AUDIT_LOGS);
+		executeAuditLogsDataSet();
 		Calendar cal = Calendar.getInstance();
 		cal.set(2012, Calendar.APRIL, 1, 0, 1, 0);
 		cal.set(Calendar.MILLISECOND, 0);
@@ -160,7 +224,7 @@ public class AuditLogServiceTest extends BaseAuditLogTest {
 	@Test
 	@Verifies(value = "should return logs created on or before the specified endDate", method = "getAuditLogs(List<Class<?>>,List<Action>,Date,Date,Integer,Integer)")
 	public void getAuditLogs_shouldReturnLogsCreatedOnOrBeforeTheSpecifiedEndDate() throws Exception {
-		executeDataSet(MODULE_TEST_DATA_AUDIT_LOGS);
+		executeAuditLogsDataSet();
 		Calendar cal = Calendar.getInstance();
 		cal.set(2012, Calendar.APRIL, 1, 0, 3, 0);
 		cal.set(Calendar.MILLISECOND, 0);
@@ -174,7 +238,7 @@ public class AuditLogServiceTest extends BaseAuditLogTest {
 	@Test
 	@Verifies(value = "should return logs created within the specified start and end dates", method = "getAuditLogs(List<Class<?>>,List<Action>,Date,Date,Integer,Integer)")
 	public void getAuditLogs_shouldReturnLogsCreatedWithinTheSpecifiedStartAndEndDates() throws Exception {
-		executeDataSet(MODULE_TEST_DATA_AUDIT_LOGS);
+		executeAuditLogsDataSet();
 		Calendar cal = Calendar.getInstance();
 		cal.set(Calendar.MILLISECOND, 0);
 		cal.set(2012, Calendar.APRIL, 1, 0, 0, 1);
@@ -202,7 +266,7 @@ public class AuditLogServiceTest extends BaseAuditLogTest {
 	@Test
 	@Verifies(value = "should ignore end date it it is in the future", method = "getAuditLogs(List<Class<?>>,List<Action>,Date,Date,Integer,Integer)")
 	public void getAuditLogs_shouldIgnoreEndDateItItIsInTheFuture() throws Exception {
-		executeDataSet(MODULE_TEST_DATA_AUDIT_LOGS);
+		executeAuditLogsDataSet();
 		Calendar cal = Calendar.getInstance();
 		cal.add(Calendar.MINUTE, 1);
 		Date endDate = cal.getTime();
@@ -215,7 +279,7 @@ public class AuditLogServiceTest extends BaseAuditLogTest {
 	@Test
 	@Verifies(value = "should sort the logs by date of creation starting with the latest", method = "getAuditLogs(List<Class<?>>,List<Action>,Date,Date,Integer,Integer)")
 	public void getAuditLogs_shouldSortTheLogsByDateOfCreationStartingWithTheLatest() throws Exception {
-		executeDataSet(MODULE_TEST_DATA_AUDIT_LOGS);
+		executeAuditLogsDataSet();
 		List<AuditLog> auditLogs = getAllAuditLogs();
 		assertFalse(auditLogs.isEmpty());
 		Date currMaxDate = auditLogs.get(0).getDateCreated();
@@ -243,7 +307,7 @@ public class AuditLogServiceTest extends BaseAuditLogTest {
 	@Test
 	@Verifies(value = "should include logs for subclasses when getting logs by type", method = "getAuditLogs(List<Class<?>>,List<Action>,Date,Date,Integer,Integer)")
 	public void getAuditLogs_shouldIncludeLogsForSubclassesWhenGettingLogsByType() throws Exception {
-		executeDataSet(MODULE_TEST_DATA_AUDIT_LOGS);
+		executeAuditLogsDataSet();
 		List<Class<?>> clazzes = new ArrayList<Class<?>>();
 		clazzes.add(OpenmrsObject.class);
 		assertEquals(6, auditLogService.getAuditLogs(clazzes, null, null, null, false, null, null).size());
@@ -258,7 +322,7 @@ public class AuditLogServiceTest extends BaseAuditLogTest {
 	@Test
 	@Verifies(value = "should get all logs for the object matching the specified uuid", method = "getAuditLogs(String,Class<?>,List<Action>,Date,Date)")
 	public void getAuditLogs_shouldGetAllLogsForTheObjectMatchingTheSpecifiedUuid() throws Exception {
-		executeDataSet(MODULE_TEST_DATA_AUDIT_LOGS);
+		executeAuditLogsDataSet();
 		assertEquals(2, auditLogService.getAuditLogs(5089, ConceptNumeric.class, null, null, null, false).size());
 	}
 	
@@ -268,7 +332,7 @@ public class AuditLogServiceTest extends BaseAuditLogTest {
 	@Test
 	@Verifies(value = "should include logs for subclasses when getting by type", method = "getAuditLogs(String,Class<?>,List<Action>,Date,Date)")
 	public void getAuditLogs_shouldIncludeLogsForSubclassesWhenGettingByType() throws Exception {
-		executeDataSet(MODULE_TEST_DATA_AUDIT_LOGS);
+		executeAuditLogsDataSet();
 		assertEquals(2, auditLogService.getAuditLogs(5089, Concept.class, null, null, null, false).size());
 	}
 	
@@ -278,7 +342,7 @@ public class AuditLogServiceTest extends BaseAuditLogTest {
 	@Test
 	@Verifies(value = "should exclude child logs if excludeChildAuditLogsis set to true", method = "getAuditLogs(List<Class<?>>,List<Action>,Date,Date,null,Integer,Integer)")
 	public void getAuditLogs_shouldExcludeChildLogsIfExcludeChildAuditLogsisSetToTrue() throws Exception {
-		executeDataSet(MODULE_TEST_DATA_AUDIT_LOGS);
+		executeAuditLogsDataSet();
 		assertEquals(4, auditLogService.getAuditLogs(null, null, null, null, true, null, null).size());
 	}
 	
@@ -289,7 +353,7 @@ public class AuditLogServiceTest extends BaseAuditLogTest {
 	 */
 	@Test
 	public void getAuditLogs_shouldExcludeChildLogsForObjectIfExcludeChildAuditLogsIsSetToTrue() throws Exception {
-		executeDataSet(MODULE_TEST_DATA_AUDIT_LOGS);
+		executeAuditLogsDataSet();
 		assertEquals(0, auditLogService.getAuditLogs(3000, ConceptDescription.class, null, null, null, true).size());
 	}
 	
@@ -300,7 +364,7 @@ public class AuditLogServiceTest extends BaseAuditLogTest {
 	 */
 	@Test
 	public void getAuditLogs_shouldGetAllLogsForTheSpecifiedObject() throws Exception {
-		executeDataSet(MODULE_TEST_DATA_AUDIT_LOGS);
+		executeAuditLogsDataSet();
 		Object obj = auditLogService.getObjectByUuid(ConceptNumeric.class, "c607c80f-1ea9-4da3-bb88-6276ce8868dd");
 		assertNotNull(obj);
 		assertEquals(2, auditLogService.getAuditLogs(obj, null, null, null, false).size());
@@ -315,4 +379,712 @@ public class AuditLogServiceTest extends BaseAuditLogTest {
 		startAuditing(AuditLog.class);
 		assertEquals(false, auditLogService.isAudited(AuditLog.class));
 	}
+	
+	/**
+	 * @verifies reject a date that is in the future
+	 * @see AuditLogService#getObjectState(java.io.Serializable, Class, java.util.Date)
+	 */
+	@Test
+	public void getObjectState_shouldRejectADateThatIsInTheFuture() throws Exception {
+		Calendar cal = Calendar.getInstance();
+		cal.add(Calendar.DAY_OF_MONTH, 1);
+		expectedException.expect(APIException.class);
+		auditLogService.getObjectState(5089, Concept.class, cal.getTime());
+	}
+	
+	/**
+	 * @verifies return null if the object was not yet created at the specified date
+	 * @see AuditLogService#getObjectState(java.io.Serializable, Class, java.util.Date)
+	 */
+	@Test
+	public void getObjectState_shouldReturnNullIfTheObjectWasNotYetCreatedAtTheSpecifiedDate() throws Exception {
+		executeAuditLogsDataSet();
+		Calendar cal = Calendar.getInstance();
+		cal.set(2012, Calendar.MARCH, 31);
+		assertNull(auditLogService.getObjectState(5089, Concept.class, cal.getTime()));
+	}
+	
+	/**
+	 * @verifies return the state of the object at the specified date
+	 * @see AuditLogService#getObjectState(java.io.Serializable, Class, java.util.Date)
+	 */
+	@Test
+	public void getObjectState_shouldReturnTheStateOfTheObjectAtTheSpecifiedDate() throws Exception {
+		startAuditing(Location.class);
+		Location location = Context.getLocationService().getLocation(1);
+		String originalName = location.getName();
+		Date beforeUpdate = new Date();
+		Thread.sleep(1000);
+		location.setName("Changed Name");
+		Context.getLocationService().saveLocation(location);
+		assertEquals(1, auditLogService.getAuditLogs(location, null, null, null, false).size());
+		
+		assertEquals("Changed Name", auditLogService.getObjectState(1, Location.class, new Date()).get("name"));
+		assertEquals(originalName, auditLogService.getObjectState(1, Location.class, beforeUpdate).get("name"));
+	}
+	
+	/**
+	 * @verifies return null if the object was already deleted at the specified date
+	 * @see AuditLogService#getObjectState(java.io.Serializable, Class, java.util.Date)
+	 */
+	@Test
+	public void getObjectState_shouldReturnNullIfTheObjectWasAlreadyDeletedAtTheSpecifiedDate() throws Exception {
+		startAuditing(EncounterType.class);
+		AuditLogUtil.setGlobalProperty(AuditLogConstants.GP_STORE_LAST_STATE_OF_DELETED_ITEMS, "true");
+		Date beforeDelete = new Date();
+		Thread.sleep(1000);
+		Context.getEncounterService().purgeEncounterType(Context.getEncounterService().getEncounterType(6));
+		
+		assertNull(auditLogService.getObjectState(6, EncounterType.class, new Date()));
+		assertEquals("Laboratory", auditLogService.getObjectState(6, EncounterType.class, beforeDelete).get("name"));
+	}
+	
+	/**
+	 * @verifies replay the logs from the nearest snapshot
+	 * @see AuditLogService#getObjectState(java.io.Serializable, Class, java.util.Date)
+	 */
+	@Test
+	public void getObjectState_shouldReplayTheLogsFromTheNearestSnapshot() throws Exception {
+		startAuditing(Location.class);
+		AuditLogUtil.setGlobalProperty(AuditLogConstants.GP_SNAPSHOT_INTERVAL, "2");
+		Location location = Context.getLocationService().getLocation(1);
+		List<Date> dates = new ArrayList<Date>();
+		for (int i = 0; i < 3; i++) {
+			Thread.sleep(1000);
+			location.setName("Name " + i);
+			Context.getLocationService().saveLocation(location);
+			dates.add(new Date());
+		}
+		assertNotNull(getAuditLogDAO().getSnapshot(1, Collections.<Class<?>> singletonList(Location.class), new Date(),
+		    true));
+		
+		for (int i = 0; i < 3; i++) {
+			assertEquals("Name " + i, auditLogService.getObjectState(1, Location.class, dates.get(i)).get("name"));
+		}
+	}
+	
+	/**
+	 * @verifies return summaries for all audit logs in the database if all args are null
+	 * @see AuditLogService#getAuditLogSummaries(java.util.List, java.util.List, java.util.Date,
+	 *      java.util.Date, boolean, Integer, Integer)
+	 */
+	@Test
+	public void getAuditLogSummaries_shouldReturnSummariesForAllAuditLogsInTheDatabaseIfAllArgsAreNull()
+	    throws Exception {
+		executeAuditLogsDataSet();
+		assertEquals(6, auditLogService.getAuditLogSummaries(null, null, null, null, false, null, null).size());
+	}
+	
+	/**
+	 * @verifies match on the specified classes and actions
+	 * @see AuditLogService#getAuditLogSummaries(java.util.List, java.util.List, java.util.Date,
+	 *      java.util.Date, boolean, Integer, Integer)
+	 */
+	@Test
+	public void getAuditLogSummaries_shouldMatchOnTheSpecifiedClassesAndActions() throws Exception {
+		executeAuditLogsDataSet();
+		List<Class<?>> clazzes = new ArrayList<Class<?>>();
+		clazzes.add(Concept.class);
+		List<Action> actions = new ArrayList<Action>();
+		actions.add(Action.UPDATED);
+		List<AuditLogSummary> summaries = auditLogService.getAuditLogSummaries(clazzes, actions, null, null, false, null,
+		    null);
+		assertEquals(2, summaries.size());
+		for (AuditLogSummary summary : summaries) {
+			assertEquals(ConceptNumeric.class.getName(), summary.getType());
+			assertEquals(Action.UPDATED, summary.getAction());
+		}
+	}
+	
+	/**
+	 * @verifies include the count of child logs
+	 * @see AuditLogService#getAuditLogSummaries(java.util.List, java.util.List, java.util.Date,
+	 *      java.util.Date, boolean, Integer, Integer)
+	 */
+	@Test
+	public void getAuditLogSummaries_shouldIncludeTheCountOfChildLogs() throws Exception {
+		executeAuditLogsDataSet();
+		List<AuditLogSummary> summaries = auditLogService.getAuditLogSummaries(null, null, null, null, true, null, null);
+		assertEquals(4, summaries.size());
+		for (AuditLogSummary summary : summaries) {
+			if ("4f7d57f0-9077-11e1-aaa4-00248140a5eb".equals(summary.getUuid())) {
+				assertEquals(2, summary.getChildAuditLogCount());
+			} else {
+				assertEquals(0, summary.getChildAuditLogCount());
+			}
+		}
+	}
+	
+	/**
+	 * @verifies include the name of the user
+	 * @see AuditLogService#getAuditLogSummaries(java.util.List, java.util.List, java.util.Date,
+	 *      java.util.Date, boolean, Integer, Integer)
+	 */
+	@Test
+	public void getAuditLogSummaries_shouldIncludeTheNameOfTheUser() throws Exception {
+		executeAuditLogsDataSet();
+		User user = Context.getUserService().getUser(1);
+		for (AuditLogSummary summary : auditLogService.getAuditLogSummaries(null, null, null, null, false, null, null)) {
+			if (user.getUuid().equals(summary.getUserUuid())) {
+				assertEquals(user.getUsername(), summary.getUsername());
+				assertEquals(user.getPersonName().getFullName(), summary.getPersonName());
+			}
+		}
+	}
+	
+	/**
+	 * @verifies return the summaries of logs with ids less than beforeAuditLogId
+	 * @see AuditLogService#getAuditLogSummaryPage(java.util.List, java.io.Serializable, User,
+	 *      java.util.List, java.util.Date, java.util.Date, boolean, Integer, Integer)
+	 */
+	@Test
+	public void getAuditLogSummaryPage_shouldReturnTheSummariesOfLogsWithIdsLessThanBeforeAuditLogId()
+	    throws Exception {
+		executeAuditLogsDataSet();
+		List<AuditLogSummary> page = auditLogService.getAuditLogSummaryPage(null, null, null, null, null, null, false,
+		    null, 4);
+		assertEquals(4, page.size());
+		assertEquals(6, page.get(0).getAuditLogId().intValue());
+		assertEquals(3, page.get(3).getAuditLogId().intValue());
+		
+		page = auditLogService.getAuditLogSummaryPage(null, null, null, null, null, null, false, 3, 4);
+		assertEquals(2, page.size());
+		assertEquals(2, page.get(0).getAuditLogId().intValue());
+		assertEquals(1, page.get(1).getAuditLogId().intValue());
+	}
+	
+	/**
+	 * @verifies count the logs with ids less than beforeAuditLogId
+	 * @see AuditLogService#getAuditLogSummaryCount(java.util.List, java.io.Serializable, User,
+	 *      java.util.List, java.util.Date, java.util.Date, boolean, Integer)
+	 */
+	@Test
+	public void getAuditLogSummaryCount_shouldCountTheLogsWithIdsLessThanBeforeAuditLogId() throws Exception {
+		executeAuditLogsDataSet();
+		int total = auditLogService.getAuditLogSummaryPage(null, null, null, null, null, null, false, null, null).size();
+		assertEquals(total, auditLogService.getAuditLogSummaryCount(null, null, null, null, null, null, false, null));
+		assertEquals(2, auditLogService.getAuditLogSummaryCount(null, null, null, null, null, null, false, 3));
+	}
+	
+	/**
+	 * @verifies match on the specified identifier and user
+	 * @see AuditLogService#getAuditLogSummaryPage(java.util.List, java.io.Serializable, User,
+	 *      java.util.List, java.util.Date, java.util.Date, boolean, Integer, Integer)
+	 */
+	@Test
+	public void getAuditLogSummaryPage_shouldMatchOnTheSpecifiedIdentifierAndUser() throws Exception {
+		executeAuditLogsDataSet();
+		User user = Context.getUserService().getUser(1);
+		List<AuditLogSummary> page = auditLogService.getAuditLogSummaryPage(null, 5089, user, null, null, null, false,
+		    null, null);
+		assertEquals(2, page.size());
+		assertEquals(4, page.get(0).getAuditLogId().intValue());
+		assertEquals(1, page.get(1).getAuditLogId().intValue());
+	}
+	
+	/**
+	 * @verifies pass the summaries to the consumer sorted by id starting with the latest
+	 * @see AuditLogService#streamAuditLogSummaryPage(java.util.List, java.io.Serializable, User,
+	 *      java.util.List, java.util.Date, java.util.Date, boolean, Integer, Integer,
+	 *      java.util.function.Consumer)
+	 */
+	@Test
+	public void streamAuditLogSummaryPage_shouldPassTheSummariesToTheConsumerSortedByIdStartingWithTheLatest()
+	    throws Exception {
+		executeAuditLogsDataSet();
+		List<AuditLogSummary> summaries = new ArrayList<AuditLogSummary>();
+		int count = auditLogService.streamAuditLogSummaryPage(null, null, null, null, null, null, false, null, 4,
+		    summaries::add);
+		assertEquals(4, count);
+		assertEquals(4, summaries.size());
+		assertEquals(6, summaries.get(0).getAuditLogId().intValue());
+		assertEquals(5, summaries.get(1).getAuditLogId().intValue());
+		assertEquals(4, summaries.get(2).getAuditLogId().intValue());
+		assertEquals(3, summaries.get(3).getAuditLogId().intValue());
+	}
+	
+	/**
+	 * @verifies pass the summaries of logs with ids less than beforeAuditLogId
+	 * @see AuditLogService#streamAuditLogSummaryPage(java.util.List, java.io.Serializable, User,
+	 *      java.util.List, java.util.Date, java.util.Date, boolean, Integer, Integer,
+	 *      java.util.function.Consumer)
+	 */
+	@Test
+	public void streamAuditLogSummaryPage_shouldPassTheSummariesOfLogsWithIdsLessThanBeforeAuditLogId()
+	    throws Exception {
+		executeAuditLogsDataSet();
+		List<AuditLogSummary> summaries = new ArrayList<AuditLogSummary>();
+		int count = auditLogService.streamAuditLogSummaryPage(null, null, null, null, null, null, false, 3, 4,
+		    summaries::add);
+		assertEquals(2, count);
+		assertEquals(2, summaries.get(0).getAuditLogId().intValue());
+		assertEquals(1, summaries.get(1).getAuditLogId().intValue());
+	}
+	
+	/**
+	 * @verifies get the audit log matching the specified uuid
+	 * @see AuditLogService#getAuditLogByUuid(String)
+	 */
+	@Test
+	public void getAuditLogByUuid_shouldGetTheAuditLogMatchingTheSpecifiedUuid() throws Exception {
+		executeAuditLogsDataSet();
+		AuditLog auditLog = auditLogService.getAuditLogByUuid("4f7d57f0-9077-11e1-aaa4-00248140a5eb");
+		assertNotNull(auditLog);
+		assertEquals(1, auditLog.getAuditLogId().intValue());
+	}
+	
+	/**
+	 * @verifies return null if no audit log matches the specified uuid
+	 * @see AuditLogService#getAuditLogByUuid(String)
+	 */
+	@Test
+	public void getAuditLogByUuid_shouldReturnNullIfNoAuditLogMatchesTheSpecifiedUuid() throws Exception {
+		executeAuditLogsDataSet();
+		assertNull(auditLogService.getAuditLogByUuid("some-unknown-uuid"));
+	}
+	
+	/**
+	 * @verifies get the saved objects matching the specified ids
+	 * @see AuditLogService#getObjectsByIds(Class, java.util.Collection)
+	 */
+	@Test
+	public void getObjectsByIds_shouldGetTheSavedObjectsMatchingTheSpecifiedIds() throws Exception {
+		Map<String, Concept> concepts = auditLogService.getObjectsByIds(Concept.class, Arrays.asList("3", "5089", "-1"));
+		assertEquals(2, concepts.size());
+		assertEquals(3, concepts.get("3").getConceptId().intValue());
+		assertEquals(5089, concepts.get("5089").getConceptId().intValue());
+	}
+	
+	/**
+	 * @verifies ignore ids that can't be converted to the identifier type
+	 * @see AuditLogService#getObjectsByIds(Class, java.util.Collection)
+	 */
+	@Test
+	public void getObjectsByIds_shouldIgnoreIdsThatCantBeConvertedToTheIdentifierType() throws Exception {
+		Map<String, Concept> concepts = auditLogService.getObjectsByIds(Concept.class, Arrays.asList("3", "abc"));
+		assertEquals(1, concepts.size());
+		assertNotNull(concepts.get("3"));
+	}
+	
+	/**
+	 * @verifies return an empty map for a class that is not mapped
+	 * @see AuditLogService#getObjectsByIds(Class, java.util.Collection)
+	 */
+	@Test
+	public void getObjectsByIds_shouldReturnAnEmptyMapForAClassThatIsNotMapped() throws Exception {
+		assertTrue(auditLogService.getObjectsByIds(String.class, Arrays.asList("1")).isEmpty());
+	}
+	
+	/**
+	 * @verifies add the counts of the logs created since the last run
+	 * @see AuditLogService#updateDailyCounts(int)
+	 */
+	@Test
+	public void updateDailyCounts_shouldAddTheCountsOfTheLogsCreatedSinceTheLastRun() throws Exception {
+		executeAuditLogsDataSet();
+		assertEquals(3, auditLogService.updateDailyCounts(4));
+		assertEquals(2, auditLogService.updateDailyCounts(4));
+		
+		List<AuditLogDailyCount> dailyCounts = auditLogService.getDailyCounts(null, null, null, null, null);
+		assertEquals(5, dailyCounts.size());
+		long total = 0;
+		for (AuditLogDailyCount dailyCount : dailyCounts) {
+			total += dailyCount.getCount();
+		}
+		assertEquals(6, total);
+	}
+	
+	/**
+	 * @verifies not count the same logs twice
+	 * @see AuditLogService#updateDailyCounts(int)
+	 */
+	@Test
+	public void updateDailyCounts_shouldNotCountTheSameLogsTwice() throws Exception {
+		executeAuditLogsDataSet();
+		assertEquals(5, auditLogService.updateDailyCounts(100));
+		assertEquals(0, auditLogService.updateDailyCounts(100));
+	}
+	
+	/**
+	 * @verifies count the logs of transactions committed after their range was rolled up
+	 * @see AuditLogService#updateDailyCounts(int)
+	 */
+	@Test
+	public void updateDailyCounts_shouldCountTheLogsOfTransactionsCommittedAfterTheirRangeWasRolledUp()
+	    throws Exception {
+		executeAuditLogsDataSet();
+		//Moving a log out of the way makes its id look like it belongs to a pending transaction
+		Statement statement = getConnection().createStatement();
+		try {
+			statement.executeUpdate("update auditlog_audit_log set audit_log_id = -3 where audit_log_id = 3");
+			assertEquals(5, auditLogService.updateDailyCounts(100));
+			statement.executeUpdate("update auditlog_audit_log set audit_log_id = 3 where audit_log_id = -3");
+		}
+		finally {
+			statement.close();
+		}
+		
+		assertEquals(1, auditLogService.updateDailyCounts(100));
+		assertEquals(0, auditLogService.updateDailyCounts(100));
+		List<AuditLogDailyCount> dailyCounts = auditLogService.getDailyCounts(null, null, null, null, null);
+		assertEquals(5, dailyCounts.size());
+		long total = 0;
+		for (AuditLogDailyCount dailyCount : dailyCounts) {
+			total += dailyCount.getCount();
+		}
+		assertEquals(6, total);
+	}
+	
+	/**
+	 * @verifies match on the specified classes, actions and user
+	 * @see AuditLogService#getDailyCounts(List, List, User, Date, Date)
+	 */
+	@Test
+	public void getDailyCounts_shouldMatchOnTheSpecifiedClassesActionsAndUser() throws Exception {
+		executeAuditLogsDataSet();
+		auditLogService.updateDailyCounts(100);
+		List<Class<?>> clazzes = new ArrayList<Class<?>>();
+		clazzes.add(Concept.class);
+		List<AuditLogDailyCount> dailyCounts = auditLogService.getDailyCounts(clazzes,
+		    Collections.singletonList(Action.UPDATED), Context.getUserService().getUser(1), null, null);
+		assertEquals(1, dailyCounts.size());
+		assertEquals(1, dailyCounts.get(0).getCount());
+	}
+	
+	/**
+	 * @verifies return the latest log for the specified object
+	 * @see AuditLogService#getLatestAuditLog(java.io.Serializable, Class)
+	 */
+	@Test
+	public void getLatestAuditLog_shouldReturnTheLatestLogForTheSpecifiedObject() throws Exception {
+		executeAuditLogsDataSet();
+		AuditLogLatest latest = auditLogService.getLatestAuditLog(1001, ConceptName.class);
+		assertEquals(Action.DELETED, latest.getAction());
+		assertEquals("4f7d57f0-9077-11e1-aaa4-00248140a5ef", latest.getAuditLog().getUuid());
+	}
+	
+	/**
+	 * @verifies include logs for subclasses
+	 * @see AuditLogService#getLatestAuditLog(java.io.Serializable, Class)
+	 */
+	@Test
+	public void getLatestAuditLog_shouldIncludeLogsForSubclasses() throws Exception {
+		executeAuditLogsDataSet();
+		AuditLogLatest latest = auditLogService.getLatestAuditLog(5089, Concept.class);
+		assertEquals(ConceptNumeric.class.getName(), latest.getType());
+		assertEquals(Action.UPDATED, latest.getAction());
+		assertEquals(4, latest.getAuditLog().getAuditLogId().intValue());
+	}
+	
+	/**
+	 * @verifies return null if the object has no logs
+	 * @see AuditLogService#getLatestAuditLog(java.io.Serializable, Class)
+	 */
+	@Test
+	public void getLatestAuditLog_shouldReturnNullIfTheObjectHasNoLogs() throws Exception {
+		executeAuditLogsDataSet();
+		assertNull(auditLogService.getLatestAuditLog(3, Concept.class));
+	}
+	
+	/**
+	 * @verifies return the latest logs for the specified objects
+	 * @see AuditLogService#getLatestAuditLogs(java.util.Collection, Class)
+	 */
+	@Test
+	public void getLatestAuditLogs_shouldReturnTheLatestLogsForTheSpecifiedObjects() throws Exception {
+		executeAuditLogsDataSet();
+		Map<String, AuditLogLatest> latestLogs = auditLogService.getLatestAuditLogs(Arrays.asList(5089, 2001, 3),
+		    Concept.class);
+		assertEquals(2, latestLogs.size());
+		assertEquals(4, latestLogs.get("5089").getAuditLog().getAuditLogId().intValue());
+		assertEquals(5, latestLogs.get("2001").getAuditLog().getAuditLogId().intValue());
+	}
+	
+	/**
+	 * @verifies create entries for objects without one
+	 * @see AuditLogDAO#saveLatestAuditLogs(java.util.Collection)
+	 */
+	@Test
+	public void saveLatestAuditLogs_shouldCreateEntriesForObjectsWithoutOne() throws Exception {
+		executeAuditLogsDataSet();
+		AuditLog auditLog = new AuditLog(ConceptNumeric.class.getName(), 5090, Action.CREATED, null, new Date());
+		getAuditLogDAO().save(auditLog);
+		getAuditLogDAO().saveLatestAuditLogs(Collections.singletonList(auditLog));
+		
+		AuditLogLatest latest = auditLogService.getLatestAuditLog(5090, ConceptNumeric.class);
+		assertEquals(auditLog.getAuditLogId(), latest.getAuditLog().getAuditLogId());
+		assertEquals(Action.CREATED, latest.getAction());
+		assertNull(latest.getUser());
+	}
+	
+	/**
+	 * @verifies not point an entry at a log with a lower id
+	 * @see AuditLogDAO#saveLatestAuditLogs(java.util.Collection)
+	 */
+	@Test
+	public void saveLatestAuditLogs_shouldNotPointAnEntryAtALogWithALowerId() throws Exception {
+		executeAuditLogsDataSet();
+		AuditLog earlierLog = getAuditLogDAO().getObjectById(AuditLog.class, 1);
+		getAuditLogDAO().saveLatestAuditLogs(Collections.singletonList(earlierLog));
+		Context.flushSession();
+		Context.clearSession();
+		
+		AuditLogLatest latest = auditLogService.getLatestAuditLog(5089, ConceptNumeric.class);
+		assertEquals(4, latest.getAuditLog().getAuditLogId().intValue());
+		assertEquals(Action.UPDATED, latest.getAction());
+	}
+	
+	/**
+	 * @verifies return the logs that changed the specified property
+	 * @see AuditLogService#getAuditLogsByChangedProperty(List, String, Object, Object, Integer,
+	 *      Integer)
+	 */
+	@Test
+	public void getAuditLogsByChangedProperty_shouldReturnTheLogsThatChangedTheSpecifiedProperty() throws Exception {
+		executeAuditLogsDataSet();
+		List<Class<?>> clazzes = new ArrayList<Class<?>>();
+		clazzes.add(ConceptNumeric.class);
+		List<AuditLog> logs = auditLogService.getAuditLogsByChangedProperty(clazzes, "units", null, null, null, null);
+		assertEquals(2, logs.size());
+		//should be sorted with the latest first
+		assertEquals(5, logs.get(0).getAuditLogId().intValue());
+		assertEquals(4, logs.get(1).getAuditLogId().intValue());
+		
+		assertEquals(1, auditLogService.getAuditLogsByChangedProperty(clazzes, "hiNormal", null, null, null, null).size());
+		assertEquals(0, auditLogService.getAuditLogsByChangedProperty(clazzes, "lowNormal", null, null, null, null).size());
+	}
+	
+	/**
+	 * @verifies match on the specified new value
+	 * @see AuditLogService#getAuditLogsByChangedProperty(List, String, Object, Object, Integer,
+	 *      Integer)
+	 */
+	@Test
+	public void getAuditLogsByChangedProperty_shouldMatchOnTheSpecifiedNewValue() throws Exception {
+		executeAuditLogsDataSet();
+		List<Class<?>> clazzes = new ArrayList<Class<?>>();
+		clazzes.add(ConceptNumeric.class);
+		List<AuditLog> logs = auditLogService.getAuditLogsByChangedProperty(clazzes, "units", "ml", null, null, null);
+		assertEquals(1, logs.size());
+		assertEquals(5, logs.get(0).getAuditLogId().intValue());
+		
+		logs = auditLogService.getAuditLogsByChangedProperty(clazzes, "hiNormal", 100.0, null, null, null);
+		assertEquals(1, logs.size());
+		assertEquals(4, logs.get(0).getAuditLogId().intValue());
+	}
+	
+	/**
+	 * @verifies match on the specified previous value
+	 * @see AuditLogService#getAuditLogsByChangedProperty(List, String, Object, Object, Integer,
+	 *      Integer)
+	 */
+	@Test
+	public void getAuditLogsByChangedProperty_shouldMatchOnTheSpecifiedPreviousValue() throws Exception {
+		executeAuditLogsDataSet();
+		List<Class<?>> clazzes = new ArrayList<Class<?>>();
+		clazzes.add(ConceptNumeric.class);
+		List<AuditLog> logs = auditLogService.getAuditLogsByChangedProperty(clazzes, "units", null, "ml", null, null);
+		assertEquals(1, logs.size());
+		assertEquals(4, logs.get(0).getAuditLogId().intValue());
+		
+		assertEquals(0, auditLogService.getAuditLogsByChangedProperty(clazzes, "units", "ml", "ml", null, null).size());
+	}
+	
+	/**
+	 * @verifies include logs for subclasses
+	 * @see AuditLogService#getAuditLogsByChangedProperty(List, String, Object, Object, Integer,
+	 *      Integer)
+	 */
+	@Test
+	public void getAuditLogsByChangedProperty_shouldIncludeLogsForSubclasses() throws Exception {
+		executeAuditLogsDataSet();
+		List<Class<?>> clazzes = new ArrayList<Class<?>>();
+		clazzes.add(Concept.class);
+		assertEquals(2, auditLogService.getAuditLogsByChangedProperty(clazzes, "units", null, null, null, null).size());
+	}
+	
+	/**
+	 * @verifies fail if the property name is blank
+	 * @see AuditLogService#getAuditLogsByChangedProperty(List, String, Object, Object, Integer,
+	 *      Integer)
+	 */
+	@Test(expected = APIException.class)
+	public void getAuditLogsByChangedProperty_shouldFailIfThePropertyNameIsBlank() throws Exception {
+		auditLogService.getAuditLogsByChangedProperty(null, " ", null, null, null, null);
+	}
+	
+	/**
+	 * @verifies get all logs for the object with the specified uuid
+	 * @see AuditLogService#getAuditLogsByObjectUuid(String, List, Date, Date, boolean, Integer,
+	 *      Integer)
+	 */
+	@Test
+	public void getAuditLogsByObjectUuid_shouldGetAllLogsForTheObjectWithTheSpecifiedUuid() throws Exception {
+		executeAuditLogsDataSet();
+		List<AuditLog> logs = auditLogService.getAuditLogsByObjectUuid("5089AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA", null,
+		    null, null, false, null, null);
+		assertEquals(2, logs.size());
+		//should be sorted with the latest first
+		assertEquals(4, logs.get(0).getAuditLogId().intValue());
+		assertEquals(1, logs.get(1).getAuditLogId().intValue());
+		
+		logs = auditLogService.getAuditLogsByObjectUuid("5089AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA",
+		    Collections.singletonList(Action.UPDATED), null, null, false, null, null);
+		assertEquals(1, logs.size());
+		assertEquals(4, logs.get(0).getAuditLogId().intValue());
+	}
+	
+	/**
+	 * @verifies get the logs of a purged object
+	 * @see AuditLogService#getAuditLogsByObjectUuid(String, List, Date, Date, boolean, Integer,
+	 *      Integer)
+	 */
+	@Test
+	public void getAuditLogsByObjectUuid_shouldGetTheLogsOfAPurgedObject() throws Exception {
+		executeAuditLogsDataSet();
+		String uuid = "b8159118-c97b-4d5a-a63e-d4aa4be0c4d3";
+		assertNull(Context.getConceptService().getConceptNameByUuid(uuid));
+		List<AuditLog> logs = auditLogService.getAuditLogsByObjectUuid(uuid, null, null, null, false, null, null);
+		assertEquals(1, logs.size());
+		assertEquals(Action.DELETED, logs.get(0).getAction());
+	}
+	
+	/**
+	 * @verifies get all logs for the objects with the specified uuids
+	 * @see AuditLogService#getAuditLogsByObjectUuids(java.util.Collection, List, Date, Date, boolean,
+	 *      Integer, Integer)
+	 */
+	@Test
+	public void getAuditLogsByObjectUuids_shouldGetAllLogsForTheObjectsWithTheSpecifiedUuids() throws Exception {
+		executeAuditLogsDataSet();
+		List<AuditLog> logs = auditLogService.getAuditLogsByObjectUuids(
+		    Arrays.asList("5089AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA", "b8159118-c97b-4d5a-a63e-d4aa4be0c4d3", "unknown"), null,
+		    null, null, false, null, null);
+		assertEquals(3, logs.size());
+		assertEquals(6, logs.get(0).getAuditLogId().intValue());
+		assertEquals(4, logs.get(1).getAuditLogId().intValue());
+		assertEquals(1, logs.get(2).getAuditLogId().intValue());
+	}
+	
+	/**
+	 * @verifies return the specified page of the logs
+	 * @see AuditLogService#getAuditLogsByObjectUuids(java.util.Collection, List, Date, Date, boolean,
+	 *      Integer, Integer)
+	 */
+	@Test
+	public void getAuditLogsByObjectUuids_shouldReturnTheSpecifiedPageOfTheLogs() throws Exception {
+		executeAuditLogsDataSet();
+		List<AuditLog> logs = auditLogService.getAuditLogsByObjectUuids(
+		    Arrays.asList("5089AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA", "b8159118-c97b-4d5a-a63e-d4aa4be0c4d3"), null, null, null,
+		    false, 1, 1);
+		assertEquals(1, logs.size());
+		assertEquals(4, logs.get(0).getAuditLogId().intValue());
+	}
+	
+	/**
+	 * @verifies return an empty list if no uuids are specified
+	 * @see AuditLogService#getAuditLogsByObjectUuids(java.util.Collection, List, Date, Date, boolean,
+	 *      Integer, Integer)
+	 */
+	@Test
+	public void getAuditLogsByObjectUuids_shouldReturnAnEmptyListIfNoUuidsAreSpecified() throws Exception {
+		executeAuditLogsDataSet();
+		assertTrue(auditLogService.getAuditLogsByObjectUuids(new ArrayList<String>(), null, null, null, false, null,
+		    null).isEmpty());
+	}
+	
+	/**
+	 * @verifies load the users of the logs with the logs
+	 * @see AuditLogService#getAuditLogs(List, List, Date, Date, boolean, Integer, Integer)
+	 */
+	@Test
+	public void getAuditLogs_shouldLoadTheUsersOfTheLogsWithTheLogs() throws Exception {
+		executeAuditLogsDataSet();
+		Context.flushSession();
+		Context.clearSession();
+		List<AuditLog> logs = auditLogService.getAuditLogs(null, null, null, null, false, null, null);
+		assertFalse(logs.isEmpty());
+		for (AuditLog auditLog : logs) {
+			assertTrue(Hibernate.isInitialized(auditLog.getUser()));
+		}
+	}
+	
+	/**
+	 * @verifies search on the primary if the read replica is unavailable
+	 * @see AuditLogService#getAuditLogs(List, List, Date, Date, boolean, Integer, Integer)
+	 */
+	@Test
+	public void getAuditLogs_shouldSearchOnThePrimaryIfTheReadReplicaIsUnavailable() throws Exception {
+		executeAuditLogsDataSet();
+		int expectedCount = getAllAuditLogs().size();
+		//A second empty H2 database stands in for a replica that has no audit log tables
+		Properties originalProps = Context.getRuntimeProperties();
+		Properties props = Context.getRuntimeProperties();
+		props.setProperty(AuditLogConstants.RP_READ_DATASOURCE + ".url", "jdbc:h2:mem:auditlog_replica;DB_CLOSE_DELAY=-1");
+		Context.setRuntimeProperties(props);
+		TransactionSynchronizationManager.setCurrentTransactionReadOnly(true);
+		try {
+			assertEquals(expectedCount, getAllAuditLogs().size());
+		}
+		finally {
+			TransactionSynchronizationManager.setCurrentTransactionReadOnly(false);
+			Context.setRuntimeProperties(originalProps);
+			AuditLogDataSources.close();
+		}
+	}
+	
+	/**
+	 * @verifies search on the read replica if it is usable
+	 * @see AuditLogService#getAuditLogs(List, List, Date, Date, boolean, Integer, Integer)
+	 */
+	@Test
+	public void getAuditLogs_shouldSearchOnTheReadReplicaIfItIsUsable() throws Exception {
+		executeAuditLogsDataSet();
+		List<Action> deleted = Collections.singletonList(Action.DELETED);
+		int expectedCount = getAllAuditLogs().size();
+		assertTrue(auditLogService.getAuditLogs(null, deleted, null, null, false, null, null).size() < expectedCount);
+		
+		//A second H2 database copied from the primary where all the logs are deletions stands in for the replica
+		Properties originalProps = Context.getRuntimeProperties();
+		Properties props = Context.getRuntimeProperties();
+		String url = "jdbc:h2:mem:auditlog_usable_replica;DB_CLOSE_DELAY=-1";
+		File script = File.createTempFile("auditlog_replica", ".sql");
+		Context.flushSession();
+		Statement statement = getConnection().createStatement();
+		try {
+			statement.execute("SCRIPT TO '" + script.getAbsolutePath() + "'");
+		}
+		finally {
+			statement.close();
+		}
+		Connection replica = DriverManager.getConnection(url, props.getProperty("connection.username"),
+		    props.getProperty("connection.password"));
+		try {
+			statement = replica.createStatement();
+			statement.execute("RUNSCRIPT FROM '" + script.getAbsolutePath() + "'");
+			statement.executeUpdate("update auditlog_audit_log set action = 'DELETED'");
+			statement.close();
+		}
+		finally {
+			replica.close();
+			script.delete();
+		}
+		
+		props.setProperty(AuditLogConstants.RP_READ_DATASOURCE + ".url", url);
+		props.setProperty(AuditLogConstants.RP_READ_DATASOURCE + ".username", props.getProperty("connection.username"));
+		props.setProperty(AuditLogConstants.RP_READ_DATASOURCE + ".password", props.getProperty("connection.password"));
+		Context.setRuntimeProperties(props);
+		//Discards the pool state loaded by the searches above
+		AuditLogDataSources.close();
+		TransactionSynchronizationManager.setCurrentTransactionReadOnly(true);
+		try {
+			//The ids are searched on the replica and the logs are loaded from the primary
+			assertEquals(expectedCount, auditLogService.getAuditLogs(null, deleted, null, null, false, null, null).size());
+		}
+		finally {
+			TransactionSynchronizationManager.setCurrentTransactionReadOnly(false);
+			Context.setRuntimeProperties(originalProps);
+			AuditLogDataSources.close();
+		}
+	}
 }
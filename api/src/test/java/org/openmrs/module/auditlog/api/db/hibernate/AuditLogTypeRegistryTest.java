@@ -0,0 +1,130 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.api.db.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.UUID;
+
+import org.hibernate.HibernateException;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+
+@Ignore
+public class AuditLogTypeRegistryTest extends BaseModuleContextSensitiveTest {
+	
+	@Autowired
+	private SessionFactory sessionFactory;
+	
+	private SharedSessionContractImplementor getSession() {
+		return (SharedSessionContractImplementor) sessionFactory.getCurrentSession();
+	}
+	
+	private String createClassname() {
+		return "org.openmrs.Test" + UUID.randomUUID().toString().replace("-", "");
+	}
+	
+	private int countEntries(String classname) throws Exception {
+		PreparedStatement ps = getConnection().prepareStatement("select count(*) from auditlog_type where classname = ?");
+		try {
+			ps.setString(1, classname);
+			ResultSet rs = ps.executeQuery();
+			rs.next();
+			return rs.getInt(1);
+		}
+		finally {
+			ps.close();
+		}
+	}
+	
+	private void executeUpdate(String sql, String classname) throws Exception {
+		PreparedStatement ps = getConnection().prepareStatement(sql);
+		try {
+			ps.setString(1, classname);
+			ps.executeUpdate();
+		}
+		finally {
+			ps.close();
+		}
+	}
+	
+	/**
+	 * @verifies not add an entry for an unknown class name
+	 * @see AuditLogTypeRegistry#getTypeId(String, SharedSessionContractImplementor)
+	 */
+	@Test
+	public void getTypeId_shouldNotAddAnEntryForAnUnknownClassName() throws Exception {
+		String classname = createClassname();
+		assertNull(AuditLogTypeRegistry.getTypeId(classname, getSession()));
+		assertEquals(0, countEntries(classname));
+	}
+	
+	/**
+	 * @verifies not cache an entry only visible to the calling transaction
+	 * @see AuditLogTypeRegistry#getTypeId(String, SharedSessionContractImplementor)
+	 */
+	@Test
+	public void getTypeId_shouldNotCacheAnEntryOnlyVisibleToTheCallingTransaction() throws Exception {
+		String classname = createClassname();
+		executeUpdate("insert into auditlog_type (classname) values (?)", classname);
+		assertNotNull(AuditLogTypeRegistry.getTypeId(classname, getSession()));
+		
+		//Stands in for a rollback of the transaction
+		executeUpdate("delete from auditlog_type where classname = ?", classname);
+		assertNull(AuditLogTypeRegistry.getTypeId(classname, getSession()));
+	}
+	
+	/**
+	 * @verifies add an entry for an unknown class name
+	 * @see AuditLogTypeRegistry#register(String, SharedSessionContractImplementor)
+	 */
+	@Test
+	public void register_shouldAddAnEntryForAnUnknownClassName() throws Exception {
+		String classname = createClassname();
+		Integer typeId = AuditLogTypeRegistry.register(classname, getSession());
+		assertNotNull(typeId);
+		assertEquals(1, countEntries(classname));
+		assertEquals(classname, AuditLogTypeRegistry.getClassname(typeId, getSession()));
+	}
+	
+	/**
+	 * @verifies return the key of an existing entry
+	 * @see AuditLogTypeRegistry#register(String, SharedSessionContractImplementor)
+	 */
+	@Test
+	public void register_shouldReturnTheKeyOfAnExistingEntry() throws Exception {
+		String classname = createClassname();
+		Integer typeId = AuditLogTypeRegistry.register(classname, getSession());
+		assertEquals(typeId, AuditLogTypeRegistry.register(classname, getSession()));
+		assertEquals(typeId, AuditLogTypeRegistry.getTypeId(classname, getSession()));
+		assertEquals(1, countEntries(classname));
+	}
+	
+	/**
+	 * @verifies fail for an unknown key
+	 * @see AuditLogTypeRegistry#getClassname(Integer, SharedSessionContractImplementor)
+	 */
+	@Test(expected = HibernateException.class)
+	public void getClassname_shouldFailForAnUnknownKey() throws Exception {
+		AuditLogTypeRegistry.getClassname(-5, getSession());
+	}
+}
@@ -0,0 +1,230 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.api.db.hibernate.interceptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openmrs.module.auditlog.api.db.hibernate.interceptor.AuditLogJournal.JournalRecord;
+
+public class AuditLogJournalTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	/**
+	 * @verifies read the appended records in order
+	 * @see AuditLogJournal#read(long, int)
+	 */
+	@Test
+	public void read_shouldReadTheAppendedRecordsInOrder() throws Exception {
+		AuditLogJournal journal = new AuditLogJournal(folder.getRoot());
+		journal.write("one".getBytes());
+		journal.write("two".getBytes());
+		journal.write("three".getBytes());
+		
+		List<JournalRecord> records = journal.read(0, 10);
+		assertEquals(3, records.size());
+		assertEquals("one", new String(records.get(0).getData()));
+		assertEquals("two", new String(records.get(1).getData()));
+		assertEquals("three", new String(records.get(2).getData()));
+		
+		records = journal.read(records.get(0).getNextPosition(), 1);
+		assertEquals(1, records.size());
+		assertEquals("two", new String(records.get(0).getData()));
+	}
+	
+	/**
+	 * @verifies continue with the next segment after the end of a segment
+	 * @see AuditLogJournal#read(long, int)
+	 */
+	@Test
+	public void read_shouldContinueWithTheNextSegmentAfterTheEndOfASegment() throws Exception {
+		AuditLogJournal journal = new AuditLogJournal(folder.getRoot());
+		journal.write("one".getBytes());
+		journal.close();
+		//A restart starts a new segment
+		journal = new AuditLogJournal(folder.getRoot());
+		journal.write("two".getBytes());
+		
+		List<JournalRecord> records = journal.read(0, 10);
+		assertEquals(2, records.size());
+		assertEquals("one", new String(records.get(0).getData()));
+		assertEquals("two", new String(records.get(1).getData()));
+	}
+	
+	/**
+	 * @verifies skip the rest of a segment after a torn record
+	 * @see AuditLogJournal#read(long, int)
+	 */
+	@Test
+	public void read_shouldSkipTheRestOfASegmentAfterATornRecord() throws Exception {
+		AuditLogJournal journal = new AuditLogJournal(folder.getRoot());
+		journal.write("one".getBytes());
+		journal.write("two".getBytes());
+		journal.close();
+		File segment = folder.getRoot().listFiles()[0];
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		try {
+			//Corrupts the first byte of the second record
+			file.seek(8 + 3 + 8);
+			file.write('x');
+		}
+		finally {
+			file.close();
+		}
+		journal = new AuditLogJournal(folder.getRoot());
+		journal.write("three".getBytes());
+		
+		List<JournalRecord> records = journal.read(0, 10);
+		assertEquals(2, records.size());
+		assertEquals("one", new String(records.get(0).getData()));
+		assertEquals("three", new String(records.get(1).getData()));
+	}
+	
+	/**
+	 * @verifies delete the segments before the checkpoint
+	 * @see AuditLogJournal#setCheckpoint(long)
+	 */
+	@Test
+	public void setCheckpoint_shouldDeleteTheSegmentsBeforeTheCheckpoint() throws Exception {
+		AuditLogJournal journal = new AuditLogJournal(folder.getRoot());
+		journal.write("one".getBytes());
+		journal.close();
+		File firstSegment = folder.getRoot().listFiles()[0];
+		journal = new AuditLogJournal(folder.getRoot());
+		journal.write("two".getBytes());
+		
+		List<JournalRecord> records = journal.read(0, 10);
+		journal.setCheckpoint(records.get(1).getNextPosition());
+		assertFalse(firstSegment.exists());
+		assertEquals(records.get(1).getNextPosition(), journal.getCheckpoint());
+		assertTrue(journal.read(journal.getCheckpoint(), 10).isEmpty());
+	}
+	
+	/**
+	 * @verifies discard the pending record of a rolled back transaction
+	 * @see AuditLogJournal#complete(long, boolean)
+	 */
+	@Test
+	public void complete_shouldDiscardThePendingRecordOfARolledBackTransaction() throws Exception {
+		AuditLogJournal journal = new AuditLogJournal(folder.getRoot());
+		long position = journal.writePending("one".getBytes());
+		journal.complete(position, false);
+		List<JournalRecord> records = journal.read(0, 10);
+		assertEquals(2, records.size());
+		assertEquals(AuditLogJournal.PENDING, records.get(0).getKind());
+		assertEquals(AuditLogJournal.ABORTED, records.get(1).getKind());
+		assertFalse(journal.getOutcome(records.get(0)));
+		journal.close();
+		
+		//The aborted record is found after a restart
+		journal = new AuditLogJournal(folder.getRoot());
+		assertFalse(journal.getOutcome(journal.read(0, 1).get(0)));
+	}
+	
+	/**
+	 * @verifies keep the outcome of a committed transaction after a restart
+	 * @see AuditLogJournal#complete(long, boolean)
+	 */
+	@Test
+	public void complete_shouldKeepTheOutcomeOfACommittedTransactionAfterARestart() throws Exception {
+		AuditLogJournal journal = new AuditLogJournal(folder.getRoot());
+		long position = journal.writePending("one".getBytes());
+		journal.complete(position, true);
+		List<JournalRecord> records = journal.read(0, 10);
+		assertEquals(2, records.size());
+		assertEquals(AuditLogJournal.COMMIT, records.get(1).getKind());
+		journal.close();
+		
+		journal = new AuditLogJournal(folder.getRoot());
+		JournalRecord record = journal.read(0, 1).get(0);
+		assertTrue(journal.getOutcome(record));
+		assertArrayEquals("one".getBytes(), record.getBatch());
+	}
+	
+	/**
+	 * @verifies return null for a transaction of this run that hasn't completed
+	 * @see AuditLogJournal#getOutcome(JournalRecord)
+	 */
+	@Test
+	public void getOutcome_shouldReturnNullForATransactionOfThisRunThatHasntCompleted() throws Exception {
+		AuditLogJournal journal = new AuditLogJournal(folder.getRoot());
+		long position = journal.writePending("one".getBytes());
+		JournalRecord record = journal.read(0, 1).get(0);
+		assertNull(journal.getOutcome(record));
+		
+		journal.complete(position, true);
+		assertTrue(journal.getOutcome(record));
+	}
+	
+	/**
+	 * @verifies return true for a pending record of an earlier run without outcome
+	 * @see AuditLogJournal#isOrphaned(JournalRecord)
+	 */
+	@Test
+	public void isOrphaned_shouldReturnTrueForAPendingRecordOfAnEarlierRunWithoutOutcome() throws Exception {
+		AuditLogJournal journal = new AuditLogJournal(folder.getRoot());
+		journal.writePending("one".getBytes());
+		assertFalse(journal.isOrphaned(journal.read(0, 1).get(0)));
+		journal.close();
+		
+		journal = new AuditLogJournal(folder.getRoot());
+		JournalRecord record = journal.read(0, 1).get(0);
+		assertNull(journal.getOutcome(record));
+		assertTrue(journal.isOrphaned(record));
+	}
+	
+	/**
+	 * @verifies return false for a pending record of an earlier run with an outcome
+	 * @see AuditLogJournal#isOrphaned(JournalRecord)
+	 */
+	@Test
+	public void isOrphaned_shouldReturnFalseForAPendingRecordOfAnEarlierRunWithAnOutcome() throws Exception {
+		AuditLogJournal journal = new AuditLogJournal(folder.getRoot());
+		long position = journal.writePending("one".getBytes());
+		journal.complete(position, false);
+		journal.close();
+		
+		journal = new AuditLogJournal(folder.getRoot());
+		assertFalse(journal.isOrphaned(journal.read(0, 1).get(0)));
+	}
+	
+	/**
+	 * @verifies write the record to the quarantine directory
+	 * @see AuditLogJournal#quarantine(JournalRecord, String)
+	 */
+	@Test
+	public void quarantine_shouldWriteTheRecordToTheQuarantineDirectory() throws Exception {
+		AuditLogJournal journal = new AuditLogJournal(folder.getRoot());
+		journal.writeCommitted("one".getBytes());
+		JournalRecord record = journal.read(0, 1).get(0);
+		journal.quarantine(record, "it is a test");
+		
+		File[] files = new File(folder.getRoot(), "quarantine").listFiles();
+		assertEquals(1, files.length);
+		assertArrayEquals(record.getData(), Files.readAllBytes(files[0].toPath()));
+	}
+}
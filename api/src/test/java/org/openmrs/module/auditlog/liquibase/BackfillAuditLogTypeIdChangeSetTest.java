@@ -0,0 +1,117 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.liquibase;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import liquibase.database.Database;
+import liquibase.database.core.H2Database;
+import liquibase.database.jvm.JdbcConnection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BackfillAuditLogTypeIdChangeSetTest {
+	
+	private Connection connection;
+	
+	private Database database;
+	
+	@Before
+	public void before() throws Exception {
+		connection = DriverManager.getConnection("jdbc:h2:mem:auditlog_backfill_type_id", "sa", "");
+		connection.setAutoCommit(false);
+		Statement statement = connection.createStatement();
+		statement.execute("create table auditlog_type (type_id int primary key, classname varchar(512))");
+		statement.execute("create table auditlog_audit_log (audit_log_id int primary key, type varchar(512), type_id int)");
+		statement.execute("insert into auditlog_type values (1, 'org.openmrs.Concept'), (2, 'org.openmrs.Location')");
+		for (int id = 1; id <= 7; id++) {
+			String type = (id % 2 == 0) ? "org.openmrs.Location" : "org.openmrs.Concept";
+			statement.execute("insert into auditlog_audit_log (audit_log_id, type) values (" + id + ", '" + type + "')");
+		}
+		statement.close();
+		connection.commit();
+		
+		database = new H2Database();
+		database.setConnection(new JdbcConnection(connection));
+	}
+	
+	@After
+	public void after() throws Exception {
+		connection.close();
+	}
+	
+	private Map<Integer, Integer> getTypeIds() throws Exception {
+		Map<Integer, Integer> typeIds = new LinkedHashMap<Integer, Integer>();
+		Statement statement = connection.createStatement();
+		try {
+			ResultSet rs = statement.executeQuery("select audit_log_id, type_id from auditlog_audit_log order by audit_log_id");
+			while (rs.next()) {
+				typeIds.put(rs.getInt(1), (Integer) rs.getObject(2));
+			}
+		}
+		finally {
+			statement.close();
+		}
+		return typeIds;
+	}
+	
+	/**
+	 * @verifies set the type ids of all audit logs in ranges of the batch size
+	 * @see BackfillAuditLogTypeIdChangeSet#execute(Database)
+	 */
+	@Test
+	public void execute_shouldSetTheTypeIdsOfAllAuditLogsInRangesOfTheBatchSize() throws Exception {
+		BackfillAuditLogTypeIdChangeSet changeSet = new BackfillAuditLogTypeIdChangeSet();
+		changeSet.setBatchSize("2");
+		
+		changeSet.execute(database);
+		
+		Map<Integer, Integer> typeIds = getTypeIds();
+		for (int id = 1; id <= 7; id++) {
+			assertEquals(Integer.valueOf((id % 2 == 0) ? 2 : 1), typeIds.get(id));
+		}
+		assertEquals("Set the type ids of 7 audit logs", changeSet.getConfirmationMessage());
+	}
+	
+	/**
+	 * @verifies resume at the first audit log without a type id if an earlier run was interrupted
+	 * @see BackfillAuditLogTypeIdChangeSet#execute(Database)
+	 */
+	@Test
+	public void execute_shouldResumeAtTheFirstAuditLogWithoutATypeIdIfAnEarlierRunWasInterrupted() throws Exception {
+		Statement statement = connection.createStatement();
+		statement.execute("update auditlog_audit_log set type_id = 1 where audit_log_id <= 4");
+		statement.close();
+		connection.commit();
+		BackfillAuditLogTypeIdChangeSet changeSet = new BackfillAuditLogTypeIdChangeSet();
+		changeSet.setBatchSize("2");
+		
+		changeSet.execute(database);
+		
+		Map<Integer, Integer> typeIds = getTypeIds();
+		assertEquals(Integer.valueOf(1), typeIds.get(4));
+		assertEquals(Integer.valueOf(1), typeIds.get(5));
+		assertEquals(Integer.valueOf(2), typeIds.get(6));
+		assertEquals("Set the type ids of 3 audit logs", changeSet.getConfirmationMessage());
+	}
+}
@@ -0,0 +1,118 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.liquibase;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import liquibase.database.Database;
+import liquibase.database.core.H2Database;
+import liquibase.database.jvm.JdbcConnection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MoveSerializedDataChangeSetTest {
+	
+	private Connection connection;
+	
+	private Database database;
+	
+	@Before
+	public void before() throws Exception {
+		connection = DriverManager.getConnection("jdbc:h2:mem:auditlog_move_serialized_data", "sa", "");
+		connection.setAutoCommit(false);
+		Statement statement = connection.createStatement();
+		statement.execute("create table auditlog_audit_log (audit_log_id int primary key, serialized_data blob)");
+		statement.execute("create table auditlog_audit_log_data (audit_log_id int primary key, serialized_data blob)");
+		for (int id = 1; id <= 7; id++) {
+			String data = (id == 3) ? "null" : "X'0" + id + "'";
+			statement.execute("insert into auditlog_audit_log values (" + id + ", " + data + ")");
+		}
+		statement.close();
+		connection.commit();
+		
+		database = new H2Database();
+		database.setConnection(new JdbcConnection(connection));
+	}
+	
+	@After
+	public void after() throws Exception {
+		connection.close();
+	}
+	
+	private Map<Integer, Byte> getMovedData() throws Exception {
+		Map<Integer, Byte> moved = new LinkedHashMap<Integer, Byte>();
+		Statement statement = connection.createStatement();
+		try {
+			ResultSet rs = statement
+			        .executeQuery("select audit_log_id, serialized_data from auditlog_audit_log_data order by audit_log_id");
+			while (rs.next()) {
+				moved.put(rs.getInt(1), rs.getBytes(2)[0]);
+			}
+		}
+		finally {
+			statement.close();
+		}
+		return moved;
+	}
+	
+	/**
+	 * @verifies copy the serialized data of all audit logs in ranges of the batch size
+	 * @see MoveSerializedDataChangeSet#execute(Database)
+	 */
+	@Test
+	public void execute_shouldCopyTheSerializedDataOfAllAuditLogsInRangesOfTheBatchSize() throws Exception {
+		MoveSerializedDataChangeSet changeSet = new MoveSerializedDataChangeSet();
+		changeSet.setBatchSize("2");
+		
+		changeSet.execute(database);
+		
+		Map<Integer, Byte> moved = getMovedData();
+		assertEquals(6, moved.size());
+		for (int id = 1; id <= 7; id++) {
+			assertEquals((id == 3) ? null : Byte.valueOf((byte) id), moved.get(id));
+		}
+		assertEquals("Moved the serialized data of 6 audit logs to the auditlog_audit_log_data table",
+		    changeSet.getConfirmationMessage());
+	}
+	
+	/**
+	 * @verifies resume after the last copied range if an earlier run was interrupted
+	 * @see MoveSerializedDataChangeSet#execute(Database)
+	 */
+	@Test
+	public void execute_shouldResumeAfterTheLastCopiedRangeIfAnEarlierRunWasInterrupted() throws Exception {
+		Statement statement = connection.createStatement();
+		statement.execute("insert into auditlog_audit_log_data select * from auditlog_audit_log where audit_log_id <= 4 "
+		        + "and serialized_data is not null");
+		statement.close();
+		connection.commit();
+		MoveSerializedDataChangeSet changeSet = new MoveSerializedDataChangeSet();
+		changeSet.setBatchSize("2");
+		
+		changeSet.execute(database);
+		
+		assertEquals(6, getMovedData().size());
+		assertEquals("Moved the serialized data of 3 audit logs to the auditlog_audit_log_data table",
+		    changeSet.getConfirmationMessage());
+	}
+}
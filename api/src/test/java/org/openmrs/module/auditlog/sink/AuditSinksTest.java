@@ -0,0 +1,191 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.sink;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openmrs.module.auditlog.AuditLog.Action;
+import org.openmrs.module.auditlog.sink.AuditSinks.SinkWorker;
+
+public class AuditSinksTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	/**
+	 * A sink with room for a single transaction that doesn't write until it is released
+	 */
+	private static class BlockedSink implements AuditSink {
+		
+		private final CountDownLatch released = new CountDownLatch(1);
+		
+		private final List<AuditRecord> records = Collections.synchronizedList(new ArrayList<AuditRecord>());
+		
+		@Override
+		public void write(List<AuditRecord> records) throws Exception {
+			released.await();
+			this.records.addAll(records);
+		}
+		
+		@Override
+		public int getQueueCapacity() {
+			return 1;
+		}
+		
+		@Override
+		public void close() throws Exception {
+		}
+	}
+	
+	/**
+	 * A sink that fails the specified number of writes before writing the records
+	 */
+	private static class FailingSink implements AuditSink {
+		
+		private final AtomicInteger failures;
+		
+		private final List<AuditRecord> records = Collections.synchronizedList(new ArrayList<AuditRecord>());
+		
+		FailingSink(int failures) {
+			this.failures = new AtomicInteger(failures);
+		}
+		
+		@Override
+		public void write(List<AuditRecord> records) throws Exception {
+			if (failures.getAndDecrement() > 0) {
+				throw new Exception("Failing on purpose");
+			}
+			this.records.addAll(records);
+		}
+		
+		@Override
+		public int getQueueCapacity() {
+			return 10;
+		}
+		
+		@Override
+		public void close() throws Exception {
+		}
+	}
+	
+	private List<AuditRecord> createRecords(String uuid) {
+		return Collections.singletonList(new AuditRecord(uuid, null, "org.openmrs.Concept", "1", null, Action.UPDATED,
+		        null, new Date(), "{\"name\":\"" + uuid + "\"}"));
+	}
+	
+	/**
+	 * @verifies not wait for the sink when the queue is full
+	 * @see SinkWorker#offer(List)
+	 */
+	@Test
+	public void offer_shouldNotWaitForTheSinkWhenTheQueueIsFull() throws Exception {
+		BlockedSink sink = new BlockedSink();
+		SinkWorker worker = new SinkWorker(sink, folder.getRoot());
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < 10; i++) {
+			worker.offer(createRecords(String.valueOf(i)));
+		}
+		assertTrue(System.currentTimeMillis() - start < TimeUnit.SECONDS.toMillis(5));
+		File[] overflowFiles = folder.getRoot().listFiles();
+		assertEquals(1, overflowFiles.length);
+		
+		sink.released.countDown();
+		worker.stop();
+	}
+	
+	/**
+	 * @verifies pass the overflowing records to the sink in order
+	 * @see SinkWorker#offer(List)
+	 */
+	@Test
+	public void offer_shouldPassTheOverflowingRecordsToTheSinkInOrder() throws Exception {
+		BlockedSink sink = new BlockedSink();
+		SinkWorker worker = new SinkWorker(sink, folder.getRoot());
+		for (int i = 0; i < 10; i++) {
+			worker.offer(createRecords(String.valueOf(i)));
+		}
+		sink.released.countDown();
+		worker.stop();
+		
+		assertEquals(10, sink.records.size());
+		for (int i = 0; i < 10; i++) {
+			AuditRecord record = sink.records.get(i);
+			assertEquals(String.valueOf(i), record.getUuid());
+			assertEquals("{\"name\":\"" + i + "\"}", record.getSerializedData());
+			assertEquals(null, record.getUserId());
+		}
+		assertEquals(0, folder.getRoot().listFiles().length);
+	}
+	
+	/**
+	 * @verifies retry the records the sink failed to write
+	 * @see SinkWorker#run()
+	 */
+	@Test
+	public void run_shouldRetryTheRecordsTheSinkFailedToWrite() throws Exception {
+		FailingSink sink = new FailingSink(2);
+		SinkWorker worker = new SinkWorker(sink, folder.getRoot());
+		worker.offer(createRecords("1"));
+		long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+		while (sink.records.isEmpty() && System.currentTimeMillis() < end) {
+			Thread.sleep(100);
+		}
+		worker.offer(createRecords("2"));
+		worker.stop();
+		
+		assertEquals(2, sink.records.size());
+		assertEquals("1", sink.records.get(0).getUuid());
+		assertEquals("2", sink.records.get(1).getUuid());
+		assertEquals(0, folder.getRoot().listFiles().length);
+	}
+	
+	/**
+	 * @verifies keep the records the sink failed to write in an overflow file
+	 * @see SinkWorker#run()
+	 */
+	@Test
+	public void run_shouldKeepTheRecordsTheSinkFailedToWriteInAnOverflowFile() throws Exception {
+		SinkWorker worker = new SinkWorker(new FailingSink(Integer.MAX_VALUE), folder.getRoot());
+		worker.offer(createRecords("1"));
+		long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+		while (folder.getRoot().listFiles().length == 0 && System.currentTimeMillis() < end) {
+			Thread.sleep(100);
+		}
+		worker.offer(createRecords("2"));
+		worker.stop();
+		assertEquals(2, folder.getRoot().listFiles().length);
+		
+		//The records are written when the sink is created again
+		FailingSink sink = new FailingSink(0);
+		worker = new SinkWorker(sink, folder.getRoot());
+		worker.stop();
+		assertEquals(2, sink.records.size());
+		assertEquals("1", sink.records.get(0).getUuid());
+		assertEquals("2", sink.records.get(1).getUuid());
+		assertEquals(0, folder.getRoot().listFiles().length);
+	}
+}
\ No newline at end of file
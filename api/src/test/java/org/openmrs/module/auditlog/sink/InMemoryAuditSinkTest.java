@@ -0,0 +1,62 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.sink;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+import org.openmrs.module.auditlog.AuditLog.Action;
+
+public class InMemoryAuditSinkTest {
+	
+	private AuditRecord createRecord(String uuid) {
+		return new AuditRecord(uuid, null, "org.openmrs.Concept", "1", null, Action.UPDATED, 1, new Date(), null);
+	}
+	
+	/**
+	 * @verifies keep only the latest records when full
+	 * @see InMemoryAuditSink#getRecords()
+	 */
+	@Test
+	public void getRecords_shouldKeepOnlyTheLatestRecordsWhenFull() throws Exception {
+		InMemoryAuditSink sink = new InMemoryAuditSink(3);
+		sink.write(Arrays.asList(createRecord("1"), createRecord("2")));
+		sink.write(Arrays.asList(createRecord("3"), createRecord("4"), createRecord("5")));
+		
+		List<String> uuids = new ArrayList<String>();
+		for (AuditRecord record : sink.getRecords()) {
+			uuids.add(record.getUuid());
+		}
+		assertEquals(Arrays.asList("3", "4", "5"), uuids);
+		assertEquals(5, sink.getCount());
+	}
+	
+	/**
+	 * @verifies remove all the records
+	 * @see InMemoryAuditSink#clear()
+	 */
+	@Test
+	public void clear_shouldRemoveAllTheRecords() throws Exception {
+		InMemoryAuditSink sink = new InMemoryAuditSink(3);
+		sink.write(Arrays.asList(createRecord("1"), createRecord("2")));
+		sink.clear();
+		assertEquals(0, sink.getRecords().size());
+		assertEquals(0, sink.getCount());
+	}
+}
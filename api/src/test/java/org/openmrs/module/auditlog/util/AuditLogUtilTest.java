@@ -15,13 +15,24 @@ package org.openmrs.module.auditlog.util;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import javax.sql.rowset.serial.SerialBlob;
 
 import org.junit.Ignore;
 import org.junit.Test;
 import org.openmrs.Concept;
 import org.openmrs.ConceptName;
 import org.openmrs.ConceptNumeric;
+import org.openmrs.module.auditlog.AuditLog;
+import org.openmrs.module.auditlog.AuditLog.Action;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 import org.openmrs.test.Verifies;
 
@@ -61,4 +72,106 @@ public class AuditLogUtilTest extends BaseModuleContextSensitiveTest {
 		assertEquals(Concept.class.getName() + ".names",
 		    AuditLogUtil.getCollectionPersister("names", ConceptNumeric.class, null).getRole());
 	}
+	
+	/**
+	 * @verifies decode the serialized data of an audit log only once
+	 * @see AuditLogUtil#getDiff(AuditLog)
+	 */
+	@Test
+	public void getDiff_shouldDecodeTheSerializedDataOfAnAuditLogOnlyOnce() throws Exception {
+		AuditLog auditLog = new AuditLog(Concept.class.getName(), "1", Action.UPDATED, null, new Date());
+		auditLog.setAuditLogId(1);
+		auditLog.setSerializedData(new SerialBlob("{\"retired\":[\"true\",\"false\"]}".getBytes()));
+		
+		AuditLogDiff diff = AuditLogUtil.getDiff(auditLog);
+		assertEquals("true", diff.getNewValue("retired"));
+		assertEquals("false", diff.getPreviousValue("retired"));
+		assertNull(diff.getNewValue("random"));
+		assertSame(diff, AuditLogUtil.getDiff(auditLog));
+	}
+	
+	/**
+	 * @verifies not cache the result if the serialized data can't be decoded
+	 * @see AuditLogUtil#getDiff(AuditLog)
+	 */
+	@Test
+	public void getDiff_shouldNotCacheTheResultIfTheSerializedDataCantBeDecoded() throws Exception {
+		AuditLog auditLog = new AuditLog(Concept.class.getName(), "1", Action.UPDATED, null, new Date());
+		auditLog.setAuditLogId(2);
+		auditLog.setSerializedData(new SerialBlob("{\"retired\":[\"true\",".getBytes()));
+		
+		AuditLogDiff diff = AuditLogUtil.getDiff(auditLog);
+		assertTrue(diff.getChanges().isEmpty());
+		assertNotSame(diff, AuditLogUtil.getDiff(auditLog));
+	}
+	
+	/**
+	 * @verifies return copies of the lists of values of the cached diff
+	 * @see AuditLogUtil#getChangesOfUpdatedItem(AuditLog)
+	 */
+	@Test
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public void getChangesOfUpdatedItem_shouldReturnCopiesOfTheListsOfValuesOfTheCachedDiff() throws Exception {
+		AuditLog auditLog = new AuditLog(Concept.class.getName(), "1", Action.UPDATED, null, new Date());
+		auditLog.setAuditLogId(3);
+		auditLog.setSerializedData(new SerialBlob("{\"retired\":[\"true\",\"false\"]}".getBytes()));
+		
+		List values = AuditLogUtil.getChangesOfUpdatedItem(auditLog).get("retired");
+		values.set(0, "changed");
+		values.add("added");
+		
+		assertEquals("true", AuditLogUtil.getNewValueOfUpdatedItem("retired", auditLog));
+		assertEquals(2, AuditLogUtil.getDiff(auditLog).getChanges().get("retired").size());
+	}
+	
+	/**
+	 * @verifies generate time ordered uuids by default
+	 * @see AuditLogUtil#generateUuid()
+	 */
+	@Test
+	public void generateUuid_shouldGenerateTimeOrderedUuidsByDefault() throws Exception {
+		AuditLogUtil.setUuidGenerator(null);
+		String previous = AuditLogUtil.generateUuid();
+		for (int i = 0; i < 10000; i++) {
+			String uuid = AuditLogUtil.generateUuid();
+			assertEquals(7, UUID.fromString(uuid).version());
+			assertEquals(2, UUID.fromString(uuid).variant());
+			assertTrue(uuid.compareTo(previous) > 0);
+			previous = uuid;
+		}
+	}
+	
+	/**
+	 * @verifies use the generator specified via the global property
+	 * @see AuditLogUtil#generateUuid()
+	 */
+	@Test
+	public void generateUuid_shouldUseTheGeneratorSpecifiedViaTheGlobalProperty() throws Exception {
+		AuditLogUtil.setGlobalProperty(AuditLogConstants.GP_UUID_GENERATOR, RandomUuidGenerator.class.getName());
+		try {
+			assertTrue(AuditLogUtil.getUuidGenerator() instanceof RandomUuidGenerator);
+			assertEquals(4, UUID.fromString(AuditLogUtil.generateUuid()).version());
+		}
+		finally {
+			AuditLogUtil.setUuidGenerator(null);
+		}
+	}
+	
+	/**
+	 * @verifies fall back to the default generator if the specified one can't be created
+	 * @see AuditLogUtil#getUuidGenerator()
+	 */
+	@Test
+	public void getUuidGenerator_shouldFallBackToTheDefaultGeneratorIfTheSpecifiedOneCantBeCreated() throws Exception {
+		AuditLogUtil.setGlobalProperty(AuditLogConstants.GP_UUID_GENERATOR, "org.openmrs.module.auditlog.NoSuchGenerator");
+		try {
+			UuidGenerator generator = AuditLogUtil.getUuidGenerator();
+			assertTrue(generator instanceof TimeOrderedUuidGenerator);
+			assertSame(generator, AuditLogUtil.getUuidGenerator());
+			assertEquals(7, UUID.fromString(AuditLogUtil.generateUuid()).version());
+		}
+		finally {
+			AuditLogUtil.setUuidGenerator(null);
+		}
+	}
 }
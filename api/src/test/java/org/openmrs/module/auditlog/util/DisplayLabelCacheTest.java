@@ -0,0 +1,91 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Test;
+import org.openmrs.BaseOpenmrsObject;
+import org.openmrs.Concept;
+import org.openmrs.ConceptName;
+import org.openmrs.ConceptNumeric;
+
+public class DisplayLabelCacheTest {
+	
+	@After
+	public void after() {
+		DisplayLabelCache.clear();
+	}
+	
+	/**
+	 * @verifies add the keys of the entity and its super classes
+	 * @see DisplayLabelCache#addKeys(Object, Object, Set)
+	 */
+	@Test
+	public void addKeys_shouldAddTheKeysOfTheEntityAndItsSuperClasses() throws Exception {
+		DisplayLabelCache.put(Concept.class, 5, "concept");
+		DisplayLabelCache.put(ConceptNumeric.class, 5, "numeric");
+		Set<String> keys = new HashSet<String>();
+		
+		DisplayLabelCache.addKeys(new ConceptNumeric(5), 5, keys);
+		//Nothing is evicted until the keys are
+		assertEquals("concept", DisplayLabelCache.get(Concept.class, 5));
+		DisplayLabelCache.evict(keys);
+		assertNull(DisplayLabelCache.get(Concept.class, 5));
+		assertNull(DisplayLabelCache.get(ConceptNumeric.class, 5));
+	}
+	
+	/**
+	 * @verifies add the keys of the owner of a name
+	 * @see DisplayLabelCache#addKeys(Object, Object, Set)
+	 */
+	@Test
+	public void addKeys_shouldAddTheKeysOfTheOwnerOfAName() throws Exception {
+		DisplayLabelCache.put(Concept.class, 5, "concept");
+		ConceptName name = new ConceptName();
+		name.setConcept(new Concept(5));
+		Set<String> keys = new HashSet<String>();
+		
+		DisplayLabelCache.addKeys(name, 9, keys);
+		DisplayLabelCache.evict(keys);
+		assertNull(DisplayLabelCache.get(Concept.class, 5));
+	}
+	
+	/**
+	 * @verifies evict the labels with the specified keys
+	 * @see DisplayLabelCache#evict(java.util.Collection)
+	 */
+	@Test
+	public void evict_shouldEvictTheLabelsWithTheSpecifiedKeys() throws Exception {
+		DisplayLabelCache.put(Concept.class, 5, "five");
+		DisplayLabelCache.put(Concept.class, 6, "six");
+		Set<String> keys = new HashSet<String>();
+		DisplayLabelCache.addKeys(new Concept(5), 5, keys);
+		assertTrue(keys.contains(Concept.class.getName() + "#5"));
+		assertTrue(keys.contains(BaseOpenmrsObject.class.getName() + "#5"));
+		
+		DisplayLabelCache.evict(keys);
+		assertNull(DisplayLabelCache.get(Concept.class, 5));
+		assertEquals("six", DisplayLabelCache.get(Concept.class, 6));
+		DisplayLabelCache.evict(Collections.<String> emptySet());
+		assertEquals("six", DisplayLabelCache.get(Concept.class, 6));
+	}
+}
@@ -0,0 +1,101 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Standalone harness that compares the throughput of the {@link UuidGenerator}s when called from
+ * concurrent threads, it needs no running OpenMRS instance and isn't run with the unit tests. Run
+ * it from the api module after compiling the test classes e.g.
+ * 
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=org.openmrs.module.auditlog.util.UuidGeneratorBenchmark -Dexec.args="4 1000000"
+ * </pre>
+ * 
+ * The arguments are the number of threads and the number of uuids each thread generates, the
+ * first rounds are discarded as warm up.
+ */
+public class UuidGeneratorBenchmark {
+	
+	private static final int WARM_UP_ROUNDS = 3;
+	
+	private static final int MEASURED_ROUNDS = 5;
+	
+	public static void main(String[] args) throws Exception {
+		int threads = (args.length > 0) ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		int uuidsPerThread = (args.length > 1) ? Integer.parseInt(args[1]) : 1000000;
+		UuidGenerator[] generators = { new TimeOrderedUuidGenerator(), new RandomUuidGenerator() };
+		
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for (UuidGenerator generator : generators) {
+				for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+					run(executor, generator, threads, uuidsPerThread);
+				}
+				long total = 0;
+				for (int i = 0; i < MEASURED_ROUNDS; i++) {
+					total += run(executor, generator, threads, uuidsPerThread);
+				}
+				double seconds = total / 1e9;
+				long count = (long) threads * uuidsPerThread * MEASURED_ROUNDS;
+				System.out.printf("%s: %,.0f uuids/s with %d threads%n", generator.getClass().getSimpleName(),
+				    count / seconds, threads);
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+	
+	/**
+	 * @return the elapsed time in nanoseconds until all threads generated their uuids
+	 */
+	private static long run(ExecutorService executor, final UuidGenerator generator, int threads,
+	                        final int uuidsPerThread) throws Exception {
+		List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>(threads);
+		for (int i = 0; i < threads; i++) {
+			tasks.add(new Callable<Integer>() {
+				
+				@Override
+				public Integer call() {
+					//Consume the uuids so that the calls can't be optimized away
+					int hash = 0;
+					for (int j = 0; j < uuidsPerThread; j++) {
+						hash += generator.generateUuid().hashCode();
+					}
+					return hash;
+				}
+			});
+		}
+		
+		long start = System.nanoTime();
+		int hash = 0;
+		for (Future<Integer> future : executor.invokeAll(tasks)) {
+			hash += future.get();
+		}
+		long elapsed = System.nanoTime() - start;
+		if (hash == 42) {
+			System.out.print("");
+		}
+		
+		return elapsed;
+	}
+}
@@ -13,7 +13,7 @@
  */
 package org.openmrs.module.auditlog.extension.html;
 
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.openmrs.module.Extension;
@@ -44,9 +44,11 @@ public class AdminList extends AdministrationSectionExt {
 	 */
 	public Map<String, String> getLinks() {
 		
-		Map<String, String> map = new HashMap<String, String>();
+		Map<String, String> map = new LinkedHashMap<String, String>();
 		
 		map.put("module/" + AuditLogConstants.MODULE_ID + "/viewAuditLog.htm", AuditLogConstants.MODULE_ID + ".viewAuditLog");
+		map.put("module/" + AuditLogConstants.MODULE_ID + "/auditLogStatistics.htm", AuditLogConstants.MODULE_ID
+		        + ".statistics");
 		
 		return map;
 	}
@@ -0,0 +1,325 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.web.controller;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.text.ParseException;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.MappingJsonFactory;
+import org.openmrs.User;
+import org.openmrs.api.APIAuthenticationException;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.auditlog.AuditLog;
+import org.openmrs.module.auditlog.AuditLog.Action;
+import org.openmrs.module.auditlog.AuditLogSummary;
+import org.openmrs.module.auditlog.api.AuditLogService;
+import org.openmrs.module.auditlog.util.AuditLogConstants;
+import org.openmrs.module.auditlog.util.AuditLogDiff;
+import org.openmrs.module.auditlog.util.AuditLogUtil;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.context.request.WebRequest;
+
+/**
+ * Exposes the audit logs as a read only JSON resource at '/ws/rest/v1/auditlog', logs are paged
+ * with a keyset cursor i.e. the 'before' parameter holds the id of the last log of the previous
+ * page and responses are written to the output stream as they are generated. Since audit logs are
+ * immutable, responses carry ETag and Last-Modified headers so that polling clients and proxies can
+ * revalidate them and get a 304 response when nothing has changed. Ids are assigned when logs are
+ * written and not when their transactions commit, so a log can show up behind logs with greater ids
+ * after a client has moved past them, such a log changes the ETag of the pages it falls on but
+ * clients that page with the cursor should start again from the first page to see it.
+ */
+@Controller
+@RequestMapping("/rest/v1/" + AuditLogConstants.MODULE_ID)
+public class AuditLogResourceController {
+
+	private static final Log log = LogFactory.getLog(AuditLogResourceController.class);
+
+	private static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSSZ";
+
+	private static final String[] ACCEPTED_DATE_FORMATS = { DATE_FORMAT, "yyyy-MM-dd'T'HH:mm:ss", "yyyy-MM-dd" };
+
+	private static final int DEFAULT_LIMIT = 50;
+
+	private static final int MAX_LIMIT = 500;
+
+	private static final String PARAM_BEFORE = "before";
+
+	private static final JsonFactory jsonFactory = new MappingJsonFactory();
+
+	/**
+	 * Writes a page of summaries of the audit logs matching the specified parameters, the logs are
+	 * sorted by id starting with the latest and the response includes a link to the next page if
+	 * there can be more matches, the summaries are written as they are read from the database
+	 * 
+	 * @should write the streamed summaries and a link to the next page
+	 * @should respond with not modified without streaming the page if the etag matches
+	 * @should change the etag when a log with a lower id is committed after the latest one
+	 */
+	@RequestMapping(method = RequestMethod.GET)
+	public void getAuditLogs(@RequestParam(value = "type", required = false) List<String> types,
+	                         @RequestParam(value = "identifier", required = false) String identifier,
+	                         @RequestParam(value = "user", required = false) String userUuid,
+	                         @RequestParam(value = "action", required = false) List<Action> actions,
+	                         @RequestParam(value = "startDate", required = false) String startDate,
+	                         @RequestParam(value = "endDate", required = false) String endDate,
+	                         @RequestParam(value = "excludeChildren", defaultValue = "true") boolean excludeChildren,
+	                         @RequestParam(value = PARAM_BEFORE, required = false) Integer before,
+	                         @RequestParam(value = "limit", required = false) Integer limit, WebRequest webRequest,
+	                         HttpServletRequest request, HttpServletResponse response) throws Exception {
+
+		List<Class<?>> clazzes = null;
+		if (types != null) {
+			clazzes = new ArrayList<Class<?>>();
+			for (String type : types) {
+				clazzes.add(Context.loadClass(type.trim()));
+			}
+		}
+
+		User user = null;
+		if (StringUtils.isNotBlank(userUuid)) {
+			user = Context.getUserService().getUserByUuid(userUuid);
+			if (user == null) {
+				throw new IllegalArgumentException("No user found with uuid: " + userUuid);
+			}
+		}
+
+		int length = (limit == null || limit < 1) ? DEFAULT_LIMIT : Math.min(limit, MAX_LIMIT);
+		Date start = parseDate(startDate);
+		Date end = parseDate(endDate);
+		String trimmedIdentifier = StringUtils.trimToNull(identifier);
+
+		//Logs are immutable so the latest matching log and the number of matches tell if the page has
+		//changed without reading the entire page before the body is written, the count catches logs
+		//whose transactions committed after those of logs with greater ids
+		List<AuditLogSummary> latest = getService().getAuditLogSummaryPage(clazzes, trimmedIdentifier, user, actions,
+		    start, end, excludeChildren, before, 1);
+		long lastModified = -1;
+		String etag = "W/\"" + Integer.toHexString(StringUtils.defaultString(request.getQueryString()).hashCode());
+		if (!latest.isEmpty()) {
+			lastModified = latest.get(0).getDateCreated().getTime();
+			etag += "-" + latest.get(0).getAuditLogId() + "-"
+			        + getService().getAuditLogSummaryCount(clazzes, trimmedIdentifier, user, actions, start, end,
+			            excludeChildren, before);
+		}
+		etag += "\"";
+
+		response.setHeader("Cache-Control", "private, no-cache");
+		if (webRequest.checkNotModified(etag, lastModified)) {
+			return;
+		}
+
+		final JsonGenerator json = createJsonGenerator(response);
+		try {
+			json.writeStartObject();
+			json.writeArrayFieldStart("results");
+			final Integer[] lastAuditLogId = { null };
+			int count;
+			try {
+				count = getService().streamAuditLogSummaryPage(clazzes, trimmedIdentifier, user, actions, start, end,
+				    excludeChildren, before, length, summary -> {
+					    try {
+						    writeSummary(summary, json);
+					    }
+					    catch (IOException e) {
+						    throw new UncheckedIOException(e);
+					    }
+					    lastAuditLogId[0] = summary.getAuditLogId();
+				    });
+			}
+			catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			json.writeEndArray();
+			if (count == length) {
+				json.writeArrayFieldStart("links");
+				json.writeStartObject();
+				json.writeStringField("rel", "next");
+				json.writeStringField("uri", getNextPageUri(request, lastAuditLogId[0]));
+				json.writeEndObject();
+				json.writeEndArray();
+			}
+			json.writeEndObject();
+		}
+		finally {
+			json.close();
+		}
+	}
+
+	/**
+	 * Writes the audit log with the specified uuid including its changes
+	 * 
+	 * @should fetch the audit log with the getter that requires the get audit logs privilege
+	 */
+	@RequestMapping(value = "/{uuid}", method = RequestMethod.GET)
+	public void getAuditLog(@PathVariable("uuid") String uuid, WebRequest webRequest, HttpServletResponse response)
+	    throws IOException {
+		AuditLog auditLog = getService().getAuditLogByUuid(uuid);
+		if (auditLog == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		//The log never changes so its uuid is enough to identify the representation
+		response.setHeader("Cache-Control", "private, no-cache");
+		if (webRequest.checkNotModified("\"" + auditLog.getUuid() + "\"", auditLog.getDateCreated().getTime())) {
+			return;
+		}
+
+		JsonGenerator json = createJsonGenerator(response);
+		try {
+			json.writeStartObject();
+			json.writeStringField("uuid", auditLog.getUuid());
+			json.writeStringField("type", auditLog.getType());
+			json.writeStringField("identifier", auditLog.getIdentifier());
+			json.writeStringField("objectUuid", auditLog.getObjectUuid());
+			json.writeStringField("action", auditLog.getAction().name());
+			json.writeStringField("dateCreated", formatDate(auditLog.getDateCreated()));
+			json.writeStringField("user", (auditLog.getUser() != null) ? auditLog.getUser().getUuid() : null);
+			json.writeStringField("openmrsVersion", auditLog.getOpenmrsVersion());
+			json.writeStringField("parentAuditLog",
+			    (auditLog.getParentAuditLog() != null) ? auditLog.getParentAuditLog().getUuid() : null);
+			json.writeArrayFieldStart("childAuditLogs");
+			for (AuditLog childLog : auditLog.getChildAuditLogs()) {
+				json.writeString(childLog.getUuid());
+			}
+			json.writeEndArray();
+			writeChanges(auditLog, json);
+			json.writeEndObject();
+		}
+		finally {
+			json.close();
+		}
+	}
+
+	@ExceptionHandler(APIAuthenticationException.class)
+	public void handleAuthenticationException(APIAuthenticationException e, HttpServletResponse response)
+	    throws IOException {
+		response.sendError(Context.isAuthenticated() ? HttpServletResponse.SC_FORBIDDEN
+		        : HttpServletResponse.SC_UNAUTHORIZED, e.getMessage());
+	}
+
+	@ExceptionHandler({ APIException.class, IllegalArgumentException.class, ClassNotFoundException.class,
+	        ParseException.class })
+	public void handleBadRequest(Exception e, HttpServletResponse response) throws IOException {
+		if (log.isDebugEnabled()) {
+			log.debug("Invalid audit log request", e);
+		}
+		response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+	}
+
+	private void writeSummary(AuditLogSummary summary, JsonGenerator json) throws IOException {
+		json.writeStartObject();
+		json.writeNumberField("id", summary.getAuditLogId());
+		json.writeStringField("uuid", summary.getUuid());
+		json.writeStringField("type", summary.getType());
+		json.writeStringField("identifier", summary.getIdentifier());
+		json.writeStringField("action", summary.getAction().name());
+		json.writeStringField("dateCreated", formatDate(summary.getDateCreated()));
+		json.writeStringField("user", summary.getUserUuid());
+		json.writeStringField("username", summary.getUsername());
+		json.writeStringField("personName", summary.getPersonName());
+		json.writeNumberField("childAuditLogCount", summary.getChildAuditLogCount());
+		json.writeEndObject();
+	}
+
+	@SuppressWarnings("rawtypes")
+	private void writeChanges(AuditLog auditLog, JsonGenerator json) throws IOException {
+		if (auditLog.getAction() == Action.UPDATED) {
+			AuditLogDiff diff = AuditLogUtil.getDiff(auditLog);
+			json.writeObjectFieldStart("changes");
+			for (Map.Entry<String, List> entry : diff.getChanges().entrySet()) {
+				json.writeObjectFieldStart(entry.getKey());
+				json.writeObjectField("newValue", diff.getNewValue(entry.getKey()));
+				json.writeObjectField("previousValue", diff.getPreviousValue(entry.getKey()));
+				json.writeEndObject();
+			}
+			json.writeEndObject();
+		} else if (auditLog.getAction() == Action.DELETED) {
+			json.writeObjectField("lastState", AuditLogUtil.getDiff(auditLog).getLastState());
+		}
+	}
+
+	private JsonGenerator createJsonGenerator(HttpServletResponse response) throws IOException {
+		response.setContentType("application/json;charset=UTF-8");
+		return jsonFactory.createJsonGenerator(response.getOutputStream(), JsonEncoding.UTF8);
+	}
+
+	private String getNextPageUri(HttpServletRequest request, Integer lastAuditLogId)
+	    throws UnsupportedEncodingException {
+		StringBuilder uri = new StringBuilder(request.getRequestURL()).append('?');
+		for (Map.Entry<String, String[]> entry : request.getParameterMap().entrySet()) {
+			if (PARAM_BEFORE.equals(entry.getKey())) {
+				continue;
+			}
+			for (String value : entry.getValue()) {
+				uri.append(URLEncoder.encode(entry.getKey(), "UTF-8")).append('=')
+				        .append(URLEncoder.encode(value, "UTF-8")).append('&');
+			}
+		}
+
+		return uri.append(PARAM_BEFORE).append('=').append(lastAuditLogId).toString();
+	}
+
+	private static Date parseDate(String date) throws ParseException {
+		if (StringUtils.isBlank(date)) {
+			return null;
+		}
+
+		String trimmed = date.trim();
+		for (String format : ACCEPTED_DATE_FORMATS) {
+			SimpleDateFormat sdf = new SimpleDateFormat(format);
+			sdf.setLenient(false);
+			ParsePosition position = new ParsePosition(0);
+			Date parsed = sdf.parse(trimmed, position);
+			if (parsed != null && position.getIndex() == trimmed.length()) {
+				return parsed;
+			}
+		}
+
+		throw new ParseException("Invalid date: " + date, 0);
+	}
+
+	private static String formatDate(Date date) {
+		return (date != null) ? new SimpleDateFormat(DATE_FORMAT).format(date) : null;
+	}
+
+	private AuditLogService getService() {
+		return Context.getService(AuditLogService.class);
+	}
+}
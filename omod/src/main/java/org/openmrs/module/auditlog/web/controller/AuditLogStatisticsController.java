@@ -0,0 +1,58 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.web.controller;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.lang.time.DateUtils;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.auditlog.AuditLog.Action;
+import org.openmrs.module.auditlog.api.AuditLogService;
+import org.openmrs.module.auditlog.util.AuditLogConstants;
+import org.springframework.stereotype.Controller;
+import org.springframework.ui.ModelMap;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+
+/**
+ * This class configured as controller using annotation and mapped with the URL of
+ * 'module/auditlog/auditLogStatistics.htm', it displays the daily counts of audit logs.
+ */
+@Controller
+public class AuditLogStatisticsController {
+	
+	private static final int DEFAULT_DAYS = 30;
+	
+	private static final int MAX_DAYS = 366;
+	
+	private final String AUDIT_LOG_STATISTICS_VIEW = "module/" + AuditLogConstants.MODULE_ID + "/auditLogStatistics";
+	
+	@RequestMapping(AUDIT_LOG_STATISTICS_VIEW)
+	public void showStatistics(@RequestParam(value = "days", required = false) Integer days,
+	                           @RequestParam(value = "action", required = false) Action action, ModelMap model) {
+		int numberOfDays = (days == null || days < 1) ? DEFAULT_DAYS : Math.min(days, MAX_DAYS);
+		Calendar startDate = DateUtils.truncate(Calendar.getInstance(), Calendar.DATE);
+		startDate.add(Calendar.DATE, 1 - numberOfDays);
+		List<Action> actions = (action != null) ? Collections.singletonList(action) : null;
+		
+		model.addAttribute("days", numberOfDays);
+		model.addAttribute("selectedAction", action);
+		model.addAttribute("actions", Arrays.asList(Action.values()));
+		model.addAttribute("dailyCounts",
+		    Context.getService(AuditLogService.class).getDailyCounts(null, actions, null, startDate.getTime(), null));
+	}
+}
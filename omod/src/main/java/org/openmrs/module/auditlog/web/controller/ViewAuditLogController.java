@@ -45,6 +45,6 @@ public class ViewAuditLogController {
 		}
 		
 		model.addAttribute("auditLogs",
-		    Context.getService(AuditLogService.class).getAuditLogs(null, null, null, null, true, null, null));
+		    Context.getService(AuditLogService.class).getAuditLogSummaries(null, null, null, null, true, null, null));
 	}
 }
@@ -35,6 +35,7 @@ import org.openmrs.module.auditlog.AuditLog;
 import org.openmrs.module.auditlog.AuditLog.Action;
 import org.openmrs.module.auditlog.api.AuditLogService;
 import org.openmrs.module.auditlog.util.AuditLogConstants;
+import org.openmrs.module.auditlog.util.AuditLogDiff;
 import org.openmrs.module.auditlog.util.AuditLogUtil;
 import org.openmrs.module.auditlog.web.util.AuditLogWebConstants;
 
@@ -72,6 +73,7 @@ public class DWRAuditLogService {
 				boolean objectExists = false;
 				Map<String, Object> otherData = new HashMap<String, Object>();
 				Class<?> clazz = Class.forName(auditLog.getType());
+				ReferencedEntityResolver resolver = new ReferencedEntityResolver(getService());
 				if (!auditLog.getAction().equals(Action.DELETED)) {
 					
 					Object obj = getService().getObjectById(clazz, auditLog.getIdentifier());
@@ -81,19 +83,30 @@ public class DWRAuditLogService {
 					}
 					
 					if (auditLog.getAction().equals(Action.UPDATED)) {
-						Map<String, List> changes = AuditLogUtil.getChangesOfUpdatedItem(auditLog);
+						AuditLogDiff diff = AuditLogUtil.getDiff(auditLog);
+						Map<String, List> changes = diff.getChanges();
 						if (changes.size() > 0) {
+							//Load all referenced entities up front instead of one at a time
+							for (Map.Entry<String, List> entry : changes.entrySet()) {
+								if (entry.getValue() != null) {
+									for (Object value : entry.getValue()) {
+										addReferences(clazz, entry.getKey(), value, resolver);
+									}
+								}
+							}
+							resolver.resolve();
+							
 							for (Map.Entry<String, List> entry : changes.entrySet()) {
 								String propertyName = entry.getKey();
 								String newValueDisplay = "";
 								String preValueDisplay = "";
 								if (CollectionUtils.isNotEmpty(entry.getValue())) {
-									Object newValueObj = AuditLogUtil.getNewValueOfUpdatedItem(propertyName, auditLog);
-									Object previousValueObj = AuditLogUtil.getPreviousValueOfUpdatedItem(propertyName,
-									    auditLog);
+									Object newValueObj = diff.getNewValue(propertyName);
+									Object previousValueObj = diff.getPreviousValue(propertyName);
 									if (newValueObj != null || previousValueObj != null) {
-										newValueDisplay += getPrettyPropertyValue(propertyName, newValueObj, clazz);
-										preValueDisplay += getPrettyPropertyValue(propertyName, previousValueObj, clazz);
+										newValueDisplay += getPrettyPropertyValue(propertyName, newValueObj, clazz, resolver);
+										preValueDisplay += getPrettyPropertyValue(propertyName, previousValueObj, clazz,
+										    resolver);
 									}
 								}
 								
@@ -103,9 +116,15 @@ public class DWRAuditLogService {
 					}
 					
 				} else {
-					Map<String, String> changes = AuditLogUtil.getLastStateOfDeletedItem(auditLog);
+					Map<String, String> changes = AuditLogUtil.getDiff(auditLog).getLastState();
 					for (Map.Entry<String, String> entry : changes.entrySet()) {
-						otherData.put(entry.getKey(), getPrettyPropertyValue(entry.getKey(), entry.getValue(), clazz));
+						addReferences(clazz, entry.getKey(), entry.getValue(), resolver);
+					}
+					resolver.resolve();
+					
+					for (Map.Entry<String, String> entry : changes.entrySet()) {
+						otherData.put(entry.getKey(),
+						    getPrettyPropertyValue(entry.getKey(), entry.getValue(), clazz, resolver));
 					}
 				}
 				
@@ -127,13 +146,38 @@ public class DWRAuditLogService {
 		return null;
 	}
 	
-	private String getPrettyPropertyValue(String propertyName, Object value, Class<?> clazz) {
+	/**
+	 * Registers the ids of the entities referenced by the specified property value with the
+	 * resolver
+	 * 
+	 * @param clazz the owning type
+	 * @param propertyName the property name
+	 * @param value the serialized property value
+	 * @param resolver the resolver to register the references with
+	 */
+	private void addReferences(Class<?> clazz, String propertyName, Object value, ReferencedEntityResolver resolver) {
+		Field field = AuditLogUtil.getField(clazz, propertyName);
+		if (field == null || value == null) {
+			return;
+		}
+		
+		if (Collection.class.isAssignableFrom(field.getType())) {
+			if (value instanceof Collection) {
+				resolver.addReferences(AuditLogUtil.getCollectionElementType(clazz, propertyName), (Collection<?>) value);
+			}
+		} else if (!Map.class.isAssignableFrom(field.getType())) {
+			resolver.addReference(field.getType(), value);
+		}
+	}
+	
+	private String getPrettyPropertyValue(String propertyName, Object value, Class<?> clazz,
+	                                      ReferencedEntityResolver resolver) {
 		String prettyValue = null;
 		Field field = AuditLogUtil.getField(clazz, propertyName);
 		//This can be null if the auditlog was created and then
 		//later upgraded to a version where the field was removed
 		if (field != null && value != null) {
-			prettyValue = getPropertyDisplayString(clazz, propertyName, field.getType(), value);
+			prettyValue = getPropertyDisplayString(clazz, propertyName, field.getType(), value, resolver);
 		}
 		
 		if (prettyValue == null) {
@@ -149,10 +193,11 @@ public class DWRAuditLogService {
 	 * @param owningType
 	 * @param propertyName
 	 * @param propertyValue
+	 * @param resolver the resolver holding the already loaded referenced entities
 	 * @return the display text
 	 */
 	private String getPropertyDisplayString(Class<?> owningType, String propertyName, Class<?> propertyType,
-	                                        Object propertyValue) {
+	                                        Object propertyValue, ReferencedEntityResolver resolver) {
 		
 		String displayString = "";
 		if (propertyValue == null) {
@@ -169,21 +214,12 @@ public class DWRAuditLogService {
 					List<Object> uuidsOrIds = (List<Object>) propertyValue;
 					List<Object> items = new ArrayList<Object>();
 					List<String> unmatchedUuidsOrIds = new ArrayList<String>();
+					Class<?> itemType = AuditLogUtil.getCollectionElementType(owningType, propertyName);
 					for (Object currUuidOrId : uuidsOrIds) {
-						Object item = null;
 						String currUuidOrStr = currUuidOrId.toString().trim();
-						Class<?> itemType = AuditLogUtil.getCollectionElementType(owningType, propertyName);
-						if (AuditLogUtil.isPersistent(itemType)) {
-							try {
-								item = getService().getObjectById(itemType, Integer.valueOf(currUuidOrStr));
-							}
-							catch (NumberFormatException nfe) {
-								//ignore
-							}
-						}
-						
-						if (item != null) {
-							items.add(item);
+						String label = getReferenceDisplayString(itemType, currUuidOrStr, resolver);
+						if (label != null) {
+							items.add(label);
 						} else {
 							unmatchedUuidsOrIds.add(currUuidOrStr);
 						}
@@ -192,8 +228,7 @@ public class DWRAuditLogService {
 					StringBuilder sb = new StringBuilder("<ul class='" + AuditLogConstants.MODULE_ID
 					        + "_collection_property'>");
 					for (Object o1 : items) {
-						sb.append("<li class='" + AuditLogConstants.MODULE_ID + "_collection_item'>"
-						        + getDisplayString(o1, true) + "</li>");
+						sb.append("<li class='" + AuditLogConstants.MODULE_ID + "_collection_item'>" + o1 + "</li>");
 					}
 					for (String str : unmatchedUuidsOrIds) {
 						sb.append("<li class='" + AuditLogConstants.MODULE_ID + "_collection_item "
@@ -220,9 +255,9 @@ public class DWRAuditLogService {
 				String stringValue = propertyValue.toString();
 				if (StringUtils.isNotBlank(stringValue)) {
 					if (AuditLogUtil.isPersistent(propertyType)) {
-						Object actualObject = getService().getObjectById(propertyType, Integer.valueOf(stringValue));
-						if (actualObject != null) {
-							displayString = getDisplayString(actualObject, true);
+						String label = getReferenceDisplayString(propertyType, stringValue, resolver);
+						if (label != null) {
+							displayString = label;
 						} else {
 							displayString = "<span class=" + AuditLogConstants.MODULE_ID + "'_deleted'>" + stringValue
 							        + "</span>";
@@ -240,6 +275,29 @@ public class DWRAuditLogService {
 		return displayString;
 	}
 	
+	/**
+	 * Gets the display text for the referenced entity of the specified type with the specified id,
+	 * the text is looked up in the display label cache and only built from the loaded entity on a
+	 * cache miss
+	 * 
+	 * @param type the entity type
+	 * @param id the serialized id
+	 * @param resolver the resolver holding the already loaded referenced entities
+	 * @return the display text or null if the entity doesn't exist
+	 */
+	private String getReferenceDisplayString(Class<?> type, String id, ReferencedEntityResolver resolver) {
+		String label = resolver.getLabel(type, id);
+		if (label == null) {
+			Object entity = resolver.getEntity(type, id);
+			if (entity != null) {
+				label = getDisplayString(entity, true);
+				resolver.putLabel(type, id, label);
+			}
+		}
+		
+		return label;
+	}
+	
 	/**
 	 * Generates the display text for the specified object
 	 * 
@@ -0,0 +1,152 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.web.dwr;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+import org.openmrs.module.auditlog.api.AuditLogService;
+import org.openmrs.module.auditlog.util.AuditLogUtil;
+import org.openmrs.module.auditlog.util.DisplayLabelCache;
+
+/**
+ * Collects the ids of the entities referenced by the property values of an audit log, grouped by
+ * entity type, and loads all the referenced entities of each type with a single query before any
+ * display strings are built. References with a label in the {@link DisplayLabelCache} are not
+ * loaded at all and the labels built for the loaded entities are added to the cache.
+ */
+class ReferencedEntityResolver {
+
+	private final AuditLogService service;
+
+	private final Map<Class<?>, Set<String>> typeIdsMap = new HashMap<Class<?>, Set<String>>();
+
+	private final Map<Class<?>, Map<String, ?>> typeEntitiesMap = new HashMap<Class<?>, Map<String, ?>>();
+
+	private final Map<Class<?>, Map<String, String>> typeLabelsMap = new HashMap<Class<?>, Map<String, String>>();
+
+	ReferencedEntityResolver(AuditLogService service) {
+		this.service = service;
+	}
+
+	/**
+	 * Registers a reference to the entity of the specified type with the specified id, it's a no-op
+	 * if the type is not persistent
+	 *
+	 * @param type the entity type
+	 * @param id the serialized id
+	 */
+	void addReference(Class<?> type, Object id) {
+		if (type == null || id == null || StringUtils.isBlank(id.toString()) || !AuditLogUtil.isPersistent(type)) {
+			return;
+		}
+
+		String idStr = id.toString().trim();
+		String label = DisplayLabelCache.get(type, idStr);
+		if (label != null) {
+			getLabels(type).put(idStr, label);
+			return;
+		}
+
+		Set<String> ids = typeIdsMap.get(type);
+		if (ids == null) {
+			ids = new HashSet<String>();
+			typeIdsMap.put(type, ids);
+		}
+		ids.add(idStr);
+	}
+
+	/**
+	 * Registers references to the entities of the specified type with the specified ids
+	 *
+	 * @param type the entity type
+	 * @param ids the serialized ids
+	 */
+	void addReferences(Class<?> type, Collection<?> ids) {
+		for (Object id : ids) {
+			addReference(type, id);
+		}
+	}
+
+	/**
+	 * Loads all the registered references that are not yet loaded
+	 */
+	void resolve() {
+		for (Map.Entry<Class<?>, Set<String>> entry : typeIdsMap.entrySet()) {
+			if (!typeEntitiesMap.containsKey(entry.getKey())) {
+				typeEntitiesMap.put(entry.getKey(), service.getObjectsByIds(entry.getKey(), entry.getValue()));
+			}
+		}
+	}
+
+	/**
+	 * Gets the loaded entity of the specified type with the specified id
+	 *
+	 * @param type the entity type
+	 * @param id the serialized id
+	 * @return the entity or null if none was found
+	 */
+	Object getEntity(Class<?> type, Object id) {
+		Map<String, ?> entities = typeEntitiesMap.get(type);
+		if (entities == null || id == null) {
+			return null;
+		}
+
+		return entities.get(id.toString().trim());
+	}
+
+	/**
+	 * Gets the display label of the entity of the specified type with the specified id if it was
+	 * found in the cache when the reference was registered or was added after the entity was loaded
+	 *
+	 * @param type the entity type
+	 * @param id the serialized id
+	 * @return the label or null if none is known
+	 */
+	String getLabel(Class<?> type, Object id) {
+		Map<String, String> labels = typeLabelsMap.get(type);
+		if (labels == null || id == null) {
+			return null;
+		}
+
+		return labels.get(id.toString().trim());
+	}
+
+	/**
+	 * Records the display label built for the loaded entity of the specified type with the specified
+	 * id and adds it to the shared cache
+	 *
+	 * @param type the entity type
+	 * @param id the serialized id
+	 * @param label the display label
+	 */
+	void putLabel(Class<?> type, Object id, String label) {
+		String idStr = id.toString().trim();
+		getLabels(type).put(idStr, label);
+		DisplayLabelCache.put(type, idStr, label);
+	}
+
+	private Map<String, String> getLabels(Class<?> type) {
+		Map<String, String> labels = typeLabelsMap.get(type);
+		if (labels == null) {
+			labels = new HashMap<String, String>();
+			typeLabelsMap.put(type, labels);
+		}
+		return labels;
+	}
+}
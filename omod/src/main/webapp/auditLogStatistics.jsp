@@ -0,0 +1,66 @@
+<%@ include file="/WEB-INF/template/include.jsp"%>
+
+<%@ include file="/WEB-INF/template/header.jsp"%>
+
+<%@ include file="/WEB-INF/view/module/auditlog/include.jsp"%>
+
+<openmrs:require privilege="View Audit Log" otherwise="/login.htm"
+                 redirect="/module/${moduleId}/auditLogStatistics.htm"/>
+
+<%@ include file="template/localHeader.jsp"%>
+
+<form method="get">
+    <spring:message code="${moduleId}.days" />:
+    <input type="text" name="days" size="4" value="${days}" />
+    <spring:message code="${moduleId}.action" />:
+    <select name="action">
+        <option value=""><spring:message code="${moduleId}.all" /></option>
+        <c:forEach items="${actions}" var="action">
+            <option value="${action}" <c:if test="${action == selectedAction}">selected="selected"</c:if>>${action}</option>
+        </c:forEach>
+    </select>
+    <input type="submit" value="<spring:message code="general.submit" />" />
+</form>
+<br />
+
+<div class="box">
+    <b class="boxHeader" style="width: auto;"><spring:message code="${moduleId}.statistics" /></b>
+    <span class="description"><spring:message code="${moduleId}.statistics.help" /></span>
+    <br />
+    <table width="100%" cellpadding="3" cellspacing="0">
+        <thead>
+        <tr>
+            <th class="ui-state-default"><spring:message code="${moduleId}.day" /></th>
+            <th class="ui-state-default"><spring:message code="${moduleId}.type" /></th>
+            <th class="ui-state-default"><spring:message code="${moduleId}.action" /></th>
+            <th class="ui-state-default"><spring:message code="${moduleId}.userAndUserName" /></th>
+            <th class="ui-state-default"><spring:message code="${moduleId}.count" /></th>
+        </tr>
+        </thead>
+        <tbody>
+        <c:forEach items="${dailyCounts}" var="dailyCount">
+            <tr class="${moduleId}_${dailyCount.action}">
+                <td><openmrs:formatDate date="${dailyCount.day}" /></td>
+                <td><c:out value="${dailyCount.simpleTypeName}" /></td>
+                <td>${dailyCount.action}</td>
+                <td>
+                    <c:choose>
+                        <c:when test="${dailyCount.user == null}">
+                            <spring:message code="${moduleId}.systemAction" />
+                        </c:when>
+                        <c:otherwise>
+                            <c:out value="${dailyCount.user.personName.fullName}" /> <c:if test="${fn:trim(dailyCount.user.username) != ''}">[<c:out value="${dailyCount.user.username}" />]</c:if>
+                        </c:otherwise>
+                    </c:choose>
+                </td>
+                <td>${dailyCount.count}</td>
+            </tr>
+        </c:forEach>
+        <c:if test="${empty dailyCounts}">
+            <tr><td colspan="5"><spring:message code="${moduleId}.noStatistics" /></td></tr>
+        </c:if>
+        </tbody>
+    </table>
+</div>
+
+<%@ include file="/WEB-INF/template/footer.jsp"%>
@@ -8,6 +8,12 @@
 			<spring:message	code="${moduleId}.viewAuditLog" />
 		</a>
 	</li>
+
+	<li <c:if test='<%= request.getRequestURI().contains("/auditLogStatistics") %>'>class="active"</c:if>>
+		<a href="${pageContext.request.contextPath}/module/${moduleId}/auditLogStatistics.htm">
+			<spring:message	code="${moduleId}.statistics" />
+		</a>
+	</li>
 	
 	<%-- Add further links here --%>
 </ul>
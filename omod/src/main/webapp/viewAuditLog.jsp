@@ -40,16 +40,16 @@
                 </td>
                 <td>
                     <c:out value="${auditLog.simpleTypeName}" />
-                    <c:if test="${fn:length(auditLog.childAuditLogs) > 0}"> (${fn:length(auditLog.childAuditLogs)})</c:if>
+                    <c:if test="${auditLog.childAuditLogCount > 0}"> (${auditLog.childAuditLogCount})</c:if>
                 </td>
                 <td>
                     <c:choose>
                         <%-- If this is a scheduled task, something done by daemon thread or at start up --%>
-                        <c:when test="${auditLog.user == null || auditLog.user.uuid == 'A4F30A1B-5EB9-11DF-A648-37A07F9C90FB'}">
+                        <c:when test="${auditLog.userUuid == null || auditLog.userUuid == 'A4F30A1B-5EB9-11DF-A648-37A07F9C90FB'}">
                             <spring:message code="${moduleId}.systemAction" />
                         </c:when>
                         <c:otherwise>
-                            <c:out value="${auditLog.user.personName}" /> <c:if test="${fn:trim(auditLog.user.username) != ''}">[<c:out value="${auditLog.user.username}" />]</c:if>
+                            <c:out value="${auditLog.personName}" /> <c:if test="${fn:trim(auditLog.username) != ''}">[<c:out value="${auditLog.username}" />]</c:if>
                         </c:otherwise>
                     </c:choose>
                 </td>
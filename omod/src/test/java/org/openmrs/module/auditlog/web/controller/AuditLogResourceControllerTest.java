@@ -0,0 +1,185 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.auditlog.web.controller;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.function.Consumer;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.auditlog.AuditLog;
+import org.openmrs.module.auditlog.AuditLog.Action;
+import org.openmrs.module.auditlog.AuditLogSummary;
+import org.openmrs.module.auditlog.api.AuditLogService;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.context.request.ServletWebRequest;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(Context.class)
+@PowerMockIgnore({ "javax.management.*", "javax.script.*" })
+public class AuditLogResourceControllerTest {
+	
+	private AuditLogService service;
+	
+	private AuditLogResourceController controller;
+	
+	@Before
+	public void before() {
+		service = mock(AuditLogService.class);
+		PowerMockito.mockStatic(Context.class);
+		when(Context.getService(AuditLogService.class)).thenReturn(service);
+		controller = new AuditLogResourceController();
+	}
+	
+	private static AuditLogSummary createSummary(int auditLogId) {
+		return new AuditLogSummary(auditLogId, "uuid-" + auditLogId, "org.openmrs.Concept", String.valueOf(auditLogId),
+		        Action.CREATED, new Date(1000000L * auditLogId), null, null, null, null, null, 0L);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void mockPage(AuditLogSummary... summaries) {
+		when(
+		    service.getAuditLogSummaryPage(isNull(), isNull(), isNull(), isNull(), isNull(), isNull(), anyBoolean(),
+		        isNull(), eq(1))).thenReturn(Collections.singletonList(summaries[0]));
+		when(
+		    service.getAuditLogSummaryCount(isNull(), isNull(), isNull(), isNull(), isNull(), isNull(), anyBoolean(),
+		        isNull())).thenReturn((long) summaries.length);
+		when(
+		    service.streamAuditLogSummaryPage(isNull(), isNull(), isNull(), isNull(), isNull(), isNull(), anyBoolean(),
+		        isNull(), eq(summaries.length), any(Consumer.class))).thenAnswer(invocation -> {
+			Consumer<AuditLogSummary> consumer = invocation.getArgument(9);
+			for (AuditLogSummary summary : summaries) {
+				consumer.accept(summary);
+			}
+			return summaries.length;
+		});
+	}
+	
+	private MockHttpServletResponse getAuditLogs(MockHttpServletRequest request, int limit) throws Exception {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		controller.getAuditLogs(null, null, null, null, null, null, true, null, limit, new ServletWebRequest(request,
+		        response), request, response);
+		return response;
+	}
+	
+	/**
+	 * @verifies write the streamed summaries and a link to the next page
+	 * @see AuditLogResourceController#getAuditLogs(java.util.List, String, String, java.util.List,
+	 *      String, String, boolean, Integer, Integer,
+	 *      org.springframework.web.context.request.WebRequest,
+	 *      javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+	 */
+	@Test
+	public void getAuditLogs_shouldWriteTheStreamedSummariesAndALinkToTheNextPage() throws Exception {
+		mockPage(createSummary(9), createSummary(7));
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/ws/rest/v1/auditlog");
+		request.setParameter("limit", "2");
+		
+		MockHttpServletResponse response = getAuditLogs(request, 2);
+		
+		assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+		String json = response.getContentAsString();
+		assertTrue(json.indexOf("\"uuid-9\"") < json.indexOf("\"uuid-7\""));
+		assertTrue(json.contains("\"rel\":\"next\""));
+		assertTrue(json.contains("before=7"));
+		assertNotNull(response.getHeader("ETag"));
+	}
+	
+	/**
+	 * @verifies respond with not modified without streaming the page if the etag matches
+	 * @see AuditLogResourceController#getAuditLogs(java.util.List, String, String, java.util.List,
+	 *      String, String, boolean, Integer, Integer,
+	 *      org.springframework.web.context.request.WebRequest,
+	 *      javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void getAuditLogs_shouldRespondWithNotModifiedWithoutStreamingThePageIfTheEtagMatches() throws Exception {
+		mockPage(createSummary(9), createSummary(7));
+		String etag = getAuditLogs(new MockHttpServletRequest("GET", "/ws/rest/v1/auditlog"), 2).getHeader("ETag");
+		
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/ws/rest/v1/auditlog");
+		request.addHeader("If-None-Match", etag);
+		MockHttpServletResponse response = getAuditLogs(request, 2);
+		
+		assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getStatus());
+		assertEquals("", response.getContentAsString());
+		verify(service, times(1)).streamAuditLogSummaryPage(isNull(), isNull(), isNull(), isNull(), isNull(), isNull(),
+		    anyBoolean(), isNull(), eq(2), any(Consumer.class));
+	}
+	
+	/**
+	 * @verifies change the etag when a log with a lower id is committed after the latest one
+	 * @see AuditLogResourceController#getAuditLogs(java.util.List, String, String, java.util.List,
+	 *      String, String, boolean, Integer, Integer,
+	 *      org.springframework.web.context.request.WebRequest,
+	 *      javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+	 */
+	@Test
+	public void getAuditLogs_shouldChangeTheEtagWhenALogWithALowerIdIsCommittedAfterTheLatestOne() throws Exception {
+		mockPage(createSummary(9), createSummary(7));
+		String etag = getAuditLogs(new MockHttpServletRequest("GET", "/ws/rest/v1/auditlog"), 2).getHeader("ETag");
+		
+		mockPage(createSummary(9), createSummary(8), createSummary(7));
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/ws/rest/v1/auditlog");
+		request.addHeader("If-None-Match", etag);
+		MockHttpServletResponse response = getAuditLogs(request, 2);
+		
+		assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+		assertFalse(etag.equals(response.getHeader("ETag")));
+	}
+	
+	/**
+	 * @verifies fetch the audit log with the getter that requires the get audit logs privilege
+	 * @see AuditLogResourceController#getAuditLog(String,
+	 *      org.springframework.web.context.request.WebRequest,
+	 *      javax.servlet.http.HttpServletResponse)
+	 */
+	@Test
+	public void getAuditLog_shouldFetchTheAuditLogWithTheGetterThatRequiresTheGetAuditLogsPrivilege() throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/ws/rest/v1/auditlog/some-uuid");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		
+		controller.getAuditLog("some-uuid", new ServletWebRequest(request, response), response);
+		
+		assertEquals(HttpServletResponse.SC_NOT_FOUND, response.getStatus());
+		verify(service).getAuditLogByUuid("some-uuid");
+		verify(service, never()).getObjectByUuid(eq(AuditLog.class), anyString());
+	}
+}